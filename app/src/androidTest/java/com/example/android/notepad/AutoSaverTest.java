@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.widget.EditText;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the editor's autosave: writes are debounced, content equal to what was saved is not
+ * written, a conflicting write leaves the note dirty, unsaved content handed over is written, and
+ * in large-note mode only the edited region is written, with offsets and lengths in code points.
+ */
+public class AutoSaverTest extends InstrumentationTestCase {
+    private EditText mText;
+    private RecordingCallbacks mCallbacks;
+    private AutoSaver mSaver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mText = new EditText(getInstrumentation().getTargetContext());
+                mCallbacks = new RecordingCallbacks();
+                mSaver = new AutoSaver(mText, mCallbacks);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mSaver.destroy();
+            }
+        });
+        super.tearDown();
+    }
+
+    /*
+     * Keystrokes only restart the timer: nothing is written while typing continues, and one write
+     * with the latest text follows once typing stops for the debounce delay.
+     */
+    public void testDebounce() throws Exception {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mSaver.setContent("", 0);
+                mText.getText().append("a");
+            }
+        });
+        Thread.sleep(AutoSaver.DEBOUNCE_MILLIS / 2);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mText.getText().append("b");
+            }
+        });
+        // Longer than the delay after the first keystroke, shorter than after the second.
+        Thread.sleep(AutoSaver.DEBOUNCE_MILLIS * 3 / 4);
+        assertEquals(0, mCallbacks.getWrites().size());
+
+        Thread.sleep(AutoSaver.DEBOUNCE_MILLIS * 3 / 4);
+        final boolean[] state = new boolean[2];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                state[0] = mSaver.isDirty();
+                // Waits for the write that the timer handed to the writer thread.
+                state[1] = mSaver.saveNow();
+            }
+        });
+        assertFalse(state[0]);
+        assertTrue(state[1]);
+        assertEquals(1, mCallbacks.getWrites().size());
+        assertEquals("save ab 0", mCallbacks.getWrites().get(0));
+    }
+
+    /*
+     * Content that hashes the same as what was last saved is not written, even after edits that
+     * cancel out; a change to the extra state alone is written.
+     */
+    @UiThreadTest
+    public void testSkipUnchangedContent() {
+        mCallbacks.extraState = 1;
+        mSaver.setContent("abc", 1);
+        assertFalse(mSaver.isDirty());
+        assertTrue(mSaver.saveNow());
+
+        mText.getText().append("d");
+        mText.getText().delete(3, 4);
+        assertTrue(mSaver.isDirty());
+        assertTrue(mSaver.saveNow());
+        assertFalse(mSaver.isDirty());
+        assertEquals(0, mCallbacks.getWrites().size());
+
+        mCallbacks.extraState = 2;
+        mSaver.markDirty();
+        assertTrue(mSaver.saveNow());
+        mText.getText().append("x");
+        assertTrue(mSaver.saveNow());
+        assertTrue(mSaver.saveNow());
+        assertEquals(2, mCallbacks.getWrites().size());
+        assertEquals("save abc 2", mCallbacks.getWrites().get(0));
+        assertEquals("save abcx 2", mCallbacks.getWrites().get(1));
+    }
+
+    /*
+     * A write refused because the note changed elsewhere keeps the edits unsaved.
+     */
+    @UiThreadTest
+    public void testConflictStaysDirty() {
+        mSaver.setContent("abc", 0);
+        mCallbacks.result = false;
+        mText.getText().append("d");
+        assertFalse(mSaver.saveNow());
+        assertTrue(mSaver.isDirty());
+
+        mCallbacks.result = true;
+        assertTrue(mSaver.saveNow());
+        assertFalse(mSaver.isDirty());
+        assertEquals("save abcd 0", mCallbacks.getWrites().get(1));
+    }
+
+    /*
+     * Content handed over as unsaved, such as the text of an unresolved conflict after a
+     * configuration change, is written on the next save even if it matches what was last loaded.
+     */
+    @UiThreadTest
+    public void testUnsavedContent() {
+        mSaver.setContent("abc", 0);
+        mSaver.setUnsavedContent("abc");
+        assertEquals("abc", mText.getText().toString());
+        assertTrue(mSaver.isDirty());
+        assertTrue(mSaver.hasEdits());
+        assertTrue(mSaver.saveNow());
+        assertFalse(mSaver.isDirty());
+        assertEquals(1, mCallbacks.getWrites().size());
+        assertEquals("save abc 0", mCallbacks.getWrites().get(0));
+    }
+
+    /*
+     * In large-note mode the edits are merged into one dirty region, and the patch is expressed in
+     * code points of the saved text: the emoji before the region counts as one.
+     */
+    @UiThreadTest
+    public void testPatchRegion() {
+        // "😀abcdefghij" is 12 chars and 11 code points.
+        mSaver.beginContent("😀abc", 11);
+        mSaver.appendContent("defghij");
+        mSaver.endContent();
+        assertFalse(mSaver.isDirty());
+
+        // Replace "de" with "XYZ", then insert "!" after "g": the region becomes "XYZfg!".
+        mText.getText().replace(5, 7, "XYZ");
+        mText.getText().insert(10, "!");
+        assertEquals("😀abcXYZfg!hij", mText.getText().toString());
+        assertTrue(mSaver.saveNow());
+        assertEquals("patch 4 4 XYZfg! 11", mCallbacks.getWrites().get(0));
+
+        // Delete the emoji: one code point at the start of the 13 now saved.
+        mText.getText().delete(0, 2);
+        assertTrue(mSaver.saveNow());
+        assertEquals("patch 0 1  13", mCallbacks.getWrites().get(1));
+
+        // Nothing changed since: no write.
+        assertTrue(mSaver.saveNow());
+        assertEquals(2, mCallbacks.getWrites().size());
+    }
+
+    private void runOnMainSync(Runnable runnable) {
+        getInstrumentation().runOnMainSync(runnable);
+    }
+
+    // Records every write; save and savePatch are called on the writer thread.
+    private static class RecordingCallbacks implements AutoSaver.Callbacks {
+        private final List<String> mWrites = new ArrayList<String>();
+        volatile long extraState;
+        volatile boolean result = true;
+
+        synchronized List<String> getWrites() {
+            return new ArrayList<String>(mWrites);
+        }
+
+        @Override
+        public long getExtraState() {
+            return extraState;
+        }
+
+        @Override
+        public synchronized boolean save(String text, long extraState) {
+            mWrites.add("save " + text + " " + extraState);
+            return result;
+        }
+
+        @Override
+        public synchronized boolean savePatch(int offset, int length, String text, int expectedLength,
+                long extraState) {
+            mWrites.add("patch " + offset + " " + length + " " + text + " " + expectedLength);
+            return result;
+        }
+
+        @Override
+        public long getSavedVersion() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the list's content observer: starting loads at once, a burst of notifications becomes one
+ * background load, a load is skipped when the data version did not change, notifications during
+ * a load cause exactly one more load, and nothing is loaded while the observer is stopped.
+ */
+public class CoalescingObserverTest extends InstrumentationTestCase {
+    private static final long WINDOW_MILLIS = 100;
+    // How long to wait for a load before failing
+    private static final long TIMEOUT_MILLIS = 5000;
+    // A uri no provider notifies, so that only the test triggers loads
+    private static final Uri URI = Uri.parse("content://" + NotePad.AUTHORITY + "/coalescing_test");
+
+    private CountingCallbacks mCallbacks;
+    private CoalescingObserver<Long> mObserver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCallbacks = new CountingCallbacks();
+        mObserver = new CoalescingObserver<Long>(WINDOW_MILLIS, mCallbacks);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mObserver.start(getInstrumentation().getTargetContext().getContentResolver(), URI);
+            }
+        });
+        // Starting checks the data once.
+        waitFor(mCallbacks.delivered, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mObserver.destroy();
+            }
+        });
+        super.tearDown();
+    }
+
+    /*
+     * The load on start does not wait for the window, so the first screen is not delayed; a
+     * notification after it still waits for the window.
+     */
+    public void testStartLoadsImmediately() throws Exception {
+        final CountingCallbacks callbacks = new CountingCallbacks();
+        // Longer than the wait below: only a load that skips the window can be delivered.
+        final CoalescingObserver<Long> observer =
+                new CoalescingObserver<Long>(TIMEOUT_MILLIS * 2, callbacks);
+        try {
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    observer.start(getInstrumentation().getTargetContext().getContentResolver(),
+                            URI);
+                }
+            });
+            waitFor(callbacks.delivered, 1);
+
+            callbacks.version.incrementAndGet();
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    observer.onChange(false);
+                }
+            });
+            Thread.sleep(WINDOW_MILLIS * 3);
+            assertEquals(1, callbacks.queries.get());
+        } finally {
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    observer.destroy();
+                }
+            });
+        }
+    }
+
+    public void testBurstIsCoalesced() throws Exception {
+        mCallbacks.version.incrementAndGet();
+        notifyChange(20);
+        waitFor(mCallbacks.delivered, 2);
+        assertEquals(2, mCallbacks.queries.get());
+        assertEquals(2, mCallbacks.loads.get());
+        assertEquals(Long.valueOf(2), mCallbacks.lastResult);
+    }
+
+    public void testUnchangedVersionIsSkipped() throws Exception {
+        notifyChange(1);
+        waitFor(mCallbacks.queries, 2);
+        assertEquals(1, mCallbacks.loads.get());
+
+        // A forced reload ignores the version.
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mObserver.requestReload(true);
+            }
+        });
+        waitFor(mCallbacks.delivered, 2);
+        assertEquals(2, mCallbacks.loads.get());
+    }
+
+    public void testChangeDuringLoad() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        mCallbacks.gate = gate;
+        mCallbacks.version.incrementAndGet();
+        notifyChange(1);
+        waitFor(mCallbacks.loads, 2);
+
+        // The load is blocked: these only mark one more load as pending.
+        mCallbacks.version.incrementAndGet();
+        notifyChange(5);
+        mCallbacks.gate = null;
+        gate.countDown();
+
+        waitFor(mCallbacks.delivered, 3);
+        assertEquals(3, mCallbacks.loads.get());
+        assertEquals(Long.valueOf(3), mCallbacks.lastResult);
+    }
+
+    public void testStoppedObserverDoesNotLoad() throws Exception {
+        mCallbacks.version.incrementAndGet();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mObserver.onChange(false);
+                mObserver.stop();
+                // Ignored while stopped.
+                mObserver.requestReload(true);
+            }
+        });
+        waitFor(mCallbacks.queries, 1);
+        assertEquals(1, mCallbacks.loads.get());
+
+        // Starting again catches up with the change made while stopped.
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mObserver.start(getInstrumentation().getTargetContext().getContentResolver(), URI);
+            }
+        });
+        waitFor(mCallbacks.delivered, 2);
+        assertEquals(2, mCallbacks.loads.get());
+    }
+
+    private void notifyChange(final int times) {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < times; i++) {
+                    mObserver.onChange(false);
+                }
+            }
+        });
+    }
+
+    private void runOnMainSync(Runnable runnable) {
+        getInstrumentation().runOnMainSync(runnable);
+    }
+
+    /*
+     * Waits until the counter reaches the expected value, then for a few more windows to make
+     * sure it does not go past it.
+     */
+    private static void waitFor(AtomicInteger counter, int expected) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (counter.get() < expected && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(WINDOW_MILLIS * 3);
+        assertEquals(expected, counter.get());
+    }
+
+    // Counts version queries, loads and deliveries; a load waits on the gate when one is set.
+    private static class CountingCallbacks implements CoalescingObserver.Callbacks<Long> {
+        final AtomicInteger version = new AtomicInteger(1);
+        final AtomicInteger queries = new AtomicInteger();
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger delivered = new AtomicInteger();
+        volatile CountDownLatch gate;
+        volatile Long lastResult;
+
+        @Override
+        public long queryDataVersion() {
+            queries.incrementAndGet();
+            return version.get();
+        }
+
+        @Override
+        public Long loadInBackground() {
+            loads.incrementAndGet();
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return (long) version.get();
+        }
+
+        @Override
+        public void onLoadFinished(Long result) {
+            lastResult = result;
+            delivered.incrementAndGet();
+        }
+    }
+}
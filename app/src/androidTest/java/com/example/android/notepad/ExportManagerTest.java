@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Looper;
+import android.test.ActivityInstrumentationTestCase2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the background export job: progress is reported on the main thread up to the last note,
+ * completion hands over the written file, a second export is refused while one is running, and a
+ * cancelled export reports no file.
+ */
+public class ExportManagerTest extends ActivityInstrumentationTestCase2<NotesList> {
+    private static final String TITLE = "ExportManagerTest";
+    // How long to wait for an export before failing
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private ExportManager mManager;
+    private RecordingListener mListener;
+    private boolean mWasCompressed;
+
+    public ExportManagerTest() {
+        super(NotesList.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentResolver resolver = getInstrumentation().getTargetContext().getContentResolver();
+        for (int i = 0; i < 3; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, TITLE);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Note " + i);
+            resolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        mListener = new RecordingListener();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager = new ExportManager(getActivity());
+                mManager.setProgressListener(mListener);
+                mWasCompressed = mManager.isCompressed();
+                mManager.setCompressed(false);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager.setCompressed(mWasCompressed);
+                mManager.release();
+            }
+        });
+        getInstrumentation().getTargetContext().getContentResolver().delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TITLE });
+        super.tearDown();
+    }
+
+    public void testExportInBackground() throws Exception {
+        final boolean[] started = new boolean[3];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                started[0] = mManager.exportAllNotes();
+                started[1] = mManager.isExporting();
+                // One export at a time.
+                started[2] = mManager.exportAllNotes();
+            }
+        });
+        assertTrue(started[0]);
+        assertTrue(started[1]);
+        assertFalse(started[2]);
+
+        assertTrue(mListener.finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        File file = mListener.file;
+        assertNotNull(file);
+        try {
+            assertFalse(mManager.isExporting());
+            assertTrue(mListener.total >= 3);
+            assertEquals(mListener.total, mListener.notes);
+            assertTrue(mListener.bytes > 0);
+            assertTrue(mListener.progressOnMainThread);
+
+            String text = readFile(file);
+            for (int i = 0; i < 3; i++) {
+                assertTrue(text.contains("Note " + i));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testCancel() throws Exception {
+        final boolean[] started = new boolean[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                started[0] = mManager.exportAllNotes();
+                mManager.cancel();
+            }
+        });
+        assertTrue(started[0]);
+        assertTrue(mListener.finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(mListener.file);
+        assertFalse(mManager.isExporting());
+    }
+
+    private static String readFile(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[1024];
+            int n;
+            while ((n = reader.read(buffer)) > 0) {
+                text.append(buffer, 0, n);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Keeps the last progress values and the result.
+    private static class RecordingListener implements ExportManager.ProgressListener {
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile int notes;
+        volatile int total;
+        volatile long bytes;
+        volatile boolean progressOnMainThread = true;
+        volatile File file;
+
+        @Override
+        public void onProgress(int notes, int total, long bytes) {
+            progressOnMainThread &= Looper.myLooper() == Looper.getMainLooper();
+            this.notes = notes;
+            this.total = total;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void onFinished(File file) {
+            this.file = file;
+            finished.countDown();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Measures export throughput for a large number of notes. The notes come from a cursor that
+ * generates its rows on the fly, so the measurement covers formatting and writing only. The old
+ * way of writing (FileWriter, string concatenation and a new SimpleDateFormat for every date) is
+ * measured against the plain text {@link ExportFormatter} writing through a
+ * {@link Utf8ChannelWriter}, and both files are checked to be identical.
+ */
+public class ExportWriterBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "ExportWriterBenchmark";
+
+    private static final int NOTES = 100000;
+
+    private static final String HEADER = "记事本导出文件";
+    private static final String CREATED = "创建时间";
+    private static final String MODIFIED = "修改时间";
+
+    public void testExportThroughput() throws IOException {
+        File dir = getInstrumentation().getTargetContext().getCacheDir();
+        File before = new File(dir, "export_before.txt");
+        File after = new File(dir, "export_after.txt");
+        try {
+            long start = System.nanoTime();
+            writeLegacy(before);
+            long legacyNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Utf8ChannelWriter out = new Utf8ChannelWriter(new FileOutputStream(after).getChannel());
+            ExportFormatter formatter = ExportFormatter.create(ExportFormatter.FORMAT_TEXT,
+                    new ExportFormatter.Labels(HEADER, null, CREATED, MODIFIED), null);
+            formatter.begin(out);
+            NotesCursor cursor = new NotesCursor(NOTES);
+            while (cursor.moveToNext()) {
+                formatter.writeNote(out, cursor);
+            }
+            formatter.end(out);
+            out.close();
+            long nanos = System.nanoTime() - start;
+
+            assertEquals(before.length(), after.length());
+            assertEquals(before.length(), out.getBytesWritten());
+            assertTrue("exported files differ", sameContents(before, after));
+
+            Log.i(TAG, NOTES + " notes, " + after.length() + " bytes: before "
+                    + megabytesPerSecond(before.length(), legacyNanos) + " MB/s, after "
+                    + megabytesPerSecond(after.length(), nanos) + " MB/s");
+        } finally {
+            before.delete();
+            after.delete();
+        }
+    }
+
+    /*
+     * Tests that surrogate pairs split across writes and unpaired surrogates are encoded the same
+     * way as String.getBytes() encodes them, for a buffer small enough to be drained many times.
+     */
+    public void testUtf8Encoding() throws IOException {
+        String text = "ascii 中文 😀 tail \ud83d";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Utf8ChannelWriter out = new Utf8ChannelWriter(Channels.newChannel(bytes), 16);
+        for (int i = 0; i < 50; i++) {
+            // One char at a time splits every surrogate pair
+            for (int j = 0; j < text.length() - 1; j++) {
+                out.write(text.charAt(j));
+            }
+            out.write(text, 0, text.length() - 1);
+            out.write(text.toCharArray(), 0, text.length() - 1);
+        }
+        out.write("\ud83d");
+        out.write("x");
+        out.close();
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 150; i++) {
+            expected.append(text, 0, text.length() - 1);
+        }
+        expected.append("\ufffdx");
+        byte[] expectedBytes = expected.toString().getBytes("UTF-8");
+        assertTrue(Arrays.equals(expectedBytes, bytes.toByteArray()));
+        assertEquals(expectedBytes.length, out.getBytesWritten());
+    }
+
+    // The export loop as it was written before the writer was replaced.
+    private void writeLegacy(File file) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        writer.write(HEADER + "\n" + "=====================================\n\n");
+        NotesCursor cursor = new NotesCursor(NOTES);
+        while (cursor.moveToNext()) {
+            writer.write("【 " + cursor.getString(ExportSource.COLUMN_TITLE) + " 】\n");
+            writer.write(CREATED + ": " + formatDate(cursor.getLong(ExportSource.COLUMN_CREATE_DATE)) + "\n");
+            writer.write(MODIFIED + ": " + formatDate(cursor.getLong(ExportSource.COLUMN_MODIFICATION_DATE)) + "\n");
+            writer.write("-------------------------------------\n");
+            writer.write(cursor.getString(ExportSource.COLUMN_NOTE) + "\n\n");
+            writer.write("=====================================\n\n");
+        }
+        writer.close();
+    }
+
+    private static String formatDate(long timestamp) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(new Date(timestamp));
+    }
+
+    private static long megabytesPerSecond(long bytes, long nanos) {
+        return bytes * 1000000000L / (1024 * 1024) / Math.max(nanos, 1);
+    }
+
+    private static boolean sameContents(File a, File b) throws IOException {
+        InputStream inA = new FileInputStream(a);
+        InputStream inB = new FileInputStream(b);
+        try {
+            byte[] bufA = new byte[8192];
+            byte[] bufB = new byte[8192];
+            int n;
+            while ((n = inA.read(bufA)) > 0) {
+                int read = 0;
+                while (read < n) {
+                    int m = inB.read(bufB, read, n - read);
+                    if (m < 0) {
+                        return false;
+                    }
+                    read += m;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (bufA[i] != bufB[i]) {
+                        return false;
+                    }
+                }
+            }
+            return inB.read() < 0;
+        } finally {
+            inA.close();
+            inB.close();
+        }
+    }
+
+    /*
+     * A cursor of generated notes with the columns of {@link ExportSource#PROJECTION}. The note texts are picked from a few templates of
+     * different lengths, so the rows take no memory.
+     */
+    private static class NotesCursor extends AbstractCursor {
+
+        private static final String[] TEMPLATES = new String[] {
+                "Short note",
+                "Meeting notes: discuss the release schedule, review open bugs and assign owners.\n"
+                        + "Follow up with the design team about the new icons.",
+                "购物清单：牛奶、鸡蛋、面包、苹果、西红柿、土豆、大米、酱油、醋、盐。\n记得带购物袋。",
+                "Mixed 中英文 content with emoji 😀 and punctuation — quotes “like this”.",
+        };
+
+        private final int mCount;
+
+        NotesCursor(int count) {
+            mCount = count;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return ExportSource.PROJECTION;
+        }
+
+        @Override
+        public String getString(int column) {
+            int position = getPosition();
+            switch (column) {
+                case ExportSource.COLUMN_TITLE:
+                    return "Note " + position;
+                case ExportSource.COLUMN_NOTE:
+                    return TEMPLATES[position % TEMPLATES.length];
+                case ExportSource.COLUMN_CATEGORY:
+                    return "Category " + position % 7;
+                default:
+                    return Long.toString(getLong(column));
+            }
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            if (column == ExportSource.COLUMN_ID) {
+                return getPosition() + 1;
+            }
+            // A note a minute, modified a few seconds later
+            long created = 1500000000000L + getPosition() * 60000L;
+            return column == ExportSource.COLUMN_MODIFICATION_DATE ? created + 5000 : created;
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Measures the cost of drawing the ruled editor for notes of increasing length. The view is
+ * scrolled to the middle of the note and drawn the way its parent would draw it, and the number
+ * of ruled lines is counted to check that only the visible part of the note is drawn.
+ */
+public class LinedEditTextBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "LinedEditTextBenchmark";
+
+    // Size of the simulated screen
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    // Frames drawn for each note length
+    private static final int FRAMES = 20;
+
+    @UiThreadTest
+    public void testDrawLargeNotes() {
+        for (int lines : new int[] { 1000, 10000, 100000 }) {
+            drawNote(lines);
+        }
+    }
+
+    private void drawNote(int lines) {
+        StringBuilder text = new StringBuilder(lines * 12);
+        for (int i = 0; i < lines; i++) {
+            text.append("Line ").append(i).append('\n');
+        }
+        NoteEditor.LinedEditText view = new NoteEditor.LinedEditText(
+                getInstrumentation().getTargetContext(), null);
+        view.setText(text);
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+        int lineHeight = view.getLineHeight();
+        int scrollY = (view.getLineCount() / 2) * lineHeight;
+        view.scrollTo(0, scrollY);
+
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        CountingCanvas canvas = new CountingCanvas(bitmap);
+        long start = System.nanoTime();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            canvas.lines = 0;
+            // Mirrors ViewGroup.drawChild(): translate by the scroll offset and clip to the view
+            canvas.save();
+            canvas.translate(0, -scrollY);
+            canvas.clipRect(0, scrollY, WIDTH, scrollY + HEIGHT);
+            view.draw(canvas);
+            canvas.restore();
+        }
+        long micros = (System.nanoTime() - start) / 1000 / FRAMES;
+        bitmap.recycle();
+
+        Log.i(TAG, lines + " lines: " + micros + " us/frame, " + canvas.lines + " ruled lines");
+        assertTrue("no lines were ruled", canvas.lines > 0);
+        assertTrue(lines + " lines: ruled " + canvas.lines + " lines on one screen",
+                canvas.lines <= HEIGHT / lineHeight + 2);
+    }
+
+    // Counts the ruled lines drawn in the last frame.
+    private static class CountingCanvas extends Canvas {
+        int lines;
+
+        CountingCanvas(Bitmap bitmap) {
+            super(bitmap);
+        }
+
+        @Override
+        public void drawLine(float startX, float startY, float stopX, float stopY, Paint paint) {
+            lines++;
+            super.drawLine(startX, startY, stopX, stopY, paint);
+        }
+    }
+}
@@ -16,14 +16,26 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
 import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.widget.ListView;
+
 import com.example.android.notepad.NotesList;
 
+import java.io.File;
+
 /**
  * Make sure that the main launcher activity opens up properly, which will be
  * verified by {@link #testActivityTestCaseSetUpProperly}.
  */
 public class NotePadActivityTest extends ActivityInstrumentationTestCase2<NotesList> {
+    private static final String TAG = "NotePadActivityTest";
+
+    // How long to wait for the background load before failing
+    private static final long LOAD_TIMEOUT_MILLIS = 10000;
 
     /**
      * Creates an {@link ActivityInstrumentationTestCase2} for the {@link NotesList} activity.
@@ -38,4 +50,62 @@ public class NotePadActivityTest extends ActivityInstrumentationTestCase2<NotesL
     public void testActivityTestCaseSetUpProperly() {
         assertNotNull("activity should be launched successfully", getActivity());
     }
+
+    /**
+     * Measures how long a cold start takes to show the first list items, once without a
+     * snapshot, where the list waits for the background query, and once with the snapshot
+     * written by that first load, where the items are on screen when onCreate() returns.
+     */
+    public void testColdStartFromSnapshot() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cold start");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        Uri note = getInstrumentation().getTargetContext().getContentResolver()
+                .insert(NotePad.Notes.CONTENT_URI, values);
+        try {
+            File snapshot = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                    ListSnapshot.FILE_NAME);
+            snapshot.delete();
+
+            // Without a snapshot the list stays empty until the first load completes.
+            long start = SystemClock.uptimeMillis();
+            NotesList activity = getActivity();
+            long withoutSnapshot = waitForItems(activity) - start;
+            waitForFile(snapshot);
+            activity.finish();
+            setActivity(null);
+
+            // With a snapshot the items are there as soon as the activity is created.
+            start = SystemClock.uptimeMillis();
+            activity = getActivity();
+            ListView list = (ListView) activity.findViewById(R.id.note_list);
+            assertTrue("snapshot should be shown on create", list.getAdapter().getCount() > 0);
+            long withSnapshot = SystemClock.uptimeMillis() - start;
+
+            Log.i(TAG, "First items shown after " + withoutSnapshot + "ms without snapshot, "
+                    + withSnapshot + "ms with snapshot");
+        } finally {
+            getInstrumentation().getTargetContext().getContentResolver().delete(note, null, null);
+        }
+    }
+
+    // Waits until the list shows at least one item and returns the time at which it did.
+    private long waitForItems(NotesList activity) throws InterruptedException {
+        ListView list = (ListView) activity.findViewById(R.id.note_list);
+        long deadline = SystemClock.uptimeMillis() + LOAD_TIMEOUT_MILLIS;
+        while (list.getAdapter().getCount() == 0) {
+            assertTrue("list was not loaded", SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        return SystemClock.uptimeMillis();
+    }
+
+    // Waits until the background load has written the file.
+    private void waitForFile(File file) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + LOAD_TIMEOUT_MILLIS;
+        while (!file.exists()) {
+            assertTrue(file + " was not written", SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
 }
@@ -16,23 +16,50 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Enumeration;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /*
  */
@@ -790,6 +817,1549 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests relevance-ranked search. A match in the title should rank above a match that only
+     * occurs in the body, and results should carry a highlighted snippet but no note body.
+     */
+    public void testRankedSearch() {
+        // Inserts two notes that both contain the search term, once in the body only and once
+        // in the title.
+        NoteInfo bodyMatch = new NoteInfo("Weekly plan", "Prepare the budget before the review");
+        NoteInfo titleMatch = new NoteInfo("Budget review", "Numbers for the next quarter");
+        mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_TITLE,
+                bodyMatch.getContentValues());
+        mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_TITLE,
+                titleMatch.getContentValues());
+        insertData();
+
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "budget")
+                .build();
+        Cursor cursor = mMockResolver.query(searchUri, null, null, null, null);
+
+        // Asserts that only the two matching notes are returned, best match first.
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        int titleIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+        int scoreIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SCORE);
+        int snippetIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        assertEquals(titleMatch.title, cursor.getString(titleIndex));
+        double firstScore = cursor.getDouble(scoreIndex);
+        assertTrue(cursor.moveToNext());
+        assertEquals(bodyMatch.title, cursor.getString(titleIndex));
+        assertTrue(firstScore > cursor.getDouble(scoreIndex));
+
+        // Asserts that the snippet marks the matched term, and that the body is not returned.
+        assertTrue(cursor.getString(snippetIndex).contains(
+                NotePad.Notes.SNIPPET_MATCH_START + "budget" + NotePad.Notes.SNIPPET_MATCH_END));
+        assertEquals(-1, cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        cursor.close();
+
+        // With a limit, only the best match is returned, still with its title and snippet.
+        cursor = mMockResolver.query(searchUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "1").build(),
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(titleMatch.title, cursor.getString(titleIndex));
+        assertTrue(cursor.getString(snippetIndex).contains(NotePad.Notes.SNIPPET_MATCH_START));
+        cursor.close();
+
+        // Updating a note keeps the search index in sync.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Weekly plan");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Nothing to prepare");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { bodyMatch.title });
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests substring search on text without word boundaries. Notes are written through the
+     * provider so that the n-gram index is updated incrementally.
+     */
+    public void testSubstringSearch() {
+        ContentValues values = new NoteInfo("周末去超市买菜", "记得买牛奶和鸡蛋").getContentValues();
+        Uri shopping = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values = new NoteInfo("项目计划", "下周评审预算").getContentValues();
+        Uri project = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // A term in the middle of the body is found, and the snippet marks it.
+        Cursor cursor = mMockResolver.query(searchUri("牛奶"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(shopping),
+                cursor.getLong(cursor.getColumnIndex(NotePad.Notes._ID)));
+        assertTrue(cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET))
+                .contains(NotePad.Notes.SNIPPET_MATCH_START + "牛奶" + NotePad.Notes.SNIPPET_MATCH_END));
+        cursor.close();
+
+        // Single characters and terms spanning three characters are found in either note.
+        cursor = mMockResolver.query(searchUri("周"), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("评审预"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Characters that occur in a note, but not next to each other, do not match.
+        cursor = mMockResolver.query(searchUri("牛蛋"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Updates and deletes through the provider keep the index in sync.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "下周评审");
+        mMockResolver.update(project, values, null, null);
+        cursor = mMockResolver.query(searchUri("预算"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        mMockResolver.delete(shopping, null, null);
+        cursor = mMockResolver.query(searchUri("牛奶"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests the pinyin keys that the provider computes on write. Sorting by the keys works on
+     * every release; converting Chinese characters to pinyin needs Android 10 or later.
+     */
+    public void testPinyinKeys() {
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Beta review", "").getContentValues());
+        Uri alpha = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("alpha plan", "").getContentValues());
+
+        // Title sort order ignores case and uses the precomputed key.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null,
+                NotePad.Notes.TITLE_SORT_ORDER);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("alpha plan",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertEquals("ap",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS)));
+        cursor.close();
+
+        // The keys follow title updates.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Gamma");
+        mMockResolver.update(alpha, values, null, null);
+        cursor = mMockResolver.query(alpha, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("gamma",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN)));
+        cursor.close();
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+
+        // Both the initials and the full pinyin of a Chinese title find the note.
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("会议纪要", "").getContentValues());
+        cursor = mMockResolver.query(searchUri("hy"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("huiyi"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("会议纪要",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+    }
+
+    /*
+     * Tests that the pinyin keys are recomputed when the database is opened with keys built by a
+     * different transliteration, as after an OS upgrade or restoring another device's backup.
+     */
+    public void testPinyinKeysRecomputed() {
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Delta", "").getContentValues());
+
+        // Simulates keys written by an older OS.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN, "stale");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS, "s");
+        mDb.update(NotePad.Notes.TABLE_NAME, values, null, null);
+        mDb.execSQL("UPDATE properties SET value = 0 WHERE name = 'pinyin_key_version'");
+
+        // Reopening the database recomputes them.
+        getProvider().getOpenHelperForTest().close();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+        Cursor cursor = mMockResolver.query(uri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("delta",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN)));
+        assertEquals("d",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS)));
+        cursor.close();
+        assertEquals(Build.VERSION.SDK_INT, DatabaseUtils.longForQuery(mDb,
+                "SELECT value FROM properties WHERE name = 'pinyin_key_version'", null));
+    }
+
+    /*
+     * Tests that a batch of operations is applied in one transaction, using the same id-list
+     * selections as the list's batch actions, and that a failed batch leaves no changes behind.
+     */
+    public void testApplyBatch() throws Exception {
+        long[] ids = new long[3];
+        for (int i = 0; i < ids.length; i++) {
+            Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    new NoteInfo("批量" + i, "批量操作测试").getContentValues());
+            ids[i] = ContentUris.parseId(uri);
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePadProvider.Categories.COLUMN_NAME_TITLE, "Work");
+        long categoryId = ContentUris.parseId(mMockResolver.insert(
+                Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"), values));
+
+        // Moves the first two notes in one batch.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withSelection(SelectionModel.idSelection(ids, 0, 2), null)
+                .withValue("category_id", categoryId)
+                .build());
+        ContentProviderResult[] results = getProvider().applyBatch(operations);
+        assertEquals(2, results[0].count.intValue());
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                "category_id = " + categoryId, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        // A failing operation rolls back the delete that ran before it.
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(SelectionModel.idSelection(ids, 0, ids.length), null)
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(NotePad.Notes.CONTENT_URI)
+                .withExpectedCount(ids.length + 1)
+                .build());
+        try {
+            getProvider().applyBatch(operations);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException expected) {
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(ids.length, cursor.getCount());
+        cursor.close();
+
+        // The substring index is rebuilt after the rollback.
+        cursor = mMockResolver.query(searchUri("批量操作"), null, null, null, null);
+        assertEquals(ids.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that every list sort mode is answered by scanning an index, without a temporary
+     * sort, and that the modes order notes as expected.
+     */
+    public void testSortModes() {
+        insertData();
+
+        for (int mode = 0; SortMode.isValid(mode); mode++) {
+            Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT " + NotePad.Notes.TABLE_NAME
+                    + "._id FROM " + NotePad.Notes.TABLE_NAME + " LEFT JOIN categories ON "
+                    + NotePad.Notes.TABLE_NAME + ".category_id = categories._id ORDER BY "
+                    + SortMode.getSortOrder(mode), null);
+            int detail = plan.getColumnIndex("detail");
+            while (plan.moveToNext()) {
+                assertFalse("sort mode " + mode + " uses a temporary sort",
+                        plan.getString(detail).contains("TEMP B-TREE"));
+            }
+            plan.close();
+        }
+
+        // Oldest first returns the notes in the order they were modified.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE }, null, null,
+                SortMode.getSortOrder(SortMode.SORT_OLDEST));
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        long previous = Long.MIN_VALUE;
+        while (cursor.moveToNext()) {
+            assertTrue(cursor.getLong(0) >= previous);
+            previous = cursor.getLong(0);
+        }
+        cursor.close();
+
+        // The grouped order keeps the notes of each category together.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null,
+                SortMode.getSortOrder(SortMode.SORT_GROUPED));
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests the category filter used by the list's filter chips: several categories are selected
+     * with one IN query, and the query is answered from the category index.
+     */
+    public void testCategoryFilter() {
+        insertData();
+        ContentValues values = new ContentValues();
+        values.put(NotePadProvider.Categories.COLUMN_NAME_TITLE, "Work");
+        long work = ContentUris.parseId(mMockResolver.insert(
+                Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"), values));
+        values.put(NotePadProvider.Categories.COLUMN_NAME_TITLE, "Home");
+        long home = ContentUris.parseId(mMockResolver.insert(
+                Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"), values));
+
+        Uri first = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Work note", "filter").getContentValues());
+        Uri second = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Home note", "filter").getContentValues());
+        values.clear();
+        values.put("category_id", work);
+        mMockResolver.update(first, values, null, null);
+        values.put("category_id", home);
+        mMockResolver.update(second, values, null, null);
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotesList.categorySelection(new long[] { work }), null,
+                SortMode.getSortOrder(SortMode.SORT_GROUPED));
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotesList.categorySelection(new long[] { work, home }), null,
+                SortMode.getSortOrder(SortMode.SORT_NEWEST));
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        // No filter returns every note.
+        assertNull(NotesList.categorySelection(null));
+
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT " + NotePad.Notes.TABLE_NAME
+                + "._id FROM " + NotePad.Notes.TABLE_NAME + " LEFT JOIN categories ON "
+                + NotePad.Notes.TABLE_NAME + ".category_id = categories._id WHERE "
+                + NotesList.categorySelection(new long[] { work, home }) + " ORDER BY "
+                + SortMode.getSortOrder(SortMode.SORT_GROUPED), null);
+        int detail = plan.getColumnIndex("detail");
+        boolean usesIndex = false;
+        while (plan.moveToNext()) {
+            String step = plan.getString(detail);
+            usesIndex |= step.contains("notes_category_modified");
+            assertFalse(step.contains("TEMP B-TREE"));
+        }
+        plan.close();
+        assertTrue(usesIndex);
+    }
+
+    /*
+     * Tests the chunked read and the range patch used by the editor's large-document mode.
+     * Offsets count code points, so a character outside the BMP counts as one.
+     */
+    public void testReadAndPatchNote() {
+        StringBuilder text = new StringBuilder("\ud83d\ude00");
+        for (int i = 0; i < 10000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        int length = text.codePointCount(0, text.length());
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", text.toString()).getContentValues());
+        String noteId = String.valueOf(ContentUris.parseId(uri));
+
+        // The length is available without reading the text.
+        Cursor cursor = mMockResolver.query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_LENGTH }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(length, cursor.getInt(0));
+        cursor.close();
+
+        Bundle extras = new Bundle();
+        extras.putInt(NotePad.Notes.KEY_OFFSET, 0);
+        extras.putInt(NotePad.Notes.KEY_LENGTH, 7);
+        Bundle result = getProvider().call(NotePad.Notes.METHOD_READ_NOTE, noteId, extras);
+        assertEquals("\ud83d\ude00line 0", result.getString(NotePad.Notes.KEY_TEXT));
+        assertEquals(length, result.getInt(NotePad.Notes.KEY_NOTE_LENGTH));
+
+        // Replaces "line 0" with "first line".
+        extras.putInt(NotePad.Notes.KEY_OFFSET, 1);
+        extras.putInt(NotePad.Notes.KEY_LENGTH, 6);
+        extras.putString(NotePad.Notes.KEY_TEXT, "first line");
+        extras.putInt(NotePad.Notes.KEY_NOTE_LENGTH, length);
+        result = getProvider().call(NotePad.Notes.METHOD_PATCH_NOTE, noteId, extras);
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_COUNT));
+
+        // A patch based on an outdated length is rejected.
+        result = getProvider().call(NotePad.Notes.METHOD_PATCH_NOTE, noteId, extras);
+        assertEquals(0, result.getInt(NotePad.Notes.KEY_COUNT));
+
+        cursor = mMockResolver.query(uri, new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        text.replace(2, 8, "first line");
+        assertEquals(text.toString(), cursor.getString(0));
+        cursor.close();
+
+        // The search index follows the patched text.
+        cursor = mMockResolver.query(searchUri("first"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests substring search on a note longer than NgramIndex.LARGE_NOTE_LENGTH. Only its title
+     * is indexed; the body is scanned in chunks, so a term across a chunk boundary is found, and
+     * a range patch is visible to search without reindexing the body.
+     */
+    public void testLargeNoteSubstringSearch() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NgramIndex.LARGE_NOTE_LENGTH + 1000) {
+            text.append("甲乙丙丁");
+        }
+        // The body is scanned 64K characters at a time.
+        text.replace(64 * 1024 - 2, 64 * 1024 + 2, "牛奶鸡蛋");
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("周末计划", text.toString()).getContentValues());
+        String noteId = String.valueOf(ContentUris.parseId(uri));
+
+        Cursor cursor = mMockResolver.query(searchUri("奶鸡"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET))
+                .contains(NotePad.Notes.SNIPPET_MATCH_START + "奶鸡" + NotePad.Notes.SNIPPET_MATCH_END));
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("末计"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("奶蛋"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Replaces "牛奶" with "面包".
+        Bundle extras = new Bundle();
+        extras.putInt(NotePad.Notes.KEY_OFFSET, 64 * 1024 - 2);
+        extras.putInt(NotePad.Notes.KEY_LENGTH, 2);
+        extras.putString(NotePad.Notes.KEY_TEXT, "面包");
+        extras.putInt(NotePad.Notes.KEY_NOTE_LENGTH, text.length());
+        Bundle result = getProvider().call(NotePad.Notes.METHOD_PATCH_NOTE, noteId, extras);
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_COUNT));
+
+        cursor = mMockResolver.query(searchUri("奶鸡"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("包鸡蛋"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that a range patch does not update the full-text index through the triggers, and that
+     * the deferred update, done before the next search or in the background on request, leaves
+     * the index matching the patched text.
+     */
+    public void testDeferredSearchIndex() throws InterruptedException {
+        StringBuilder text = new StringBuilder("unique");
+        while (text.length() < NgramIndex.LARGE_NOTE_LENGTH + 1000) {
+            text.append(" lorem");
+        }
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", text.toString()).getContentValues());
+        long id = ContentUris.parseId(uri);
+        assertEquals(1, countFtsMatches("unique"));
+
+        // Replaces "unique" with "zebras": the note is only marked.
+        Bundle extras = new Bundle();
+        extras.putInt(NotePad.Notes.KEY_OFFSET, 0);
+        extras.putInt(NotePad.Notes.KEY_LENGTH, 6);
+        extras.putString(NotePad.Notes.KEY_TEXT, "zebras");
+        extras.putInt(NotePad.Notes.KEY_NOTE_LENGTH, text.length());
+        Bundle result = getProvider().call(NotePad.Notes.METHOD_PATCH_NOTE, String.valueOf(id), extras);
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(1, queryFtsPending(id));
+        assertEquals(0, countFtsMatches("zebras"));
+
+        // A search brings the index up to date first.
+        Cursor cursor = mMockResolver.query(searchUri("zebras"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        assertEquals(0, queryFtsPending(id));
+        assertEquals(1, countFtsMatches("zebras"));
+        assertEquals(0, countFtsMatches("unique"));
+        assertEquals(1, countFtsMatches("lorem"));
+
+        // Patches "zebras" back; the background update catches up without a search.
+        extras.putString(NotePad.Notes.KEY_TEXT, "unique");
+        result = getProvider().call(NotePad.Notes.METHOD_PATCH_NOTE, String.valueOf(id), extras);
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_COUNT));
+        getProvider().call(NotePad.Notes.METHOD_UPDATE_SEARCH_INDEX, null, null);
+        long deadline = SystemClock.uptimeMillis() + 10000;
+        while (queryFtsPending(id) != 0 && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, queryFtsPending(id));
+        assertEquals(1, countFtsMatches("unique"));
+        assertEquals(0, countFtsMatches("zebras"));
+
+        // Deleting a note marked for indexing leaves nothing behind in the index.
+        getProvider().call(NotePad.Notes.METHOD_PATCH_NOTE, String.valueOf(id), extras);
+        assertEquals(1, queryFtsPending(id));
+        mMockResolver.delete(uri, null, null);
+        assertEquals(0, countFtsMatches("unique"));
+        assertEquals(0, countFtsMatches("lorem"));
+    }
+
+    private long queryFtsPending(long id) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + SearchRanker.COLUMN_NAME_FTS_PENDING
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = " + id,
+                null);
+    }
+
+    private long countFtsMatches(String word) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM " + SearchRanker.FTS_TABLE_NAME
+                + " WHERE " + SearchRanker.FTS_TABLE_NAME + " MATCH ?", new String[] { word });
+    }
+
+    /*
+     * Tests that the n-gram index merges its in-memory changes in the background. Changes made
+     * while the merge runs are kept, and queries see the same notes before and after the merge.
+     */
+    public void testNgramIndexMerge() throws InterruptedException {
+        File file = new File(mDb.getPath() + "-merge-test");
+        NgramIndex index = new NgramIndex(file);
+        assertEquals(0, index.candidates(mDb, "内容").length);
+        long emptyLength = file.length();
+
+        long[] ids = new long[NgramIndex.MERGE_THRESHOLD];
+        for (int i = 0; i < ids.length; i++) {
+            NoteInfo info = new NoteInfo("笔记" + i, "内容" + i);
+            ids[i] = mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, info.getContentValues());
+            index.onNoteChanged(mDb, ids[i], info.title, info.note);
+        }
+
+        // The last insert started the merge; these changes are most likely made while it runs.
+        index.onNoteChanged(mDb, ids[0], "笔记0", "已修改");
+        index.onNoteDeleted(mDb, ids[1]);
+        assertNgramCandidates(index, ids);
+
+        long deadline = SystemClock.uptimeMillis() + 10000;
+        while (file.length() == emptyLength && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(file.length() > emptyLength);
+        assertNgramCandidates(index, ids);
+    }
+
+    private void assertNgramCandidates(NgramIndex index, long[] ids) {
+        long[] found = index.candidates(mDb, "内容");
+        assertEquals(ids.length - 2, found.length);
+        assertFalse(containsId(found, ids[0]));
+        assertFalse(containsId(found, ids[1]));
+        assertTrue(containsId(found, ids[ids.length - 1]));
+        found = index.candidates(mDb, "已修改");
+        assertEquals(1, found.length);
+        assertEquals(ids[0], found[0]);
+    }
+
+    /*
+     * Tests that a truncated or corrupt n-gram index file is discarded and rebuilt from the
+     * database instead of being read past its end.
+     */
+    public void testNgramIndexCorruptFile() throws IOException {
+        long id = mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null,
+                new NoteInfo("周末去超市买菜", "记得买牛奶和鸡蛋").getContentValues());
+        File file = new File(mDb.getPath() + "-corrupt-test");
+        long[] found = new NgramIndex(file).candidates(mDb, "牛奶");
+        assertEquals(1, found.length);
+        assertEquals(id, found[0]);
+
+        // Cuts off the end of the last posting list.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        found = new NgramIndex(file).candidates(mDb, "牛奶");
+        assertEquals(1, found.length);
+        assertEquals(id, found[0]);
+
+        // Points every posting list past the end of the file. The header is 36 bytes, followed by
+        // the terms and then the offsets.
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(8);
+            int termCount = raf.readInt();
+            raf.seek(36 + 8L * termCount);
+            for (int i = 0; i <= termCount; i++) {
+                raf.writeInt(Integer.MAX_VALUE);
+            }
+        } finally {
+            raf.close();
+        }
+        found = new NgramIndex(file).candidates(mDb, "牛奶");
+        assertEquals(1, found.length);
+        assertEquals(id, found[0]);
+    }
+
+    private static boolean containsId(long[] ids, long id) {
+        for (long value : ids) {
+            if (value == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Tests the version column: every write increments it, a compare-and-set update through
+     * call() only succeeds with the current version, and an update URI with an expected
+     * version is rejected once the note has changed.
+     */
+    public void testCompareAndSetUpdate() {
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Versioned", "first").getContentValues());
+        String noteId = String.valueOf(ContentUris.parseId(uri));
+        assertEquals(1, queryVersion(uri));
+
+        // A plain update increments the version.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "second");
+        values.put(NotePad.Notes.COLUMN_NAME_VERSION, 100);
+        assertEquals(1, mMockResolver.update(uri, values, null, null));
+        assertEquals(2, queryVersion(uri));
+
+        // Compare-and-set with the current version succeeds and returns the new version.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "third");
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.KEY_VALUES, values);
+        extras.putLong(NotePad.Notes.KEY_EXPECTED_VERSION, 2);
+        Bundle result = getProvider().call(NotePad.Notes.METHOD_UPDATE_NOTE, noteId, extras);
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(3, result.getLong(NotePad.Notes.KEY_VERSION));
+
+        // The same call is now stale: nothing changes and the current version is returned.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "stale");
+        result = getProvider().call(NotePad.Notes.METHOD_UPDATE_NOTE, noteId, extras);
+        assertEquals(0, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(3, result.getLong(NotePad.Notes.KEY_VERSION));
+
+        Uri casUri = uri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_EXPECTED_VERSION, "2")
+                .build();
+        assertEquals(0, mMockResolver.update(casUri, values, null, null));
+
+        Cursor cursor = mMockResolver.query(uri, new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("third", cursor.getString(0));
+        cursor.close();
+
+        // A range patch increments the version and can be guarded by it as well.
+        extras = new Bundle();
+        extras.putInt(NotePad.Notes.KEY_OFFSET, 0);
+        extras.putInt(NotePad.Notes.KEY_LENGTH, 5);
+        extras.putString(NotePad.Notes.KEY_TEXT, "fourth");
+        extras.putInt(NotePad.Notes.KEY_NOTE_LENGTH, 5);
+        extras.putLong(NotePad.Notes.KEY_EXPECTED_VERSION, 2);
+        result = getProvider().call(NotePad.Notes.METHOD_PATCH_NOTE, noteId, extras);
+        assertEquals(0, result.getInt(NotePad.Notes.KEY_COUNT));
+        extras.putLong(NotePad.Notes.KEY_EXPECTED_VERSION, 3);
+        result = getProvider().call(NotePad.Notes.METHOD_PATCH_NOTE, noteId, extras);
+        assertEquals(1, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(4, result.getLong(NotePad.Notes.KEY_VERSION));
+        assertEquals(4, queryVersion(uri));
+
+        // A deleted note reports version -1.
+        mMockResolver.delete(uri, null, null);
+        extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.KEY_VALUES, values);
+        extras.putLong(NotePad.Notes.KEY_EXPECTED_VERSION, 4);
+        result = getProvider().call(NotePad.Notes.METHOD_UPDATE_NOTE, noteId, extras);
+        assertEquals(0, result.getInt(NotePad.Notes.KEY_COUNT));
+        assertEquals(-1, result.getLong(NotePad.Notes.KEY_VERSION));
+    }
+
+    // Returns the version of the note.
+    private long queryVersion(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri, new String[] { NotePad.Notes.COLUMN_NAME_VERSION },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests loading notes into the editor's note cache, the check against the current row and
+     * eviction of the least recently used notes when the byte budget is exceeded.
+     */
+    public void testNoteCache() {
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Cached", "\ud83d\ude00 cached note").getContentValues());
+        long noteId = ContentUris.parseId(uri);
+
+        NoteCache.Entry entry = NoteCache.load(mMockResolver, noteId);
+        assertNotNull(entry);
+        assertEquals("Cached", entry.title);
+        assertEquals("\ud83d\ude00 cached note", entry.note);
+        assertEquals(13, entry.noteLength);
+
+        // The entry matches the row until the note is changed.
+        Cursor cursor = mMockResolver.query(uri, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_VERSION, NotePad.Notes.COLUMN_NAME_NOTE_LENGTH
+        }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(entry.matches(cursor.getString(0), cursor.getLong(1), cursor.getLong(2),
+                cursor.getInt(3)));
+        assertFalse(entry.matches(cursor.getString(0), cursor.getLong(1), cursor.getLong(2) + 1,
+                cursor.getInt(3)));
+        cursor.close();
+
+        // Notes that don't exist or are too long are not cached.
+        assertNull(NoteCache.load(mMockResolver, noteId + 1000));
+        StringBuilder longNote = new StringBuilder();
+        while (longNote.length() <= NoteCache.MAX_NOTE_LENGTH) {
+            longNote.append("long note ");
+        }
+        Uri longUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Long", longNote.toString()).getContentValues());
+        assertNull(NoteCache.load(mMockResolver, ContentUris.parseId(longUri)));
+
+        // A budget of about three entries keeps the three most recently used.
+        NoteCache cache = new NoteCache(3 * new NoteCache.Entry(0, "T", "note", 0, 0, 4).bytes());
+        for (long id = 1; id <= 3; id++) {
+            cache.put(new NoteCache.Entry(id, "T", "note", 0, 0, 4));
+        }
+        assertNotNull(cache.get(1));
+        cache.put(new NoteCache.Entry(4, "T", "note", 0, 0, 4));
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get(1));
+        assertNull(cache.get(2));
+        assertTrue(cache.bytes() <= 3 * cache.get(1).bytes());
+
+        cache.remove(1);
+        assertNull(cache.get(1));
+        assertEquals(2, cache.size());
+    }
+
+    /*
+     * Tests replaying the editor's draft journal: edits after the checkpoint for the current
+     * version are returned, and a journal without a matching checkpoint is discarded.
+     */
+    public void testDraftJournal() throws IOException {
+        File file = File.createTempFile("draft", ".journal");
+        try {
+            DraftJournal journal = new DraftJournal(file);
+            assertTrue(journal.recover(1).isEmpty());
+            journal.append(0, 0, "Hello");
+            journal.append(5, 0, " world");
+            journal.checkpoint(journal.mark(), 2);
+            journal.append(0, 5, "Howdy");
+            journal.append(11, 0, " \ud83d\ude00");
+            journal.close();
+            assertTrue(DraftJournal.exists(file));
+
+            List<DraftJournal.Edit> edits = DraftJournal.read(file, 2);
+            assertEquals(2, edits.size());
+            Editable text = new SpannableStringBuilder("Hello world");
+            for (DraftJournal.Edit edit : edits) {
+                assertTrue(edit.applyTo(text));
+            }
+            assertEquals("Howdy world \ud83d\ude00", text.toString());
+
+            // The note was changed elsewhere after the last checkpoint.
+            assertTrue(DraftJournal.read(file, 3).isEmpty());
+
+            // A torn last record is ignored.
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(raf.length() - 3);
+            raf.close();
+            assertEquals(1, DraftJournal.read(file, 2).size());
+
+            // Recovering starts a new journal; once every edit is saved the file is removed.
+            journal = new DraftJournal(file);
+            assertEquals(1, journal.recover(2).size());
+            assertFalse(file.exists());
+            journal.append(0, 0, "x");
+            journal.checkpoint(journal.mark(), 3);
+            journal.close();
+            assertFalse(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests the export pipeline: every note is written once in the chosen format, values are
+     * escaped for the format, and a cancelled export leaves no file behind.
+     */
+    public void testExportPipeline() throws IOException {
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Groceries, weekly", "Milk \"2%\"\nEggs").getContentValues());
+        Uri second = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Plan", "Review <budget> & plan").getContentValues());
+        ExportFormatter.Labels labels = new ExportFormatter.Labels("Header", "Category", "Created", "Modified");
+
+        File file = File.createTempFile("export", ".ndjson");
+        try {
+            ExportPipeline pipeline = new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_NDJSON, labels, null), ExportSink.file(file));
+            assertEquals(2, pipeline.run(mMockResolver, new CountingListener(-1)));
+            String json = readFile(file);
+            assertEquals(2, json.split("\n").length);
+            assertTrue(json.contains("\"title\":\"Groceries, weekly\""));
+            assertTrue(json.contains("\"note\":\"Milk \\\"2%\\\"\\nEggs\""));
+
+            pipeline = new ExportPipeline(ExportSource.selection(new long[] { ContentUris.parseId(second) }),
+                    ExportFormatter.create(ExportFormatter.FORMAT_CSV, labels, null), ExportSink.file(file));
+            assertEquals(1, pipeline.run(mMockResolver, new CountingListener(-1)));
+            String csv = readFile(file);
+            assertTrue(csv.startsWith("\ufeffid,title,category,created,modified,note\r\n"));
+            assertTrue(csv.endsWith(",Review <budget> & plan\r\n"));
+
+            pipeline = new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_CSV, labels, null), ExportSink.file(file));
+            assertTrue(readFileAfterRun(pipeline, file).contains("\"Groceries, weekly\""));
+
+            pipeline = new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_HTML, labels, null), ExportSink.file(file));
+            assertTrue(readFileAfterRun(pipeline, file).contains("Review &lt;budget&gt; &amp; plan"));
+
+            // Cancelled after the first note: the partial file is deleted.
+            pipeline = new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_TEXT, labels, null), ExportSink.file(file));
+            assertEquals(-1, pipeline.run(mMockResolver, new CountingListener(1)));
+            assertFalse(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests that a note longer than SHORT_NOTE_LENGTH is left out of the export cursor and read in
+     * chunks, and that every format writes it whole, escaped across the chunk boundaries.
+     */
+    public void testLargeNoteExport() throws IOException, JSONException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NotePad.Notes.SHORT_NOTE_LENGTH + ExportSource.CHUNK_LENGTH) {
+            text.append("a\"b<&>\n😀");
+        }
+        String note = text.toString();
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("Large", note).getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("Small", "short").getContentValues());
+        ExportFormatter.Labels labels = new ExportFormatter.Labels("Header", "Category", "Created", "Modified");
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, ExportSource.PROJECTION,
+                null, null, NotePad.Notes.DEFAULT_SORT_ORDER);
+        int inline = 0;
+        while (cursor.moveToNext()) {
+            if (!cursor.isNull(ExportSource.COLUMN_NOTE)) {
+                inline++;
+            }
+        }
+        assertEquals(2, cursor.getCount());
+        assertEquals(1, inline);
+        cursor.close();
+
+        File file = File.createTempFile("export", ".ndjson");
+        try {
+            ExportPipeline pipeline = new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_NDJSON, labels, null), ExportSink.file(file));
+            String[] lines = readFileAfterRun(pipeline, file).split("\n");
+            assertEquals(2, lines.length);
+            JSONObject large = new JSONObject(lines[0]);
+            if (!"Large".equals(large.getString("title"))) {
+                large = new JSONObject(lines[1]);
+            }
+            assertEquals(note, large.getString("note"));
+
+            pipeline = new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_CSV, labels, null), ExportSink.file(file));
+            assertTrue(readFileAfterRun(pipeline, file).contains(
+                    ",\"" + note.replace("\"", "\"\"") + "\"\r\n"));
+
+            pipeline = new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_HTML, labels, null), ExportSink.file(file));
+            assertTrue(readFileAfterRun(pipeline, file).contains(note.replace("&", "&amp;")
+                    .replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;")));
+
+            pipeline = new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_MARKDOWN, labels, null), ExportSink.file(file));
+            assertTrue(readFileAfterRun(pipeline, file).contains("\n\n" + note + "\n\n---\n\n"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests the ZIP export: one entry per note in its category folder, in query order, followed
+     * by the manifest.
+     */
+    public void testArchiveExport() throws IOException {
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("a/b", "First").getContentValues());
+        Uri second = mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("..", "Second").getContentValues());
+        // A note above the streaming threshold is compressed as it is formatted. It is also too
+        // long for the export cursor, so its body is read in chunks.
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; large.length() <= NotePad.Notes.SHORT_NOTE_LENGTH; i++) {
+            large.append("周末 line ").append(i).append('\n');
+        }
+        Uri third = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", large.toString()).getContentValues());
+        ExportFormatter.Labels labels = new ExportFormatter.Labels("Header", "Category", "Created", "Modified");
+
+        File file = File.createTempFile("export", ".zip");
+        try {
+            NoteArchiveExport export = new NoteArchiveExport(ExportSource.allNotes(), labels, "Default", file);
+            assertEquals(3, export.run(mMockResolver, new CountingListener(-1)));
+
+            ZipFile zip = new ZipFile(file);
+            try {
+                assertEquals(4, zip.size());
+                List<String> names = new ArrayList<String>();
+                for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                    names.add(e.nextElement().getName());
+                }
+                assertEquals(NoteArchiveExport.MANIFEST_NAME, names.get(3));
+                assertTrue(names.contains("Default/a_b_1.txt"));
+                assertTrue(names.contains("Default/__" + ContentUris.parseId(second) + ".txt"));
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        zip.getInputStream(zip.getEntry("Default/a_b_1.txt")), "UTF-8"));
+                assertEquals("【 a/b 】", reader.readLine());
+                reader.close();
+
+                ZipEntry entry = zip.getEntry("Default/Large_" + ContentUris.parseId(third) + ".txt");
+                reader = new BufferedReader(new InputStreamReader(zip.getInputStream(entry), "UTF-8"));
+                StringBuilder text = new StringBuilder();
+                char[] buffer = new char[8192];
+                for (int n; (n = reader.read(buffer)) > 0; ) {
+                    text.append(buffer, 0, n);
+                }
+                reader.close();
+                assertTrue(text.toString().startsWith("【 Large 】"));
+                assertTrue(text.toString().contains(large));
+                assertEquals(text.toString().getBytes("UTF-8").length, entry.getSize());
+            } finally {
+                zip.close();
+            }
+
+            // Cancelled after the first note: the partial file is deleted.
+            export = new NoteArchiveExport(ExportSource.allNotes(), labels, "Default", file);
+            assertEquals(-1, export.run(mMockResolver, new CountingListener(1)));
+            assertFalse(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests the binary archive: notes are found by ID and by title without reading the others,
+     * records can be walked in order, chosen notes can be restored on their own, a damaged record
+     * fails with an IOException, and a cancelled export leaves no file behind.
+     */
+    public void testBinaryArchive() throws IOException {
+        Uri first = mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("First", "one").getContentValues());
+        Uri second = mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("Second", "二").getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("Second", "three").getContentValues());
+
+        File file = File.createTempFile("export", "." + BinaryNoteArchive.EXTENSION);
+        try {
+            assertEquals(3, BinaryNoteArchive.export(ExportSource.allNotes(), file, mMockResolver,
+                    new CountingListener(-1)));
+
+            BinaryNoteArchive.Reader reader = new BinaryNoteArchive.Reader(file);
+            long firstOffset = -1;
+            try {
+                assertEquals(3, reader.getCount());
+                BinaryNoteArchive.Note note = reader.findById(ContentUris.parseId(second));
+                assertEquals("Second", note.title);
+                assertEquals("二", note.getNote());
+                assertNull(reader.findById(ContentUris.parseId(first) + 100));
+                assertEquals(2, reader.findByTitle("Second").size());
+                assertEquals(0, reader.findByTitle("Missing").size());
+
+                int records = 0;
+                for (long offset = reader.firstRecord(); offset >= 0; offset = reader.nextRecord(offset)) {
+                    if (reader.readNote(offset).id == ContentUris.parseId(first)) {
+                        firstOffset = offset;
+                    }
+                    records++;
+                }
+                assertEquals(3, records);
+            } finally {
+                reader.close();
+            }
+
+            // Selective restore reads only the chosen notes through the index.
+            NoteImporter importer = new NoteImporter(mMockResolver,
+                    new ExportFormatter.Labels("Header", "Category", "Created", "Modified"), 1);
+            NoteImporter.Listener listener = new NoteImporter.Listener() {
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+
+                @Override
+                public void onProgress(int notes, int filesDone, int totalFiles) {
+                }
+            };
+            assertEquals(1, importer.importFromArchive(file,
+                    new long[] { ContentUris.parseId(first), ContentUris.parseId(first) + 100 }, null, listener));
+            assertEquals(2, importer.importFromArchive(file, null, "Second", listener));
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+            assertEquals(6, cursor.getCount());
+            cursor.close();
+
+            // Lengths read from a damaged file are checked instead of being trusted.
+            RandomAccessFile damaged = new RandomAccessFile(file, "rw");
+            try {
+                // The title length of the record of the first note.
+                damaged.seek(firstOffset + 4 + 24);
+                damaged.writeInt(Integer.MAX_VALUE);
+            } finally {
+                damaged.close();
+            }
+            reader = new BinaryNoteArchive.Reader(file);
+            try {
+                try {
+                    reader.findById(ContentUris.parseId(first));
+                    fail("Damaged record was read");
+                } catch (IOException e) {
+                    // expected
+                }
+                try {
+                    reader.readNote(firstOffset + 1);
+                    fail("Record at a bad offset was read");
+                } catch (IOException e) {
+                    // expected
+                }
+                assertEquals("Second", reader.findById(ContentUris.parseId(second)).title);
+            } finally {
+                reader.close();
+            }
+
+            // Cancelled after the first note: the partial file is deleted.
+            assertEquals(-1, BinaryNoteArchive.export(ExportSource.allNotes(), file, mMockResolver,
+                    new CountingListener(1)));
+            assertFalse(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests that a note too long for the export cursor is written to the binary archive from
+     * chunked reads, with the record and body lengths filled in afterwards, and that the notes
+     * after it are still found.
+     */
+    public void testBinaryArchiveLargeNote() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() <= NotePad.Notes.SHORT_NOTE_LENGTH + ExportSource.CHUNK_LENGTH) {
+            text.append("大文档 😀 line\n");
+        }
+        String note = text.toString();
+        Uri large = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", note).getContentValues());
+        Uri small = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Small", "short").getContentValues());
+
+        File file = File.createTempFile("export", "." + BinaryNoteArchive.EXTENSION);
+        try {
+            assertEquals(2, BinaryNoteArchive.export(ExportSource.allNotes(), file, mMockResolver,
+                    new CountingListener(-1)));
+            BinaryNoteArchive.Reader reader = new BinaryNoteArchive.Reader(file);
+            try {
+                assertEquals(note, reader.findById(ContentUris.parseId(large)).getNote());
+                assertEquals("short", reader.findById(ContentUris.parseId(small)).getNote());
+                int records = 0;
+                for (long offset = reader.firstRecord(); offset >= 0; offset = reader.nextRecord(offset)) {
+                    records++;
+                }
+                assertEquals(2, records);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests the incremental export: the first run writes every note, the next one only the notes
+     * modified after the last note of the first run, followed by the notes deleted since.
+     */
+    public void testIncrementalExport() throws IOException {
+        NoteInfo info = new NoteInfo("First", "one");
+        info.setModificationDate(1000);
+        Uri first = mMockResolver.insert(NotePad.Notes.CONTENT_URI, info.getContentValues());
+        info = new NoteInfo("Second", "two");
+        info.setModificationDate(2000);
+        Uri second = mMockResolver.insert(NotePad.Notes.CONTENT_URI, info.getContentValues());
+        info = new NoteInfo("Third", "three");
+        info.setModificationDate(2000);
+        Uri third = mMockResolver.insert(NotePad.Notes.CONTENT_URI, info.getContentValues());
+        ExportFormatter.Labels labels = new ExportFormatter.Labels("Header", "Category", "Created", "Modified");
+
+        File file = File.createTempFile("export", ".ndjson");
+        try {
+            ExportSource source = ExportSource.changedSince(Long.MIN_VALUE, 0);
+            ExportPipeline pipeline = new ExportPipeline(source,
+                    ExportFormatter.create(ExportFormatter.FORMAT_NDJSON, labels, null), ExportSink.file(file));
+            pipeline.setDeletedSince(0);
+            assertEquals(3, pipeline.run(mMockResolver, new CountingListener(-1)));
+            assertEquals(0, pipeline.getDeletedCount());
+            // Oldest first, ties broken by ID.
+            String[] lines = readFile(file).split("\n");
+            assertTrue(lines[0].contains("\"title\":\"First\""));
+            assertTrue(lines[2].contains("\"title\":\"Third\""));
+            assertEquals(2000, source.getLastModified());
+            assertEquals(ContentUris.parseId(third), source.getLastId());
+
+            ContentValues values = new ContentValues();
+            // The provider sets the modification date to now.
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "one, edited");
+            assertEquals(1, mMockResolver.update(first, values, null, null));
+            assertEquals(1, mMockResolver.delete(second, null, null));
+
+            Cursor cursor = mMockResolver.query(NotePad.DeletedNotes.CONTENT_URI, null, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(ContentUris.parseId(second), cursor.getLong(
+                    cursor.getColumnIndex(NotePad.DeletedNotes.COLUMN_NAME_NOTE_ID)));
+            cursor.close();
+
+            source = ExportSource.changedSince(source.getLastModified(), source.getLastId());
+            pipeline = new ExportPipeline(source,
+                    ExportFormatter.create(ExportFormatter.FORMAT_NDJSON, labels, null), ExportSink.file(file));
+            pipeline.setDeletedSince(0);
+            assertEquals(1, pipeline.run(mMockResolver, new CountingListener(-1)));
+            assertEquals(1, pipeline.getDeletedCount());
+            lines = readFile(file).split("\n");
+            assertEquals(2, lines.length);
+            assertTrue(lines[0].contains("\"note\":\"one, edited\""));
+            assertTrue(lines[1].startsWith("{\"id\":" + ContentUris.parseId(second) + ",\"deleted\":"));
+
+            // Exported tombstones can be removed.
+            assertEquals(1, mMockResolver.delete(NotePad.DeletedNotes.CONTENT_URI,
+                    NotePad.DeletedNotes._ID + " <= " + pipeline.getLastDeletedId(), null));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests bulk inserts: categories given by title are looked up or created once, and the
+     * n-gram index covers the new notes both for small batches and for batches large enough to
+     * rebuild it.
+     */
+    public void testBulkInsert() {
+        ContentValues[] values = new ContentValues[3];
+        values[0] = new NoteInfo("周末计划", "去超市买牛奶").getContentValues();
+        values[0].put(NotePad.Notes.COLUMN_NAME_CATEGORY_TITLE, "Shopping");
+        values[1] = new NoteInfo("Second", "two").getContentValues();
+        values[1].put(NotePad.Notes.COLUMN_NAME_CATEGORY_TITLE, "Shopping");
+        values[2] = new NoteInfo("Third", "three").getContentValues();
+        assertEquals(3, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+
+        Uri categories = Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories");
+        Cursor cursor = mMockResolver.query(categories, null,
+                NotePadProvider.Categories.COLUMN_NAME_TITLE + " = ?", new String[] { "Shopping" }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotePadProvider.Categories.TABLE_NAME + "."
+                        + NotePadProvider.Categories.COLUMN_NAME_TITLE + " = ?", new String[] { "Shopping" }, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("牛奶"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // The existing category is reused by a large batch.
+        values = new ContentValues[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new NoteInfo("Note " + i, "批量导入 " + i).getContentValues();
+            values[i].put(NotePad.Notes.COLUMN_NAME_CATEGORY_TITLE, "Shopping");
+        }
+        assertEquals(values.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+        cursor = mMockResolver.query(categories, null,
+                NotePadProvider.Categories.COLUMN_NAME_TITLE + " = ?", new String[] { "Shopping" }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("批量导入"), null, null, null, null);
+        assertEquals(values.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests importing the text and NDJSON exports back, together with a directory of plain text
+     * files whose subdirectory names become categories.
+     */
+    public void testImportRoundTrip() throws IOException {
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("First", "one\n\ntwo").getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("Second", "").getContentValues());
+        ExportFormatter.Labels labels = new ExportFormatter.Labels("Header", "Category", "Created", "Modified");
+
+        File directory = File.createTempFile("import", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            File text = new File(directory, "notes.txt");
+            new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_TEXT, labels, null), ExportSink.file(text))
+                    .run(mMockResolver, new CountingListener(-1));
+            File json = new File(directory, "notes.ndjson");
+            new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_NDJSON, labels, null), ExportSink.file(json))
+                    .run(mMockResolver, new CountingListener(-1));
+            File plain = new File(new File(directory, "Journal"), "Today.md");
+            assertTrue(plain.getParentFile().mkdir());
+            FileWriter writer = new FileWriter(plain);
+            writer.write("Plain text");
+            writer.close();
+            // Files that cannot be imported are ignored.
+            new FileWriter(new File(directory, "notes.csv")).close();
+
+            long importStart = System.currentTimeMillis();
+            NoteImporter importer = new NoteImporter(mMockResolver, labels, 2);
+            assertEquals(5, importer.importFiles(new File[] { directory }, new NoteImporter.Listener() {
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+
+                @Override
+                public void onProgress(int notes, int filesDone, int totalFiles) {
+                    assertEquals(3, totalFiles);
+                }
+            }));
+            assertEquals(0, importer.getSkipped());
+
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                    NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                    new String[] { "First" }, null);
+            assertEquals(3, cursor.getCount());
+            int note = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+            int created = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+            int modified = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+            int imported = 0;
+            while (cursor.moveToNext()) {
+                assertEquals("one\n\ntwo", cursor.getString(note));
+                // Imported notes keep their creation date but count as modified at import time,
+                // so that the next incremental export includes them.
+                assertTrue(cursor.getLong(created) < importStart);
+                if (cursor.getLong(modified) >= importStart) {
+                    imported++;
+                }
+            }
+            assertEquals(2, imported);
+            cursor.close();
+            cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                    NotePadProvider.Categories.TABLE_NAME + "."
+                        + NotePadProvider.Categories.COLUMN_NAME_TITLE + " = ?", new String[] { "Journal" }, null);
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Today", cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+            assertEquals("Plain text", cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+            cursor.close();
+        } finally {
+            for (File file : new File[] { new File(directory, "Journal/Today.md"), new File(directory, "Journal"),
+                    new File(directory, "notes.txt"), new File(directory, "notes.ndjson"),
+                    new File(directory, "notes.csv"), directory }) {
+                file.delete();
+            }
+        }
+    }
+
+    /*
+     * Tests the gzip export: the file decompresses to exactly the uncompressed export even when the
+     * level changes midway, a cancelled export is deleted, and the importer reads the file back.
+     */
+    public void testGzipExport() throws IOException {
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("First", "one\n\ntwo").getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("Second", "周末计划").getContentValues());
+        ExportFormatter.Labels labels = new ExportFormatter.Labels("Header", "Category", "Created", "Modified");
+
+        File plain = File.createTempFile("export", ".txt");
+        File compressed = new File(plain.getPath() + ".gz");
+        try {
+            String expected = readFileAfterRun(new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_TEXT, labels, null), ExportSink.file(plain)), plain);
+
+            final ExportSink.GzipFile sink = new ExportSink.GzipFile(compressed);
+            sink.setLevel(Deflater.BEST_SPEED);
+            assertEquals(2, new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_TEXT, labels, null), sink)
+                    .run(mMockResolver, new CountingListener(-1) {
+                        @Override
+                        public void onNoteWritten(int notes, int total, long bytes) {
+                            sink.setLevel(ExportSink.GzipFile.levelFor(bytes / notes * total));
+                        }
+                    }));
+            assertEquals(Deflater.BEST_COMPRESSION, sink.getLevel());
+            assertEquals(plain.length(), sink.getUncompressedSize());
+            assertEquals(compressed.length(), sink.getCompressedSize());
+            Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(compressed)), "UTF-8");
+            try {
+                StringBuilder text = new StringBuilder();
+                char[] buffer = new char[1024];
+                int n;
+                while ((n = reader.read(buffer)) > 0) {
+                    text.append(buffer, 0, n);
+                }
+                assertEquals(expected, text.toString());
+            } finally {
+                reader.close();
+            }
+
+            assertEquals(Deflater.DEFAULT_COMPRESSION, ExportSink.GzipFile.levelFor(2 * 1024 * 1024));
+            assertEquals(Deflater.BEST_SPEED, ExportSink.GzipFile.levelFor(100 * 1024 * 1024));
+
+            NoteImporter importer = new NoteImporter(mMockResolver, labels, 2);
+            assertEquals(2, importer.importFiles(new File[] { compressed }, new NoteImporter.Listener() {
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+
+                @Override
+                public void onProgress(int notes, int filesDone, int totalFiles) {
+                }
+            }));
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                    NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                    new String[] { "Second" }, null);
+            assertEquals(2, cursor.getCount());
+            while (cursor.moveToNext()) {
+                assertEquals("周末计划", cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+            }
+            cursor.close();
+
+            // Cancelled after the first note: the partial file is deleted.
+            assertEquals(-1, new ExportPipeline(ExportSource.allNotes(),
+                    ExportFormatter.create(ExportFormatter.FORMAT_TEXT, labels, null),
+                    new ExportSink.GzipFile(compressed)).run(mMockResolver, new CountingListener(1)));
+            assertFalse(compressed.exists());
+        } finally {
+            plain.delete();
+            compressed.delete();
+        }
+    }
+
+    /*
+     * Tests automatic backups: a backup of unchanged data is not kept, a failed backup leaves no
+     * directory behind, and rotation keeps only the newest generations. Manual backups and other
+     * files in the backup directory are never touched.
+     */
+    public void testAutoBackup() throws IOException {
+        SharedPreferences preferences = getContext().getSharedPreferences("test_auto_backup",
+                Context.MODE_PRIVATE);
+        preferences.edit().clear().commit();
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("First", "one").getContentValues());
+
+        File root = File.createTempFile("backups", "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdir());
+        try {
+            File manual = new File(root, "backup_manual");
+            assertTrue(manual.mkdir());
+            assertTrue(new File(root, AutoBackupScheduler.GENERATION_PREFIX + "file").createNewFile());
+
+            assertTrue(AutoBackupScheduler.runBackup(mMockResolver, preferences, root));
+            List<File> generations = AutoBackupScheduler.listGenerations(root);
+            assertEquals(1, generations.size());
+            assertTrue(new File(generations.get(0), DatabaseBackup.MANIFEST_FILE).isFile());
+
+            // Nothing changed: the new backup is dropped and the previous one stays.
+            assertTrue(AutoBackupScheduler.runBackup(mMockResolver, preferences, root));
+            assertEquals(generations, AutoBackupScheduler.listGenerations(root));
+
+            // The data changed: the new backup is kept, even within the same second.
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("Second", "two").getContentValues());
+            assertTrue(AutoBackupScheduler.runBackup(mMockResolver, preferences, root));
+            List<File> changed = AutoBackupScheduler.listGenerations(root);
+            assertEquals(2, changed.size());
+            assertEquals(generations.get(0), changed.get(0));
+
+            // Generations are listed oldest first and only the newest ones are kept.
+            File oldest = new File(root, AutoBackupScheduler.GENERATION_PREFIX + "20000101_000000");
+            assertTrue(oldest.mkdir());
+            assertTrue(new File(oldest, DatabaseBackup.DATABASE_FILE).createNewFile());
+            generations = AutoBackupScheduler.listGenerations(root);
+            assertEquals(3, generations.size());
+            assertEquals(oldest, generations.get(0));
+            AutoBackupScheduler.rotate(generations, 2);
+            assertFalse(oldest.exists());
+            assertEquals(changed, AutoBackupScheduler.listGenerations(root));
+            assertTrue(manual.isDirectory());
+
+            // A backup that cannot be written fails without leaving a directory.
+            File notDirectory = new File(root, "not_a_directory");
+            assertTrue(notDirectory.createNewFile());
+            assertFalse(AutoBackupScheduler.runBackup(mMockResolver, preferences, notDirectory));
+            assertTrue(notDirectory.isFile());
+        } finally {
+            deleteRecursively(root);
+            preferences.edit().clear().commit();
+        }
+    }
+
+    /*
+     * Tests a backup and restore round trip: the restore brings back the notes with their IDs,
+     * rebuilds the n-gram index and drops cached notes and draft journals. A damaged backup, or
+     * one outside the private backup directory, is rejected without touching the database.
+     */
+    public void testBackupAndRestore() throws IOException {
+        Uri first = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("周末计划", "去超市买牛奶").getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, new NoteInfo("Second", "two").getContentValues());
+
+        File directory = new File(BackupManager.getBackupDirectory(getMockContext()), "test_backup");
+        File exported = File.createTempFile("exported", "");
+        assertTrue(exported.delete());
+        deleteRecursively(directory);
+        try {
+            Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_BACKUP,
+                    directory.getPath(), null);
+            assertEquals(2, result.getInt(NotePad.Notes.KEY_COUNT));
+            assertEquals(64, result.getString(NotePad.Notes.KEY_CHECKSUM).length());
+            File database = new File(directory, DatabaseBackup.DATABASE_FILE);
+            assertEquals(database.length(), result.getLong(NotePad.Notes.KEY_SIZE));
+            assertTrue(new File(directory, DatabaseBackup.MANIFEST_FILE).isFile());
+
+            // An exported copy matches the backup, but cannot be restored from outside the app.
+            assertEquals(database.length(), DatabaseBackup.exportTo(directory, exported));
+            assertEquals(database.length(), new File(exported, DatabaseBackup.DATABASE_FILE).length());
+            try {
+                mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_RESTORE,
+                        exported.getPath(), null);
+                fail("Restored a backup outside the backup directory");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            mMockResolver.delete(first, null, null);
+            Uri third = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    new NoteInfo("Third", "three").getContentValues());
+            long version = queryDataVersion();
+            long thirdId = ContentUris.parseId(third);
+            NoteCache.getInstance().put(new NoteCache.Entry(thirdId, "Third", "three", 0, 0, 5));
+            File journal = DraftJournal.fileFor(getMockContext(), thirdId);
+            journal.getParentFile().mkdirs();
+            assertTrue(journal.createNewFile());
+
+            result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_RESTORE,
+                    directory.getPath(), null);
+            assertEquals(2, result.getInt(NotePad.Notes.KEY_COUNT));
+            assertTrue(queryDataVersion() != version);
+            assertNull(NoteCache.getInstance().get(thirdId));
+            assertFalse(journal.exists());
+            Cursor cursor = mMockResolver.query(first, null, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+            cursor = mMockResolver.query(searchUri("牛奶"), null, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+            cursor = mMockResolver.query(searchUri("three"), null, null, null, null);
+            assertEquals(0, cursor.getCount());
+            cursor.close();
+
+            // A throttled backup of the same data replaces the old one with the same contents.
+            Bundle extras = new Bundle();
+            extras.putLong(NotePad.Notes.KEY_BYTES_PER_SECOND, 1024 * 1024);
+            result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_BACKUP,
+                    directory.getPath(), extras);
+            assertEquals(2, result.getInt(NotePad.Notes.KEY_COUNT));
+            assertEquals(database.length(), result.getLong(NotePad.Notes.KEY_SIZE));
+            assertFalse(new File(directory, DatabaseBackup.DATABASE_FILE + ".tmp").exists());
+            Bundle again = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_BACKUP,
+                    directory.getPath(), extras);
+            assertEquals(result.getString(NotePad.Notes.KEY_CHECKSUM), again.getString(NotePad.Notes.KEY_CHECKSUM));
+
+            // A damaged backup is rejected and the restored notes stay.
+            RandomAccessFile file = new RandomAccessFile(database, "rw");
+            try {
+                file.seek(file.length() - 1);
+                int last = file.read();
+                file.seek(file.length() - 1);
+                file.write(last ^ 0xff);
+            } finally {
+                file.close();
+            }
+            try {
+                mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_RESTORE,
+                        directory.getPath(), null);
+                fail("Restored a damaged backup");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+            assertEquals(2, cursor.getCount());
+            cursor.close();
+        } finally {
+            deleteRecursively(directory);
+            deleteRecursively(exported);
+        }
+    }
+
+    private long queryDataVersion() {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_GET_DATA_VERSION, null, null)
+                .getLong(NotePad.Notes.KEY_DATA_VERSION);
+    }
+
+    private String readFileAfterRun(ExportPipeline pipeline, File file) throws IOException {
+        assertEquals(2, pipeline.run(mMockResolver, new CountingListener(-1)));
+        return readFile(file);
+    }
+
+    private static String readFile(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[1024];
+            int n;
+            while ((n = reader.read(buffer)) > 0) {
+                text.append(buffer, 0, n);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Cancels the export once the given number of notes has been written, or never for -1.
+    private static class CountingListener implements ExportPipeline.Listener {
+        private final int mCancelAfter;
+        private int mNotes;
+
+        CountingListener(int cancelAfter) {
+            mCancelAfter = cancelAfter;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelAfter >= 0 && mNotes >= mCancelAfter;
+        }
+
+        @Override
+        public void onNoteWritten(int notes, int total, long bytes) {
+            mNotes = notes;
+        }
+    }
+
+    // Builds a search URI for the given text.
+    private static Uri searchUri(String query) {
+        return NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.SpannableStringBuilder;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the editor's undo history: which edits are coalesced into one operation, the order of
+ * undo and redo, and how the byte budget drops the oldest operations.
+ *
+ * Edits are made with {@link #edit}, which changes the text and records the change with an
+ * explicit time, so that coalescing does not depend on how fast the test runs.
+ */
+public class UndoHistoryTest extends TestCase {
+    private UndoHistory mHistory;
+    private SpannableStringBuilder mText;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHistory = new UndoHistory();
+        mText = new SpannableStringBuilder();
+    }
+
+    /*
+     * Typing, replacing text being composed and backspacing within the typed text form one
+     * operation. A pause, a new line or a seal starts a new one.
+     */
+    public void testCoalescing() {
+        edit(0, "", "h", 0);
+        edit(1, "", "e", 100);
+        edit(2, "", "y", 200);
+        // The input method replaces the composed word, then the user backspaces.
+        edit(0, "hey", "hello", 300);
+        edit(4, "o", "", 400);
+        assertEquals("hell", mText.toString());
+        assertEquals(0, mHistory.undo(mText));
+        assertEquals("", mText.toString());
+        assertFalse(mHistory.canUndo());
+
+        // Input after a pause is undone separately.
+        edit(0, "", "a", 0);
+        edit(1, "", "b", UndoHistory.COALESCE_MILLIS + 1);
+        mHistory.undo(mText);
+        assertEquals("a", mText.toString());
+        mHistory.undo(mText);
+        assertEquals("", mText.toString());
+
+        // Input after a new line is undone separately.
+        edit(0, "", "a\n", 0);
+        edit(2, "", "b", 10);
+        mHistory.undo(mText);
+        assertEquals("a\n", mText.toString());
+
+        // A seal, for example after moving the cursor, ends the operation.
+        mHistory.seal();
+        edit(2, "", "c", 20);
+        mHistory.undo(mText);
+        assertEquals("a\n", mText.toString());
+
+        // Backspacing in front of a deletion extends it.
+        mHistory.clear();
+        mText.replace(0, mText.length(), "abcdef");
+        edit(5, "f", "", 0);
+        edit(4, "e", "", 10);
+        edit(3, "d", "", 20);
+        assertEquals("abc", mText.toString());
+        assertEquals(6, mHistory.undo(mText));
+        assertEquals("abcdef", mText.toString());
+        assertFalse(mHistory.canUndo());
+    }
+
+    /*
+     * Undo goes back in reverse order and redo replays forward; a new edit discards the redo
+     * history. Undo fails, and clears the history, when the text no longer matches.
+     */
+    public void testUndoRedoOrder() {
+        edit(0, "", "one", 0);
+        mHistory.seal();
+        edit(3, "", " two", 10);
+        mHistory.seal();
+        edit(0, "one", "three", 20);
+        assertEquals("three two", mText.toString());
+
+        assertEquals(3, mHistory.undo(mText));
+        assertEquals("one two", mText.toString());
+        assertEquals(3, mHistory.undo(mText));
+        assertEquals("one", mText.toString());
+        assertTrue(mHistory.canRedo());
+
+        assertEquals(7, mHistory.redo(mText));
+        assertEquals("one two", mText.toString());
+        assertEquals(5, mHistory.redo(mText));
+        assertEquals("three two", mText.toString());
+        assertFalse(mHistory.canRedo());
+        assertEquals(-1, mHistory.redo(mText));
+
+        mHistory.undo(mText);
+        edit(7, "", "!", 30);
+        assertFalse(mHistory.canRedo());
+        assertEquals("one two!", mText.toString());
+
+        // The text was changed behind the history's back.
+        mText.replace(0, mText.length(), "other");
+        assertEquals(-1, mHistory.undo(mText));
+        assertFalse(mHistory.canUndo());
+        assertEquals("other", mText.toString());
+    }
+
+    /*
+     * Operations beyond the byte budget are dropped oldest first, and an edit larger than the
+     * whole budget clears the history instead of being recorded.
+     */
+    public void testBudget() {
+        // Each of these takes a little over 40% of the budget.
+        String block = repeat('x', UndoHistory.BYTE_BUDGET / 5);
+        for (int i = 0; i < 3; i++) {
+            mHistory.seal();
+            edit(mText.length(), "", block, i);
+        }
+        mHistory.undo(mText);
+        mHistory.undo(mText);
+        assertFalse(mHistory.canUndo());
+        assertEquals(block, mText.toString());
+
+        edit(0, "", "small", 10);
+        mHistory.seal();
+        edit(0, "", repeat('y', UndoHistory.BYTE_BUDGET), 20);
+        assertFalse(mHistory.canUndo());
+        assertFalse(mHistory.canRedo());
+    }
+
+    /*
+     * Changes made through the TextWatcher callbacks are recorded; changes made while recording
+     * is off, such as loading the note, are not.
+     */
+    public void testTextWatcher() {
+        mHistory.setRecording(false);
+        mText.append("loaded");
+        mText.setSpan(mHistory, 0, mText.length(), SpannableStringBuilder.SPAN_INCLUSIVE_INCLUSIVE);
+        mText.append(" text");
+        assertFalse(mHistory.canUndo());
+
+        mHistory.setRecording(true);
+        mText.append("!");
+        assertEquals("loaded text!", mText.toString());
+        mHistory.undo(mText);
+        assertEquals("loaded text", mText.toString());
+        assertFalse(mHistory.canUndo());
+    }
+
+    // 在文本中把 offset 处的 removed 替换为 inserted，并按给定的时间记录这次修改
+    private void edit(int offset, String removed, String inserted, long time) {
+        assertEquals(removed, mText.subSequence(offset, offset + removed.length()).toString());
+        mText.replace(offset, offset + removed.length(), inserted);
+        mHistory.record(offset, removed, inserted, time);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.android.notepad;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 自动备份：每天在设备充电并且空闲时，由 {@link BackupJobService} 在后台备份数据库。
+ *
+ * 备份与手动备份放在应用私有存储的同一个目录中，目录名以 {@value #GENERATION_PREFIX} 开头，
+ * 只保留最近的 {@value #GENERATIONS} 份，手动备份不受影响。数据与上一份自动备份相同时不保留新的一份。
+ * 备份以 {@value #BYTES_PER_SECOND} 字节每秒的速度写出，即使设备开始被使用也不会占满存储带宽。
+ * 需要 Android 5.0（API 21）的 JobScheduler，更早的版本上不提供自动备份。
+ */
+final class AutoBackupScheduler {
+    private static final String TAG = "AutoBackupScheduler";
+
+    static final int JOB_ID = 1;
+    static final String GENERATION_PREFIX = "auto_";
+    static final int GENERATIONS = 5;
+    static final long BYTES_PER_SECOND = 2 * 1024 * 1024;
+
+    private static final String PREFERENCE_NAME = "backup_preferences";
+    private static final String KEY_ENABLED = "auto_backup_enabled";
+    // 上一份自动备份的校验和，用于判断数据是否有变化
+    private static final String KEY_LAST_CHECKSUM = "auto_backup_checksum";
+
+    private AutoBackupScheduler() {
+    }
+
+    /**
+     * 当前系统是否支持自动备份
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    static boolean isEnabled(Context context) {
+        return isSupported() && getPreferences(context).getBoolean(KEY_ENABLED, false);
+    }
+
+    /**
+     * 开启或关闭自动备份
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    static void setEnabled(Context context, boolean enabled) {
+        if (!isSupported()) {
+            return;
+        }
+        getPreferences(context).edit().putBoolean(KEY_ENABLED, enabled).apply();
+        if (enabled) {
+            schedule(context);
+        } else {
+            getJobScheduler(context).cancel(JOB_ID);
+        }
+    }
+
+    /**
+     * 开启了自动备份但任务不在计划中时（例如数据被清除后）重新安排。
+     * 已经在计划中的任务不重新安排，以免推迟下一次备份。
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    static void ensureScheduled(Context context) {
+        if (!isEnabled(context)) {
+            return;
+        }
+        for (JobInfo job : getJobScheduler(context).getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        schedule(context);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void schedule(Context context) {
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, BackupJobService.class))
+                .setPeriodic(AlarmManager.INTERVAL_DAY)
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        if (getJobScheduler(context).schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "Unable to schedule automatic backups");
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static JobScheduler getJobScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 写一份新的自动备份并删除多余的旧备份，在后台线程中调用。
+     * 线程被中断时备份停止，写了一半的备份被删除。
+     *
+     * @return 是否成功，包括数据没有变化而不需要保留新备份的情况
+     */
+    static boolean runBackup(Context context) {
+        return runBackup(context.getContentResolver(), getPreferences(context),
+                BackupManager.getBackupDirectory(context));
+    }
+
+    /**
+     * 在 root 中写一份新的自动备份并删除多余的旧备份，上一份的校验和保存在 preferences 中。
+     * 失败时删除写了一半的备份目录。
+     *
+     * @return 是否成功，包括数据没有变化而不需要保留新备份的情况
+     */
+    static boolean runBackup(ContentResolver resolver, SharedPreferences preferences, File root) {
+        String name = GENERATION_PREFIX + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        File directory = new File(root, name);
+        // 同一秒内的第二份备份加上序号，不覆盖已有的备份，按名称排序仍然在它之后
+        for (int i = 1; directory.exists(); i++) {
+            directory = new File(root, name + "_" + i);
+        }
+        Bundle extras = new Bundle();
+        extras.putLong(NotePad.Notes.KEY_BYTES_PER_SECOND, BYTES_PER_SECOND);
+        Bundle result;
+        try {
+            result = resolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_BACKUP,
+                    directory.getPath(), extras);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Automatic backup failed: " + e.getMessage());
+            result = null;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Automatic backup failed: " + e.getMessage());
+            result = null;
+        }
+        String checksum = result != null ? result.getString(NotePad.Notes.KEY_CHECKSUM) : null;
+        if (checksum == null) {
+            // 没有结果时（例如 provider 不可用）也不能确定备份是完整的
+            deleteBackup(directory);
+            return false;
+        }
+
+        List<File> generations = listGenerations(root);
+        if (checksum.equals(preferences.getString(KEY_LAST_CHECKSUM, null)) && generations.size() > 1) {
+            // 数据没有变化，上一份备份仍然有效
+            deleteBackup(directory);
+            generations.remove(directory);
+        } else {
+            preferences.edit().putString(KEY_LAST_CHECKSUM, checksum).apply();
+        }
+        rotate(generations, GENERATIONS);
+        return true;
+    }
+
+    /**
+     * 自动备份的目录，从旧到新
+     */
+    static List<File> listGenerations(File root) {
+        ArrayList<File> generations = new ArrayList<File>();
+        File[] children = root.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory() && child.getName().startsWith(GENERATION_PREFIX)) {
+                    generations.add(child);
+                }
+            }
+        }
+        // 目录名中的时间按字典序排列即按时间排列
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * 删除最旧的备份，只保留最近的 keep 份
+     */
+    static void rotate(List<File> generations, int keep) {
+        for (int i = 0; i < generations.size() - keep; i++) {
+            deleteBackup(generations.get(i));
+        }
+    }
+
+    private static void deleteBackup(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+        }
+        if (directory.exists() && !directory.delete()) {
+            Log.w(TAG, "Unable to delete " + directory);
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package com.example.android.notepad;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.widget.EditText;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 编辑器的自动保存。
+ *
+ * 输入时 {@link TextWatcher} 只把修改计数加一并重新计时，不读取文本。停止输入一段时间后
+ * （或者连续输入超过最长间隔后）才取出一次文本，交给单独的后台线程写入。写入前先计算内容的
+ * 哈希值，与上次写入的内容相同时不写数据库，不会改动修改时间，也不会触发列表重新加载。
+ *
+ * 大文档模式（{@link #beginContent}）下不取出全文：输入时记录被修改的区间，保存时只把这个
+ * 区间的新内容交给 {@link Callbacks#savePatch}。区间替换失败（例如笔记已被其他地方修改）时，
+ * 下一次保存改为写入全文。
+ *
+ * 设置了草稿日志（{@link #setJournal}）时，每次修改都追加到日志中，写入数据库成功后在日志中
+ * 记录检查点，进程在两次保存之间被杀掉时可以从日志恢复。
+ *
+ * 所有写入都在同一个后台线程中按顺序执行。{@link #saveNow} 和 {@link #discard} 会等待已经
+ * 开始的写入结束，之后在主线程中进行的删除或恢复不会被较早的自动保存覆盖。
+ * 除 {@link Callbacks#save}、{@link Callbacks#savePatch} 和 {@link Callbacks#getSavedVersion} 外，
+ * 所有方法都必须在主线程中调用。
+ */
+final class AutoSaver implements TextWatcher {
+    private static final String TAG = "AutoSaver";
+
+    /**
+     * 停止输入多久之后保存
+     */
+    static final long DEBOUNCE_MILLIS = 2000;
+
+    /**
+     * 连续输入时两次保存之间的最长间隔
+     */
+    static final long MAX_DELAY_MILLIS = 10000;
+
+    /**
+     * 保存时的回调
+     */
+    interface Callbacks {
+        /**
+         * 在主线程中返回与文本一起保存的其他状态（例如分类ID），参与内容哈希的计算
+         */
+        long getExtraState();
+
+        /**
+         * 在后台线程中写入全文。抛出 RuntimeException 表示写入失败，内容仍然是未保存状态。
+         *
+         * @return 已经写入时返回 true；笔记在别处被修改、没有写入时返回 false，内容仍然是未保存状态
+         */
+        boolean save(String text, long extraState);
+
+        /**
+         * 在后台线程中替换已保存内容的一段，位置和长度都以码点计。
+         *
+         * @param offset 区间的起点
+         * @param length 被替换的码点数
+         * @param text 新的内容
+         * @param expectedLength 替换前全文应有的码点数
+         * @return 内容已经替换时返回 true；全文长度不符时返回 false，之后会改为写入全文
+         */
+        boolean savePatch(int offset, int length, String text, int expectedLength, long extraState);
+
+        /**
+         * 在后台线程中返回刚刚写入（或确认无需写入）之后数据库中笔记的版本号，记录到草稿日志的检查点中
+         */
+        long getSavedVersion();
+    }
+
+    private final EditText mText;
+    private final Callbacks mCallbacks;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // 用户修改的次数，程序设置文本时不计数
+    private int mGeneration;
+    // 已经保存（或正在保存）的修改次数
+    private int mSavedGeneration;
+    // 第一次未保存修改的时间，用于限制最长间隔
+    private long mFirstDirtyTime;
+    // 程序设置文本期间忽略文本变化
+    private boolean mSuppress;
+    // 设置了要保存的内容之后才会保存，被丢弃之后不再保存
+    private boolean mEnabled;
+
+    // 大文档模式：只保存修改过的区间
+    private boolean mPatchMode;
+    // 当前文本中被修改过的区间 [mDirtyStart, mDirtyEnd)，没有修改时 mDirtyStart 为 -1
+    private int mDirtyStart = -1;
+    private int mDirtyEnd;
+    // 已保存内容的码点数
+    private int mSavedCodePoints;
+    // 区间替换失败后，下一次保存写入全文
+    private boolean mNeedFullSave;
+
+    // 草稿日志，没有时为 null
+    private DraftJournal mJournal;
+
+    // 最近一次写入的内容哈希，只在写入线程中读写，setContent 时重置
+    private volatile long mSavedHash;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    AutoSaver(EditText text, Callbacks callbacks) {
+        mText = text;
+        mCallbacks = callbacks;
+        mText.addTextChangedListener(this);
+    }
+
+    /**
+     * 设置草稿日志，之后用户的每次修改都会追加到日志中
+     */
+    void setJournal(DraftJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * 显示从数据库读取的内容。这次设置不算修改，之后的内容与它相同时不会写入。
+     */
+    void setContent(String text, long extraState) {
+        setTextSilently(text);
+        mHandler.removeCallbacks(mFlush);
+        mPatchMode = false;
+        mSavedGeneration = mGeneration;
+        mSavedHash = contentHash(text, extraState);
+        mEnabled = true;
+    }
+
+    /**
+     * 显示尚未保存的内容，例如配置变化前因为保存冲突没有写入的修改。与 {@link #setContent} 不同，
+     * 这些内容算作修改，下次保存时写入。
+     */
+    void setUnsavedContent(String text) {
+        setTextSilently(text);
+        mHandler.removeCallbacks(mFlush);
+        mPatchMode = false;
+        mSavedGeneration = mGeneration;
+        mGeneration++;
+        // 不知道数据库中的内容，不能按哈希跳过写入
+        mSavedHash = 0;
+        mEnabled = true;
+    }
+
+    /**
+     * 以大文档模式显示内容的第一段，其余部分由 {@link #appendContent} 依次追加。
+     * 全部追加完并调用 {@link #endContent} 之前不会保存；这期间用户的修改会被记录，
+     * 加载完成后再保存。
+     *
+     * @param codePoints 完整内容的码点数
+     */
+    void beginContent(CharSequence head, int codePoints) {
+        setTextSilently(head);
+        mHandler.removeCallbacks(mFlush);
+        mEnabled = false;
+        mPatchMode = true;
+        mNeedFullSave = false;
+        mDirtyStart = -1;
+        mSavedCodePoints = codePoints;
+        mSavedGeneration = mGeneration;
+        mSavedHash = 0;
+    }
+
+    /**
+     * 追加已保存内容的下一段，不算修改
+     */
+    void appendContent(CharSequence part) {
+        mSuppress = true;
+        try {
+            mText.getText().append(part);
+        } finally {
+            mSuppress = false;
+        }
+    }
+
+    /**
+     * 内容已经全部追加，开始自动保存。加载期间用户做过的修改随后保存。
+     */
+    void endContent() {
+        mEnabled = true;
+        if (isDirty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * 文本以外的状态发生了变化，例如选择了另一个分类
+     */
+    void markDirty() {
+        mGeneration++;
+        schedule();
+    }
+
+    /**
+     * 打开笔记以来用户是否修改过文本或分类
+     */
+    boolean hasEdits() {
+        return mGeneration != 0;
+    }
+
+    /**
+     * 是否有尚未交给写入线程的修改
+     */
+    boolean isDirty() {
+        return mGeneration != mSavedGeneration;
+    }
+
+    /**
+     * 立即保存并等待写入完成，在onPause()和保存按钮中调用。没有修改时直接返回，不读取文本。
+     *
+     * @return 内容已经保存（包括内容没有变化的情况）时返回 true
+     */
+    boolean saveNow() {
+        mHandler.removeCallbacks(mFlush);
+        if (!mEnabled) {
+            return false;
+        }
+        if (!isDirty()) {
+            // 等待之前交给写入线程的内容写完
+            await(mExecutor.submit(NO_OP));
+            return !isDirty();
+        }
+        final int generation = mGeneration;
+        boolean saved = await(mExecutor.submit(newWrite(generation)));
+        if (saved && generation - mSavedGeneration > 0) {
+            mSavedGeneration = generation;
+        }
+        return saved;
+    }
+
+    /**
+     * 放弃未保存的修改并停止自动保存，在删除笔记或恢复原始内容之前调用。
+     * 返回时写入线程中已经没有正在进行的写入。
+     */
+    void discard() {
+        mHandler.removeCallbacks(mFlush);
+        mEnabled = false;
+        mSavedGeneration = mGeneration;
+        await(mExecutor.submit(NO_OP));
+    }
+
+    /**
+     * 结束写入线程，在Activity销毁时调用。已经交给写入线程的内容仍会写完。
+     */
+    void destroy() {
+        mHandler.removeCallbacks(mFlush);
+        mText.removeTextChangedListener(this);
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (mSuppress) {
+            return;
+        }
+        if (mJournal != null) {
+            mJournal.append(start, before, s.subSequence(start, start + count));
+        }
+        if (!mPatchMode) {
+            return;
+        }
+        // 合并到已有的修改区间，区间以修改后的文本为准
+        if (mDirtyStart < 0) {
+            mDirtyStart = start;
+            mDirtyEnd = start + count;
+        } else {
+            mDirtyEnd = Math.max(mDirtyEnd, start + before) + count - before;
+            mDirtyStart = Math.min(mDirtyStart, start);
+        }
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        if (mSuppress) {
+            return;
+        }
+        mGeneration++;
+        schedule();
+    }
+
+    private void setTextSilently(CharSequence text) {
+        mSuppress = true;
+        try {
+            mText.setTextKeepState(text);
+        } finally {
+            mSuppress = false;
+        }
+    }
+
+    private void schedule() {
+        if (!mEnabled) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mGeneration - mSavedGeneration == 1) {
+            mFirstDirtyTime = now;
+        }
+        // 一直在输入时不再推迟，保证至少每隔MAX_DELAY_MILLIS保存一次
+        long delay = Math.min(DEBOUNCE_MILLIS, mFirstDirtyTime + MAX_DELAY_MILLIS - now);
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, Math.max(delay, 0));
+    }
+
+    private void flush() {
+        if (!mEnabled || !isDirty()) {
+            return;
+        }
+        final int generation = mGeneration;
+        mSavedGeneration = generation;
+        mExecutor.submit(newWrite(generation));
+    }
+
+    /**
+     * 在主线程中取出要保存的内容，返回在写入线程中执行的任务
+     */
+    private Callable<Boolean> newWrite(int generation) {
+        long extraState = mCallbacks.getExtraState();
+        long mark = mJournal != null ? mJournal.mark() : -1;
+        Editable text = mText.getText();
+        if (!mPatchMode) {
+            return newFullWrite(text.toString(), extraState, mark, generation);
+        }
+
+        int length = text.length();
+        int codePoints;
+        Callable<Boolean> write;
+        if (mNeedFullSave) {
+            String all = text.toString();
+            codePoints = all.codePointCount(0, length);
+            write = newFullWrite(all, extraState, mark, generation);
+            mNeedFullSave = false;
+        } else {
+            int start = mDirtyStart < 0 ? 0 : mDirtyStart;
+            int end = mDirtyStart < 0 ? 0 : mDirtyEnd;
+            // 区间两端不能落在代理对中间，否则码点位置与数据库中的不一致
+            if (start > 0 && Character.isLowSurrogate(text.charAt(start))
+                    && Character.isHighSurrogate(text.charAt(start - 1))) {
+                start--;
+            }
+            if (end > 0 && end < length && Character.isLowSurrogate(text.charAt(end))
+                    && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end++;
+            }
+            // 区间之前和之后的部分与已保存的内容相同
+            int prefix = Character.codePointCount(text, 0, start);
+            int suffix = Character.codePointCount(text, end, length);
+            String replacement = text.subSequence(start, end).toString();
+            int removed = mSavedCodePoints - prefix - suffix;
+            codePoints = prefix + replacement.codePointCount(0, replacement.length()) + suffix;
+            if (removed < 0) {
+                Log.w(TAG, "Inconsistent dirty region, saving the whole text");
+                String all = text.toString();
+                write = newFullWrite(all, extraState, mark, generation);
+            } else {
+                write = newPatchWrite(prefix, removed, replacement, mSavedCodePoints, extraState,
+                        mark, generation);
+            }
+        }
+        mDirtyStart = -1;
+        mSavedCodePoints = codePoints;
+        return write;
+    }
+
+    private Callable<Boolean> newFullWrite(final String text, final long extraState,
+            final long mark, final int generation) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                long hash = contentHash(text, extraState);
+                if (hash == mSavedHash) {
+                    checkpoint(mark);
+                    return true;
+                }
+                try {
+                    if (mCallbacks.save(text, extraState)) {
+                        mSavedHash = hash;
+                        checkpoint(mark);
+                        return true;
+                    }
+                    Log.w(TAG, "Note changed elsewhere, not saved");
+                    postFailed(generation);
+                    return false;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Autosave failed", e);
+                    postFailed(generation);
+                    return false;
+                }
+            }
+        };
+    }
+
+    private Callable<Boolean> newPatchWrite(final int offset, final int length, final String text,
+            final int expectedLength, final long extraState, final long mark,
+            final int generation) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    if (mCallbacks.savePatch(offset, length, text, expectedLength, extraState)) {
+                        checkpoint(mark);
+                        return true;
+                    }
+                    Log.w(TAG, "Note changed elsewhere, saving the whole text");
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Autosave failed", e);
+                }
+                postFailed(generation);
+                return false;
+            }
+        };
+    }
+
+    // 在写入线程中调用：mark 之前的修改已经保存，日志中不再需要
+    private void checkpoint(long mark) {
+        DraftJournal journal = mJournal;
+        if (journal != null && mark >= 0) {
+            journal.checkpoint(mark, mCallbacks.getSavedVersion());
+        }
+    }
+
+    /**
+     * 写入失败，让主线程重新标记为未保存，下次修改或onPause()时再试。
+     * 大文档模式下已经无法确定数据库中的内容，下次写入全文。
+     */
+    private void postFailed(final int generation) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mPatchMode) {
+                    mNeedFullSave = true;
+                }
+                if (mSavedGeneration == generation) {
+                    mSavedGeneration = generation - 1;
+                }
+            }
+        });
+    }
+
+    private static boolean await(Future<Boolean> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Autosave failed", e.getCause());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static final Callable<Boolean> NO_OP = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            return true;
+        }
+    };
+
+    /**
+     * 内容的64位FNV-1a哈希，包括文本和其他状态
+     */
+    static long contentHash(CharSequence text, long extraState) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        for (int i = 0; i < 8; i++) {
+            hash ^= (extraState >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.android.notepad;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * 执行 {@link AutoBackupScheduler} 安排的自动备份。备份在低优先级的后台线程中进行；
+ * 系统因为设备不再空闲或不再充电而停止任务时中断备份，之后按退避策略重试。
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class BackupJobService extends JobService {
+    private BackupThread mThread;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (!AutoBackupScheduler.isEnabled(this)) {
+            return false;
+        }
+        mThread = new BackupThread(params);
+        mThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (mThread != null) {
+            mThread.mStopped = true;
+            mThread.interrupt();
+            mThread = null;
+        }
+        return true;
+    }
+
+    private class BackupThread extends Thread {
+        private final JobParameters mParams;
+        volatile boolean mStopped;
+
+        BackupThread(JobParameters params) {
+            super("AutoBackup");
+            mParams = params;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            boolean success = AutoBackupScheduler.runBackup(getApplicationContext());
+            // 被停止时系统已经不再等待结果
+            if (!mStopped) {
+                jobFinished(mParams, !success);
+            }
+        }
+    }
+}
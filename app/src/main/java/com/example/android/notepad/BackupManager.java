@@ -0,0 +1,224 @@
+package com.example.android.notepad;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.ContentResolver;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Environment;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * 数据库备份管理器：在后台通过 {@link NotePad.Notes#METHOD_BACKUP} 和
+ * {@link NotePad.Notes#METHOD_RESTORE} 备份和恢复整个数据库。
+ *
+ * 每次备份写入备份目录下以时间命名的子目录。备份目录在应用的私有存储中，其他应用无法放入或改动备份，
+ * 恢复只接受这里的备份；用户可以把一份备份导出到下载目录另行保存。
+ * 备份、恢复和导出期间显示不可取消的进度对话框，完成后用 Toast 报告结果。
+ * 同一个 BackupManager 同时只进行一个操作。
+ */
+public class BackupManager {
+    private static final String TAG = "BackupManager";
+
+    // 导出备份不经过 provider，用这个名称与 provider 的方法区分
+    private static final String EXPORT = "export";
+
+    private final Context mContext;
+    private final Context mAppContext;
+    private final ContentResolver mContentResolver;
+    private BackupTask mTask;
+    private ProgressDialog mDialog;
+
+    public BackupManager(Context context) {
+        mContext = context;
+        mAppContext = context.getApplicationContext();
+        mContentResolver = context.getContentResolver();
+    }
+
+    /**
+     * 存放备份的目录，在应用的私有存储中
+     */
+    static File getBackupDirectory(Context context) {
+        return new File(context.getFilesDir(), "backups");
+    }
+
+    /**
+     * 导出备份的目录，在导出目录中
+     */
+    static File getExportDirectory() {
+        return new File(ImportManager.getImportDirectory(), "backups");
+    }
+
+    /**
+     * 已有的备份，包括自动备份，最新的在前
+     */
+    static File[] listBackups(Context context) {
+        File[] backups = getBackupDirectory(context).listFiles();
+        if (backups == null) {
+            return new File[0];
+        }
+        // 自动备份的目录名有前缀，按修改时间而不是名称排序
+        Arrays.sort(backups, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = b.lastModified() - a.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        return backups;
+    }
+
+    /**
+     * 备份数据库到备份目录中新的子目录
+     * @return 是否开始备份
+     */
+    public boolean backup() {
+        String name = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
+        return start(new BackupTask(NotePad.Notes.METHOD_BACKUP,
+                new File(getBackupDirectory(mAppContext), name)));
+    }
+
+    /**
+     * 用一个备份替换全部笔记和分类
+     * @return 是否开始恢复
+     */
+    public boolean restore(File backup) {
+        return start(new BackupTask(NotePad.Notes.METHOD_RESTORE, backup));
+    }
+
+    /**
+     * 把一份备份复制到导出目录中同名的子目录
+     * @return 是否开始导出
+     */
+    public boolean export(File backup) {
+        return start(new BackupTask(EXPORT, backup));
+    }
+
+    /**
+     * 启动操作的界面即将销毁时调用：关闭进度对话框，操作继续在后台进行，完成后仍会提示结果
+     */
+    void release() {
+        dismissDialog();
+    }
+
+    private boolean start(BackupTask task) {
+        if (mTask != null) {
+            Toast.makeText(mContext, R.string.backup_busy, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        if (task.isExport()
+                && !Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            Toast.makeText(mContext, R.string.export_error_storage_unavailable, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+
+        mTask = task;
+        mDialog = new ProgressDialog(mContext);
+        mDialog.setMessage(mContext.getString(task.isRestore() ? R.string.restore_progress
+                : task.isExport() ? R.string.export_backup_progress : R.string.backup_progress));
+        mDialog.setIndeterminate(true);
+        // 换上数据库文件的操作不能中途停止
+        mDialog.setCancelable(false);
+        mDialog.show();
+        task.execute();
+        return true;
+    }
+
+    private void dismissDialog() {
+        if (mDialog != null) {
+            if (mDialog.isShowing()) {
+                mDialog.dismiss();
+            }
+            mDialog = null;
+        }
+    }
+
+    /**
+     * 在后台线程中调用 provider 的备份或恢复方法，或者导出备份
+     */
+    private class BackupTask extends AsyncTask<Void, Void, Bundle> {
+        private final String mMethod;
+        private final File mDirectory;
+
+        BackupTask(String method, File directory) {
+            mMethod = method;
+            mDirectory = directory;
+        }
+
+        boolean isRestore() {
+            return NotePad.Notes.METHOD_RESTORE.equals(mMethod);
+        }
+
+        boolean isExport() {
+            return EXPORT.equals(mMethod);
+        }
+
+        @Override
+        protected Bundle doInBackground(Void... params) {
+            if (isExport()) {
+                return export();
+            }
+            try {
+                return mContentResolver.call(NotePad.Notes.CONTENT_URI, mMethod, mDirectory.getPath(), null);
+            } catch (IllegalArgumentException e) {
+                // 备份不完整或已损坏，当前的数据没有改变
+                Log.e(TAG, mMethod + " failed: " + e.getMessage());
+                return null;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, mMethod + " failed: " + e.getMessage());
+                return null;
+            }
+        }
+
+        private File getExportTarget() {
+            return new File(getExportDirectory(), mDirectory.getName());
+        }
+
+        private Bundle export() {
+            try {
+                Bundle result = new Bundle();
+                result.putLong(NotePad.Notes.KEY_SIZE, DatabaseBackup.exportTo(mDirectory, getExportTarget()));
+                return result;
+            } catch (IOException e) {
+                Log.e(TAG, "Export of " + mDirectory + " failed: " + e.getMessage());
+                return null;
+            } catch (IllegalArgumentException e) {
+                // 备份不完整
+                Log.e(TAG, "Export of " + mDirectory + " failed: " + e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bundle result) {
+            mTask = null;
+            dismissDialog();
+            String message;
+            if (result == null) {
+                message = mAppContext.getString(isRestore() ? R.string.restore_error
+                        : isExport() ? R.string.export_backup_error : R.string.backup_error);
+            } else if (isExport()) {
+                message = mAppContext.getString(R.string.export_backup_success,
+                        getExportTarget().getAbsolutePath());
+            } else if (isRestore()) {
+                message = mAppContext.getString(R.string.restore_success,
+                        result.getInt(NotePad.Notes.KEY_COUNT));
+            } else {
+                message = mAppContext.getString(R.string.backup_success,
+                        result.getInt(NotePad.Notes.KEY_COUNT),
+                        Formatter.formatFileSize(mAppContext, result.getLong(NotePad.Notes.KEY_SIZE)));
+            }
+            Toast.makeText(mAppContext, message, Toast.LENGTH_LONG).show();
+        }
+    }
+}
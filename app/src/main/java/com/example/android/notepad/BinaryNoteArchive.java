@@ -0,0 +1,606 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 可随机访问的二进制笔记归档（.npar）。
+ *
+ * 文件由三部分组成，整数都是大端序：
+ * <pre>
+ * 文件头（{@value #HEADER_SIZE} 字节）
+ *   "NPAR"、格式版本（short）、保留（short）、创建时间（long）、
+ *   笔记数（int）、每个索引表的槽数（int）、索引的位置（long）
+ * 记录，每条笔记一条
+ *   其余部分的长度（int）、ID、创建时间、修改时间（long），
+ *   标题、分类、正文：UTF-8 字节数（int，分类为空时为 -1）和字节
+ * 索引
+ *   按笔记 ID 的散列表，之后是按标题散列值的散列表。每个槽 16 字节：键（long）和记录的位置（long），
+ *   位置为 0 表示空槽。槽数是 2 的幂，至少是笔记数的两倍，冲突时向后探查。
+ * </pre>
+ * 文件头在最后写入，写到一半的文件中索引位置为 0，不会被当作完整的归档。整个文件不超过 2GB，
+ * 即一次映射的大小，{@link Writer} 在超出之前让导出失败。
+ *
+ * {@link Reader} 把文件映射到内存，按 ID 或标题查找时只读取索引中的几个槽和找到的那条记录，
+ * 与归档的大小无关；正文在需要时才解码，浏览标题时不读取正文。{@link ImportManager} 用它只恢复
+ * 归档中选中的笔记或指定标题的笔记。从文件中读出的长度和位置都经过检查，损坏的归档在读取时抛出
+ * {@link IOException}，不会越界读取或陷入死循环。
+ */
+final class BinaryNoteArchive {
+    private static final String TAG = "BinaryNoteArchive";
+
+    static final String EXTENSION = "npar";
+    static final int HEADER_SIZE = 32;
+
+    private static final int MAGIC = 0x4e504152; // "NPAR"
+    private static final short FORMAT_VERSION = 1;
+    private static final int SLOT_SIZE = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 记录中长度之后的固定部分：ID、两个时间和三个长度
+    private static final int RECORD_FIXED_SIZE = 3 * 8 + 3 * 4;
+    // 一次映射能覆盖的最大文件
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private BinaryNoteArchive() {
+    }
+
+    /**
+     * 把来源中的笔记导出为归档。被取消或失败时删除写了一半的文件。
+     *
+     * @return 写入的笔记数；被取消时返回 -1
+     * @throws IOException 写入失败
+     */
+    static int export(ExportSource source, File file, ContentResolver resolver,
+            ExportPipeline.Listener listener) throws IOException {
+        Writer writer = new Writer(file);
+        ExportSource.NoteText text = new ExportSource.NoteText();
+        text.setContentResolver(resolver);
+        boolean done = false;
+        try {
+            int notes = 0;
+            int total = source.getKnownTotal();
+            Cursor cursor;
+            while (!listener.isCancelled() && (cursor = source.nextBatch(resolver)) != null) {
+                try {
+                    if (total < 0 && source.isSingleQuery()) {
+                        total = cursor.getCount();
+                    }
+                    while (cursor.moveToNext()) {
+                        writer.add(cursor.getLong(ExportSource.COLUMN_ID),
+                                cursor.getString(ExportSource.COLUMN_TITLE),
+                                cursor.getString(ExportSource.COLUMN_CATEGORY),
+                                cursor.getLong(ExportSource.COLUMN_CREATE_DATE),
+                                cursor.getLong(ExportSource.COLUMN_MODIFICATION_DATE),
+                                text.start(cursor) ? text : null);
+                        notes++;
+                        listener.onNoteWritten(notes, total, writer.getBytesWritten());
+                        if (listener.isCancelled()) {
+                            return -1;
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            if (listener.isCancelled()) {
+                return -1;
+            }
+            writer.finish();
+            done = true;
+            return notes;
+        } finally {
+            if (!done) {
+                writer.abort();
+            }
+        }
+    }
+
+    /**
+     * 标题的散列值：UTF-8 字节的 64 位 FNV-1a
+     */
+    static long titleHash(String title) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : utf8(title != null ? title : "")) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 容纳 count 条笔记的索引表的槽数：不小于 count 两倍的 2 的幂
+     */
+    private static int slots(int count) {
+        int slots = 1;
+        while (slots < count * 2) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    private static int slot(long key, int slots) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & (slots - 1);
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * 写入的归档将超过 {@link #MAX_SIZE}
+     */
+    static final class TooLargeException extends IOException {
+        TooLargeException() {
+            super("Note archive exceeds " + MAX_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * 顺序写入记录，最后写入索引和文件头
+     */
+    static final class Writer {
+        private final File mFile;
+        private final FileOutputStream mFileOut;
+        private final DataOutputStream mOut;
+        private long mOffset = HEADER_SIZE;
+        // 每条记录的 ID、标题散列值和位置
+        private long[] mIds = new long[256];
+        private long[] mTitleHashes = new long[256];
+        private long[] mOffsets = new long[256];
+        private int mCount;
+
+        Writer(File file) throws IOException {
+            mFile = file;
+            mFileOut = new FileOutputStream(file);
+            mOut = new DataOutputStream(new BufferedOutputStream(mFileOut, BUFFER_SIZE));
+            // 文件头的位置，完成时填写
+            mOut.write(new byte[HEADER_SIZE]);
+        }
+
+        long getBytesWritten() {
+            return mOffset;
+        }
+
+        /**
+         * 添加 {@link ExportSource.NoteText} 正在读取的笔记。大笔记逐段编码写出，写完后再回填
+         * 记录和正文的长度，内存中只有一段。
+         *
+         * @param note 已经 {@link ExportSource.NoteText#start} 的正文，为 null 时写入空正文
+         * @throws TooLargeException 加上这条记录和索引后归档将超过 {@link #MAX_SIZE}。分段写入的
+         * 正文可能已经写入了一部分，归档只能放弃
+         */
+        void add(long id, String title, String category, long created, long modified,
+                ExportSource.NoteText note) throws IOException {
+            if (note == null || !note.isChunked()) {
+                String text = note != null && note.next()
+                        ? new String(note.data(), 0, note.length()) : null;
+                add(id, title, category, created, modified, text);
+                return;
+            }
+
+            byte[] titleBytes = utf8(title != null ? title : "");
+            byte[] categoryBytes = category != null ? utf8(category) : null;
+            long length = RECORD_FIXED_SIZE + (long) titleBytes.length
+                    + (categoryBytes != null ? categoryBytes.length : 0);
+            checkSize(length);
+            long recordOffset = mOffset;
+            writeRecordHead(length, id, created, modified, titleBytes, categoryBytes);
+            // 正文长度的位置，写完正文后回填
+            long noteLengthOffset = recordOffset + 4 + length - 4;
+            mOut.writeInt(0);
+            long noteLength = 0;
+            while (note.next()) {
+                // 每段都在码点边界上，可以单独编码
+                byte[] bytes = utf8(new String(note.data(), 0, note.length()));
+                noteLength += bytes.length;
+                checkSize(length + noteLength);
+                mOut.write(bytes);
+            }
+            length += noteLength;
+            mOut.flush();
+            patchInt(recordOffset, (int) length);
+            patchInt(noteLengthOffset, (int) noteLength);
+            addToIndex(id, title, recordOffset);
+            mOffset += 4 + length;
+        }
+
+        /**
+         * @throws TooLargeException 加上这条记录和索引后归档将超过 {@link #MAX_SIZE}，什么也没有写入
+         */
+        void add(long id, String title, String category, long created, long modified, String note)
+                throws IOException {
+            byte[] titleBytes = utf8(title != null ? title : "");
+            byte[] categoryBytes = category != null ? utf8(category) : null;
+            byte[] noteBytes = utf8(note != null ? note : "");
+            long length = RECORD_FIXED_SIZE + (long) titleBytes.length
+                    + (categoryBytes != null ? categoryBytes.length : 0) + noteBytes.length;
+            checkSize(length);
+            addToIndex(id, title, mOffset);
+            writeRecordHead(length, id, created, modified, titleBytes, categoryBytes);
+            mOut.writeInt(noteBytes.length);
+            mOut.write(noteBytes);
+            mOffset += 4 + length;
+        }
+
+        /**
+         * 检查在当前位置加上长度为 length 的记录后，连同索引是否还在 {@link #MAX_SIZE} 之内。
+         * 索引在最后写入，这里按加上这条记录后的笔记数预留。
+         */
+        private void checkSize(long length) throws TooLargeException {
+            if (mCount >= Integer.MAX_VALUE / 4
+                    || mOffset + 4 + length + 2L * slots(mCount + 1) * SLOT_SIZE > MAX_SIZE) {
+                throw new TooLargeException();
+            }
+        }
+
+        private void addToIndex(long id, String title, long offset) {
+            if (mCount == mIds.length) {
+                mIds = grow(mIds);
+                mTitleHashes = grow(mTitleHashes);
+                mOffsets = grow(mOffsets);
+            }
+            mIds[mCount] = id;
+            mTitleHashes[mCount] = titleHash(title);
+            mOffsets[mCount] = offset;
+            mCount++;
+        }
+
+        /**
+         * 写入记录中正文长度之前的部分
+         */
+        private void writeRecordHead(long length, long id, long created, long modified,
+                byte[] titleBytes, byte[] categoryBytes) throws IOException {
+            mOut.writeInt((int) length);
+            mOut.writeLong(id);
+            mOut.writeLong(created);
+            mOut.writeLong(modified);
+            mOut.writeInt(titleBytes.length);
+            mOut.write(titleBytes);
+            if (categoryBytes != null) {
+                mOut.writeInt(categoryBytes.length);
+                mOut.write(categoryBytes);
+            } else {
+                mOut.writeInt(-1);
+            }
+        }
+
+        /**
+         * 在已经写出的位置回填一个整数，调用前先 flush
+         */
+        private void patchInt(long offset, int value) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.putInt(value);
+            buffer.flip();
+            FileChannel channel = mFileOut.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+        }
+
+        /**
+         * 写入索引和文件头并关闭文件
+         */
+        void finish() throws IOException {
+            int slots = slots(mCount);
+            long indexOffset = mOffset;
+            writeTable(mIds, slots);
+            writeTable(mTitleHashes, slots);
+            mOut.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putShort(FORMAT_VERSION);
+            header.putShort((short) 0);
+            header.putLong(System.currentTimeMillis());
+            header.putInt(mCount);
+            header.putInt(slots);
+            header.putLong(indexOffset);
+            header.flip();
+            FileChannel channel = mFileOut.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            mOut.close();
+        }
+
+        private void writeTable(long[] keys, int slots) throws IOException {
+            long[] tableKeys = new long[slots];
+            long[] tableOffsets = new long[slots];
+            for (int i = 0; i < mCount; i++) {
+                int slot = slot(keys[i], slots);
+                while (tableOffsets[slot] != 0) {
+                    slot = (slot + 1) & (slots - 1);
+                }
+                tableKeys[slot] = keys[i];
+                tableOffsets[slot] = mOffsets[i];
+            }
+            for (int i = 0; i < slots; i++) {
+                mOut.writeLong(tableKeys[i]);
+                mOut.writeLong(tableOffsets[i]);
+            }
+            mOffset += (long) slots * SLOT_SIZE;
+        }
+
+        /**
+         * 放弃写入，删除文件
+         */
+        void abort() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // 文件随后被删除
+            }
+            if (mFile.exists() && !mFile.delete()) {
+                Log.w(TAG, "Unable to delete " + mFile);
+            }
+        }
+
+        private static long[] grow(long[] array) {
+            long[] larger = new long[array.length * 2];
+            System.arraycopy(array, 0, larger, 0, array.length);
+            return larger;
+        }
+    }
+
+    /**
+     * 归档中的一条笔记。正文在第一次调用 {@link #getNote} 时才解码。
+     */
+    static final class Note {
+        final long id;
+        final String title;
+        final String category;
+        final long created;
+        final long modified;
+        private final Reader mReader;
+        private final int mNoteOffset;
+        private final int mNoteLength;
+        private String mNote;
+
+        Note(Reader reader, long id, String title, String category, long created, long modified,
+                int noteOffset, int noteLength) {
+            mReader = reader;
+            this.id = id;
+            this.title = title;
+            this.category = category;
+            this.created = created;
+            this.modified = modified;
+            mNoteOffset = noteOffset;
+            mNoteLength = noteLength;
+        }
+
+        String getNote() {
+            if (mNote == null) {
+                mNote = mReader.readString(mNoteOffset, mNoteLength);
+            }
+            return mNote;
+        }
+
+        /**
+         * 用于通过 bulkInsert 恢复这条笔记的列，分类按名称指定；ID 由 provider 重新分配。
+         * 修改时间不恢复，由 provider 设为导入的时间，这样导入的笔记会出现在下一次增量导出中。
+         */
+        ContentValues toContentValues() {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, getNote());
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, created);
+            if (category != null) {
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_TITLE, category);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * 把归档映射到内存中读取。可以在多个线程中同时使用。
+     */
+    static final class Reader implements Closeable {
+        private final RandomAccessFile mFile;
+        private final MappedByteBuffer mBuffer;
+        private final int mCount;
+        private final int mSlots;
+        private final int mIdTable;
+        private final int mTitleTable;
+
+        /**
+         * @throws IOException 文件不是完整的归档，或者大于 {@link #MAX_SIZE}
+         */
+        Reader(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+            boolean opened = false;
+            try {
+                long size = mFile.length();
+                if (size < HEADER_SIZE || size > MAX_SIZE) {
+                    throw new IOException("Not a note archive: " + file);
+                }
+                mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (mBuffer.getInt(0) != MAGIC || mBuffer.getShort(4) != FORMAT_VERSION) {
+                    throw new IOException("Not a note archive: " + file);
+                }
+                mCount = mBuffer.getInt(16);
+                mSlots = mBuffer.getInt(20);
+                long indexOffset = mBuffer.getLong(24);
+                if (mCount < 0 || mSlots <= 0 || (mSlots & (mSlots - 1)) != 0 || 2L * mCount > mSlots
+                        || indexOffset < HEADER_SIZE || indexOffset + 2L * mSlots * SLOT_SIZE != size) {
+                    throw new IOException("Incomplete note archive: " + file);
+                }
+                mIdTable = (int) indexOffset;
+                mTitleTable = mIdTable + mSlots * SLOT_SIZE;
+                opened = true;
+            } finally {
+                if (!opened) {
+                    mFile.close();
+                }
+            }
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        /**
+         * 按 ID 查找笔记，没有时返回 null
+         *
+         * @throws IOException 归档已损坏
+         */
+        Note findById(long id) throws IOException {
+            int slot = slot(id, mSlots);
+            // 完好的表中总有空槽；损坏的表可能没有，最多探查一遍
+            for (int probes = 0; probes < mSlots; probes++) {
+                int position = mIdTable + slot * SLOT_SIZE;
+                long offset = mBuffer.getLong(position + 8);
+                if (offset == 0) {
+                    return null;
+                }
+                if (mBuffer.getLong(position) == id) {
+                    Note note = readNote(offset);
+                    if (note.id != id) {
+                        throw new IOException("Corrupt note archive: index entry for " + id);
+                    }
+                    return note;
+                }
+                slot = (slot + 1) & (mSlots - 1);
+            }
+            return null;
+        }
+
+        /**
+         * 按标题查找笔记，标题完全相同的笔记都会返回，按在归档中的顺序
+         *
+         * @throws IOException 归档已损坏
+         */
+        List<Note> findByTitle(String title) throws IOException {
+            long hash = titleHash(title);
+            ArrayList<Note> notes = new ArrayList<Note>();
+            int slot = slot(hash, mSlots);
+            for (int probes = 0; probes < mSlots; probes++) {
+                int position = mTitleTable + slot * SLOT_SIZE;
+                long offset = mBuffer.getLong(position + 8);
+                if (offset == 0) {
+                    break;
+                }
+                if (mBuffer.getLong(position) == hash) {
+                    Note note = readNote(offset);
+                    // 不同的标题可能有相同的散列值
+                    if (note.title.equals(title)) {
+                        notes.add(note);
+                    }
+                }
+                slot = (slot + 1) & (mSlots - 1);
+            }
+            return notes;
+        }
+
+        /**
+         * 第一条记录的位置，与 {@link #nextRecord} 一起按顺序浏览全部笔记
+         */
+        long firstRecord() {
+            return HEADER_SIZE;
+        }
+
+        /**
+         * 下一条记录的位置；已经是最后一条时返回 -1
+         *
+         * @throws IOException 归档已损坏
+         */
+        long nextRecord(long offset) throws IOException {
+            int next = recordEnd(offset);
+            return next < mIdTable ? next : -1;
+        }
+
+        /**
+         * 读取指定位置的记录，正文在需要时才解码
+         *
+         * @throws IOException 归档已损坏，或者位置不在记录区中
+         */
+        Note readNote(long offset) throws IOException {
+            int end = recordEnd(offset);
+            int position = (int) offset + 4;
+            long id = mBuffer.getLong(position);
+            long created = mBuffer.getLong(position + 8);
+            long modified = mBuffer.getLong(position + 16);
+            position += 24;
+            int titleLength = fieldLength(position, end, false);
+            String title = readString(position + 4, titleLength);
+            position += 4 + titleLength;
+            int categoryLength = fieldLength(position, end, true);
+            String category = null;
+            position += 4;
+            if (categoryLength >= 0) {
+                category = readString(position, categoryLength);
+                position += categoryLength;
+            }
+            int noteLength = fieldLength(position, end, false);
+            if (position + 4 + noteLength != end) {
+                throw new IOException("Corrupt note archive: record at " + offset);
+            }
+            return new Note(this, id, title, category, created, modified, position + 4, noteLength);
+        }
+
+        // 检查 offset 处记录的长度前缀，返回记录的结束位置
+        private int recordEnd(long offset) throws IOException {
+            if (offset < HEADER_SIZE || offset > mIdTable - 4 - RECORD_FIXED_SIZE) {
+                throw new IOException("Corrupt note archive: record offset " + offset);
+            }
+            long end = offset + 4 + mBuffer.getInt((int) offset);
+            if (end < offset + 4 + RECORD_FIXED_SIZE || end > mIdTable) {
+                throw new IOException("Corrupt note archive: record at " + offset);
+            }
+            return (int) end;
+        }
+
+        // 读取 position 处字段的长度，字段必须在 end 之前结束；nullable 时 -1 表示空值
+        private int fieldLength(int position, int end, boolean nullable) throws IOException {
+            if (position > end - 4) {
+                throw new IOException("Corrupt note archive: field at " + position);
+            }
+            int length = mBuffer.getInt(position);
+            if (length < (nullable ? -1 : 0) || length > end - position - 4) {
+                throw new IOException("Corrupt note archive: field at " + position);
+            }
+            return length;
+        }
+
+        String readString(int position, int length) {
+            byte[] bytes = new byte[length];
+            // 复制一份缓冲区，位置互不影响，多个线程可以同时读取
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(position);
+            buffer.get(bytes);
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * 关闭文件。映射在没有引用后由系统释放
+         */
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
@@ -142,15 +142,11 @@ public class CategoryListActivity extends Activity {
         mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                // 查看该分类下的笔记
-                Uri categoryUri = ContentUris.withAppendedId(
-                        Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"),
-                        id
-                );
-                
-                // 跳转到笔记列表，并显示该分类下的笔记
+                // 回到已有的笔记列表，在列表中筛选该分类下的笔记
                 Intent intent = new Intent(CategoryListActivity.this, NotesList.class);
-                intent.setData(Uri.withAppendedPath(categoryUri, "notes"));
+                intent.setData(NotePad.Notes.CONTENT_URI);
+                intent.putExtra(NotesList.EXTRA_CATEGORY_FILTER, new long[] { id });
+                intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
                 startActivity(intent);
             }
         });
@@ -0,0 +1,221 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 合并内容变化通知并在后台重新加载数据的观察者。
+ *
+ * 一次保存往往会连续触发多条通知，这里把一个短时间窗口内的通知合并成一次加载。加载在单独的
+ * 后台线程中进行：先读取 provider 的数据版本，与上次加载时相同就跳过，否则加载数据并在主线程中
+ * 交付结果。加载进行中再收到通知时，只在当前加载结束后补一次加载，不会排队多次。
+ *
+ * 观察者跟随 Activity 的可见状态：{@link #start} 时注册并立即检查一次数据是否变化，不等待
+ * 合并窗口，这样冷启动时首屏数据不会因为合并而推迟；之后的通知才按窗口合并。{@link #stop}
+ * 时注销并丢弃尚未执行的工作，停止期间不会再排队任何加载。除 {@link Callbacks} 中标明的方法外，
+ * 所有方法都必须在主线程中调用。
+ *
+ * @param <T> 加载结果的类型
+ */
+final class CoalescingObserver<T> extends ContentObserver {
+    private static final String TAG = "CoalescingObserver";
+
+    /**
+     * 默认的合并窗口
+     */
+    static final long DEFAULT_WINDOW_MILLIS = 150;
+
+    /**
+     * 加载过程中的回调
+     */
+    interface Callbacks<T> {
+        /**
+         * 在后台线程中读取当前的数据版本
+         */
+        long queryDataVersion();
+
+        /**
+         * 在后台线程中加载数据
+         */
+        T loadInBackground();
+
+        /**
+         * 在主线程中交付加载结果
+         */
+        void onLoadFinished(T result);
+    }
+
+    private final Handler mHandler;
+    private final long mWindowMillis;
+    private final Callbacks<T> mCallbacks;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private ContentResolver mResolver;
+    private boolean mStarted;
+
+    // 正在后台加载
+    private boolean mLoading;
+    // 加载期间又收到了通知，结束后需要再加载一次
+    private boolean mReloadPending;
+    // 需要忽略数据版本强制加载，例如查询条件变化时
+    private boolean mForcePending;
+
+    // 上次交付的数据对应的版本，只在主线程中写入
+    private volatile long mLoadedVersion = Long.MIN_VALUE;
+
+    private final Runnable mFire = new Runnable() {
+        @Override
+        public void run() {
+            startLoad();
+        }
+    };
+
+    CoalescingObserver(long windowMillis, Callbacks<T> callbacks) {
+        this(new Handler(Looper.getMainLooper()), windowMillis, callbacks);
+    }
+
+    private CoalescingObserver(Handler handler, long windowMillis, Callbacks<T> callbacks) {
+        super(handler);
+        mHandler = handler;
+        mWindowMillis = windowMillis;
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * 开始监听 uri 及其子 URI，并立即检查一次数据是否在停止期间发生了变化
+     */
+    void start(ContentResolver resolver, Uri uri) {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mResolver = resolver;
+        mResolver.registerContentObserver(uri, true, this);
+        loadNow();
+    }
+
+    /**
+     * 停止监听，丢弃尚未开始的加载。正在进行的加载结束后不会交付结果。
+     */
+    void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mResolver.unregisterContentObserver(this);
+        mHandler.removeCallbacks(mFire);
+        mReloadPending = false;
+    }
+
+    /**
+     * 停止监听并结束后台线程，在 Activity 销毁时调用
+     */
+    void destroy() {
+        stop();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 请求一次加载。窗口期内的多次请求只会触发一次加载。
+     *
+     * @param force 为 true 时不比较数据版本，总是重新加载
+     */
+    void requestReload(boolean force) {
+        if (!mStarted) {
+            return;
+        }
+        mForcePending |= force;
+        if (mLoading) {
+            mReloadPending = true;
+            return;
+        }
+        mHandler.removeCallbacks(mFire);
+        mHandler.postDelayed(mFire, mWindowMillis);
+    }
+
+    /**
+     * 不等待合并窗口，立即开始加载；正在加载时在结束后补一次加载
+     */
+    private void loadNow() {
+        if (mLoading) {
+            mReloadPending = true;
+            return;
+        }
+        mHandler.removeCallbacks(mFire);
+        startLoad();
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        requestReload(false);
+    }
+
+    private void startLoad() {
+        if (!mStarted) {
+            return;
+        }
+        final boolean force = mForcePending;
+        mForcePending = false;
+        mLoading = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long version;
+                try {
+                    version = mCallbacks.queryDataVersion();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Unable to query data version", e);
+                    version = Long.MIN_VALUE;
+                }
+
+                // 数据没有变化时不需要重新加载
+                if (!force && version != Long.MIN_VALUE && version == mLoadedVersion) {
+                    postFinished(false, version, null);
+                    return;
+                }
+                T result;
+                try {
+                    result = mCallbacks.loadInBackground();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Load failed", e);
+                    postFinished(false, version, null);
+                    return;
+                }
+                postFinished(true, version, result);
+            }
+        });
+    }
+
+    private void postFinished(final boolean loaded, final long version, final T result) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mLoading = false;
+                if (!mStarted) {
+                    return;
+                }
+                // 加载期间查询条件变化，这次的结果已经过时，直接开始下一次加载
+                if (mForcePending) {
+                    mReloadPending = false;
+                    startLoad();
+                    return;
+                }
+                if (loaded) {
+                    mLoadedVersion = version;
+                    mCallbacks.onLoadFinished(result);
+                }
+                if (mReloadPending) {
+                    mReloadPending = false;
+                    requestReload(false);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,381 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 数据库的二进制备份和恢复，由 {@link NotePadProvider} 的
+ * {@link NotePad.Notes#METHOD_BACKUP} 和 {@link NotePad.Notes#METHOD_RESTORE} 使用。
+ *
+ * 备份是一个目录，包含数据库文件 {@value #DATABASE_FILE} 和清单 {@value #MANIFEST_FILE}，
+ * 清单记录数据库版本、文件大小和 SHA-256 校验和。与文本导出不同，备份保留分类、笔记 ID 和删除记录，
+ * 恢复时直接换上数据库文件，不需要逐条插入。
+ */
+final class DatabaseBackup {
+    private static final String TAG = "DatabaseBackup";
+
+    static final String DATABASE_FILE = "note_pad.db";
+    static final String MANIFEST_FILE = "manifest.json";
+
+    // 清单格式的版本
+    private static final int FORMAT = 1;
+    // VACUUM INTO 需要 SQLite 3.27，Android 11 起自带的版本满足
+    private static final int VACUUM_INTO_SDK = 30;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 备份的内容摘要，也就是清单中的数据
+     */
+    static final class Manifest {
+        final int databaseVersion;
+        final long size;
+        final String checksum;
+        final int notes;
+
+        Manifest(int databaseVersion, long size, String checksum, int notes) {
+            this.databaseVersion = databaseVersion;
+            this.size = size;
+            this.checksum = checksum;
+            this.notes = notes;
+        }
+    }
+
+    private DatabaseBackup() {
+    }
+
+    /**
+     * 把数据库的一致快照写入备份目录，替换其中已有的备份。先写临时文件，全部写完并同步到磁盘后再改名，
+     * 中途失败时目录中原有的备份不受影响。
+     *
+     * Android 11 起用 VACUUM INTO 生成压缩过的副本；更早的版本在一个立即事务中复制数据库文件和预写日志，
+     * 复制期间其他写入等待，读取不受影响，之后再把复制的日志合并进副本。
+     *
+     * @param bytesPerSecond 写入备份目录的速度上限，不大于 0 时不限速。限速时快照先不限速地写到
+     *     数据库旁边，再限速复制到备份目录，其他写入等待的时间不受限速影响
+     */
+    static Manifest backup(SQLiteDatabase db, File directory, long bytesPerSecond) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File target = new File(directory, DATABASE_FILE);
+        File temp = new File(directory, DATABASE_FILE + ".tmp");
+        File snapshot = bytesPerSecond > 0 ? new File(db.getPath() + ".snapshot") : temp;
+        deleteIfExists(temp);
+        deleteIfExists(snapshot);
+        deleteJournals(snapshot);
+
+        int notes;
+        String checksum = null;
+        try {
+            if (Build.VERSION.SDK_INT >= VACUUM_INTO_SDK) {
+                notes = (int) DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME);
+                db.execSQL("VACUUM INTO ?", new Object[] { snapshot.getPath() });
+            } else {
+                // 先把预写日志写回数据库文件，事务中要复制的日志通常就很短；没有使用预写日志时什么也不做。
+                // 检查点不能在事务中执行，这之后、事务开始之前提交的写入仍在日志中，随日志一起复制
+                Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+                try {
+                    // 查询在读取结果时才执行
+                    cursor.moveToFirst();
+                } finally {
+                    cursor.close();
+                }
+                File wal = new File(db.getPath() + "-wal");
+                File snapshotWal = new File(snapshot.getPath() + "-wal");
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    db.beginTransactionNonExclusive();
+                } else {
+                    db.beginTransaction();
+                }
+                try {
+                    // 事务开始时已经取得写锁，复制期间其他连接无法提交写入，也不会有检查点改动数据库文件，
+                    // 数据库文件和日志一起是一致的快照
+                    notes = (int) DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME);
+                    checksum = copy(new File(db.getPath()), snapshot, 0);
+                    if (wal.length() > 0) {
+                        copy(wal, snapshotWal, 0);
+                    }
+                } finally {
+                    db.endTransaction();
+                }
+                if (snapshotWal.exists()) {
+                    mergeWal(snapshot);
+                    checksum = null;
+                }
+            }
+            if (snapshot != temp) {
+                checksum = copy(snapshot, temp, bytesPerSecond);
+            } else if (checksum == null) {
+                checksum = copy(null, temp, 0);
+            }
+        } catch (SQLiteException e) {
+            deleteIfExists(temp);
+            throw new IOException("Unable to back up database: " + e.getMessage());
+        } catch (IOException e) {
+            deleteIfExists(temp);
+            throw e;
+        } finally {
+            deleteJournals(snapshot);
+            if (snapshot != temp) {
+                deleteIfExists(snapshot);
+            }
+        }
+
+        Manifest manifest = new Manifest(db.getVersion(), temp.length(), checksum, notes);
+        if (!temp.renameTo(target)) {
+            deleteIfExists(temp);
+            throw new IOException("Unable to rename " + temp);
+        }
+        writeManifest(new File(directory, MANIFEST_FILE), manifest);
+        return manifest;
+    }
+
+    /**
+     * 校验备份并把其中的数据库文件复制到数据库旁边的临时文件，调用方随后把它改名为数据库文件。
+     * 校验包括清单中的大小、校验和与数据库版本，以及 SQLite 的快速完整性检查。
+     *
+     * @param databaseFile 当前的数据库文件，临时文件放在同一个目录中，保证改名是原子的
+     * @param maxVersion 可以恢复的最高数据库版本，更新的版本由更新的应用写出
+     * @return 校验过的临时文件
+     * @throws IllegalArgumentException 备份不完整、已损坏或者版本过新
+     * @throws IOException 读写失败
+     */
+    static File prepareRestore(File directory, File databaseFile, int maxVersion) throws IOException {
+        Manifest manifest = readManifest(new File(directory, MANIFEST_FILE));
+        if (manifest.databaseVersion > maxVersion) {
+            throw new IllegalArgumentException("Backup has database version " + manifest.databaseVersion
+                    + ", newer than " + maxVersion);
+        }
+        File source = new File(directory, DATABASE_FILE);
+        if (source.length() != manifest.size) {
+            throw new IllegalArgumentException("Backup size " + source.length() + " does not match manifest");
+        }
+
+        File temp = new File(databaseFile.getPath() + ".restore");
+        deleteIfExists(temp);
+        boolean verified = false;
+        try {
+            // 校验复制出来的文件，而不是备份本身，复制过程中的错误也能发现
+            String checksum = copy(source, temp, 0);
+            if (!checksum.equals(manifest.checksum)) {
+                throw new IllegalArgumentException("Backup checksum does not match manifest");
+            }
+            checkDatabase(temp, maxVersion);
+            verified = true;
+            return temp;
+        } finally {
+            if (!verified) {
+                deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * 把备份复制到 target 目录，例如用户把应用私有存储中的备份导出到下载目录。
+     * 复制出的数据库文件按清单中的校验和校验。
+     *
+     * @return 数据库文件的大小
+     * @throws IllegalArgumentException 备份没有清单
+     * @throws IOException 读写失败，或者复制出的文件与清单不符
+     */
+    static long exportTo(File directory, File target) throws IOException {
+        Manifest manifest = readManifest(new File(directory, MANIFEST_FILE));
+        if (!target.isDirectory() && !target.mkdirs()) {
+            throw new IOException("Unable to create " + target);
+        }
+        String checksum = copy(new File(directory, DATABASE_FILE), new File(target, DATABASE_FILE), 0);
+        if (!checksum.equals(manifest.checksum)) {
+            throw new IOException("Exported database does not match manifest");
+        }
+        copy(new File(directory, MANIFEST_FILE), new File(target, MANIFEST_FILE), 0);
+        return manifest.size;
+    }
+
+    private static void checkDatabase(File file, int maxVersion) {
+        SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        } catch (SQLiteException e) {
+            throw new IllegalArgumentException("Backup is not a database: " + e.getMessage());
+        }
+        try {
+            String result = DatabaseUtils.stringForQuery(db, "PRAGMA quick_check", null);
+            if (!"ok".equals(result)) {
+                throw new IllegalArgumentException("Backup database is damaged: " + result);
+            }
+            if (db.getVersion() > maxVersion) {
+                throw new IllegalArgumentException("Backup has database version " + db.getVersion()
+                        + ", newer than " + maxVersion);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * 把与数据库文件一起复制的预写日志合并进副本。打开副本时 SQLite 从日志中恢复已提交的事务，
+     * 改为回滚日志模式时把它们写回数据库文件并删除日志，副本成为单个完整的文件。
+     */
+    private static void mergeWal(File file) {
+        SQLiteDatabase copy = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            Cursor cursor = copy.rawQuery("PRAGMA journal_mode=DELETE", null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            copy.close();
+        }
+    }
+
+    /**
+     * 删除数据库文件旁边的日志文件。换上恢复的数据库文件后调用，避免旧数据库的日志被用到新文件上。
+     */
+    static void deleteJournals(File databaseFile) {
+        for (String suffix : new String[] { "-journal", "-wal", "-shm" }) {
+            deleteIfExists(new File(databaseFile.getPath() + suffix));
+        }
+    }
+
+    /**
+     * 复制文件并计算 SHA-256，写完后同步到磁盘。source 为 null 时只计算 target 的校验和。
+     *
+     * @param bytesPerSecond 复制速度的上限，超过时暂停，不大于 0 时不限速
+     */
+    private static String copy(File source, File target, long bytesPerSecond) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available");
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(source != null ? source : target);
+        try {
+            FileOutputStream out = source != null ? new FileOutputStream(target) : null;
+            try {
+                long start = SystemClock.elapsedRealtime();
+                long copied = 0;
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, n);
+                    if (out != null) {
+                        out.write(buffer, 0, n);
+                    }
+                    copied += n;
+                    if (bytesPerSecond > 0) {
+                        long wait = copied * 1000 / bytesPerSecond - (SystemClock.elapsedRealtime() - start);
+                        if (wait > 0) {
+                            try {
+                                Thread.sleep(wait);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Backup interrupted");
+                            }
+                        }
+                    }
+                }
+                if (out != null) {
+                    out.getFD().sync();
+                }
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void writeManifest(File file, Manifest manifest) throws IOException {
+        String json;
+        try {
+            json = new JSONObject()
+                    .put("format", FORMAT)
+                    .put("created", System.currentTimeMillis())
+                    .put("file", DATABASE_FILE)
+                    .put("databaseVersion", manifest.databaseVersion)
+                    .put("size", manifest.size)
+                    .put("sha256", manifest.checksum)
+                    .put("notes", manifest.notes)
+                    .toString(2);
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(json.getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            deleteIfExists(temp);
+            throw new IOException("Unable to rename " + temp);
+        }
+    }
+
+    private static Manifest readManifest(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("No backup manifest in " + file.getParent());
+        }
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            int n;
+            while (read < data.length && (n = in.read(data, read, data.length - read)) > 0) {
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        try {
+            JSONObject json = new JSONObject(new String(data, "UTF-8"));
+            if (json.getInt("format") != FORMAT || !DATABASE_FILE.equals(json.getString("file"))) {
+                throw new IllegalArgumentException("Unsupported backup format");
+            }
+            return new Manifest(json.getInt("databaseVersion"), json.getLong("size"),
+                    json.getString("sha256"), json.optInt("notes"));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid backup manifest: " + e.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+}
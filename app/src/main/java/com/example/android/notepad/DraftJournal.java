@@ -0,0 +1,549 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 编辑器的草稿日志，每条笔记一个只追加的文件。
+ *
+ * 自动保存要停止输入一段时间后才写数据库，这期间进程被杀掉时输入的内容会丢失。草稿日志在
+ * 每次修改时追加一条很小的记录（位置、删除的长度和插入的文本），顺序写入文件，每隔一段时间
+ * 才 fsync 一次，不需要每次按键都重写数据库中的整行。
+ *
+ * 每次写入数据库之后追加一条检查点记录，表示"到第几条修改为止的内容，在数据库中的版本号是
+ * 多少"。下次打开笔记时找到与数据库当前版本号一致的最后一个检查点，把它之后的修改应用到
+ * 编辑器中，再由自动保存一次写入数据库。找不到一致的检查点说明笔记已在别处被修改，日志作废。
+ * 文件超过一定大小时在检查点处压缩，只保留之后的修改。
+ *
+ * 文件格式：魔数和格式版本，之后每条记录依次为长度、CRC32 和内容。进程在写入中途被杀掉时，
+ * 最后一条记录不完整，读取时 CRC 校验失败，从这里截断。
+ *
+ * 文件操作都在日志自己的后台线程中按顺序执行。除 {@link #checkpoint} 外，
+ * 所有方法都在主线程中调用。
+ */
+final class DraftJournal {
+    private static final String TAG = "DraftJournal";
+
+    /**
+     * 两次 fsync 之间的最长间隔
+     */
+    static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    /**
+     * 文件超过这个大小时在下一个检查点处压缩
+     */
+    static final int COMPACT_BYTES = 64 * 1024;
+
+    // 草稿日志所在的目录，位于应用的文件目录中
+    private static final String DIRECTORY = "drafts";
+
+    private static final int MAGIC = 0x4e504a4c;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    // 单条记录的大小上限，超过时认为文件已损坏
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private static final byte TYPE_EDIT = 1;
+    private static final byte TYPE_CHECKPOINT = 2;
+
+    /**
+     * 一次修改：把 offset 开始的 removedLength 个字符替换为 inserted，位置和长度以 UTF-16 字符计
+     */
+    static final class Edit {
+        final long seq;
+        final int offset;
+        final int removedLength;
+        final String inserted;
+
+        Edit(long seq, int offset, int removedLength, String inserted) {
+            this.seq = seq;
+            this.offset = offset;
+            this.removedLength = removedLength;
+            this.inserted = inserted;
+        }
+
+        /**
+         * 把这次修改应用到文本上
+         *
+         * @return 位置超出文本范围时返回 false，不做任何修改
+         */
+        boolean applyTo(Editable text) {
+            if (offset < 0 || removedLength < 0 || offset + removedLength > text.length()) {
+                return false;
+            }
+            text.replace(offset, offset + removedLength, inserted);
+            return true;
+        }
+    }
+
+    // 尚未被检查点覆盖的记录，压缩时重新写入
+    private static final class Record {
+        final long seq;
+        final byte[] bytes;
+
+        Record(long seq, byte[] bytes) {
+            this.seq = seq;
+            this.bytes = bytes;
+        }
+    }
+
+    private final File mFile;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // 下一条修改的序号，只在主线程中读写
+    private long mNextSeq;
+
+    // 以下字段只在日志线程中读写
+    private FileOutputStream mOut;
+    private long mFileSize;
+    private long mLastSync;
+    private boolean mSyncScheduled;
+    private boolean mUnsynced;
+    // 最后一个检查点之后的修改记录，按序号排列
+    private final ArrayDeque<Record> mPending = new ArrayDeque<Record>();
+    // 最后一个检查点
+    private long mCheckpointSeq;
+    private long mCheckpointVersion = -1;
+
+    private final Runnable mSync = new Runnable() {
+        @Override
+        public void run() {
+            mSyncScheduled = false;
+            syncNow();
+        }
+    };
+
+    DraftJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * 一条笔记的草稿日志文件
+     */
+    static File fileFor(Context context, long noteId) {
+        return new File(new File(context.getFilesDir(), DIRECTORY), noteId + ".journal");
+    }
+
+    /**
+     * 删除所有笔记的草稿日志，从备份恢复数据库后调用
+     */
+    static void deleteAll(Context context) {
+        File[] files = new File(context.getFilesDir(), DIRECTORY).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * 是否有可能需要恢复的草稿
+     */
+    static boolean exists(File file) {
+        return file.length() > HEADER_SIZE;
+    }
+
+    /**
+     * 读取日志，返回在数据库当前版本之后的修改，然后以这个版本重新开始记录。
+     * 会等待之前提交给日志线程的写入完成。
+     *
+     * @param version 数据库中笔记当前的版本号
+     * @return 需要重新应用的修改，按顺序排列；没有时返回空列表
+     */
+    List<Edit> recover(final long version) {
+        // 序号不重新开始，之前取出的 mark 在检查点中会被忽略
+        final long seq = mNextSeq;
+        List<Edit> edits = await(new Callable<List<Edit>>() {
+            @Override
+            public List<Edit> call() {
+                List<Edit> result = Collections.emptyList();
+                if (exists(mFile)) {
+                    try {
+                        result = read(mFile, version);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to read " + mFile, e);
+                    }
+                }
+                // 返回的修改重新应用到编辑器时会再次记录
+                deleteFile();
+                mPending.clear();
+                mCheckpointSeq = seq;
+                mCheckpointVersion = version;
+                return result;
+            }
+        });
+        return edits != null ? edits : Collections.<Edit>emptyList();
+    }
+
+    /**
+     * 记录一次修改。在主线程中编码，写入在日志线程中进行。
+     */
+    void append(int offset, int removedLength, CharSequence inserted) {
+        final long seq = mNextSeq++;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + inserted.length() * 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(TYPE_EDIT);
+            out.writeLong(seq);
+            out.writeInt(offset);
+            out.writeInt(removedLength);
+            out.writeInt(inserted.length());
+            // 按 UTF-16 写入，输入法组字时可能只插入代理对的一半，转成 UTF-8 会丢失
+            for (int i = 0; i < inserted.length(); i++) {
+                out.writeChar(inserted.charAt(i));
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        final byte[] record = frame(bytes.toByteArray());
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mPending.addLast(new Record(seq, record));
+                write(record);
+            }
+        });
+    }
+
+    /**
+     * 当前的位置，之前记录的修改都在这个位置之前。保存时在主线程中取出，写入数据库之后
+     * 交给 {@link #checkpoint}。
+     */
+    long mark() {
+        return mNextSeq;
+    }
+
+    /**
+     * mark 之前的修改已经写入数据库，数据库中的版本号为 version。可以在任意线程中调用。
+     */
+    void checkpoint(final long mark, final long version) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mark < mCheckpointSeq || (mark == mCheckpointSeq && version == mCheckpointVersion)) {
+                    return;
+                }
+                mCheckpointSeq = mark;
+                mCheckpointVersion = version;
+                while (!mPending.isEmpty() && mPending.peekFirst().seq < mark) {
+                    mPending.pollFirst();
+                }
+                if (mPending.isEmpty()) {
+                    // 所有修改都已经写入数据库，不需要保留日志
+                    deleteFile();
+                } else if (mFileSize > COMPACT_BYTES) {
+                    compact();
+                } else {
+                    write(checkpointRecord(mark, version));
+                }
+            }
+        });
+    }
+
+    /**
+     * 立即 fsync，在onPause()中调用
+     */
+    void requestSync() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                syncNow();
+            }
+        });
+    }
+
+    /**
+     * 删除日志，之后的修改重新开始记录。在删除笔记、恢复原始内容或放弃修改时调用。
+     */
+    void delete() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mPending.clear();
+                deleteFile();
+            }
+        });
+    }
+
+    /**
+     * 写完并 fsync 已经提交的记录，结束日志线程。在Activity销毁时调用，会等待写入完成，
+     * 之后新的Activity打开同一个文件时不会与这里的写入交错。
+     */
+    void close() {
+        await(new Callable<Void>() {
+            @Override
+            public Void call() {
+                syncNow();
+                closeFile();
+                return null;
+            }
+        });
+        mExecutor.shutdownNow();
+    }
+
+    private void execute(Runnable task) {
+        if (!mExecutor.isShutdown()) {
+            mExecutor.execute(task);
+        }
+    }
+
+    private <T> T await(Callable<T> task) {
+        if (mExecutor.isShutdown()) {
+            return null;
+        }
+        try {
+            return mExecutor.submit(task).get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Journal task failed", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /*
+     * 以下方法都在日志线程中执行
+     */
+
+    /**
+     * 追加一条记录，记录对应的状态（mPending 或检查点）已经更新。文件还没有打开时创建文件，
+     * 写入的内容已经包括这条记录。
+     */
+    private void write(byte[] record) {
+        try {
+            if (mOut == null) {
+                openFile();
+            } else {
+                mOut.write(record);
+                mFileSize += record.length;
+            }
+            mUnsynced = true;
+        } catch (IOException e) {
+            // 日志只是额外的保护，写入失败时删除文件，下次写入时重新创建并写入全部未保存的修改
+            Log.w(TAG, "Unable to write " + mFile, e);
+            deleteFile();
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (now - mLastSync >= SYNC_INTERVAL_MILLIS) {
+            syncNow();
+        } else if (!mSyncScheduled && !mExecutor.isShutdown()) {
+            mSyncScheduled = true;
+            mExecutor.schedule(mSync, mLastSync + SYNC_INTERVAL_MILLIS - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 创建文件并写入文件头、最后一个检查点和它之后的修改
+    private void openFile() throws IOException {
+        File dir = mFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        mOut = new FileOutputStream(mFile);
+        mFileSize = 0;
+        writeContents(mOut);
+    }
+
+    private void writeContents(FileOutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.write(checkpointRecord(mCheckpointSeq, mCheckpointVersion));
+        for (Record record : mPending) {
+            data.write(record.bytes);
+        }
+        bytes.writeTo(out);
+        mFileSize += bytes.size();
+    }
+
+    /**
+     * 只保留最后一个检查点之后的修改。先写临时文件再替换，中途被杀掉时原来的文件仍然完整。
+     */
+    private void compact() {
+        closeFile();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                mFileSize = 0;
+                writeContents(out);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+            mOut = new FileOutputStream(mFile, true);
+            mLastSync = SystemClock.uptimeMillis();
+            mUnsynced = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact " + mFile, e);
+            tmp.delete();
+            mFile.delete();
+            closeFile();
+        }
+    }
+
+    private void syncNow() {
+        if (mOut == null || !mUnsynced) {
+            return;
+        }
+        try {
+            mOut.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to sync " + mFile, e);
+        }
+        mLastSync = SystemClock.uptimeMillis();
+        mUnsynced = false;
+    }
+
+    private void closeFile() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + mFile, e);
+            }
+            mOut = null;
+        }
+        mFileSize = 0;
+        mUnsynced = false;
+    }
+
+    private void deleteFile() {
+        closeFile();
+        mFile.delete();
+    }
+
+    private static byte[] checkpointRecord(long seq, long version) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(17);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(TYPE_CHECKPOINT);
+            out.writeLong(seq);
+            out.writeLong(version);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    // 在记录前加上长度和 CRC32
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        byte[] record = new byte[payload.length + 8];
+        int length = payload.length;
+        int value = (int) crc.getValue();
+        for (int i = 0; i < 4; i++) {
+            record[i] = (byte) (length >>> (24 - 8 * i));
+            record[4 + i] = (byte) (value >>> (24 - 8 * i));
+        }
+        System.arraycopy(payload, 0, record, 8, payload.length);
+        return record;
+    }
+
+    /**
+     * 读取日志文件，返回与 version 一致的最后一个检查点之后的修改。
+     * 最后一条记录不完整或校验失败时忽略它和之后的内容。
+     */
+    static List<Edit> read(File file, long version) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        List<Edit> edits = new ArrayList<Edit>();
+        long start = -1;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return Collections.emptyList();
+            }
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    Log.w(TAG, "Truncated record in " + file);
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                if (type == TYPE_CHECKPOINT) {
+                    long seq = record.readLong();
+                    if (record.readLong() == version) {
+                        start = seq;
+                    }
+                } else if (type == TYPE_EDIT) {
+                    long seq = record.readLong();
+                    int offset = record.readInt();
+                    int removedLength = record.readInt();
+                    char[] inserted = new char[record.readInt()];
+                    for (int i = 0; i < inserted.length; i++) {
+                        inserted[i] = record.readChar();
+                    }
+                    edits.add(new Edit(seq, offset, removedLength, new String(inserted)));
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (start < 0) {
+            // 笔记已在别处被修改，日志中的修改无法应用
+            if (!edits.isEmpty()) {
+                Log.w(TAG, "No checkpoint for version " + version + " in " + file);
+            }
+            return Collections.emptyList();
+        }
+        Iterator<Edit> it = edits.iterator();
+        while (it.hasNext()) {
+            if (it.next().seq < start) {
+                it.remove();
+            }
+        }
+        return edits;
+    }
+}
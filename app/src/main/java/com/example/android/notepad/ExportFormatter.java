@@ -0,0 +1,608 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * 导出管道中把笔记写成某种文件格式的部分。
+ *
+ * 导出时先调用一次 {@link #begin}，之后每行调用一次 {@link #writeNote}，最后调用 {@link #end}。
+ * 列按 {@link ExportSource#PROJECTION} 的下标从 cursor 中读取，复制到重复使用的字符缓冲区中
+ * 转义后写出，不为每条笔记创建中间的字符串，内存占用与笔记数量无关。大笔记的正文不在 cursor 中，
+ * 通过 {@link ExportSource.NoteText} 分段读取并逐段转义写出，内存占用也与笔记的大小无关。
+ * 格式化器有状态（缓冲区、日期格式），每次导出创建一个新的实例。
+ */
+abstract class ExportFormatter {
+    // 导出格式常量
+    static final int FORMAT_TEXT = 0;
+    static final int FORMAT_MARKDOWN = 1;
+    static final int FORMAT_JSON = 2;
+    static final int FORMAT_NDJSON = 3;
+    static final int FORMAT_CSV = 4;
+    static final int FORMAT_HTML = 5;
+
+    /**
+     * 各格式的文件扩展名，顺序与格式常量一致
+     */
+    static final String[] EXTENSIONS = new String[] {
+            "txt", "md", "json", "ndjson", "csv", "html",
+    };
+
+    /**
+     * 各格式的 MIME 类型，顺序与格式常量一致
+     */
+    static final String[] MIME_TYPES = new String[] {
+            "text/plain", "text/markdown", "application/json", "application/x-ndjson", "text/csv",
+            "text/html",
+    };
+
+    /**
+     * 写入文件的界面文字，从资源中读取一次
+     */
+    static final class Labels {
+        final String fileHeader;
+        final String categoryHeader;
+        final String createdDate;
+        final String modifiedDate;
+
+        Labels(String fileHeader, String categoryHeader, String createdDate, String modifiedDate) {
+            this.fileHeader = fileHeader;
+            this.categoryHeader = categoryHeader;
+            this.createdDate = createdDate;
+            this.modifiedDate = modifiedDate;
+        }
+
+        static Labels from(Context context) {
+            return new Labels(context.getString(R.string.export_file_header),
+                    context.getString(R.string.export_category_header),
+                    context.getString(R.string.export_created_date),
+                    context.getString(R.string.export_modified_date));
+        }
+    }
+
+    /**
+     * 创建指定格式的格式化器
+     *
+     * @param categoryName 导出一个分类时的分类名称，写在文件开头；其他情况为 null
+     */
+    static ExportFormatter create(int format, Labels labels, String categoryName) {
+        switch (format) {
+            case FORMAT_TEXT:
+                return new PlainText(labels, categoryName, true);
+            case FORMAT_MARKDOWN:
+                return new Markdown(labels, categoryName);
+            case FORMAT_JSON:
+                return new Json(false);
+            case FORMAT_NDJSON:
+                return new Json(true);
+            case FORMAT_CSV:
+                return new Csv();
+            case FORMAT_HTML:
+                return new Html(labels, categoryName);
+            default:
+                throw new IllegalArgumentException("Unknown export format " + format);
+        }
+    }
+
+    /**
+     * 导出单条笔记时使用的纯文本格式：没有文件头和笔记之间的分隔线
+     */
+    static ExportFormatter singleNote(Labels labels) {
+        return new PlainText(labels, null, false);
+    }
+
+    private final int mFormat;
+    private final CharArrayBuffer mBuffer = new CharArrayBuffer(256);
+    private final ExportSource.NoteText mNoteText = new ExportSource.NoteText();
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+    private final Date mDate = new Date();
+    private long mLastSecond = Long.MIN_VALUE;
+    private String mLastDate;
+
+    ExportFormatter(int format) {
+        mFormat = format;
+    }
+
+    final String getExtension() {
+        return EXTENSIONS[mFormat];
+    }
+
+    final String getMimeType() {
+        return MIME_TYPES[mFormat];
+    }
+
+    /**
+     * 设置分段读取大笔记正文的 resolver，在 {@link #begin} 之前调用
+     */
+    final void setContentResolver(ContentResolver resolver) {
+        mNoteText.setContentResolver(resolver);
+    }
+
+    /**
+     * 写入文件开头的内容
+     */
+    void begin(Utf8ChannelWriter out) throws IOException {
+    }
+
+    /**
+     * 写入 cursor 当前行的笔记
+     */
+    abstract void writeNote(Utf8ChannelWriter out, Cursor cursor) throws IOException;
+
+    /**
+     * 写入一条已删除笔记的记录，用于增量导出。只有 JSON 格式支持。
+     */
+    void writeDeleted(Utf8ChannelWriter out, long noteId, long deleteDate) throws IOException {
+        throw new UnsupportedOperationException("Deleted notes are not supported by " + getExtension());
+    }
+
+    /**
+     * 写入文件末尾的内容
+     */
+    void end(Utf8ChannelWriter out) throws IOException {
+    }
+
+    /**
+     * 把一列复制到重复使用的缓冲区中
+     *
+     * @return 值为 null 时返回 null
+     */
+    final CharArrayBuffer read(Cursor cursor, int column) {
+        if (cursor.isNull(column)) {
+            return null;
+        }
+        cursor.copyStringToBuffer(column, mBuffer);
+        return mBuffer;
+    }
+
+    /**
+     * 读取 cursor 当前行正文的 {@link ExportSource.NoteText}，在各条笔记之间重复使用
+     */
+    final ExportSource.NoteText getNoteText() {
+        return mNoteText;
+    }
+
+    /**
+     * 原样写出 cursor 当前行的正文，大笔记逐段写出
+     *
+     * @return 正文为 null 时返回 false，什么也不写
+     */
+    final boolean writeNoteText(Utf8ChannelWriter out, Cursor cursor) throws IOException {
+        if (!mNoteText.start(cursor)) {
+            return false;
+        }
+        while (mNoteText.next()) {
+            out.write(mNoteText.data(), 0, mNoteText.length());
+        }
+        return true;
+    }
+
+    /**
+     * 按本地时间格式化，同一秒内的时间只格式化一次
+     */
+    final String formatDate(long timestamp) {
+        // 向下取整到秒，格式只精确到秒
+        long second = timestamp >= 0 ? timestamp / 1000 : (timestamp - 999) / 1000;
+        if (second != mLastSecond) {
+            mDate.setTime(timestamp);
+            mLastDate = mDateFormat.format(mDate);
+            mLastSecond = second;
+        }
+        return mLastDate;
+    }
+
+    /**
+     * 原来的导出格式：每条笔记是【 标题 】、创建和修改时间、分隔线和正文
+     */
+    static final class PlainText extends ExportFormatter {
+        static final String SEPARATOR = "=====================================\n\n";
+        static final String DIVIDER = "-------------------------------------\n";
+
+        private final Labels mLabels;
+        private final String mCategoryName;
+        private final String mCreatedLabel;
+        private final String mModifiedLabel;
+        // 导出多条笔记：写文件头和笔记之间的分隔线
+        private final boolean mMultiple;
+
+        PlainText(Labels labels, String categoryName, boolean multiple) {
+            super(FORMAT_TEXT);
+            mLabels = labels;
+            mCategoryName = categoryName;
+            mCreatedLabel = labels.createdDate + ": ";
+            mModifiedLabel = labels.modifiedDate + ": ";
+            mMultiple = multiple;
+        }
+
+        @Override
+        void begin(Utf8ChannelWriter out) throws IOException {
+            if (!mMultiple) {
+                return;
+            }
+            out.write(mLabels.fileHeader);
+            out.write('\n');
+            if (mCategoryName != null) {
+                out.write(mLabels.categoryHeader);
+                out.write(": ");
+                out.write(mCategoryName);
+                out.write('\n');
+            }
+            out.write(SEPARATOR);
+        }
+
+        @Override
+        void writeNote(Utf8ChannelWriter out, Cursor cursor) throws IOException {
+            out.write("【 ");
+            out.writeColumn(cursor, ExportSource.COLUMN_TITLE);
+            out.write(" 】\n");
+            out.write(mCreatedLabel);
+            out.write(formatDate(cursor.getLong(ExportSource.COLUMN_CREATE_DATE)));
+            out.write('\n');
+            out.write(mModifiedLabel);
+            out.write(formatDate(cursor.getLong(ExportSource.COLUMN_MODIFICATION_DATE)));
+            out.write('\n');
+            out.write(DIVIDER);
+            // 与字符串拼接的结果一致
+            if (!writeNoteText(out, cursor)) {
+                out.write("null");
+            }
+            if (mMultiple) {
+                out.write("\n\n");
+                out.write(SEPARATOR);
+            } else {
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Markdown：每条笔记一个二级标题，时间用引用块，正文原样写出
+     */
+    static final class Markdown extends ExportFormatter {
+        private final Labels mLabels;
+        private final String mCategoryName;
+
+        Markdown(Labels labels, String categoryName) {
+            super(FORMAT_MARKDOWN);
+            mLabels = labels;
+            mCategoryName = categoryName;
+        }
+
+        @Override
+        void begin(Utf8ChannelWriter out) throws IOException {
+            out.write("# ");
+            out.write(mCategoryName != null
+                    ? mLabels.fileHeader + " - " + mCategoryName : mLabels.fileHeader);
+            out.write("\n\n");
+        }
+
+        @Override
+        void writeNote(Utf8ChannelWriter out, Cursor cursor) throws IOException {
+            out.write("## ");
+            CharArrayBuffer title = read(cursor, ExportSource.COLUMN_TITLE);
+            if (title != null) {
+                // 标题必须在一行之内
+                char[] data = title.data;
+                for (int i = 0; i < title.sizeCopied; i++) {
+                    char c = data[i];
+                    out.write(c == '\n' || c == '\r' ? ' ' : c);
+                }
+            }
+            out.write("\n\n> ");
+            out.write(mLabels.createdDate);
+            out.write(": ");
+            out.write(formatDate(cursor.getLong(ExportSource.COLUMN_CREATE_DATE)));
+            out.write("  \n> ");
+            out.write(mLabels.modifiedDate);
+            out.write(": ");
+            out.write(formatDate(cursor.getLong(ExportSource.COLUMN_MODIFICATION_DATE)));
+            out.write("\n\n");
+            writeNoteText(out, cursor);
+            out.write("\n\n---\n\n");
+        }
+    }
+
+    /**
+     * JSON：一个对象数组，或者每行一个对象（NDJSON）。时间是毫秒数。
+     * 已删除的笔记写成只有 id 和 deleted（删除时间）的对象。
+     */
+    static final class Json extends ExportFormatter {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final boolean mLines;
+        private boolean mFirst = true;
+
+        Json(boolean lines) {
+            super(lines ? FORMAT_NDJSON : FORMAT_JSON);
+            mLines = lines;
+        }
+
+        @Override
+        void begin(Utf8ChannelWriter out) throws IOException {
+            if (!mLines) {
+                out.write('[');
+            }
+        }
+
+        @Override
+        void writeNote(Utf8ChannelWriter out, Cursor cursor) throws IOException {
+            if (!mLines) {
+                out.write(mFirst ? "\n" : ",\n");
+            }
+            mFirst = false;
+            out.write("{\"id\":");
+            out.write(Long.toString(cursor.getLong(ExportSource.COLUMN_ID)));
+            out.write(",\"title\":");
+            writeString(out, read(cursor, ExportSource.COLUMN_TITLE));
+            out.write(",\"category\":");
+            writeString(out, read(cursor, ExportSource.COLUMN_CATEGORY));
+            out.write(",\"created\":");
+            out.write(Long.toString(cursor.getLong(ExportSource.COLUMN_CREATE_DATE)));
+            out.write(",\"modified\":");
+            out.write(Long.toString(cursor.getLong(ExportSource.COLUMN_MODIFICATION_DATE)));
+            out.write(",\"note\":");
+            ExportSource.NoteText text = getNoteText();
+            if (text.start(cursor)) {
+                out.write('"');
+                while (text.next()) {
+                    writeEscaped(out, text.data(), text.length());
+                }
+                out.write('"');
+            } else {
+                out.write("null");
+            }
+            out.write(mLines ? "}\n" : "}");
+        }
+
+        @Override
+        void writeDeleted(Utf8ChannelWriter out, long noteId, long deleteDate) throws IOException {
+            if (!mLines) {
+                out.write(mFirst ? "\n" : ",\n");
+            }
+            mFirst = false;
+            out.write("{\"id\":");
+            out.write(Long.toString(noteId));
+            out.write(",\"deleted\":");
+            out.write(Long.toString(deleteDate));
+            out.write(mLines ? "}\n" : "}");
+        }
+
+        @Override
+        void end(Utf8ChannelWriter out) throws IOException {
+            if (!mLines) {
+                out.write(mFirst ? "]\n" : "\n]\n");
+            }
+        }
+
+        private static void writeString(Utf8ChannelWriter out, CharArrayBuffer value) throws IOException {
+            if (value == null) {
+                out.write("null");
+                return;
+            }
+            writeString(out, value.data, value.sizeCopied);
+        }
+
+        /**
+         * 写入带引号的 JSON 字符串
+         */
+        static void writeString(Utf8ChannelWriter out, char[] data, int length) throws IOException {
+            out.write('"');
+            writeEscaped(out, data, length);
+            out.write('"');
+        }
+
+        /**
+         * 写入转义后的字符，不加引号，没有转义的部分整段写出。分段写出同一个字符串时逐段调用。
+         */
+        private static void writeEscaped(Utf8ChannelWriter out, char[] data, int length)
+                throws IOException {
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                char c = data[i];
+                if (c >= 0x20 && c != '"' && c != '\\' && c != 0x2028 && c != 0x2029) {
+                    continue;
+                }
+                out.write(data, start, i - start);
+                start = i + 1;
+                switch (c) {
+                    case '"':
+                        out.write("\\\"");
+                        break;
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    case '\r':
+                        out.write("\\r");
+                        break;
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    default:
+                        // 其他控制字符，以及在 JavaScript 中表示换行的 U+2028、U+2029
+                        out.write("\\u");
+                        out.write(HEX[(c >> 12) & 0xf]);
+                        out.write(HEX[(c >> 8) & 0xf]);
+                        out.write(HEX[(c >> 4) & 0xf]);
+                        out.write(HEX[c & 0xf]);
+                        break;
+                }
+            }
+            out.write(data, start, length - start);
+        }
+    }
+
+    /**
+     * CSV（RFC 4180）：第一行是列名，含有逗号、引号或换行的值加引号。
+     * 文件以 BOM 开头，电子表格软件打开时能识别为 UTF-8。
+     */
+    static final class Csv extends ExportFormatter {
+        Csv() {
+            super(FORMAT_CSV);
+        }
+
+        @Override
+        void begin(Utf8ChannelWriter out) throws IOException {
+            out.write("\ufeffid,title,category,created,modified,note\r\n");
+        }
+
+        @Override
+        void writeNote(Utf8ChannelWriter out, Cursor cursor) throws IOException {
+            out.write(Long.toString(cursor.getLong(ExportSource.COLUMN_ID)));
+            out.write(',');
+            writeField(out, read(cursor, ExportSource.COLUMN_TITLE));
+            out.write(',');
+            writeField(out, read(cursor, ExportSource.COLUMN_CATEGORY));
+            out.write(',');
+            out.write(formatDate(cursor.getLong(ExportSource.COLUMN_CREATE_DATE)));
+            out.write(',');
+            out.write(formatDate(cursor.getLong(ExportSource.COLUMN_MODIFICATION_DATE)));
+            out.write(',');
+            ExportSource.NoteText text = getNoteText();
+            if (text.start(cursor)) {
+                if (!text.isChunked()) {
+                    text.next();
+                    writeField(out, text.data(), text.length());
+                } else {
+                    // 分段读取时无法事先检查全文，总是加引号
+                    out.write('"');
+                    while (text.next()) {
+                        writeQuoted(out, text.data(), text.length());
+                    }
+                    out.write('"');
+                }
+            }
+            out.write("\r\n");
+        }
+
+        private static void writeField(Utf8ChannelWriter out, CharArrayBuffer value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            writeField(out, value.data, value.sizeCopied);
+        }
+
+        private static void writeField(Utf8ChannelWriter out, char[] data, int length)
+                throws IOException {
+            boolean quote = false;
+            for (int i = 0; i < length && !quote; i++) {
+                char c = data[i];
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                out.write(data, 0, length);
+                return;
+            }
+            out.write('"');
+            writeQuoted(out, data, length);
+            out.write('"');
+        }
+
+        /**
+         * 写入引号之内的内容，其中的引号写两次
+         */
+        private static void writeQuoted(Utf8ChannelWriter out, char[] data, int length)
+                throws IOException {
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (data[i] == '"') {
+                    out.write(data, start, i + 1 - start);
+                    start = i;
+                }
+            }
+            out.write(data, start, length - start);
+        }
+    }
+
+    /**
+     * HTML：一个完整的页面，每条笔记一个 article，正文保留换行
+     */
+    static final class Html extends ExportFormatter {
+        private final Labels mLabels;
+        private final String mCategoryName;
+
+        Html(Labels labels, String categoryName) {
+            super(FORMAT_HTML);
+            mLabels = labels;
+            mCategoryName = categoryName;
+        }
+
+        @Override
+        void begin(Utf8ChannelWriter out) throws IOException {
+            String title = mCategoryName != null
+                    ? mLabels.fileHeader + " - " + mCategoryName : mLabels.fileHeader;
+            out.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>");
+            writeEscaped(out, title.toCharArray(), title.length());
+            out.write("</title>\n<style>.note{white-space:pre-wrap}.meta{color:#777}</style>\n"
+                    + "</head>\n<body>\n<h1>");
+            writeEscaped(out, title.toCharArray(), title.length());
+            out.write("</h1>\n");
+        }
+
+        @Override
+        void writeNote(Utf8ChannelWriter out, Cursor cursor) throws IOException {
+            out.write("<article>\n<h2>");
+            CharArrayBuffer title = read(cursor, ExportSource.COLUMN_TITLE);
+            if (title != null) {
+                writeEscaped(out, title.data, title.sizeCopied);
+            }
+            out.write("</h2>\n<p class=\"meta\">");
+            out.write(mLabels.createdDate);
+            out.write(": ");
+            out.write(formatDate(cursor.getLong(ExportSource.COLUMN_CREATE_DATE)));
+            out.write("<br>");
+            out.write(mLabels.modifiedDate);
+            out.write(": ");
+            out.write(formatDate(cursor.getLong(ExportSource.COLUMN_MODIFICATION_DATE)));
+            out.write("</p>\n<div class=\"note\">");
+            ExportSource.NoteText text = getNoteText();
+            if (text.start(cursor)) {
+                while (text.next()) {
+                    writeEscaped(out, text.data(), text.length());
+                }
+            }
+            out.write("</div>\n</article>\n");
+        }
+
+        @Override
+        void end(Utf8ChannelWriter out) throws IOException {
+            out.write("</body>\n</html>\n");
+        }
+
+        private static void writeEscaped(Utf8ChannelWriter out, char[] data, int length) throws IOException {
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                String entity;
+                switch (data[i]) {
+                    case '&':
+                        entity = "&amp;";
+                        break;
+                    case '<':
+                        entity = "&lt;";
+                        break;
+                    case '>':
+                        entity = "&gt;";
+                        break;
+                    case '"':
+                        entity = "&quot;";
+                        break;
+                    default:
+                        continue;
+                }
+                out.write(data, start, i - start);
+                out.write(entity);
+                start = i + 1;
+            }
+            out.write(data, start, length - start);
+        }
+    }
+}
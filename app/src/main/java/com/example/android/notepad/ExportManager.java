@@ -1,302 +1,624 @@
 package com.example.android.notepad;
 
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.ContentResolver;
-import android.content.ContentUris;
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Environment;
+import android.os.SystemClock;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 /**
- * 笔记导出管理器，用于将笔记导出为文本文件
+ * 笔记导出管理器，用于将笔记导出为文件。
+ *
+ * 各个导出方法是 {@link ExportPipeline} 的预设：选定来源（{@link ExportSource}）、
+ * 格式（{@link ExportFormatter}）和输出文件（{@link ExportSink}），导出逐行进行，内存占用与笔记数量无关。
+ * 导出在后台线程中进行，期间显示进度对话框（已写入的笔记数和字节数），用户可以随时取消。
+ * 取消或失败时删除写了一半的文件。导出完成后用 Toast 报告结果，即使启动导出的界面已经关闭。
+ * 开启压缩（{@link #setCompressed}）后文本格式的导出边写边用 gzip 压缩，文件名加上 .gz，
+ * 结果中同时报告压缩比和速度。
+ * 同一个 ExportManager 同时只进行一次导出。
  */
 public class ExportManager {
     private static final String TAG = "ExportManager";
+
+    // 两次更新进度之间的最短间隔
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    // 增量导出的起点：上次导出的最后一条笔记的修改时间和ID，以及最后一条删除记录的ID
+    private static final String PREFERENCE_NAME = "export_preferences";
+    private static final String KEY_MARK_MODIFIED = "mark_modified";
+    private static final String KEY_MARK_NOTE_ID = "mark_note_id";
+    private static final String KEY_MARK_DELETED_ID = "mark_deleted_id";
+    // 是否用 gzip 压缩导出文件
+    private static final String KEY_COMPRESS = "compress";
+
+    // 按前面多少条笔记的平均大小估计导出的大小，用于选择压缩级别
+    private static final int LEVEL_SAMPLE_NOTES = 64;
+
+    /**
+     * 导出进度和结果的回调，在主线程中调用
+     */
+    interface ProgressListener {
+        /**
+         * @param notes 已经写入的笔记数
+         * @param total 要导出的笔记总数，还不知道时为 -1
+         * @param bytes 已经写入文件的字节数
+         */
+        void onProgress(int notes, int total, long bytes);
+
+        /**
+         * 导出结束，在提示结果的同时调用
+         *
+         * @param file 导出的文件；失败或被取消时为 null，写了一半的文件已经删除
+         */
+        void onFinished(File file);
+    }
+
     private final Context mContext;
+    private final Context mAppContext;
     private final ContentResolver mContentResolver;
+    private ExportTask mTask;
+    private ProgressDialog mDialog;
+    private ProgressListener mListener;
 
     /**
      * 构造函数
-     * @param context 上下文
+     * @param context 上下文，用于显示进度对话框
      */
     public ExportManager(Context context) {
         mContext = context;
+        mAppContext = context.getApplicationContext();
         mContentResolver = context.getContentResolver();
     }
 
+    /**
+     * 设置额外的进度和结果回调，例如用于在界面上显示进度
+     */
+    void setProgressListener(ProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 文本格式的导出是否用 gzip 压缩
+     */
+    boolean isCompressed() {
+        return mAppContext.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE)
+                .getBoolean(KEY_COMPRESS, false);
+    }
+
+    /**
+     * 设置之后开始的文本格式导出是否用 gzip 压缩。ZIP 和二进制归档不受影响。
+     */
+    void setCompressed(boolean compressed) {
+        mAppContext.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(KEY_COMPRESS, compressed)
+                .apply();
+    }
+
+    /**
+     * 清除增量导出的起点，下一次增量导出重新导出全部笔记和删除记录。
+     * 恢复备份后调用：恢复的数据库中的修改时间和删除记录的 ID 与记下的起点无关。
+     */
+    static void resetIncrementalExport(Context context) {
+        context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE).edit()
+                .remove(KEY_MARK_MODIFIED)
+                .remove(KEY_MARK_NOTE_ID)
+                .remove(KEY_MARK_DELETED_ID)
+                .commit();
+    }
+
     /**
      * 导出所有笔记到文本文件
-     * @return 是否导出成功
+     * @return 是否开始导出
      */
     public boolean exportAllNotes() {
-        // 检查外部存储是否可用
-        if (!isExternalStorageWritable()) {
-            Toast.makeText(mContext, R.string.export_error_storage_unavailable, Toast.LENGTH_SHORT).show();
-            return false;
-        }
+        return exportAllNotes(ExportFormatter.FORMAT_TEXT);
+    }
 
-        // 创建导出目录 - 使用适用于API 11的DOWNLOADS目录
-        File exportDir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_DOWNLOADS), "NotePad");
-        if (!exportDir.exists() && !exportDir.mkdirs()) {
-            Toast.makeText(mContext, R.string.export_error_create_directory, Toast.LENGTH_SHORT).show();
-            return false;
-        }
+    /**
+     * 导出所有笔记
+     * @param format 导出格式，{@link ExportFormatter} 中的 FORMAT_ 常量
+     * @return 是否开始导出
+     */
+    public boolean exportAllNotes(int format) {
+        return start(new ExportTask(ExportSource.allNotes(), format, true) {
+            @Override
+            protected String prepare() {
+                return "notes_export_" + timestamp();
+            }
+        });
+    }
 
-        // 创建导出文件
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-        File exportFile = new File(exportDir, "notes_export_" + timestamp + ".txt");
-
-        try {
-            FileWriter writer = new FileWriter(exportFile);
-
-            // 查询所有笔记
-            Cursor cursor = mContentResolver.query(
-                    NotePad.Notes.CONTENT_URI,
-                    new String[] {
-                            NotePad.Notes.COLUMN_NAME_TITLE,
-                            NotePad.Notes.COLUMN_NAME_NOTE,
-                            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
-                            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
-                    },
-                    null,
-                    null,
-                    NotePad.Notes.DEFAULT_SORT_ORDER
-            );
-
-            if (cursor != null) {
-                int noteCount = 0;
-                
-                // 写入文件头信息
-                writer.write(mContext.getString(R.string.export_file_header) + "\n");
-                writer.write("=====================================\n\n");
-
-                // 遍历笔记并写入文件
-                while (cursor.moveToNext()) {
-                    String title = cursor.getString(0);
-                    String content = cursor.getString(1);
-                    long createDate = cursor.getLong(2);
-                    long modifyDate = cursor.getLong(3);
-
-                    // 写入单个笔记
-                    writer.write("【 " + title + " 】\n");
-                    writer.write(mContext.getString(R.string.export_created_date) + ": " + 
-                            formatDate(createDate) + "\n");
-                    writer.write(mContext.getString(R.string.export_modified_date) + ": " + 
-                            formatDate(modifyDate) + "\n");
-                    writer.write("-------------------------------------\n");
-                    writer.write(content + "\n\n");
-                    writer.write("=====================================\n\n");
-
-                    noteCount++;
+    /**
+     * 导出所有笔记到一个 ZIP 文件：每条笔记一个文本文件，按分类放在不同的目录中，
+     * 另有一个清单文件。压缩在多个线程中进行。
+     * @return 是否开始导出
+     */
+    public boolean exportAllNotesArchive() {
+        return start(new ExportTask(ExportSource.allNotes(), ExportFormatter.FORMAT_TEXT, true) {
+            @Override
+            protected String prepare() {
+                return "notes_export_" + timestamp();
+            }
+
+            @Override
+            protected int write(File exportDir, String name) throws IOException {
+                mFile = new File(exportDir, name + ".zip");
+                return new NoteArchiveExport(mSource, mLabels,
+                        mAppContext.getString(R.string.default_category_name), mFile)
+                        .run(mContentResolver, this);
+            }
+        });
+    }
+
+    /**
+     * 导出所有笔记到二进制归档（.npar）：带有按 ID 和标题的索引，读取时可以直接找到任意一条笔记，
+     * 也可以只恢复其中的一部分，见 {@link BinaryNoteArchive}。归档不能超过 2GB，超出时导出失败。
+     * @return 是否开始导出
+     */
+    public boolean exportAllNotesBinary() {
+        return start(new ExportTask(ExportSource.allNotes(), ExportFormatter.FORMAT_TEXT, true) {
+            @Override
+            protected String prepare() {
+                return "notes_export_" + timestamp();
+            }
+
+            @Override
+            protected int write(File exportDir, String name) throws IOException {
+                mFile = new File(exportDir, name + "." + BinaryNoteArchive.EXTENSION);
+                try {
+                    return BinaryNoteArchive.export(mSource, mFile, mContentResolver, this);
+                } catch (BinaryNoteArchive.TooLargeException e) {
+                    mError = R.string.export_error_archive_too_large;
+                    throw e;
                 }
+            }
+        });
+    }
 
-                cursor.close();
-                writer.close();
+    /**
+     * 增量导出：只导出上次增量导出以来修改过的笔记，以及之后删除的笔记的 ID，写成 NDJSON。
+     * 第一次导出全部笔记。导出成功后记下新的起点，并清理已经导出过的删除记录。
+     * @return 是否开始导出
+     */
+    public boolean exportChangedNotes() {
+        return start(new ExportTask(null, ExportFormatter.FORMAT_NDJSON, false) {
+            private int mChanged;
+            private int mDeleted;
+
+            @Override
+            protected String prepare() {
+                mEmptyError = R.string.export_no_changes;
+                return "notes_export_incremental_" + timestamp();
+            }
 
-                // 显示导出成功消息
-                String successMessage = String.format(
-                        mContext.getString(R.string.export_success), 
-                        noteCount, exportFile.getAbsolutePath());
-                Toast.makeText(mContext, successMessage, Toast.LENGTH_LONG).show();
-                
-                return true;
-            } else {
-                Toast.makeText(mContext, R.string.export_error_no_notes, Toast.LENGTH_SHORT).show();
-                return false;
+            @Override
+            protected int write(File exportDir, String name) throws IOException {
+                SharedPreferences preferences =
+                        mAppContext.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+                ExportSource source = ExportSource.changedSince(
+                        preferences.getLong(KEY_MARK_MODIFIED, Long.MIN_VALUE),
+                        preferences.getLong(KEY_MARK_NOTE_ID, 0));
+                mFormatter = ExportFormatter.create(mFormat, mLabels, null);
+                ExportPipeline pipeline = new ExportPipeline(source, mFormatter,
+                        createSink(exportDir, name + "." + mFormatter.getExtension()));
+                pipeline.setDeletedSince(preferences.getLong(KEY_MARK_DELETED_ID, 0));
+                mChanged = pipeline.run(mContentResolver, this);
+                if (mChanged < 0) {
+                    return -1;
+                }
+                mDeleted = pipeline.getDeletedCount();
+                if (mChanged + mDeleted == 0) {
+                    return 0;
+                }
+
+                // 文件已经写完，记下新的起点
+                preferences.edit()
+                        .putLong(KEY_MARK_MODIFIED, source.getLastModified())
+                        .putLong(KEY_MARK_NOTE_ID, source.getLastId())
+                        .putLong(KEY_MARK_DELETED_ID, pipeline.getLastDeletedId())
+                        .commit();
+                mContentResolver.delete(NotePad.DeletedNotes.CONTENT_URI,
+                        NotePad.DeletedNotes._ID + " <= " + pipeline.getLastDeletedId(), null);
+                return mChanged + mDeleted;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "导出笔记失败: " + e.getMessage());
-            Toast.makeText(mContext, R.string.export_error_io_exception, Toast.LENGTH_SHORT).show();
-            return false;
-        }
+
+            @Override
+            protected String getSuccessMessage() {
+                return mAppContext.getString(R.string.export_incremental_success, mChanged, mDeleted,
+                        mFile.getAbsolutePath()) + getCompressionReport();
+            }
+        });
     }
 
     /**
-     * 导出指定分类的笔记
+     * 导出指定分类的笔记到文本文件
      * @param categoryId 分类ID
-     * @return 是否导出成功
+     * @return 是否开始导出
      */
     public boolean exportNotesByCategory(long categoryId) {
-        // 检查外部存储是否可用
-        if (!isExternalStorageWritable()) {
-            Toast.makeText(mContext, R.string.export_error_storage_unavailable, Toast.LENGTH_SHORT).show();
-            return false;
-        }
+        return exportNotesByCategory(categoryId, ExportFormatter.FORMAT_TEXT);
+    }
 
-        // 获取分类名称
-        String categoryName = getCategoryName(categoryId);
+    /**
+     * 导出指定分类的笔记
+     * @param categoryId 分类ID
+     * @param format 导出格式，{@link ExportFormatter} 中的 FORMAT_ 常量
+     * @return 是否开始导出
+     */
+    public boolean exportNotesByCategory(final long categoryId, final int format) {
+        return start(new ExportTask(ExportSource.category(categoryId), format, true) {
+            @Override
+            protected String prepare() {
+                // 获取分类名称
+                String categoryName = getCategoryName(categoryId);
+                mFormatter = ExportFormatter.create(format, mLabels, categoryName);
+                return "notes_export_" + categoryName + "_" + timestamp();
+            }
+        });
+    }
 
-        // 创建导出目录 - 使用适用于API 11的DOWNLOADS目录
-        File exportDir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_DOWNLOADS), "NotePad");
-        if (!exportDir.exists() && !exportDir.mkdirs()) {
-            Toast.makeText(mContext, R.string.export_error_create_directory, Toast.LENGTH_SHORT).show();
+    /**
+     * 导出多选模式下选中的笔记到文本文件
+     * @param noteIds 要导出的笔记ID
+     * @return 是否开始导出
+     */
+    public boolean exportNotes(long[] noteIds) {
+        return exportNotes(noteIds, ExportFormatter.FORMAT_TEXT);
+    }
+
+    /**
+     * 导出多选模式下选中的笔记。笔记按 ID 分段查询，每段一条 IN 语句，不会逐条查询。
+     * @param noteIds 要导出的笔记ID
+     * @param format 导出格式，{@link ExportFormatter} 中的 FORMAT_ 常量
+     * @return 是否开始导出
+     */
+    public boolean exportNotes(long[] noteIds, int format) {
+        if (noteIds.length == 0) {
+            Toast.makeText(mContext, R.string.export_error_no_notes, Toast.LENGTH_SHORT).show();
             return false;
         }
+        return start(new ExportTask(ExportSource.selection(noteIds), format, false) {
+            @Override
+            protected String prepare() {
+                return "notes_export_selected_" + timestamp();
+            }
+        });
+    }
 
-        // 创建导出文件
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-        String fileName = "notes_export_" + categoryName + "_" + timestamp + ".txt";
-        File exportFile = new File(exportDir, fileName);
-
-        try {
-            FileWriter writer = new FileWriter(exportFile);
-
-            // 查询指定分类的笔记
-            Uri categoryUri = ContentUris.withAppendedId(
-                    Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"),
-                    categoryId
-            );
-            
-            Cursor cursor = mContentResolver.query(
-                    Uri.withAppendedPath(categoryUri, "notes"),
-                    new String[] {
-                            NotePad.Notes.COLUMN_NAME_TITLE,
-                            NotePad.Notes.COLUMN_NAME_NOTE,
-                            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
-                            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
-                    },
-                    null,
-                    null,
-                    NotePad.Notes.DEFAULT_SORT_ORDER
-            );
-
-            if (cursor != null) {
-                int noteCount = 0;
-                
-                // 写入文件头信息
-                writer.write(mContext.getString(R.string.export_file_header) + "\n");
-                writer.write(mContext.getString(R.string.export_category_header) + ": " + categoryName + "\n");
-                writer.write("=====================================\n\n");
-
-                // 遍历笔记并写入文件
-                while (cursor.moveToNext()) {
-                    String title = cursor.getString(0);
-                    String content = cursor.getString(1);
-                    long createDate = cursor.getLong(2);
-                    long modifyDate = cursor.getLong(3);
-
-                    // 写入单个笔记
-                    writer.write("【 " + title + " 】\n");
-                    writer.write(mContext.getString(R.string.export_created_date) + ": " + 
-                            formatDate(createDate) + "\n");
-                    writer.write(mContext.getString(R.string.export_modified_date) + ": " + 
-                            formatDate(modifyDate) + "\n");
-                    writer.write("-------------------------------------\n");
-                    writer.write(content + "\n\n");
-                    writer.write("=====================================\n\n");
-
-                    noteCount++;
+    /**
+     * 导出单个笔记
+     * @param noteUri 笔记URI
+     * @return 是否开始导出
+     */
+    public boolean exportSingleNote(final Uri noteUri) {
+        return start(new ExportTask(ExportSource.note(noteUri), ExportFormatter.FORMAT_TEXT, false) {
+            @Override
+            protected String prepare() {
+                // 查询笔记标题，文件名取自标题
+                Cursor cursor = mContentResolver.query(noteUri,
+                        new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+                if (cursor == null) {
+                    mError = R.string.export_error_note_not_found;
+                    return null;
+                }
+                try {
+                    if (!cursor.moveToFirst()) {
+                        mError = R.string.export_error_note_not_found;
+                        return null;
+                    }
+                    mTitle = cursor.getString(0);
+                } finally {
+                    cursor.close();
                 }
+                mFormatter = ExportFormatter.singleNote(mLabels);
+                // 替换文件名中的非法字符
+                return mTitle.replaceAll("[^\\w\\s.-]", "_") + "_" + timestamp();
+            }
+        });
+    }
 
-                cursor.close();
-                writer.close();
+    /**
+     * 是否正在导出
+     */
+    boolean isExporting() {
+        return mTask != null;
+    }
 
-                // 显示导出成功消息
-                String successMessage = String.format(
-                        mContext.getString(R.string.export_success), 
-                        noteCount, exportFile.getAbsolutePath());
-                Toast.makeText(mContext, successMessage, Toast.LENGTH_LONG).show();
-                
-                return true;
-            } else {
-                Toast.makeText(mContext, R.string.export_error_no_notes, Toast.LENGTH_SHORT).show();
-                return false;
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "导出笔记失败: " + e.getMessage());
-            Toast.makeText(mContext, R.string.export_error_io_exception, Toast.LENGTH_SHORT).show();
-            return false;
+    /**
+     * 取消正在进行的导出，写了一半的文件会被删除
+     */
+    void cancel() {
+        if (mTask != null) {
+            mTask.cancel(false);
         }
     }
 
     /**
-     * 导出单个笔记
-     * @param noteUri 笔记URI
-     * @return 是否导出成功
+     * 启动导出的界面即将销毁时调用：关闭进度对话框，导出继续在后台进行，完成后仍会提示结果
      */
-    public boolean exportSingleNote(Uri noteUri) {
+    void release() {
+        dismissDialog();
+    }
+
+    private boolean start(ExportTask task) {
+        if (mTask != null) {
+            Toast.makeText(mContext, R.string.export_busy, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+
         // 检查外部存储是否可用
         if (!isExternalStorageWritable()) {
             Toast.makeText(mContext, R.string.export_error_storage_unavailable, Toast.LENGTH_SHORT).show();
             return false;
         }
 
-        // 创建导出目录 - 使用适用于API 11的DOWNLOADS目录
-        File exportDir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_DOWNLOADS), "NotePad");
-        if (!exportDir.exists() && !exportDir.mkdirs()) {
-            Toast.makeText(mContext, R.string.export_error_create_directory, Toast.LENGTH_SHORT).show();
-            return false;
+        mTask = task;
+        showDialog();
+        task.execute();
+        return true;
+    }
+
+    private void showDialog() {
+        mDialog = new ProgressDialog(mContext);
+        mDialog.setTitle(R.string.export_progress_title);
+        mDialog.setMessage(mContext.getString(R.string.export_progress_starting));
+        mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mDialog.setIndeterminate(true);
+        mDialog.setCanceledOnTouchOutside(false);
+        mDialog.setButton(DialogInterface.BUTTON_NEGATIVE, mContext.getString(R.string.alert_dialog_cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        cancel();
+                    }
+                });
+        mDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                cancel();
+            }
+        });
+        mDialog.show();
+    }
+
+    private void updateDialog(int notes, int total, long bytes) {
+        if (mDialog == null) {
+            return;
         }
+        if (total > 0) {
+            mDialog.setIndeterminate(false);
+            mDialog.setMax(total);
+            mDialog.setProgress(notes);
+        }
+        mDialog.setMessage(mContext.getString(R.string.export_progress, notes,
+                Formatter.formatFileSize(mContext, bytes)));
+    }
 
-        try {
-            // 查询单个笔记
-            Cursor cursor = mContentResolver.query(
-                    noteUri,
-                    new String[] {
-                            NotePad.Notes.COLUMN_NAME_TITLE,
-                            NotePad.Notes.COLUMN_NAME_NOTE,
-                            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
-                            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
-                    },
-                    null,
-                    null,
-                    null
-            );
-
-            if (cursor != null && cursor.moveToFirst()) {
-                String title = cursor.getString(0);
-                String content = cursor.getString(1);
-                long createDate = cursor.getLong(2);
-                long modifyDate = cursor.getLong(3);
-
-                cursor.close();
-
-                // 创建导出文件（替换文件名中的非法字符）
-                String safeTitle = title.replaceAll("[^\\w\\s.-]", "_");
-                String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-                File exportFile = new File(exportDir, safeTitle + "_" + timestamp + ".txt");
-
-                FileWriter writer = new FileWriter(exportFile);
-
-                // 写入笔记信息
-                writer.write("【 " + title + " 】\n");
-                writer.write(mContext.getString(R.string.export_created_date) + ": " + 
-                        formatDate(createDate) + "\n");
-                writer.write(mContext.getString(R.string.export_modified_date) + ": " + 
-                        formatDate(modifyDate) + "\n");
-                writer.write("-------------------------------------\n");
-                writer.write(content + "\n");
-
-                writer.close();
+    private void dismissDialog() {
+        if (mDialog != null) {
+            if (mDialog.isShowing()) {
+                mDialog.dismiss();
+            }
+            mDialog = null;
+        }
+    }
 
-                // 显示导出成功消息
-                String successMessage = String.format(
-                        mContext.getString(R.string.export_single_success), 
-                        title, exportFile.getAbsolutePath());
-                Toast.makeText(mContext, successMessage, Toast.LENGTH_LONG).show();
-                
+    /**
+     * 在后台线程中通过 {@link ExportPipeline} 把笔记写入导出文件。子类在 {@link #prepare}
+     * 中决定文件名，需要时创建自己的格式化器。
+     */
+    private abstract class ExportTask extends AsyncTask<Void, Long, Boolean>
+            implements ExportPipeline.Listener {
+        protected final ExportSource mSource;
+        protected final int mFormat;
+        protected final ExportFormatter.Labels mLabels;
+        // 为 null 时按 mFormat 创建
+        protected ExportFormatter mFormatter;
+        // 单个笔记导出时的标题，用于提示
+        protected String mTitle;
+        // 失败时提示的字符串资源
+        protected int mError = R.string.export_error_io_exception;
+        // 没有写入任何笔记并且不允许为空时提示的字符串资源
+        protected int mEmptyError = R.string.export_error_no_notes;
+        // 没有写入任何笔记时是否仍然算作成功
+        private final boolean mAllowEmpty;
+        // 创建任务时的压缩设置
+        private final boolean mCompress;
+        // 压缩时的输出，不压缩时为 null
+        private ExportSink.GzipFile mGzip;
+        private boolean mLevelChosen;
+        private long mElapsedMillis;
+
+        protected File mFile;
+        private int mNotes;
+        private long mLastProgress;
+
+        /**
+         * @param allowEmpty 查询成功但没有笔记时照常导出（全部笔记或整个分类）
+         */
+        ExportTask(ExportSource source, int format, boolean allowEmpty) {
+            mSource = source;
+            mFormat = format;
+            mAllowEmpty = allowEmpty;
+            mLabels = ExportFormatter.Labels.from(mAppContext);
+            mCompress = isCompressed();
+        }
+
+        /**
+         * 在后台线程中查询需要的数据，返回不带扩展名的文件名；失败时设置 mError 并返回 null
+         */
+        protected abstract String prepare();
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            // 创建导出目录 - 使用适用于API 11的DOWNLOADS目录
+            File exportDir = new File(Environment.getExternalStoragePublicDirectory(
+                    Environment.DIRECTORY_DOWNLOADS), "NotePad");
+            if (!exportDir.exists() && !exportDir.mkdirs()) {
+                mError = R.string.export_error_create_directory;
+                return false;
+            }
+
+            try {
+                String name = prepare();
+                if (name == null) {
+                    return false;
+                }
+                long start = SystemClock.elapsedRealtime();
+                int notes = write(exportDir, name);
+                mElapsedMillis = SystemClock.elapsedRealtime() - start;
+                if (notes < 0) {
+                    return false;
+                }
+                if (notes == 0 && !mAllowEmpty) {
+                    mError = mEmptyError;
+                    return false;
+                }
+                mNotes = notes;
                 return true;
-            } else {
-                Toast.makeText(mContext, R.string.export_error_note_not_found, Toast.LENGTH_SHORT).show();
+            } catch (IOException e) {
+                Log.e(TAG, "导出笔记失败: " + e.getMessage());
+                return false;
+            } catch (RuntimeException e) {
+                // 查询失败，例如数据库已关闭
+                Log.e(TAG, "导出笔记失败", e);
                 return false;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "导出笔记失败: " + e.getMessage());
-            Toast.makeText(mContext, R.string.export_error_io_exception, Toast.LENGTH_SHORT).show();
-            return false;
         }
+
+        /**
+         * 在后台线程中写入导出文件，设置 mFile
+         *
+         * @return 写入的笔记数；被取消时返回 -1
+         */
+        protected int write(File exportDir, String name) throws IOException {
+            if (mFormatter == null) {
+                mFormatter = ExportFormatter.create(mFormat, mLabels, null);
+            }
+            return new ExportPipeline(mSource, mFormatter,
+                    createSink(exportDir, name + "." + mFormatter.getExtension()))
+                    .run(mContentResolver, this);
+        }
+
+        /**
+         * 创建文本导出的输出并设置 mFile，开启压缩时输出 gzip 文件
+         */
+        protected ExportSink createSink(File exportDir, String fileName) {
+            if (!mCompress) {
+                mFile = new File(exportDir, fileName);
+                return ExportSink.file(mFile);
+            }
+            mFile = new File(exportDir, fileName + "." + ExportSink.GzipFile.EXTENSION);
+            mGzip = new ExportSink.GzipFile(mFile);
+            return mGzip;
+        }
+
+        protected String getSuccessMessage() {
+            return (mTitle != null
+                    ? mAppContext.getString(R.string.export_single_success, mTitle, mFile.getAbsolutePath())
+                    : mAppContext.getString(R.string.export_success, mNotes, mFile.getAbsolutePath()))
+                    + getCompressionReport();
+        }
+
+        /**
+         * 压缩时报告压缩后的大小、压缩比和速度，不压缩时为空字符串
+         */
+        protected String getCompressionReport() {
+            if (mGzip == null) {
+                return "";
+            }
+            long uncompressed = mGzip.getUncompressedSize();
+            long compressed = mGzip.getCompressedSize();
+            int percent = uncompressed > 0 ? (int) (compressed * 100 / uncompressed) : 100;
+            long bytesPerSecond = uncompressed * 1000 / Math.max(mElapsedMillis, 1);
+            Log.i(TAG, "Compressed " + uncompressed + " bytes to " + compressed + " at level " + mGzip.getLevel()
+                    + " in " + mElapsedMillis + " ms");
+            return "\n" + mAppContext.getString(R.string.export_compressed,
+                    Formatter.formatFileSize(mAppContext, compressed), percent,
+                    Formatter.formatFileSize(mAppContext, bytesPerSecond));
+        }
+
+        @Override
+        public void onNoteWritten(int notes, int total, long bytes) {
+            if (mGzip != null && !mLevelChosen && total > 0
+                    && (notes >= LEVEL_SAMPLE_NOTES || notes == total)) {
+                // 按前面的笔记估计导出的大小。写入器的缓冲区通常还没有排空，这些笔记同样按选定的级别压缩
+                mGzip.setLevel(ExportSink.GzipFile.levelFor(bytes / notes * total));
+                mLevelChosen = true;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastProgress >= PROGRESS_INTERVAL_MILLIS || notes == total) {
+                mLastProgress = now;
+                publishProgress((long) notes, (long) total, bytes);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            int notes = values[0].intValue();
+            int total = values[1].intValue();
+            long bytes = values[2];
+            updateDialog(notes, total, bytes);
+            if (mListener != null) {
+                mListener.onProgress(notes, total, bytes);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success) {
+            finish();
+            if (success) {
+                // 显示导出成功消息
+                Toast.makeText(mAppContext, getSuccessMessage(), Toast.LENGTH_LONG).show();
+            } else {
+                deleteFile();
+                Toast.makeText(mAppContext, mError, Toast.LENGTH_SHORT).show();
+            }
+            if (mListener != null) {
+                mListener.onFinished(success ? mFile : null);
+            }
+        }
+
+        @Override
+        protected void onCancelled(Boolean result) {
+            // doInBackground已经返回，管道已经删除写了一半的文件
+            finish();
+            deleteFile();
+            Toast.makeText(mAppContext, R.string.export_cancelled, Toast.LENGTH_SHORT).show();
+            if (mListener != null) {
+                mListener.onFinished(null);
+            }
+        }
+
+        private void finish() {
+            mTask = null;
+            dismissDialog();
+        }
+
+        private void deleteFile() {
+            // 没有笔记时文件已经写完，同样删除
+            if (mFile != null && mFile.exists() && !mFile.delete()) {
+                Log.w(TAG, "Unable to delete " + mFile);
+            }
+        }
+    }
+
+    private static String timestamp() {
+        return new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
     }
 
     /**
@@ -308,15 +630,6 @@ public class ExportManager {
         return Environment.MEDIA_MOUNTED.equals(state);
     }
 
-    /**
-     * 格式化日期
-     * @param timestamp 时间戳
-     * @return 格式化后的日期字符串
-     */
-    private String formatDate(long timestamp) {
-        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(new Date(timestamp));
-    }
-
     /**
      * 获取分类名称
      * @param categoryId 分类ID
@@ -326,7 +639,7 @@ public class ExportManager {
         // 使用正确的分类URI格式: categories/#
         String authority = NotePad.AUTHORITY;
         Uri categoryUri = Uri.parse("content://" + authority + "/categories/" + categoryId);
-        
+
         Cursor cursor = mContentResolver.query(
                 categoryUri,
                 new String[] { "title" },  // 直接使用表中的列名
@@ -341,6 +654,6 @@ public class ExportManager {
             return name;
         }
 
-        return mContext.getString(R.string.default_category_name);
+        return mAppContext.getString(R.string.default_category_name);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,141 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import java.io.IOException;
+
+/**
+ * 导出管道：从 {@link ExportSource} 逐行读取笔记，由 {@link ExportFormatter} 写成文件格式，
+ * 经 {@link Utf8ChannelWriter} 编码后写入 {@link ExportSink}。
+ *
+ * 每次只持有一个 cursor 和固定大小的缓冲区，内存占用与笔记数量无关。
+ * 增量导出时在笔记之后写入已删除笔记的记录，见 {@link #setDeletedSince}。
+ * {@link #run} 在调用线程中同步执行，应在后台线程中调用。
+ */
+final class ExportPipeline {
+
+    /**
+     * 导出过程中的回调，在导出线程中调用
+     */
+    interface Listener {
+        /**
+         * 每写完一条笔记后检查，返回 true 时停止导出
+         */
+        boolean isCancelled();
+
+        /**
+         * @param notes 已经写入的笔记数
+         * @param total 笔记总数，还不知道时为 -1
+         * @param bytes 已经编码的字节数
+         */
+        void onNoteWritten(int notes, int total, long bytes);
+    }
+
+    private final ExportSource mSource;
+    private final ExportFormatter mFormatter;
+    private final ExportSink mSink;
+    // 不写入删除记录时为 -1
+    private long mDeletedSince = -1;
+    private long mLastDeletedId = -1;
+    private int mDeletedCount;
+
+    ExportPipeline(ExportSource source, ExportFormatter formatter, ExportSink sink) {
+        mSource = source;
+        mFormatter = formatter;
+        mSink = sink;
+    }
+
+    /**
+     * 在笔记之后写入删除记录 ID 大于 deletedSince 的已删除笔记，用于增量导出。
+     * 格式化器必须支持 {@link ExportFormatter#writeDeleted}。
+     */
+    void setDeletedSince(long deletedSince) {
+        mDeletedSince = deletedSince;
+    }
+
+    /**
+     * 写入的最后一条删除记录的 ID；没有写入时为 {@link #setDeletedSince} 设置的值
+     */
+    long getLastDeletedId() {
+        return mLastDeletedId;
+    }
+
+    /**
+     * 写入的删除记录数
+     */
+    int getDeletedCount() {
+        return mDeletedCount;
+    }
+
+    /**
+     * 执行导出。被取消或失败时调用 {@link ExportSink#abort}，输出被丢弃。
+     *
+     * @return 写入的笔记数；被取消时返回 -1
+     * @throws IOException 写入失败
+     */
+    int run(ContentResolver resolver, Listener listener) throws IOException {
+        Utf8ChannelWriter out = null;
+        boolean done = false;
+        int notes = 0;
+        try {
+            out = new Utf8ChannelWriter(mSink.open());
+            mFormatter.setContentResolver(resolver);
+            mFormatter.begin(out);
+            int total = mSource.getKnownTotal();
+            Cursor cursor;
+            while (!listener.isCancelled() && (cursor = mSource.nextBatch(resolver)) != null) {
+                try {
+                    if (total < 0 && mSource.isSingleQuery()) {
+                        total = cursor.getCount();
+                    }
+                    while (cursor.moveToNext()) {
+                        mFormatter.writeNote(out, cursor);
+                        notes++;
+                        listener.onNoteWritten(notes, total, out.getBytesWritten());
+                        if (listener.isCancelled()) {
+                            return -1;
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            if (listener.isCancelled()) {
+                return -1;
+            }
+            if (mDeletedSince >= 0) {
+                writeDeleted(resolver, out);
+            }
+            mFormatter.end(out);
+            out.close();
+            done = true;
+            return notes;
+        } finally {
+            if (!done) {
+                mSink.abort();
+            }
+        }
+    }
+
+    private void writeDeleted(ContentResolver resolver, Utf8ChannelWriter out) throws IOException {
+        mLastDeletedId = mDeletedSince;
+        Cursor cursor = resolver.query(NotePad.DeletedNotes.CONTENT_URI, new String[] {
+                NotePad.DeletedNotes._ID,
+                NotePad.DeletedNotes.COLUMN_NAME_NOTE_ID,
+                NotePad.DeletedNotes.COLUMN_NAME_DELETE_DATE
+        }, NotePad.DeletedNotes._ID + " > " + mDeletedSince, null, NotePad.DeletedNotes.DEFAULT_SORT_ORDER);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                mFormatter.writeDeleted(out, cursor.getLong(1), cursor.getLong(2));
+                mLastDeletedId = cursor.getLong(0);
+                mDeletedCount++;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.example.android.notepad;
+
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 导出管道的输出：文件、gzip 压缩的文件、管道或 ZIP 中的一项。
+ *
+ * {@link #open} 返回的通道由 {@link Utf8ChannelWriter} 写入并在导出结束时关闭；
+ * 导出失败或被取消时改为调用 {@link #abort}，清理写了一半的输出。
+ */
+abstract class ExportSink {
+    private static final String TAG = "ExportSink";
+
+    /**
+     * 打开输出，只调用一次
+     */
+    abstract WritableByteChannel open() throws IOException;
+
+    /**
+     * 导出失败或被取消，丢弃已经写入的内容。可以在 {@link #open} 失败之后调用。
+     */
+    abstract void abort();
+
+    /**
+     * 写入的文件，不是文件时为 null
+     */
+    File getFile() {
+        return null;
+    }
+
+    /**
+     * 写入一个文件，失败时删除它
+     */
+    static ExportSink file(final File file) {
+        return new ExportSink() {
+            private FileOutputStream mOut;
+
+            @Override
+            WritableByteChannel open() throws IOException {
+                mOut = new FileOutputStream(file);
+                return mOut.getChannel();
+            }
+
+            @Override
+            void abort() {
+                closeQuietly(mOut);
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+
+            @Override
+            File getFile() {
+                return file;
+            }
+        };
+    }
+
+    /**
+     * 写入管道的写入端，例如 ContentProvider 通过 openPipeHelper() 交给调用方的管道。
+     * 失败时读取端会收到错误（API 19 以上）或提前结束。
+     */
+    static ExportSink pipe(final ParcelFileDescriptor writeSide) {
+        return new ExportSink() {
+            private FileOutputStream mOut;
+
+            @Override
+            WritableByteChannel open() {
+                mOut = new ParcelFileDescriptor.AutoCloseOutputStream(writeSide);
+                return mOut.getChannel();
+            }
+
+            @Override
+            void abort() {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    try {
+                        writeSide.closeWithError("Export failed");
+                        return;
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to close pipe", e);
+                    }
+                }
+                closeQuietly(mOut != null ? mOut : new ParcelFileDescriptor.AutoCloseOutputStream(writeSide));
+            }
+        };
+    }
+
+    /**
+     * 写入调用方打开的 ZIP 中新的一项。关闭通道只结束这一项，ZIP 由调用方关闭，
+     * 这样一个 ZIP 中可以放入多次导出的结果。失败时这一项可能不完整，调用方应放弃整个 ZIP。
+     */
+    static ExportSink zipEntry(final ZipOutputStream zip, final String name) {
+        return new ExportSink() {
+            @Override
+            WritableByteChannel open() throws IOException {
+                zip.putNextEntry(new ZipEntry(name));
+                return Channels.newChannel(new FilterOutputStream(zip) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        zip.closeEntry();
+                    }
+                });
+            }
+
+            @Override
+            void abort() {
+                // ZIP 由调用方关闭和删除
+            }
+        };
+    }
+
+    /**
+     * 写入只有一项的 ZIP 文件，失败时删除它
+     */
+    static ExportSink zipFile(final File file, final String entryName) {
+        return new ExportSink() {
+            private ZipOutputStream mZip;
+
+            @Override
+            WritableByteChannel open() throws IOException {
+                mZip = new ZipOutputStream(new FileOutputStream(file));
+                mZip.putNextEntry(new ZipEntry(entryName));
+                // 关闭通道时关闭 ZIP，写入这一项的结尾和目录
+                return Channels.newChannel(new FilterOutputStream(mZip) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+                });
+            }
+
+            @Override
+            void abort() {
+                closeQuietly(mZip);
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+
+            @Override
+            File getFile() {
+                return file;
+            }
+        };
+    }
+
+    /**
+     * 写入 gzip 压缩的文件，边导出边压缩，失败时删除它。
+     *
+     * 压缩的输入和输出都以 {@link Utf8ChannelWriter} 缓冲区的大小为一块：写入器每次排空的一整块
+     * 直接交给 Deflater，不经过 Channels.newChannel 的 8K 中转，压缩后的数据也整块写入文件。
+     * 压缩级别可以在写入中途用 {@link #setLevel} 调整，从下一块开始生效。
+     */
+    static final class GzipFile extends ExportSink {
+        static final String EXTENSION = "gz";
+
+        // 按导出大小选择压缩级别的分界：小的导出压缩得最小，大的导出优先速度
+        private static final long SMALL_EXPORT_BYTES = 1024 * 1024;
+        private static final long LARGE_EXPORT_BYTES = 8 * 1024 * 1024;
+
+        private final File mFile;
+        private int mLevel = Deflater.DEFAULT_COMPRESSION;
+        private FileOutputStream mFileOut;
+        private Output mOut;
+        private long mBytesIn;
+
+        GzipFile(File file) {
+            mFile = file;
+        }
+
+        /**
+         * 按估计的未压缩大小选择压缩级别。文本用级别 6 以上压缩比级别 1 慢好几倍，
+         * 只小百分之几，几 MB 以上的导出不值得。
+         */
+        static int levelFor(long estimatedBytes) {
+            if (estimatedBytes < SMALL_EXPORT_BYTES) {
+                return Deflater.BEST_COMPRESSION;
+            }
+            return estimatedBytes < LARGE_EXPORT_BYTES ? Deflater.DEFAULT_COMPRESSION : Deflater.BEST_SPEED;
+        }
+
+        /**
+         * 设置压缩级别，可以在打开之前或写入过程中调用，只能在导出线程中调用
+         */
+        void setLevel(int level) {
+            mLevel = level;
+            if (mOut != null) {
+                mOut.setLevel(level);
+            }
+        }
+
+        int getLevel() {
+            return mLevel;
+        }
+
+        /**
+         * 已经写入的字节数，即压缩前的大小
+         */
+        long getUncompressedSize() {
+            return mBytesIn;
+        }
+
+        /**
+         * 压缩后的文件大小，在通道关闭后调用
+         */
+        long getCompressedSize() {
+            return mFile.length();
+        }
+
+        @Override
+        WritableByteChannel open() throws IOException {
+            mFileOut = new FileOutputStream(mFile);
+            mOut = new Output(mFileOut, mLevel);
+            return new WritableByteChannel() {
+                private boolean mOpen = true;
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int n = src.remaining();
+                    if (src.hasArray()) {
+                        mOut.write(src.array(), src.arrayOffset() + src.position(), n);
+                        src.position(src.limit());
+                    } else {
+                        byte[] bytes = new byte[n];
+                        src.get(bytes);
+                        mOut.write(bytes);
+                    }
+                    mBytesIn += n;
+                    return n;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return mOpen;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // 写入压缩数据的结尾并关闭文件
+                    mOpen = false;
+                    mOut.close();
+                }
+            };
+        }
+
+        @Override
+        void abort() {
+            closeQuietly(mOut);
+            closeQuietly(mFileOut);
+            if (mFile.exists() && !mFile.delete()) {
+                Log.w(TAG, "Unable to delete " + mFile);
+            }
+        }
+
+        @Override
+        File getFile() {
+            return mFile;
+        }
+
+        /**
+         * 可以调整压缩级别的 GZIPOutputStream
+         */
+        private static final class Output extends GZIPOutputStream {
+            Output(OutputStream out, int level) throws IOException {
+                super(out, Utf8ChannelWriter.DEFAULT_BUFFER_SIZE);
+                def.setLevel(level);
+            }
+
+            void setLevel(int level) {
+                def.setLevel(level);
+            }
+        }
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // 输出随后会被丢弃
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * 导出管道的数据来源：全部笔记、一个分类的笔记、多选的笔记、单条笔记，
+ * 或者上次导出以来修改过的笔记。
+ *
+ * 来源分成一段或几段查询，{@link #nextBatch} 每次返回一段的 cursor，导出时逐行读取后立即关闭，
+ * 不会把所有笔记同时读进内存。多选的笔记按 {@link SelectionModel#BATCH_SIZE} 分段，
+ * 每段一条 IN 语句；修改过的笔记按 (修改时间, ID) 的顺序分页，每页从上一页的最后一行之后开始，
+ * 导出期间有笔记被修改也不会跳过其他笔记。所有来源返回的列都是 {@link #PROJECTION}。
+ * 超过 {@link NotePad.Notes#SHORT_NOTE_LENGTH} 的正文不在 cursor 中，用 {@link NoteText} 分段读取，
+ * 一条大笔记不会让整个导出因为放不进 CursorWindow 而失败。
+ * 来源记录读到了哪里，每次导出使用一个新的实例。
+ */
+final class ExportSource {
+    /**
+     * 导出时查询的列，格式化器按下面的下标读取
+     */
+    static final String[] PROJECTION = new String[] {
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_SHORT_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            "category_title",
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+    };
+
+    static final int COLUMN_ID = 0;
+    static final int COLUMN_TITLE = 1;
+    static final int COLUMN_NOTE = 2;
+    static final int COLUMN_CREATE_DATE = 3;
+    static final int COLUMN_MODIFICATION_DATE = 4;
+    static final int COLUMN_CATEGORY = 5;
+    static final int COLUMN_NOTE_LENGTH = 6;
+
+    /**
+     * 分段读取大笔记时每段的码点数
+     */
+    static final int CHUNK_LENGTH = 64 * 1024;
+
+    // 增量导出每页的行数
+    static final int PAGE_SIZE = 500;
+
+    // 按修改时间和 ID 分页时的排序，由 notes_modified 索引提供（索引中同一时间的行按 rowid 排列）
+    private static final String CHANGED_SORT_ORDER =
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " ASC, "
+                    + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " ASC";
+
+    private final Uri mUri;
+    // 多选导出时的笔记ID，其他来源为 null
+    private final long[] mIds;
+    // 是否按修改时间分页
+    private final boolean mPaged;
+    private int mBatch;
+    private boolean mDone;
+    // 已经返回的最后一行的修改时间和ID，分页时下一页从它之后开始
+    private long mLastModified;
+    private long mLastId;
+
+    private ExportSource(Uri uri, long[] ids, boolean paged) {
+        mUri = uri;
+        mIds = ids;
+        mPaged = paged;
+    }
+
+    /**
+     * 全部笔记
+     */
+    static ExportSource allNotes() {
+        return new ExportSource(NotePad.Notes.CONTENT_URI, null, false);
+    }
+
+    /**
+     * 一个分类中的笔记
+     */
+    static ExportSource category(long categoryId) {
+        Uri categoryUri = ContentUris.withAppendedId(
+                Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"), categoryId);
+        return new ExportSource(Uri.withAppendedPath(categoryUri, "notes"), null, false);
+    }
+
+    /**
+     * 多选模式下选中的笔记
+     */
+    static ExportSource selection(long[] noteIds) {
+        return new ExportSource(NotePad.Notes.CONTENT_URI, noteIds, false);
+    }
+
+    /**
+     * 单条笔记
+     */
+    static ExportSource note(Uri noteUri) {
+        return new ExportSource(noteUri, null, false);
+    }
+
+    /**
+     * 修改时间和ID在 (modified, id) 之后的笔记，按修改时间从早到晚。
+     * 导出后用 {@link #getLastModified} 和 {@link #getLastId} 作为下次的起点。
+     */
+    static ExportSource changedSince(long modified, long id) {
+        ExportSource source = new ExportSource(NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(PAGE_SIZE))
+                .build(), null, true);
+        source.mLastModified = modified;
+        source.mLastId = id;
+        return source;
+    }
+
+    /**
+     * 是否只有一段查询，这时笔记总数就是 cursor 的行数
+     */
+    boolean isSingleQuery() {
+        return mIds == null && !mPaged;
+    }
+
+    /**
+     * 事先知道的笔记总数，不知道时为 -1
+     */
+    int getKnownTotal() {
+        return mIds != null ? mIds.length : -1;
+    }
+
+    /**
+     * 查询下一段笔记，调用方负责关闭返回的 cursor
+     *
+     * @return 没有更多笔记时返回 null
+     */
+    Cursor nextBatch(ContentResolver resolver) {
+        if (mDone) {
+            return null;
+        }
+        if (mPaged) {
+            return nextPage(resolver);
+        }
+        String selection = null;
+        if (mIds != null) {
+            int from = mBatch * SelectionModel.BATCH_SIZE;
+            int to = Math.min(from + SelectionModel.BATCH_SIZE, mIds.length);
+            selection = SelectionModel.idSelection(mIds, from, to);
+            mDone = to == mIds.length;
+        } else {
+            mDone = true;
+        }
+        mBatch++;
+        return resolver.query(mUri, PROJECTION, selection, null, NotePad.Notes.DEFAULT_SORT_ORDER);
+    }
+
+    private Cursor nextPage(ContentResolver resolver) {
+        // 写成范围条件加过滤，SQLite 按 notes_modified 索引从起点开始扫描
+        String modified = NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE;
+        String selection = modified + " >= " + mLastModified + " AND (" + modified + " > " + mLastModified
+                + " OR " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " > " + mLastId + ")";
+        Cursor cursor = resolver.query(mUri, PROJECTION, selection, null, CHANGED_SORT_ORDER);
+        if (cursor == null) {
+            mDone = true;
+            return null;
+        }
+        int count = cursor.getCount();
+        mDone = count < PAGE_SIZE;
+        if (count == 0) {
+            cursor.close();
+            return null;
+        }
+        // 记下这一页的最后一行，再把位置移回开头
+        cursor.moveToLast();
+        mLastModified = cursor.getLong(COLUMN_MODIFICATION_DATE);
+        mLastId = cursor.getLong(COLUMN_ID);
+        cursor.moveToPosition(-1);
+        return cursor;
+    }
+
+    /**
+     * 已经返回的最后一条笔记的修改时间；还没有返回笔记时是创建来源时的起点
+     */
+    long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * 已经返回的最后一条笔记的ID
+     */
+    long getLastId() {
+        return mLastId;
+    }
+
+    /**
+     * 逐段读取 cursor 当前行的正文。{@link #COLUMN_NOTE} 中有正文时只有一段，复制到重复使用的
+     * 缓冲区中；大笔记的这一列为 null，通过 {@link NotePad.Notes#METHOD_READ_NOTE} 每次读取
+     * {@link #CHUNK_LENGTH} 个码点，内存中只有一段。分段在码点边界上，不会拆开代理对。
+     * 读取期间笔记被修改时，各段可能来自不同的版本，与导出期间其他笔记被修改一样不做处理。
+     */
+    static final class NoteText {
+        private final CharArrayBuffer mBuffer = new CharArrayBuffer(256);
+        private ContentResolver mResolver;
+        private long mId;
+        private boolean mChunked;
+        private boolean mPending;
+        private int mOffset;
+        // 分段读取时复制每一段的缓冲区
+        private char[] mChunk;
+        private char[] mData;
+        private int mLength;
+
+        /**
+         * 设置读取大笔记的 resolver；只会遇到短笔记时可以不设置
+         */
+        void setContentResolver(ContentResolver resolver) {
+            mResolver = resolver;
+        }
+
+        /**
+         * 开始读取 cursor 当前行的正文
+         *
+         * @return 正文为 null 时返回 false
+         */
+        boolean start(Cursor cursor) {
+            mId = cursor.getLong(COLUMN_ID);
+            mOffset = 0;
+            if (!cursor.isNull(COLUMN_NOTE)) {
+                cursor.copyStringToBuffer(COLUMN_NOTE, mBuffer);
+                mChunked = false;
+                mPending = true;
+                return true;
+            }
+            mChunked = !cursor.isNull(COLUMN_NOTE_LENGTH) && cursor.getLong(COLUMN_NOTE_LENGTH) > 0;
+            mPending = mChunked;
+            return mChunked;
+        }
+
+        /**
+         * 正文是否分段读取。分段时事先不知道全部内容，需要先扫描全文的格式（例如决定 CSV 是否加引号）
+         * 应当按最坏情况处理。
+         */
+        boolean isChunked() {
+            return mChunked;
+        }
+
+        /**
+         * 读取下一段，内容在 {@link #data()} 的前 {@link #length()} 个字符中，读取下一段之前有效
+         *
+         * @return 没有更多内容时返回 false
+         */
+        boolean next() {
+            if (!mPending) {
+                return false;
+            }
+            if (!mChunked) {
+                mPending = false;
+                mData = mBuffer.data;
+                mLength = mBuffer.sizeCopied;
+                return true;
+            }
+            Bundle extras = new Bundle();
+            extras.putInt(NotePad.Notes.KEY_OFFSET, mOffset);
+            extras.putInt(NotePad.Notes.KEY_LENGTH, CHUNK_LENGTH);
+            String text;
+            try {
+                Bundle result = mResolver.call(NotePad.Notes.CONTENT_URI,
+                        NotePad.Notes.METHOD_READ_NOTE, String.valueOf(mId), extras);
+                text = result != null ? result.getString(NotePad.Notes.KEY_TEXT) : null;
+            } catch (IllegalArgumentException e) {
+                // 笔记在查询之后被删除，已经读到的部分照常写出
+                text = null;
+            }
+            if (text == null || text.isEmpty()) {
+                mPending = false;
+                return false;
+            }
+            if (mChunk == null || mChunk.length < text.length()) {
+                mChunk = new char[Math.max(text.length(), CHUNK_LENGTH)];
+            }
+            mData = mChunk;
+            mLength = text.length();
+            text.getChars(0, mLength, mData, 0);
+            mOffset += text.codePointCount(0, mLength);
+            return true;
+        }
+
+        char[] data() {
+            return mData;
+        }
+
+        int length() {
+            return mLength;
+        }
+    }
+}
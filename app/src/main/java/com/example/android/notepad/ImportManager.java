@@ -0,0 +1,374 @@
+package com.example.android.notepad;
+
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.ContentResolver;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * 笔记导入管理器，把导出文件或文本文件目录中的笔记导入到笔记本中。
+ *
+ * 导入由 {@link NoteImporter} 在后台线程中进行：多个线程解析文件，笔记分批在事务中写入。
+ * 期间显示进度对话框（已导入的笔记数和已处理的文件数），用户可以随时取消，已经写入的笔记保留。
+ * 导入完成后用 Toast 报告结果，即使启动导入的界面已经关闭。同一个 ImportManager 同时只进行一次导入。
+ *
+ * 二进制归档（.npar）还可以只恢复其中的一部分：从归档的标题列表中选择，或者输入标题，
+ * 见 {@link #showArchiveDialog}。选中的笔记通过归档的索引直接读取。
+ */
+public class ImportManager {
+    private static final String TAG = "ImportManager";
+
+    // 两次更新进度之间的最短间隔
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    private final Context mContext;
+    private final Context mAppContext;
+    private final ContentResolver mContentResolver;
+    private ImportTask mTask;
+    private ProgressDialog mDialog;
+
+    /**
+     * 构造函数
+     * @param context 上下文，用于显示进度对话框
+     */
+    public ImportManager(Context context) {
+        mContext = context;
+        mAppContext = context.getApplicationContext();
+        mContentResolver = context.getContentResolver();
+    }
+
+    /**
+     * 默认的导入目录，与导出目录相同
+     */
+    static File getImportDirectory() {
+        return new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DOWNLOADS), "NotePad");
+    }
+
+    /**
+     * 导入文件和目录。目录中子目录里的文件归入与子目录同名的分类，没有时创建分类。
+     * @return 是否开始导入
+     */
+    public boolean importFiles(File... inputs) {
+        if (mTask != null) {
+            Toast.makeText(mContext, R.string.import_busy, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        return start(new ImportTask(inputs, null, null));
+    }
+
+    /**
+     * 只导入二进制归档中的一部分笔记
+     * @param ids 要导入的笔记在归档中的 ID；为 null 时导入标题为 title 的全部笔记
+     * @return 是否开始导入
+     */
+    public boolean importFromArchive(File archive, long[] ids, String title) {
+        if (mTask != null) {
+            Toast.makeText(mContext, R.string.import_busy, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        return start(new ImportTask(new File[] { archive }, ids, title));
+    }
+
+    private boolean start(ImportTask task) {
+        String state = Environment.getExternalStorageState();
+        if (!Environment.MEDIA_MOUNTED.equals(state) && !Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
+            Toast.makeText(mContext, R.string.export_error_storage_unavailable, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+
+        mTask = task;
+        showDialog();
+        mTask.execute();
+        return true;
+    }
+
+    /**
+     * 显示二进制归档的导入方式：全部导入、从标题列表中选择，或者按标题查找
+     */
+    void showArchiveDialog(final File archive) {
+        String[] items = {
+                mContext.getString(R.string.import_archive_all),
+                mContext.getString(R.string.import_archive_choose),
+                mContext.getString(R.string.import_archive_by_title)
+        };
+        new AlertDialog.Builder(mContext)
+                .setTitle(archive.getName())
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which == 0) {
+                            importFiles(archive);
+                        } else if (which == 1) {
+                            new ListArchiveTask(archive).execute();
+                        } else {
+                            showTitleDialog(archive);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private void showTitleDialog(final File archive) {
+        final EditText input = new EditText(mContext);
+        input.setSingleLine(true);
+        input.setHint(R.string.import_archive_title_hint);
+        new AlertDialog.Builder(mContext)
+                .setTitle(R.string.import_archive_by_title)
+                .setView(input)
+                .setPositiveButton(R.string.alert_dialog_ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        importFromArchive(archive, null, input.getText().toString());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void showChooseDialog(final File archive, String[] titles, final long[] ids) {
+        final boolean[] checked = new boolean[ids.length];
+        new AlertDialog.Builder(mContext)
+                .setTitle(R.string.import_archive_choose_title)
+                .setMultiChoiceItems(titles, checked, new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                        checked[which] = isChecked;
+                    }
+                })
+                .setPositiveButton(R.string.alert_dialog_ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        int count = 0;
+                        for (boolean c : checked) {
+                            if (c) {
+                                count++;
+                            }
+                        }
+                        if (count == 0) {
+                            return;
+                        }
+                        long[] selected = new long[count];
+                        for (int i = 0, j = 0; i < ids.length; i++) {
+                            if (checked[i]) {
+                                selected[j++] = ids[i];
+                            }
+                        }
+                        importFromArchive(archive, selected, null);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * 取消正在进行的导入
+     */
+    void cancel() {
+        if (mTask != null) {
+            mTask.cancel(false);
+        }
+    }
+
+    /**
+     * 启动导入的界面即将销毁时调用：关闭进度对话框，导入继续在后台进行，完成后仍会提示结果
+     */
+    void release() {
+        dismissDialog();
+    }
+
+    private void showDialog() {
+        mDialog = new ProgressDialog(mContext);
+        mDialog.setTitle(R.string.import_progress_title);
+        mDialog.setMessage(mContext.getString(R.string.import_progress_starting));
+        mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mDialog.setIndeterminate(true);
+        mDialog.setCanceledOnTouchOutside(false);
+        mDialog.setButton(DialogInterface.BUTTON_NEGATIVE, mContext.getString(R.string.alert_dialog_cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        cancel();
+                    }
+                });
+        mDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                cancel();
+            }
+        });
+        mDialog.show();
+    }
+
+    private void updateDialog(int notes, int filesDone, int totalFiles) {
+        if (mDialog == null) {
+            return;
+        }
+        if (totalFiles > 0) {
+            mDialog.setIndeterminate(false);
+            mDialog.setMax(totalFiles);
+            mDialog.setProgress(filesDone);
+        }
+        mDialog.setMessage(mContext.getString(R.string.import_progress, notes, filesDone, totalFiles));
+    }
+
+    private void dismissDialog() {
+        if (mDialog != null) {
+            if (mDialog.isShowing()) {
+                mDialog.dismiss();
+            }
+            mDialog = null;
+        }
+    }
+
+    /**
+     * 在后台线程中按顺序读出归档中笔记的 ID 和标题，然后显示选择列表。只解码标题，不读取正文。
+     */
+    private class ListArchiveTask extends AsyncTask<Void, Void, Boolean> {
+        private final File mArchive;
+        private final ArrayList<String> mTitles = new ArrayList<String>();
+        private long[] mIds;
+
+        ListArchiveTask(File archive) {
+            mArchive = archive;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                BinaryNoteArchive.Reader reader = new BinaryNoteArchive.Reader(mArchive);
+                try {
+                    mIds = new long[reader.getCount()];
+                    long offset = reader.getCount() > 0 ? reader.firstRecord() : -1;
+                    while (offset >= 0 && mTitles.size() < mIds.length) {
+                        BinaryNoteArchive.Note note = reader.readNote(offset);
+                        mIds[mTitles.size()] = note.id;
+                        mTitles.add(note.title);
+                        offset = reader.nextRecord(offset);
+                    }
+                    return true;
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "读取归档失败: " + e.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success) {
+            if (!success) {
+                Toast.makeText(mAppContext, R.string.import_error_archive, Toast.LENGTH_SHORT).show();
+            } else if (mTitles.isEmpty()) {
+                Toast.makeText(mAppContext, R.string.import_no_notes, Toast.LENGTH_SHORT).show();
+            } else {
+                showChooseDialog(mArchive, mTitles.toArray(new String[mTitles.size()]), mIds);
+            }
+        }
+    }
+
+    /**
+     * 在后台线程中通过 {@link NoteImporter} 导入笔记
+     */
+    private class ImportTask extends AsyncTask<Void, Integer, Boolean> implements NoteImporter.Listener {
+        private final File[] mInputs;
+        // 只导入归档中的一部分时，要导入的 ID 或标题；都为 null 时导入全部文件
+        private final long[] mArchiveIds;
+        private final String mArchiveTitle;
+        private final NoteImporter mImporter;
+        // 失败时提示的字符串资源
+        private int mError = R.string.import_error;
+        // 已经写入的笔记数，取消或失败时也已经写入
+        private volatile int mNotes;
+        private long mLastProgress;
+
+        ImportTask(File[] inputs, long[] archiveIds, String archiveTitle) {
+            mInputs = inputs;
+            mArchiveIds = archiveIds;
+            mArchiveTitle = archiveTitle;
+            mImporter = new NoteImporter(mContentResolver, ExportFormatter.Labels.from(mAppContext),
+                    Math.max(1, Runtime.getRuntime().availableProcessors()));
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                int notes = mArchiveIds != null || mArchiveTitle != null
+                        ? mImporter.importFromArchive(mInputs[0], mArchiveIds, mArchiveTitle, this)
+                        : mImporter.importFiles(mInputs, this);
+                if (notes < 0) {
+                    return false;
+                }
+                if (notes == 0) {
+                    mError = R.string.import_no_notes;
+                    return false;
+                }
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "导入笔记失败: " + e.getMessage());
+                return false;
+            } catch (RuntimeException e) {
+                // 写入失败，例如数据库已关闭
+                Log.e(TAG, "导入笔记失败", e);
+                return false;
+            }
+        }
+
+        @Override
+        public void onProgress(int notes, int filesDone, int totalFiles) {
+            mNotes = notes;
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastProgress >= PROGRESS_INTERVAL_MILLIS || filesDone == totalFiles) {
+                mLastProgress = now;
+                publishProgress(notes, filesDone, totalFiles);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            updateDialog(values[0], values[1], values[2]);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success) {
+            finish();
+            if (success) {
+                int skipped = mImporter.getSkipped();
+                String message = skipped > 0
+                        ? mAppContext.getString(R.string.import_success_skipped, mNotes, skipped)
+                        : mAppContext.getString(R.string.import_success, mNotes);
+                Toast.makeText(mAppContext, message, Toast.LENGTH_LONG).show();
+            } else if (mNotes > 0) {
+                // 失败之前写入的批次已经提交
+                Toast.makeText(mAppContext, mAppContext.getString(R.string.import_error_partial, mNotes),
+                        Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(mAppContext, mError, Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        @Override
+        protected void onCancelled(Boolean result) {
+            finish();
+            Toast.makeText(mAppContext, mAppContext.getString(R.string.import_cancelled, mNotes),
+                    Toast.LENGTH_SHORT).show();
+        }
+
+        private void finish() {
+            mTask = null;
+            dismissDialog();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.android.notepad;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 笔记列表第一屏的快照。
+ *
+ * 每次在后台加载完整列表后，把前几十个列表项（分段标题、笔记标题和格式化好的时间）写入一个
+ * 很小的二进制文件。冷启动时先读取快照并立即显示，不需要等数据库连接和分组查询完成，
+ * 后台加载结束后再换成实时数据。快照只是缓存，读取失败或格式不对时直接忽略。
+ *
+ * 文件格式：魔数、版本、排序方式、列表项个数，之后每个列表项依次为类型字节和对应的字段。
+ * 快照只对写入时的排序方式有效，排序方式变化后读取会返回 null。
+ */
+final class ListSnapshot {
+    private static final String TAG = "ListSnapshot";
+
+    /**
+     * 快照文件名，位于应用的缓存目录中
+     */
+    static final String FILE_NAME = "notes_list.snapshot";
+
+    /**
+     * 快照保存的列表项个数，足够填满一屏
+     */
+    static final int MAX_ITEMS = 40;
+
+    private static final int MAGIC = 0x4e4c5353;
+    private static final int FORMAT_VERSION = 2;
+
+    // 快照文件的大小上限，超过时认为文件已损坏
+    private static final int MAX_FILE_SIZE = 64 * 1024;
+
+    // 标题只需要显示一行，过长的部分不写入快照
+    private static final int MAX_TITLE_LENGTH = 120;
+
+    private static final byte TYPE_GROUP_HEADER = 0;
+    private static final byte TYPE_NOTE = 1;
+
+    // This class cannot be instantiated
+    private ListSnapshot() {
+    }
+
+    /**
+     * 写入快照。先写临时文件再替换，读取方不会看到写了一半的文件。
+     * 在后台线程中调用。
+     */
+    static void write(File file, int sortMode, List<NotesList.ItemData> items) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = Math.min(items.size(), MAX_ITEMS);
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(sortMode);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                NotesList.ItemData item = items.get(i);
+                if (item.isGroupHeader) {
+                    out.writeByte(TYPE_GROUP_HEADER);
+                    out.writeUTF(clip(item.categoryTitle));
+                } else {
+                    out.writeByte(TYPE_NOTE);
+                    out.writeLong(item.noteId);
+                    out.writeUTF(clip(item.title));
+                    out.writeUTF(clip(item.timestamp));
+                    // 分类标签，不显示时写入空串
+                    out.writeUTF(clip(item.categoryTitle));
+                }
+            }
+            out.flush();
+
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                bytes.writeTo(fos);
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * 读取快照，在主线程中调用。文件很小，一次读入内存后解析。
+     *
+     * @param sortMode 当前的排序方式
+     * @return 快照中的列表项；文件不存在、无法解析或者排序方式不同时返回 null
+     */
+    static List<NotesList.ItemData> read(File file, int sortMode) {
+        long length = file.length();
+        if (length <= 0 || length > MAX_FILE_SIZE) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[(int) length];
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                int n = 0;
+                while (n < data.length) {
+                    int read = fis.read(data, n, data.length - n);
+                    if (read < 0) {
+                        return null;
+                    }
+                    n += read;
+                }
+            } finally {
+                fis.close();
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readInt() != sortMode) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ITEMS) {
+                return null;
+            }
+            List<NotesList.ItemData> items = new ArrayList<NotesList.ItemData>(count);
+            for (int i = 0; i < count; i++) {
+                NotesList.ItemData item = new NotesList.ItemData();
+                byte type = in.readByte();
+                if (type == TYPE_GROUP_HEADER) {
+                    item.isGroupHeader = true;
+                    item.categoryTitle = in.readUTF();
+                } else if (type == TYPE_NOTE) {
+                    item.noteId = in.readLong();
+                    item.title = in.readUTF();
+                    item.timestamp = in.readUTF();
+                    String categoryTitle = in.readUTF();
+                    item.categoryTitle = categoryTitle.length() > 0 ? categoryTitle : null;
+                } else {
+                    return null;
+                }
+                items.add(item);
+            }
+            return items;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            return null;
+        }
+    }
+
+    private static String clip(String text) {
+        if (text == null) {
+            return "";
+        }
+        if (text.length() <= MAX_TITLE_LENGTH) {
+            return text;
+        }
+        // 不要把代理对从中间截断
+        int end = MAX_TITLE_LENGTH;
+        if (Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+}
@@ -0,0 +1,1214 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 基于二元组和三元组的子串倒排索引。
+ *
+ * 中文笔记没有空格分词，全文索引只能按整段文本的前缀匹配，无法命中句子中间的词。
+ * 这里把标题和正文按码点切成相邻的二元组和三元组，每个 gram 编码为一个 long 作为词项，
+ * 对应的倒排表是按笔记 ID 升序排列的 int 数组。
+ *
+ * 索引由磁盘上的基础段和内存中的增量段组成。基础段的倒排表按差值和变长整数编码，
+ * 加载时通过内存映射读取；provider 的每次写入只修改增量段，累计到一定数量后在后台线程中
+ * 与基础段合并，重新写出文件。增量段尚未落盘时会留下一个标记文件，进程退出后下次加载会据此从数据库重建。
+ * 重建和合并在同一个后台线程中进行。重建期间的写入只记录笔记 ID，重建完成后这些笔记作为未索引的笔记处理，
+ * 查询会等待重建完成；合并期间查询和写入照常使用增量段。
+ *
+ * 查询时对查询串所有 gram 的倒排表求交集，得到的候选笔记可能包含误报，
+ * 调用方需要读取原文再做一次校验。所有方法都是同步的，可以在 binder 线程中直接调用。
+ *
+ * 正文超过 {@link #LARGE_NOTE_LENGTH} 个字符的笔记只索引标题，重建期间修改过的笔记不索引，
+ * 两者都记录在一个特殊词项的倒排表中，每次查询都作为候选返回，由调用方读取原文校验，
+ * 大笔记分段扫描。这样按区间保存大笔记时不必重新切分整篇正文。
+ * ID 超出 int 范围的笔记同样总是作为候选，只记录在内存中。
+ */
+final class NgramIndex {
+    private static final String TAG = "NgramIndex";
+
+    /**
+     * 索引文件名相对数据库文件名的后缀
+     */
+    static final String FILE_SUFFIX = "-ngram";
+
+    // 文件格式：头部、升序排列的词项、每个词项倒排表的起始偏移、倒排表数据
+    private static final int MAGIC = 0x4e47524d;
+    private static final int FORMAT_VERSION = 2;
+    private static final int FINGERPRINT_SIZE = 3;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 * FINGERPRINT_SIZE;
+
+    // 每个码点占用的位数，21 位可以容纳所有 Unicode 码点
+    private static final int CODE_POINT_BITS = 21;
+
+    /**
+     * 正文超过该字符数的笔记不切分正文，查询时总是作为候选，与编辑器的大笔记阈值相同
+     */
+    static final int LARGE_NOTE_LENGTH = 256 * 1024;
+
+    // 记录正文没有索引的笔记的词项。码点 0 是分隔符，不会出现在普通词项中
+    private static final long UNINDEXED_KEY = 0;
+
+    // 增量段中变化的笔记数达到该值时与基础段合并
+    static final int MERGE_THRESHOLD = 256;
+
+    private static final String OVERFLOW_IDS_SQL = "SELECT " + NotePad.Notes._ID + " FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " > " + Integer.MAX_VALUE
+            + " OR " + NotePad.Notes._ID + " < " + Integer.MIN_VALUE;
+
+    private static final String FINGERPRINT_SQL = "SELECT count(*), ifnull(max("
+            + NotePad.Notes._ID + "), 0), ifnull(max("
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "), 0) FROM "
+            + NotePad.Notes.TABLE_NAME;
+
+    private final File mFile;
+    private final File mDirtyMarker;
+
+    // 已经校验过索引文件，或者已经开始重建
+    private boolean mLoaded;
+
+    // 后台线程正在重建，此时索引不可用
+    private boolean mBuilding;
+
+    // 每次丢弃索引时递增，过期的重建结果不会被采用
+    private int mGeneration;
+
+    // 重建期间变化的笔记：true 表示新增或修改，false 表示删除
+    private final SparseBooleanArray mPending = new SparseBooleanArray();
+
+    // ID 超出 int 范围的笔记
+    private final HashSet<Long> mOverflowIds = new HashSet<Long>();
+
+    // 基础段
+    private BaseSegment mBase = BaseSegment.EMPTY;
+
+    // 增量段：新增或修改过的笔记的倒排表，以及每篇笔记对应的词项，用于再次修改时撤销
+    private final PostingTable mDelta = new PostingTable();
+    private final SparseArray<long[]> mDeltaDocs = new SparseArray<long[]>();
+
+    // 基础段中已经失效的笔记，查询基础段时跳过
+    private final SparseBooleanArray mSuperseded = new SparseBooleanArray();
+
+    // 自上次合并以来变化的笔记数
+    private int mPendingChanges;
+
+    // 后台线程正在合并，以及合并开始之后变化的笔记
+    private boolean mMerging;
+    private final SparseBooleanArray mMergeChanges = new SparseBooleanArray();
+
+    // 重建和合并都在这个线程中执行
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * @param file 索引文件，文件不存在时会在第一次加载时从数据库重建
+     */
+    NgramIndex(File file) {
+        mFile = file;
+        mDirtyMarker = new File(file.getPath() + ".dirty");
+    }
+
+    /**
+     * 加载索引。文件不存在、格式不对、留有未落盘标记，或者与数据库内容不一致时，在后台从数据库重建。
+     * provider 在修改笔记之前调用，确保之后的增量修改是基于与数据库一致的索引；
+     * 这里只做校验，不会在写入路径上等待重建。
+     */
+    synchronized void load(SQLiteDatabase db) {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mDirtyMarker.exists() && mFile.exists()) {
+            try {
+                long[] stored = mapBase();
+                if (Arrays.equals(stored, fingerprint(db))) {
+                    loadOverflowIds(db);
+                    return;
+                }
+                Log.i(TAG, "Index is out of date, rebuilding");
+            } catch (IOException e) {
+                // 文件损坏时丢弃，查询等待重建，而不是读到越界的偏移
+                Log.w(TAG, "Unable to read " + mFile, e);
+                mBase = BaseSegment.EMPTY;
+                mFile.delete();
+            }
+        }
+        startRebuild(db);
+    }
+
+    /**
+     * 笔记新增或者标题、正文发生变化后调用
+     */
+    synchronized void onNoteChanged(SQLiteDatabase db, long id, String title, String note) {
+        if (deferChange(db, id, true)) {
+            return;
+        }
+        replace((int) id, isLarge(note) ? largeNoteKeys(title) : grams(title, note));
+        onChanged(db);
+    }
+
+    /**
+     * 正文超过 {@link #LARGE_NOTE_LENGTH} 的笔记发生变化后调用，只需要标题，调用方不必读取正文
+     */
+    synchronized void onLargeNoteChanged(SQLiteDatabase db, long id, String title) {
+        if (deferChange(db, id, true)) {
+            return;
+        }
+        replace((int) id, largeNoteKeys(title));
+        onChanged(db);
+    }
+
+    /**
+     * 正文是否超过 {@link #LARGE_NOTE_LENGTH}，按码点计数，与 SQLite 的 length() 一致
+     */
+    static boolean isLarge(String note) {
+        return note != null && note.length() > LARGE_NOTE_LENGTH
+                && note.codePointCount(0, note.length()) > LARGE_NOTE_LENGTH;
+    }
+
+    private static long[] largeNoteKeys(String title) {
+        long[] titleKeys = grams(title, null);
+        long[] keys = new long[titleKeys.length + 1];
+        keys[0] = UNINDEXED_KEY;
+        System.arraycopy(titleKeys, 0, keys, 1, titleKeys.length);
+        return keys;
+    }
+
+    private void replace(int doc, long[] keys) {
+        removeFromDelta(doc);
+        for (long key : keys) {
+            mDelta.add(key, doc);
+        }
+        mDeltaDocs.put(doc, keys);
+        supersede(doc);
+    }
+
+    /**
+     * 记录基础段中的笔记已经失效。合并期间变化的笔记在合并完成后仍然保留在增量段中。
+     */
+    private void supersede(int doc) {
+        mSuperseded.put(doc, true);
+        if (mMerging) {
+            mMergeChanges.put(doc, true);
+        }
+    }
+
+    /**
+     * 笔记被删除后调用
+     */
+    synchronized void onNoteDeleted(SQLiteDatabase db, long id) {
+        if (deferChange(db, id, false)) {
+            return;
+        }
+        int doc = (int) id;
+        removeFromDelta(doc);
+        supersede(doc);
+        onChanged(db);
+    }
+
+    /**
+     * 处理不能写入倒排表的变化：ID 超出 int 范围的笔记，以及重建期间的变化
+     *
+     * @return 已经处理，调用方不需要再修改索引
+     */
+    private boolean deferChange(SQLiteDatabase db, long id, boolean changed) {
+        load(db);
+        if (id != (int) id) {
+            if (changed) {
+                mOverflowIds.add(id);
+            } else {
+                mOverflowIds.remove(id);
+            }
+            return true;
+        }
+        if (mBuilding) {
+            mPending.put((int) id, changed);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 丢弃内存中的索引，下次使用时从数据库重建。
+     * 事务回滚后调用，此时增量段中可能记录了并未生效的修改。
+     */
+    synchronized void invalidate() {
+        mLoaded = false;
+        mBuilding = false;
+        mGeneration++;
+        mPendingChanges = 0;
+        mMerging = false;
+        mMergeChanges.clear();
+        // 唤醒等待重建的查询，它们会重新加载
+        notifyAll();
+        try {
+            mDirtyMarker.createNewFile();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create " + mDirtyMarker, e);
+        }
+    }
+
+    /**
+     * 返回可能包含查询串的笔记 ID。查询串按空白拆分为多个词，每个词都要出现。
+     *
+     * @param query 用户输入的搜索文本
+     * @return 候选笔记 ID；查询串中没有可检索的内容，或者索引无法重建时返回 null
+     */
+    synchronized long[] candidates(SQLiteDatabase db, String query) {
+        load(db);
+        while (mBuilding) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        if (!mLoaded) {
+            // 重建失败
+            return null;
+        }
+
+        int[] result = null;
+        for (String term : splitTerms(query)) {
+            int[] ids = candidatesForTerm(term);
+            result = result == null ? ids : intersect(result, ids);
+            if (result.length == 0) {
+                break;
+            }
+        }
+        if (result == null) {
+            return null;
+        }
+        long[] ids = new long[result.length + mOverflowIds.size()];
+        int n = 0;
+        for (int id : result) {
+            ids[n++] = id;
+        }
+        for (long id : mOverflowIds) {
+            ids[n++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * 把文本转换为索引使用的形式：逐个码点转为小写，转换前后码点数不变
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            sb.appendCodePoint(Character.toLowerCase(cp));
+            i += Character.charCount(cp);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 把查询串规范化后按空白拆分为词
+     */
+    static List<String> splitTerms(String query) {
+        List<String> terms = new ArrayList<String>();
+        if (query == null) {
+            return terms;
+        }
+        for (String term : normalize(query).trim().split("\\s+")) {
+            if (term.length() > 0) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /*
+     * Gram 的生成
+     *
+     * 文本按空白切成若干段，段内每个位置生成一个二元组和一个三元组；段的最后一个字符生成
+     * 一个第二位为 0 的“结尾”二元组。这样单个字符的查询可以用“首字符为该字符”的词项区间求并集，
+     * 两个字符的查询直接查找二元组，三个及以上字符的查询对所有三元组求交集。
+     */
+
+    private static long key(int first, int second, int third) {
+        return ((long) first << (2 * CODE_POINT_BITS)) | ((long) second << CODE_POINT_BITS) | third;
+    }
+
+    private static boolean isSeparator(int cp) {
+        return cp == 0 || Character.isWhitespace(cp);
+    }
+
+    private static int[] codePoints(String normalized) {
+        int[] cps = new int[normalized.codePointCount(0, normalized.length())];
+        for (int i = 0, n = 0; i < normalized.length(); n++) {
+            cps[n] = normalized.codePointAt(i);
+            i += Character.charCount(cps[n]);
+        }
+        return cps;
+    }
+
+    /**
+     * 生成一篇笔记的所有词项，升序且不重复
+     */
+    static long[] grams(String title, String note) {
+        int[] titleCps = codePoints(normalize(title));
+        int[] noteCps = codePoints(normalize(note));
+        long[] keys = new long[2 * (titleCps.length + noteCps.length)];
+        int n = addGrams(titleCps, keys, 0);
+        n = addGrams(noteCps, keys, n);
+
+        Arrays.sort(keys, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || keys[unique - 1] != keys[i]) {
+                keys[unique++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, unique);
+    }
+
+    private static int addGrams(int[] cps, long[] out, int n) {
+        for (int i = 0; i < cps.length; i++) {
+            if (isSeparator(cps[i])) {
+                continue;
+            }
+            boolean hasSecond = i + 1 < cps.length && !isSeparator(cps[i + 1]);
+            if (!hasSecond) {
+                out[n++] = key(cps[i], 0, 0);
+                continue;
+            }
+            out[n++] = key(cps[i], cps[i + 1], 0);
+            if (i + 2 < cps.length && !isSeparator(cps[i + 2])) {
+                out[n++] = key(cps[i], cps[i + 1], cps[i + 2]);
+            }
+        }
+        return n;
+    }
+
+    /*
+     * 查询
+     */
+
+    private int[] candidatesForTerm(String term) {
+        IntList ids = new IntList();
+        for (int id : indexedCandidatesForTerm(term)) {
+            ids.add(id);
+        }
+        // 大笔记的正文没有索引，总是需要校验
+        int[] large = postings(UNINDEXED_KEY);
+        ids.union(large, large.length);
+        return ids.toArray();
+    }
+
+    private int[] indexedCandidatesForTerm(String term) {
+        int[] cps = codePoints(term);
+        if (cps.length == 1) {
+            return idsInRange(key(cps[0], 0, 0), key(cps[0] + 1, 0, 0));
+        }
+
+        long[] keys;
+        if (cps.length == 2) {
+            keys = new long[] { key(cps[0], cps[1], 0) };
+        } else {
+            keys = new long[cps.length - 2];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = key(cps[i], cps[i + 1], cps[i + 2]);
+            }
+        }
+
+        // 先处理最短的倒排表，交集很快就会变小，通常不需要解码其余的长表。
+        // 排序键的高位是基础段中倒排表的编码长度，低 20 位是词项下标。
+        long[] order = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int index = mBase.find(keys[i]);
+            long length = index < 0 ? 0 : mBase.end(index) - mBase.start(index);
+            order[i] = length << 20 | i;
+        }
+        Arrays.sort(order);
+
+        int[] result = null;
+        for (long entry : order) {
+            int[] ids = postings(keys[(int) (entry & 0xfffff)]);
+            result = result == null ? ids : intersect(result, ids);
+            if (result.length == 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 返回一个词项在基础段和增量段中的完整倒排表
+     */
+    private int[] postings(long key) {
+        IntList ids = new IntList();
+        int term = mBase.find(key);
+        if (term >= 0) {
+            mBase.decode(term, mSuperseded, ids);
+        }
+        int slot = mDelta.find(key);
+        if (slot >= 0) {
+            ids.union(mDelta.mLists[slot], mDelta.mSizes[slot]);
+        }
+        return ids.toArray();
+    }
+
+    /**
+     * 返回词项落在 [from, to) 区间内的所有笔记 ID
+     */
+    private int[] idsInRange(long from, long to) {
+        IntList ids = new IntList();
+        for (int term = mBase.lowerBound(from); term < mBase.mTermCount && mBase.key(term) < to;
+                term++) {
+            mBase.decode(term, mSuperseded, ids);
+        }
+        for (int slot = 0; slot < mDelta.mKeys.length; slot++) {
+            long key = mDelta.mKeys[slot];
+            if (mDelta.mUsed[slot] && key >= from && key < to) {
+                for (int i = 0; i < mDelta.mSizes[slot]; i++) {
+                    ids.add(mDelta.mLists[slot][i]);
+                }
+            }
+        }
+        return ids.sortedUnique();
+    }
+
+    /**
+     * 求两个升序数组的交集。两者长度相差悬殊时对长数组做二分查找。
+     */
+    static int[] intersect(int[] a, int[] b) {
+        if (a.length > b.length) {
+            int[] t = a;
+            a = b;
+            b = t;
+        }
+        int[] out = new int[a.length];
+        int n = 0;
+        if (a.length * 8 < b.length) {
+            int from = 0;
+            for (int id : a) {
+                int pos = Arrays.binarySearch(b, from, b.length, id);
+                if (pos >= 0) {
+                    out[n++] = id;
+                    from = pos + 1;
+                } else {
+                    from = -pos - 1;
+                }
+            }
+        } else {
+            for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    out[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * 映射索引文件，替换当前的基础段
+     *
+     * @return 写入文件时记录的数据库指纹
+     */
+    private long[] mapBase() throws IOException {
+        long[] fingerprint = new long[FINGERPRINT_SIZE];
+        mBase = BaseSegment.map(mFile, fingerprint);
+        return fingerprint;
+    }
+
+    /**
+     * 数据库内容的指纹：笔记数、最大 ID 和最近修改时间。通过 provider 以外的途径修改数据库后，
+     * 指纹通常会变化，下次加载时索引会被重建。
+     */
+    private static long[] fingerprint(SQLiteDatabase db) {
+        Cursor c = db.rawQuery(FINGERPRINT_SQL, null);
+        try {
+            long[] fingerprint = new long[FINGERPRINT_SIZE];
+            if (c.moveToFirst()) {
+                for (int i = 0; i < FINGERPRINT_SIZE; i++) {
+                    fingerprint[i] = c.getLong(i);
+                }
+            }
+            return fingerprint;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * 增量段的维护
+     */
+
+    private void removeFromDelta(int doc) {
+        long[] keys = mDeltaDocs.get(doc);
+        if (keys != null) {
+            for (long key : keys) {
+                mDelta.remove(key, doc);
+            }
+            mDeltaDocs.remove(doc);
+        }
+    }
+
+    private void onChanged(SQLiteDatabase db) {
+        if (mPendingChanges++ == 0) {
+            try {
+                mDirtyMarker.createNewFile();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to create " + mDirtyMarker, e);
+            }
+        }
+        if (mPendingChanges >= MERGE_THRESHOLD && !mMerging) {
+            startMerge(db);
+        }
+    }
+
+    /**
+     * 在后台线程中从数据库重新生成全部索引。重建期间查询会等待，写入只记录到 {@link #mPending}。
+     */
+    private void startRebuild(final SQLiteDatabase db) {
+        final int generation = mGeneration;
+        mBuilding = true;
+        mPending.clear();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File tmp = new File(mFile.getPath() + ".tmp" + generation);
+                try {
+                    long start = System.currentTimeMillis();
+                    HashSet<Long> overflowIds = new HashSet<Long>();
+                    SegmentWriter writer = rebuild(db, overflowIds);
+                    writer.writeTo(tmp, fingerprint(db));
+                    install(db, generation, tmp, overflowIds);
+                    Log.i(TAG, "Rebuilt index in " + (System.currentTimeMillis() - start) + "ms");
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to rebuild " + mFile, e);
+                    onRebuildFailed(generation);
+                } catch (RuntimeException e) {
+                    // 例如恢复备份时数据库被关闭
+                    Log.e(TAG, "Unable to rebuild " + mFile, e);
+                    onRebuildFailed(generation);
+                } finally {
+                    tmp.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * 读取所有笔记生成新的基础段，不持有锁，也不修改索引的状态
+     *
+     * @param overflowIds 输出，ID 超出 int 范围的笔记
+     */
+    private static SegmentWriter rebuild(SQLiteDatabase db, HashSet<Long> overflowIds) {
+        PostingTable table = new PostingTable();
+        // 大笔记不读取正文，其余正文都不超过 LARGE_NOTE_LENGTH，能够放入 CursorWindow
+        Cursor c = db.rawQuery("SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                + ", CASE WHEN length(" + NotePad.Notes.COLUMN_NAME_NOTE + ") > " + LARGE_NOTE_LENGTH
+                + " THEN NULL ELSE " + NotePad.Notes.COLUMN_NAME_NOTE + " END"
+                + ", length(" + NotePad.Notes.COLUMN_NAME_NOTE + ") > " + LARGE_NOTE_LENGTH
+                + " FROM " + NotePad.Notes.TABLE_NAME + " ORDER BY " + NotePad.Notes._ID, null);
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                if (id != (int) id) {
+                    overflowIds.add(id);
+                    continue;
+                }
+                // 按 ID 升序读取，每个倒排表都只是在末尾追加
+                long[] keys = c.getInt(3) != 0
+                        ? largeNoteKeys(c.getString(1)) : grams(c.getString(1), c.getString(2));
+                for (long key : keys) {
+                    table.add(key, (int) id);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        SegmentWriter writer = new SegmentWriter();
+        for (long key : table.sortedKeys()) {
+            int slot = table.find(key);
+            writer.add(key, table.mLists[slot], table.mSizes[slot]);
+        }
+        return writer;
+    }
+
+    /**
+     * 采用重建的结果，再把重建期间变化的笔记记为未索引
+     */
+    private synchronized void install(SQLiteDatabase db, int generation, File tmp,
+            HashSet<Long> overflowIds) throws IOException {
+        if (generation != mGeneration) {
+            return;
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Unable to rename " + tmp);
+        }
+        mapBase();
+        mDelta.clear();
+        mDeltaDocs.clear();
+        mSuperseded.clear();
+        mPendingChanges = 0;
+        mDirtyMarker.delete();
+        mOverflowIds.clear();
+        mOverflowIds.addAll(overflowIds);
+        mBuilding = false;
+
+        for (int i = 0; i < mPending.size(); i++) {
+            int doc = mPending.keyAt(i);
+            if (mPending.valueAt(i)) {
+                replace(doc, new long[] { UNINDEXED_KEY });
+            } else {
+                supersede(doc);
+            }
+            onChanged(db);
+        }
+        mPending.clear();
+        notifyAll();
+    }
+
+    private synchronized void onRebuildFailed(int generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        // 下次加载时再试
+        mLoaded = false;
+        mBuilding = false;
+        mPending.clear();
+        try {
+            mDirtyMarker.createNewFile();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create " + mDirtyMarker, e);
+        }
+        notifyAll();
+    }
+
+    private void loadOverflowIds(SQLiteDatabase db) {
+        mOverflowIds.clear();
+        Cursor c = db.rawQuery(OVERFLOW_IDS_SQL, null);
+        try {
+            while (c.moveToNext()) {
+                mOverflowIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 在后台线程中把增量段合并进基础段并写出新文件。合并读取的是当前基础段和增量段的拷贝，
+     * 期间的写入照常修改增量段，并记录在 {@link #mMergeChanges} 中。
+     */
+    private void startMerge(final SQLiteDatabase db) {
+        final int generation = mGeneration;
+        final BaseSegment base = mBase;
+        final PostingTable delta = mDelta.copy();
+        final SparseBooleanArray superseded = new SparseBooleanArray(mSuperseded.size());
+        for (int i = 0; i < mSuperseded.size(); i++) {
+            superseded.put(mSuperseded.keyAt(i), mSuperseded.valueAt(i));
+        }
+        mMerging = true;
+        mMergeChanges.clear();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File tmp = new File(mFile.getPath() + ".tmp");
+                try {
+                    long start = System.currentTimeMillis();
+                    SegmentWriter writer = merge(base, delta, superseded);
+                    writer.writeTo(tmp, fingerprint(db));
+                    installMerge(db, generation, tmp, superseded);
+                    Log.i(TAG, "Merged index in " + (System.currentTimeMillis() - start) + "ms");
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to write " + mFile, e);
+                    onMergeFailed(generation);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to write " + mFile, e);
+                    onMergeFailed(generation);
+                } finally {
+                    tmp.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * 合并基础段和增量段的倒排表，不持有锁，也不修改索引的状态
+     */
+    private static SegmentWriter merge(BaseSegment base, PostingTable delta,
+            SparseBooleanArray superseded) {
+        long[] deltaKeys = delta.sortedKeys();
+        SegmentWriter writer = new SegmentWriter();
+        IntList ids = new IntList();
+        int i = 0;
+        int j = 0;
+        while (i < base.mTermCount || j < deltaKeys.length) {
+            long key;
+            ids.clear();
+            if (j == deltaKeys.length || (i < base.mTermCount && base.key(i) < deltaKeys[j])) {
+                key = base.key(i);
+                base.decode(i++, superseded, ids);
+            } else {
+                key = deltaKeys[j++];
+                if (i < base.mTermCount && base.key(i) == key) {
+                    base.decode(i++, superseded, ids);
+                }
+                int slot = delta.find(key);
+                ids.union(delta.mLists[slot], delta.mSizes[slot]);
+            }
+            writer.add(key, ids.mData, ids.mSize);
+        }
+        return writer;
+    }
+
+    /**
+     * 采用合并的结果。合并开始之前变化的笔记已经写入新的基础段，从增量段中移除；
+     * 之后又变化过的笔记仍以增量段为准。
+     *
+     * @param merged 合并时已经失效的笔记
+     */
+    private synchronized void installMerge(SQLiteDatabase db, int generation, File tmp,
+            SparseBooleanArray merged) throws IOException {
+        if (generation != mGeneration) {
+            return;
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Unable to rename " + tmp);
+        }
+        mapBase();
+        mMerging = false;
+        for (int i = 0; i < merged.size(); i++) {
+            int doc = merged.keyAt(i);
+            if (merged.valueAt(i) && !mMergeChanges.get(doc)) {
+                removeFromDelta(doc);
+                mSuperseded.delete(doc);
+            }
+        }
+        mPendingChanges = mMergeChanges.size();
+        mMergeChanges.clear();
+        if (mPendingChanges == 0) {
+            mDirtyMarker.delete();
+        } else if (mPendingChanges >= MERGE_THRESHOLD) {
+            startMerge(db);
+        }
+    }
+
+    /**
+     * 合并失败时保留增量段，索引在本进程内仍然可用，下次启动时从数据库重建
+     */
+    private synchronized void onMergeFailed(int generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mMerging = false;
+        mMergeChanges.clear();
+    }
+
+    /**
+     * 按词项升序接收倒排表，编码后写出索引文件
+     */
+    private static final class SegmentWriter {
+        private long[] mKeys = new long[1024];
+        private int[] mOffsets = new int[1025];
+        private int mCount;
+        private final ByteArrayOutputStream mPostings = new ByteArrayOutputStream();
+
+        void add(long key, int[] ids, int size) {
+            if (size == 0) {
+                return;
+            }
+            if (mCount == mKeys.length) {
+                mKeys = Arrays.copyOf(mKeys, mCount * 2);
+                mOffsets = Arrays.copyOf(mOffsets, mCount * 2 + 1);
+            }
+            mKeys[mCount] = key;
+            mOffsets[mCount] = mPostings.size();
+            mCount++;
+
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                int delta = ids[i] - previous;
+                previous = ids[i];
+                while ((delta & ~0x7f) != 0) {
+                    mPostings.write((delta & 0x7f) | 0x80);
+                    delta >>>= 7;
+                }
+                mPostings.write(delta);
+            }
+        }
+
+        void writeTo(File file, long[] fingerprint) throws IOException {
+            mOffsets[mCount] = mPostings.size();
+            int postingsStart = HEADER_SIZE + 8 * mCount + 4 * (mCount + 1);
+
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(mCount);
+                for (long value : fingerprint) {
+                    out.writeLong(value);
+                }
+                for (int i = 0; i < mCount; i++) {
+                    out.writeLong(mKeys[i]);
+                }
+                for (int i = 0; i <= mCount; i++) {
+                    out.writeInt(postingsStart + mOffsets[i]);
+                }
+                mPostings.writeTo(out);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+        }
+    }
+
+    /**
+     * 内存映射的基础段。所有读取都使用绝对位置，不修改缓冲区的 position，
+     * 合并时后台线程与查询可以同时读取。
+     */
+    private static final class BaseSegment {
+        static final BaseSegment EMPTY = new BaseSegment(null, 0);
+
+        final MappedByteBuffer mBuffer;
+        final int mTermCount;
+
+        private BaseSegment(MappedByteBuffer buffer, int termCount) {
+            mBuffer = buffer;
+            mTermCount = termCount;
+        }
+
+        /**
+         * 映射索引文件并校验头部、词项和偏移表。文件被截断或者损坏时抛出 IOException，
+         * 之后的查询不会读到映射范围以外的位置。
+         *
+         * @param fingerprint 输出，写入文件时记录的数据库指纹
+         */
+        static BaseSegment map(File file, long[] fingerprint) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer;
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            int capacity = buffer.capacity();
+            if (capacity < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("Bad index header");
+            }
+            int termCount = buffer.getInt(8);
+            long postingsStart = HEADER_SIZE + 12L * termCount + 4;
+            if (termCount < 0 || postingsStart > capacity) {
+                throw new IOException("Truncated index");
+            }
+
+            BaseSegment segment = new BaseSegment(buffer, termCount);
+            for (int term = 1; term < termCount; term++) {
+                if (segment.key(term - 1) >= segment.key(term)) {
+                    throw new IOException("Unsorted terms in index");
+                }
+            }
+            // 第一个倒排表紧接偏移表，各偏移不减，最后一个偏移即文件末尾
+            long previous = postingsStart;
+            for (int term = 0; term <= termCount; term++) {
+                int offset = segment.start(term);
+                if (term == 0 ? offset != postingsStart : offset < previous) {
+                    throw new IOException("Bad posting offset in index");
+                }
+                previous = offset;
+            }
+            if (previous != capacity) {
+                throw new IOException("Truncated index");
+            }
+
+            for (int i = 0; i < FINGERPRINT_SIZE; i++) {
+                fingerprint[i] = buffer.getLong(12 + 8 * i);
+            }
+            return segment;
+        }
+
+        long key(int term) {
+            return mBuffer.getLong(HEADER_SIZE + 8 * term);
+        }
+
+        int start(int term) {
+            return mBuffer.getInt(HEADER_SIZE + 8 * mTermCount + 4 * term);
+        }
+
+        int end(int term) {
+            return start(term + 1);
+        }
+
+        int find(long key) {
+            int term = lowerBound(key);
+            return term < mTermCount && key(term) == key ? term : -1;
+        }
+
+        int lowerBound(long key) {
+            int lo = 0;
+            int hi = mTermCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (key(mid) < key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * 解码一个词项的倒排表，跳过已经失效的笔记。变长整数不会越过倒排表的末尾。
+         */
+        void decode(int term, SparseBooleanArray superseded, IntList out) {
+            int pos = start(term);
+            int end = end(term);
+            int id = 0;
+            while (pos < end) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = mBuffer.get(pos++);
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0 && pos < end);
+                id += delta;
+                if (!superseded.get(id)) {
+                    out.add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * 以 long 为键、升序 int 数组为值的开放寻址哈希表，存放增量段的倒排表
+     */
+    private static final class PostingTable {
+        long[] mKeys;
+        int[][] mLists;
+        int[] mSizes;
+        boolean[] mUsed;
+        private int mCount;
+
+        PostingTable() {
+            allocate(64);
+        }
+
+        private void allocate(int capacity) {
+            mKeys = new long[capacity];
+            mLists = new int[capacity][];
+            mSizes = new int[capacity];
+            mUsed = new boolean[capacity];
+            mCount = 0;
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            int mask = mKeys.length - 1;
+            int slot = (int) (h ^ (h >>> 32)) & mask;
+            while (mUsed[slot] && mKeys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        int find(long key) {
+            int slot = slot(key);
+            return mUsed[slot] ? slot : -1;
+        }
+
+        void add(long key, int id) {
+            int slot = slot(key);
+            if (!mUsed[slot]) {
+                if ((mCount + 1) * 4 > mKeys.length * 3) {
+                    grow();
+                    slot = slot(key);
+                }
+                mUsed[slot] = true;
+                mKeys[slot] = key;
+                mLists[slot] = new int[2];
+                mCount++;
+            }
+
+            int[] list = mLists[slot];
+            int size = mSizes[slot];
+            int pos = size > 0 && list[size - 1] < id
+                    ? size : Arrays.binarySearch(list, 0, size, id);
+            if (pos >= 0 && pos < size) {
+                return;
+            }
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+            if (size == list.length) {
+                list = mLists[slot] = Arrays.copyOf(list, size * 2);
+            }
+            System.arraycopy(list, pos, list, pos + 1, size - pos);
+            list[pos] = id;
+            mSizes[slot] = size + 1;
+        }
+
+        void remove(long key, int id) {
+            int slot = find(key);
+            if (slot < 0) {
+                return;
+            }
+            int[] list = mLists[slot];
+            int size = mSizes[slot];
+            int pos = Arrays.binarySearch(list, 0, size, id);
+            if (pos >= 0) {
+                System.arraycopy(list, pos + 1, list, pos, size - pos - 1);
+                mSizes[slot] = size - 1;
+            }
+        }
+
+        /**
+         * 返回所有倒排表非空的词项，升序排列
+         */
+        long[] sortedKeys() {
+            long[] keys = new long[mCount];
+            int n = 0;
+            for (int slot = 0; slot < mKeys.length; slot++) {
+                if (mUsed[slot] && mSizes[slot] > 0) {
+                    keys[n++] = mKeys[slot];
+                }
+            }
+            keys = Arrays.copyOf(keys, n);
+            Arrays.sort(keys);
+            return keys;
+        }
+
+        void clear() {
+            allocate(64);
+        }
+
+        /**
+         * 复制整个表，之后两者互不影响
+         */
+        PostingTable copy() {
+            PostingTable copy = new PostingTable();
+            copy.mKeys = mKeys.clone();
+            copy.mLists = new int[mLists.length][];
+            for (int slot = 0; slot < mLists.length; slot++) {
+                if (mUsed[slot]) {
+                    copy.mLists[slot] = mLists[slot].clone();
+                }
+            }
+            copy.mSizes = mSizes.clone();
+            copy.mUsed = mUsed.clone();
+            copy.mCount = mCount;
+            return copy;
+        }
+
+        private void grow() {
+            long[] keys = mKeys;
+            int[][] lists = mLists;
+            int[] sizes = mSizes;
+            boolean[] used = mUsed;
+            int count = mCount;
+            allocate(keys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    int slot = slot(keys[i]);
+                    mUsed[slot] = true;
+                    mKeys[slot] = keys[i];
+                    mLists[slot] = lists[i];
+                    mSizes[slot] = sizes[i];
+                }
+            }
+            mCount = count;
+        }
+    }
+
+    /**
+     * 可增长的 int 数组
+     */
+    private static final class IntList {
+        int[] mData = new int[16];
+        int mSize;
+
+        void add(int value) {
+            if (mSize == mData.length) {
+                mData = Arrays.copyOf(mData, mSize * 2);
+            }
+            mData[mSize++] = value;
+        }
+
+        void clear() {
+            mSize = 0;
+        }
+
+        /**
+         * 与另一个升序数组合并，要求当前内容也是升序的
+         */
+        void union(int[] other, int otherSize) {
+            if (otherSize == 0) {
+                return;
+            }
+            int[] merged = new int[mSize + otherSize];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < mSize || j < otherSize) {
+                int next;
+                if (j == otherSize || (i < mSize && mData[i] < other[j])) {
+                    next = mData[i++];
+                } else if (i == mSize || other[j] < mData[i]) {
+                    next = other[j++];
+                } else {
+                    next = mData[i++];
+                    j++;
+                }
+                merged[n++] = next;
+            }
+            mData = merged;
+            mSize = n;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mData, mSize);
+        }
+
+        int[] sortedUnique() {
+            Arrays.sort(mData, 0, mSize);
+            int n = 0;
+            for (int i = 0; i < mSize; i++) {
+                if (n == 0 || mData[n - 1] != mData[i]) {
+                    mData[n++] = mData[i];
+                }
+            }
+            return Arrays.copyOf(mData, n);
+        }
+    }
+}
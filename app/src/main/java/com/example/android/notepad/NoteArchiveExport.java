@@ -0,0 +1,186 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.zip.Deflater;
+
+/**
+ * 把笔记导出为 ZIP：每条笔记一个文本文件，按分类放在不同的目录中，最后是清单文件
+ * {@value #MANIFEST_NAME}，列出每个文件对应的笔记。
+ *
+ * 笔记在调用线程中逐行读取并格式化，交给 {@link ParallelZipWriter} 在多个线程中压缩，
+ * 按读取的顺序写出。正文超过 {@value #STREAMING_NOTE_LENGTH} 个字符的笔记不在内存中格式化，
+ * 而是在调用线程中边格式化边压缩写出；其中超过 {@link NotePad.Notes#SHORT_NOTE_LENGTH} 的正文
+ * 不在 cursor 中，格式化器通过 {@link ExportSource.NoteText} 逐段读取、逐段压缩，任何时候只有一段
+ * 在内存中。除清单外，内存占用与笔记的数量和大小无关。
+ */
+final class NoteArchiveExport {
+    private static final String TAG = "NoteArchiveExport";
+
+    static final String MANIFEST_NAME = "manifest.json";
+
+    // 文件名中去掉的字符：路径分隔符、Windows 文件名中不允许的字符和控制字符
+    private static final String UNSAFE_CHARACTERS = "[\\\\/:*?\"<>|\\x00-\\x1f]";
+    private static final int MAX_NAME_LENGTH = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // 正文超过这个字符数的笔记边格式化边压缩，不经过内存中的副本
+    static final int STREAMING_NOTE_LENGTH = 64 * 1024;
+
+    private final ExportSource mSource;
+    private final ExportFormatter.Labels mLabels;
+    private final String mDefaultCategory;
+    private final File mFile;
+
+    /**
+     * @param defaultCategory 没有分类的笔记所在目录的名称
+     */
+    NoteArchiveExport(ExportSource source, ExportFormatter.Labels labels, String defaultCategory,
+            File file) {
+        mSource = source;
+        mLabels = labels;
+        mDefaultCategory = defaultCategory;
+        mFile = file;
+    }
+
+    /**
+     * 执行导出。被取消或失败时删除写了一半的文件。
+     *
+     * @return 写入的笔记数；被取消时返回 -1
+     * @throws IOException 写入失败
+     */
+    int run(ContentResolver resolver, ExportPipeline.Listener listener) throws IOException {
+        ParallelZipWriter zip = new ParallelZipWriter(
+                new BufferedOutputStream(new FileOutputStream(mFile), BUFFER_SIZE),
+                ParallelZipWriter.defaultThreads(), Deflater.DEFAULT_COMPRESSION);
+        boolean done = false;
+        try {
+            ExportFormatter formatter = ExportFormatter.singleNote(mLabels);
+            formatter.setContentResolver(resolver);
+            // 每条笔记先格式化到这里，再复制一份交给压缩线程
+            ByteArrayOutputStream noteBytes = new ByteArrayOutputStream();
+            Utf8ChannelWriter note = new Utf8ChannelWriter(Channels.newChannel(noteBytes), 8192);
+            ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+            Utf8ChannelWriter manifest = new Utf8ChannelWriter(Channels.newChannel(manifestBytes), 8192);
+            long now = System.currentTimeMillis();
+            manifest.write("{\"version\":1,\"created\":");
+            manifest.write(Long.toString(now));
+            manifest.write(",\"notes\":[");
+
+            int notes = 0;
+            int total = mSource.getKnownTotal();
+            Cursor cursor;
+            while (!listener.isCancelled() && (cursor = mSource.nextBatch(resolver)) != null) {
+                try {
+                    if (total < 0 && mSource.isSingleQuery()) {
+                        total = cursor.getCount();
+                    }
+                    while (cursor.moveToNext()) {
+                        long id = cursor.getLong(ExportSource.COLUMN_ID);
+                        String title = cursor.getString(ExportSource.COLUMN_TITLE);
+                        String category = cursor.getString(ExportSource.COLUMN_CATEGORY);
+                        long modified = cursor.getLong(ExportSource.COLUMN_MODIFICATION_DATE);
+                        String path = fileName(category != null ? category : mDefaultCategory)
+                                + "/" + fileName(title) + "_" + id + ".txt";
+
+                        long size;
+                        if (cursor.getLong(ExportSource.COLUMN_NOTE_LENGTH) > STREAMING_NOTE_LENGTH) {
+                            // 格式化器逐段读取正文写入压缩流，不经过完整的字符串
+                            ParallelZipWriter.EntryStream entry = zip.beginEntry(path, modified);
+                            Utf8ChannelWriter out = new Utf8ChannelWriter(Channels.newChannel(entry), 8192);
+                            formatter.writeNote(out, cursor);
+                            out.close();
+                            size = entry.getSize();
+                        } else {
+                            formatter.writeNote(note, cursor);
+                            note.flush();
+                            byte[] data = noteBytes.toByteArray();
+                            noteBytes.reset();
+                            zip.addEntry(path, data, modified);
+                            size = data.length;
+                        }
+
+                        manifest.write(notes == 0 ? "\n{\"id\":" : ",\n{\"id\":");
+                        manifest.write(Long.toString(id));
+                        manifest.write(",\"path\":");
+                        writeString(manifest, path);
+                        manifest.write(",\"title\":");
+                        writeString(manifest, title);
+                        manifest.write(",\"category\":");
+                        writeString(manifest, category);
+                        manifest.write(",\"created\":");
+                        manifest.write(Long.toString(cursor.getLong(ExportSource.COLUMN_CREATE_DATE)));
+                        manifest.write(",\"modified\":");
+                        manifest.write(Long.toString(modified));
+                        manifest.write(",\"size\":");
+                        manifest.write(Long.toString(size));
+                        manifest.write('}');
+
+                        notes++;
+                        listener.onNoteWritten(notes, total, zip.getBytesWritten());
+                        if (listener.isCancelled()) {
+                            return -1;
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            if (listener.isCancelled()) {
+                return -1;
+            }
+
+            manifest.write("\n]}\n");
+            manifest.flush();
+            zip.addEntry(MANIFEST_NAME, manifestBytes.toByteArray(), now);
+            zip.close();
+            done = true;
+            return notes;
+        } finally {
+            if (!done) {
+                zip.abort();
+                if (mFile.exists() && !mFile.delete()) {
+                    Log.w(TAG, "Unable to delete " + mFile);
+                }
+            }
+        }
+    }
+
+    private static void writeString(Utf8ChannelWriter out, String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+        } else {
+            ExportFormatter.Json.writeString(out, value.toCharArray(), value.length());
+        }
+    }
+
+    /**
+     * 把标题或分类名称变成可以用作文件名的字符串
+     */
+    static String fileName(String name) {
+        if (name == null) {
+            return "_";
+        }
+        String safe = name.replaceAll(UNSAFE_CHARACTERS, "_").trim();
+        if (safe.length() > MAX_NAME_LENGTH) {
+            int end = MAX_NAME_LENGTH;
+            if (Character.isHighSurrogate(safe.charAt(end - 1))) {
+                end--;
+            }
+            safe = safe.substring(0, end).trim();
+        }
+        // 不产生 . 和 .. 这样的目录名，也不产生隐藏文件
+        while (safe.startsWith(".")) {
+            safe = safe.substring(1);
+        }
+        return safe.length() > 0 ? safe : "_";
+    }
+}
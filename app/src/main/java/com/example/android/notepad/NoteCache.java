@@ -0,0 +1,229 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 进程内共享的笔记内容缓存。
+ *
+ * 笔记列表在手指按下时就在后台读取这条笔记的标题和正文放进缓存，松开手指启动编辑器时
+ * 通常已经读完，编辑器直接显示缓存的内容，数据库查询放到后台只用来确认缓存没有过期。
+ *
+ * 缓存按最近使用的顺序保存在 LinkedHashMap 中，总大小不超过字节预算，超出时丢弃最久没有
+ * 使用的笔记。很长的笔记不进入缓存，编辑器仍然按原来的方式分段读取。缓存的内容只是快照，
+ * 使用前要用版本号、长度、标题和分类与数据库比对。所有方法都可以在任意线程中调用。
+ */
+final class NoteCache {
+    private static final String TAG = "NoteCache";
+
+    /**
+     * 缓存占用内存的上限
+     */
+    static final int BYTE_BUDGET = 1024 * 1024;
+
+    /**
+     * 超过这个长度（码点数）的笔记不缓存
+     */
+    static final int MAX_NOTE_LENGTH = 32 * 1024;
+
+    // 每条缓存本身的大约开销
+    private static final int ENTRY_OVERHEAD = 64;
+
+    // 预读时查询的列
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            NotePad.Notes.COLUMN_NAME_VERSION,
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH
+    };
+
+    /**
+     * 一条缓存的笔记，创建后不再修改
+     */
+    static final class Entry {
+        final long noteId;
+        final String title;
+        final String note;
+        final long categoryId;
+        final long version;
+        // 正文的码点数，与 NotePad.Notes.COLUMN_NAME_NOTE_LENGTH 一致
+        final int noteLength;
+
+        Entry(long noteId, String title, String note, long categoryId, long version, int noteLength) {
+            this.noteId = noteId;
+            this.title = title;
+            this.note = note;
+            this.categoryId = categoryId;
+            this.version = version;
+            this.noteLength = noteLength;
+        }
+
+        int bytes() {
+            return ENTRY_OVERHEAD + 2 * (note.length() + (title != null ? title.length() : 0));
+        }
+
+        /**
+         * 与数据库中的当前值比较，判断缓存是否仍然有效
+         */
+        boolean matches(String title, long categoryId, long version, int noteLength) {
+            return this.version == version && this.noteLength == noteLength
+                    && this.categoryId == categoryId
+                    && (this.title == null ? title == null : this.title.equals(title));
+        }
+    }
+
+    private static NoteCache sInstance;
+
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private final int mByteBudget;
+    private int mBytes;
+
+    // 每次清空时递增，清空之前开始的预读结果不会放入缓存
+    private int mGeneration;
+
+    // 预读在这个线程中依次执行，不会同时占用多个数据库连接
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    NoteCache(int byteBudget) {
+        mByteBudget = byteBudget;
+    }
+
+    static synchronized NoteCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new NoteCache(BYTE_BUDGET);
+        }
+        return sInstance;
+    }
+
+    synchronized Entry get(long noteId) {
+        return mEntries.get(noteId);
+    }
+
+    /**
+     * 放入一条笔记，替换同一笔记原来的缓存。超出预算时丢弃最久没有使用的笔记。
+     */
+    synchronized void put(Entry entry) {
+        remove(entry.noteId);
+        if (entry.noteLength > MAX_NOTE_LENGTH || entry.bytes() > mByteBudget) {
+            return;
+        }
+        mEntries.put(entry.noteId, entry);
+        mBytes += entry.bytes();
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mBytes > mByteBudget && it.hasNext()) {
+            mBytes -= it.next().bytes();
+            it.remove();
+        }
+    }
+
+    private synchronized void put(Entry entry, int generation) {
+        if (generation == mGeneration) {
+            put(entry);
+        }
+    }
+
+    /**
+     * 笔记被修改或删除后调用
+     */
+    synchronized void remove(long noteId) {
+        Entry old = mEntries.remove(noteId);
+        if (old != null) {
+            mBytes -= old.bytes();
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+        mGeneration++;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized int bytes() {
+        return mBytes;
+    }
+
+    /**
+     * 在后台读取一条笔记放入缓存；已经缓存时什么也不做。
+     */
+    void prefetch(final ContentResolver resolver, final long noteId) {
+        if (get(noteId) != null) {
+            return;
+        }
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (get(noteId) != null) {
+                    return;
+                }
+                try {
+                    Entry entry = load(resolver, noteId);
+                    if (entry != null) {
+                        put(entry, generation);
+                    }
+                } catch (RuntimeException e) {
+                    // 预读失败不影响打开笔记，编辑器会自己从数据库读取
+                    Log.w(TAG, "Unable to prefetch note " + noteId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 从数据库读取一条笔记。先读版本号等元数据再读正文，两次读取之间笔记被修改时，
+     * 缓存的版本号比数据库中的旧，使用前的比对会发现缓存已过期。
+     *
+     * @return 读到的笔记；笔记不存在或太长时返回 null
+     */
+    static Entry load(ContentResolver resolver, long noteId) {
+        String title;
+        long categoryId;
+        long version;
+        int noteLength;
+        Cursor c = resolver.query(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                PROJECTION, null, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            title = c.getString(0);
+            categoryId = c.getLong(1);
+            version = c.getLong(2);
+            noteLength = c.getInt(3);
+        } finally {
+            c.close();
+        }
+        if (noteLength > MAX_NOTE_LENGTH) {
+            return null;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putInt(NotePad.Notes.KEY_OFFSET, 0);
+        extras.putInt(NotePad.Notes.KEY_LENGTH, noteLength);
+        Bundle result = resolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_READ_NOTE,
+                String.valueOf(noteId), extras);
+        if (result == null || result.getInt(NotePad.Notes.KEY_NOTE_LENGTH) != noteLength) {
+            return null;
+        }
+        String note = result.getString(NotePad.Notes.KEY_TEXT);
+        return new Entry(noteId, title, note != null ? note : "", categoryId, version, noteLength);
+    }
+}
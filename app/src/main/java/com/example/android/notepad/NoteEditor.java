@@ -17,12 +17,15 @@
 package com.example.android.notepad;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.database.Cursor;
@@ -31,8 +34,11 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.LiveFolders;
+import android.text.Editable;
+import android.text.Layout;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -47,6 +53,7 @@ import android.widget.SimpleCursorAdapter;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -68,18 +75,44 @@ public class NoteEditor extends Activity {
     private static final String TAG = "NoteEditor";
 
     /*
-     * Creates a projection that returns the note ID and the note contents.
+     * Creates a projection that returns the note ID and the length of the note contents. The
+     * contents themselves are read in chunks with NotePad.Notes.METHOD_READ_NOTE, so that a
+     * large note never has to fit into a CursorWindow.
      */
     private static final String[] PROJECTION =
         new String[] {
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
-            NotePad.Notes.COLUMN_NAME_NOTE,
-            NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            NotePad.Notes.COLUMN_NAME_VERSION
     };
 
+    /*
+     * A projection for copying a note from the clipboard.
+     */
+    private static final String[] PASTE_PROJECTION =
+        new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE
+    };
+
+    // 超过这个长度（码点数）的笔记进入大文档模式
+    private static final int LARGE_NOTE_LENGTH = 256 * 1024;
+
+    // 大文档模式下立即显示的第一段，足够填满一屏
+    private static final int FIRST_CHUNK_LENGTH = 8 * 1024;
+
+    // 分段读取正文时每段的长度
+    private static final int CHUNK_LENGTH = 64 * 1024;
+
     // A label for the saved state of the activity
     private static final String ORIGINAL_CONTENT = "origContent";
+    // 原始内容太长、没有写入Bundle时记下这一点，恢复后不能再把当前内容当作原始内容
+    private static final String ORIGINAL_CONTENT_DROPPED = "origContentDropped";
+
+    // 原始内容不超过这个长度时才写入Bundle，更长的内容只在配置变化时直接交给新的Activity
+    private static final int MAX_SAVED_CONTENT_LENGTH = 16 * 1024;
 
     // This Activity can be started by more than one action. Each action is represented
     // as a "state" constant
@@ -92,9 +125,44 @@ public class NoteEditor extends Activity {
     private Cursor mCursor;
     private EditText mText;
     private String mOriginalContent;
+    // 进程被回收前原始内容没有保存下来，此时不提供撤销更改
+    private boolean mOriginalContentLost;
     private Spinner mCategorySpinner;
     private ArrayAdapter<String> mCategoryAdapter;
     private long mCurrentCategoryId = NotePadProvider.Categories.DEFAULT_CATEGORY_ID;
+    private AutoSaver mAutoSaver;
+    private UndoHistory mUndoHistory;
+
+    // 大文档模式：正文分段加载，保存时只写入修改过的区间
+    private boolean mLargeDocument;
+    private LoadNoteTask mLoadTask;
+    // 数据库中的分类ID，只在写入线程中读写
+    private volatile long mSavedCategoryId;
+
+    /*
+     * 编辑器中的内容对应的版本号。保存时比较并更新，版本号不一致说明笔记已在别处被修改，
+     * 这时不覆盖，而是让用户选择保留自己的修改还是使用新的内容。
+     */
+    private volatile long mSavedVersion = -1;
+    private volatile boolean mConflict;
+    // 冲突时数据库中的版本号，笔记已被删除时为 -1
+    private volatile long mConflictVersion = -1;
+    private AlertDialog mConflictDialog;
+    // 配置变化前没有解决的冲突中编辑器的内容，onResume()中恢复后再次显示对话框
+    private String mConflictText;
+    private String mNoteTitle;
+
+    // 笔记列表预读的内容：onResume()先显示它，CheckCacheTask在后台确认它没有过期
+    private NoteCache.Entry mCachedNote;
+    private CheckCacheTask mCheckTask;
+
+    // 草稿日志：两次自动保存之间的修改，进程被杀掉后下次打开时恢复
+    private DraftJournal mJournal;
+    // 大文档加载完成后才能应用的恢复内容
+    private List<DraftJournal.Edit> mPendingRecovery;
+
+    // 在后台导出当前笔记
+    private ExportManager mExportManager;
 
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
@@ -116,6 +184,12 @@ public class NoteEditor extends Activity {
 
         /**
          * This is called to draw the LinedEditText object
+         *
+         * Only the lines that intersect the canvas clip bounds are ruled. The first and last
+         * visible lines are found with {@link Layout#getLineForVertical(int)}, which is a binary
+         * search, so the cost of a frame depends on the height of the view rather than on the
+         * length of the note.
+         *
          * @param canvas The canvas on which the background is drawn.
          */
         @Override
@@ -125,15 +199,31 @@ public class NoteEditor extends Activity {
 
             // Gets the number of lines of text in the View.
             int count = getLineCount();
+            Layout layout = getLayout();
+            if (count == 0 || layout == null) {
+                return;
+            }
 
             // Gets the global Rect and Paint objects
             Rect r = mRect;
             Paint paint = mPaint;
 
+            // The clip bounds are in view coordinates, which include the scroll offset. The
+            // difference between a line's baseline in the view and in the layout is the padding
+            // plus any gravity offset.
+            if (!canvas.getClipBounds(r)) {
+                return;
+            }
+            int clipTop = r.top;
+            int clipBottom = r.bottom;
+            int offset = getLineBounds(0, r) - layout.getLineBaseline(0);
+            int first = layout.getLineForVertical(Math.max(clipTop - offset, 0));
+            int last = layout.getLineForVertical(Math.max(clipBottom - offset, 0));
+
             /*
-             * Draws one line in the rectangle for every line of text in the EditText
+             * Draws one line in the rectangle for every visible line of text in the EditText
              */
-            for (int i = 0; i < count; i++) {
+            for (int i = first; i <= last && i < count; i++) {
 
                 // Gets the baseline coordinates for the current line of text
                 int baseline = getLineBounds(i, r);
@@ -210,7 +300,16 @@ public class NoteEditor extends Activity {
          * the block will be momentary, but in a real app you should use
          * android.content.AsyncQueryHandler or android.os.AsyncTask.
          */
+        RetainedState retained = (RetainedState) getLastNonConfigurationInstance();
         if (mState == STATE_EDIT) {
+            File journalFile = DraftJournal.fileFor(this, parseNoteId(mUri));
+            mJournal = new DraftJournal(journalFile);
+            // 笔记列表已经预读了这条笔记时不在这里查询；有草稿需要恢复或者有未解决的冲突时按通常的方式打开
+            if (!DraftJournal.exists(journalFile) && (retained == null || retained.conflictText == null)) {
+                mCachedNote = NoteCache.getInstance().get(parseNoteId(mUri));
+            }
+        }
+        if (mState == STATE_EDIT && mCachedNote == null) {
             mCursor = managedQuery(
                 mUri,         // The URI that gets multiple notes from the provider.
                 PROJECTION,   // A projection that returns the note ID and note content for each note.
@@ -238,6 +337,73 @@ public class NoteEditor extends Activity {
         // Gets a handle to the EditText in the the layout.
         mText = (EditText) findViewById(R.id.note);
         mCategorySpinner = (Spinner) findViewById(R.id.category_spinner);
+
+        /*
+         * 编辑已有笔记时自动保存：停止输入一段时间后在后台写入，内容没有变化时不写。
+         * 新建的笔记仍然在点击保存时插入。
+         */
+        final Uri noteUri = mUri;
+        mAutoSaver = new AutoSaver(mText, new AutoSaver.Callbacks() {
+            @Override
+            public long getExtraState() {
+                return mCurrentCategoryId;
+            }
+
+            @Override
+            public boolean save(String text, long categoryId) {
+                // 冲突解决之前不再写入，等用户在对话框中选择
+                if (mConflict) {
+                    return false;
+                }
+                NoteCache.getInstance().remove(parseNoteId(noteUri));
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+                if (!updateIfUnchanged(noteUri, values)) {
+                    return false;
+                }
+                mSavedCategoryId = categoryId;
+                return true;
+            }
+
+            @Override
+            public boolean savePatch(int offset, int length, String text, int expectedLength,
+                    long categoryId) {
+                if (mConflict) {
+                    return false;
+                }
+                NoteCache.getInstance().remove(parseNoteId(noteUri));
+                Bundle extras = new Bundle();
+                extras.putInt(NotePad.Notes.KEY_OFFSET, offset);
+                extras.putInt(NotePad.Notes.KEY_LENGTH, length);
+                extras.putString(NotePad.Notes.KEY_TEXT, text);
+                extras.putInt(NotePad.Notes.KEY_NOTE_LENGTH, expectedLength);
+                extras.putLong(NotePad.Notes.KEY_EXPECTED_VERSION, mSavedVersion);
+                Bundle result = getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                        NotePad.Notes.METHOD_PATCH_NOTE, String.valueOf(ContentUris.parseId(noteUri)),
+                        extras);
+                if (!onSaveResult(result)) {
+                    return false;
+                }
+                // 分类只在变化时写入
+                if (categoryId != mSavedCategoryId) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+                    if (!updateIfUnchanged(noteUri, values)) {
+                        return false;
+                    }
+                    mSavedCategoryId = categoryId;
+                }
+                return true;
+            }
+
+            @Override
+            public long getSavedVersion() {
+                return mSavedVersion;
+            }
+        });
+        mAutoSaver.setJournal(mJournal);
         
         // 初始化保存按钮
         Button mBtnSave = (Button) findViewById(R.id.btn_save);
@@ -246,8 +412,7 @@ public class NoteEditor extends Activity {
                 @Override
                 public void onClick(View v) {
                     // 保存笔记
-                    String text = mText.getText().toString();
-                    updateNote(text, null);
+                    saveNote();
                     finish();
                 }
             });
@@ -258,12 +423,65 @@ public class NoteEditor extends Activity {
         // 分类适配器已在initializeCategorySpinner()中设置
 
         /*
-         * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
-         * location in the saved Instance state. This gets the state.
+         * 配置变化（例如旋转屏幕、切换主题）后，撤销历史和原始内容由上一个Activity直接交过来。
+         * Otherwise, if this Activity had stopped previously, its state was written the
+         * ORIGINAL_CONTENT location in the saved Instance state. This gets the state.
          */
-        if (savedInstanceState != null) {
-            mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
+        if (retained != null) {
+            mUndoHistory = retained.undoHistory;
+            mOriginalContent = retained.originalContent;
+            mOriginalContentLost = retained.originalContentLost;
+            if (retained.conflictText != null) {
+                mConflict = true;
+                mConflictVersion = retained.conflictVersion;
+                mSavedVersion = retained.savedVersion;
+                mConflictText = retained.conflictText;
+                mNoteTitle = retained.noteTitle;
+                mCurrentCategoryId = retained.categoryId;
+                mSavedCategoryId = retained.savedCategoryId;
+                mLargeDocument = retained.largeDocument;
+            }
+        } else {
+            mUndoHistory = new UndoHistory();
+            if (savedInstanceState != null) {
+                mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
+                mOriginalContentLost = savedInstanceState.getBoolean(ORIGINAL_CONTENT_DROPPED);
+            }
         }
+        mText.addTextChangedListener(mUndoHistory);
+    }
+
+    // 配置变化时交给新Activity的状态，不经过Bundle
+    private static class RetainedState {
+        UndoHistory undoHistory;
+        String originalContent;
+        boolean originalContentLost;
+        // 未解决的保存冲突，没有冲突时 conflictText 为 null
+        String conflictText;
+        long conflictVersion;
+        long savedVersion;
+        String noteTitle;
+        long categoryId;
+        long savedCategoryId;
+        boolean largeDocument;
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        RetainedState state = new RetainedState();
+        state.undoHistory = mUndoHistory;
+        state.originalContent = mOriginalContent;
+        state.originalContentLost = mOriginalContentLost;
+        if (mConflict) {
+            state.conflictText = mText.getText().toString();
+            state.conflictVersion = mConflictVersion;
+            state.savedVersion = mSavedVersion;
+            state.noteTitle = mNoteTitle;
+            state.categoryId = mCurrentCategoryId;
+            state.savedCategoryId = mSavedCategoryId;
+            state.largeDocument = mLargeDocument;
+        }
+        return state;
     }
 
     /**
@@ -278,82 +496,225 @@ public class NoteEditor extends Activity {
     protected void onResume() {
         super.onResume();
 
+        /*
+         * 笔记列表预读过这条笔记时先显示缓存的内容，数据库查询放到后台，只用来确认缓存没有过期。
+         */
+        if (mCachedNote != null) {
+            showCachedNote(mCachedNote);
+            mCheckTask = new CheckCacheTask(mCachedNote);
+            mCachedNote = null;
+            mCheckTask.execute();
+
         /*
          * mCursor is initialized, since onCreate() always precedes onResume for any running
          * process. This tests that it's not null, since it should always contain data.
          */
-        if (mCursor != null) {
-            // Requery in case something changed while paused (such as the title)
-            mCursor.requery();
-
-            /* Moves to the first record. Always call moveToFirst() before accessing data in
-             * a Cursor for the first time. The semantics of using a Cursor are that when it is
-             * created, its internal index is pointing to a "place" immediately before the first
-             * record.
-             */
-            mCursor.moveToFirst();
-
-            // Modifies the window title for the Activity according to the current Activity state.
-            if (mState == STATE_EDIT) {
-                // Set the title of the Activity to include the note title
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String title = mCursor.getString(colTitleIndex);
-                Resources res = getResources();
-                String text = String.format(res.getString(R.string.title_edit), title);
-                setTitle(text);
-            // Sets the title to "create" for inserts
-            } else if (mState == STATE_INSERT) {
-                setTitle(getText(R.string.title_create));
+        } else if (mCursor != null) {
+            // 有未解决的保存冲突时保留编辑器中的内容，等用户在对话框中选择
+            if (!mConflict) {
+                // Requery in case something changed while paused (such as the title)
+                mCursor.requery();
+                showNote();
+            } else if (mConflictText != null) {
+                showConflictText();
             }
 
-            /*
-             * onResume() may have been called after the Activity lost focus (was paused).
-             * The user was either editing or creating a note when the Activity paused.
-             * The Activity should re-display the text that had been retrieved previously, but
-             * it should not move the cursor. This helps the user to continue editing or entering.
-             */
+        /*
+         * Something is wrong. The Cursor should always contain data. Report an error in the
+         * note. However, in INSERT state, mCursor is intentionally null, and while the cached
+         * note is being checked the cursor doesn't exist yet, so don't show error.
+         */
+        } else if (mState != STATE_INSERT && mCheckTask == null) {
+            setTitle(getText(R.string.error_title));
+            mText.setText(getText(R.string.error_message));
+        }
+    }
 
-            // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-            // the text cursor's position.
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
-            // Ensure note is not null to avoid input issues
-            if (note == null) {
-                note = "";
-            }
-            mText.setTextKeepState(note);
+    /**
+     * Moves to the first record of mCursor and shows the note's title, category and contents.
+     */
+    private void showNote() {
+        /* Moves to the first record. Always call moveToFirst() before accessing data in
+         * a Cursor for the first time. The semantics of using a Cursor are that when it is
+         * created, its internal index is pointing to a "place" immediately before the first
+         * record.
+         */
+        mCursor.moveToFirst();
 
-            // Stores the original note text, to allow the user to revert changes.
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
-            }
-            
-            // 加载笔记的分类ID
-            int colCategoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
-            if (colCategoryIndex != -1) {
-                mCurrentCategoryId = mCursor.getLong(colCategoryIndex);
-                
-                // 如果分类Spinner已经初始化，设置选中项
-            if (mCategorySpinner != null && mCategoryAdapter != null && mCategoryNames != null) {
-                // 遍历分类名称列表，找到匹配的分类ID
-                for (int i = 0; i < mCategoryNames.size(); i++) {
-                    String categoryName = mCategoryNames.get(i);
-                    if (mCategoryIdMap.get(categoryName) == mCurrentCategoryId) {
-                        mCategorySpinner.setSelection(i);
-                        break;
-                    }
-                }
-            }
-            }
+        // Modifies the window title for the Activity according to the current Activity state.
+        if (mState == STATE_EDIT) {
+            // Set the title of the Activity to include the note title
+            int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+            String title = mCursor.getString(colTitleIndex);
+            mNoteTitle = title;
+            Resources res = getResources();
+            String text = String.format(res.getString(R.string.title_edit), title);
+            setTitle(text);
+        // Sets the title to "create" for inserts
+        } else if (mState == STATE_INSERT) {
+            setTitle(getText(R.string.title_create));
+        }
 
         /*
-         * Something is wrong. The Cursor should always contain data. Report an error in the
-         * note. However, in INSERT state, mCursor is intentionally null, so don't show error.
+         * onResume() may have been called after the Activity lost focus (was paused).
+         * The user was either editing or creating a note when the Activity paused.
+         * The Activity should re-display the text that had been retrieved previously, but
+         * it should not move the cursor. This helps the user to continue editing or entering.
          */
-        } else if (mState != STATE_INSERT) {
+
+        // 加载笔记的分类ID
+        int colCategoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        if (colCategoryIndex != -1) {
+            mCurrentCategoryId = mCursor.getLong(colCategoryIndex);
+            mSavedCategoryId = mCurrentCategoryId;
+        }
+
+        // Gets the note text and puts it in the TextView, but doesn't change the text
+        // cursor's position. 显示笔记内容不算用户的修改，内容不变时自动保存不会写入
+        int colLengthIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH);
+        int noteLength = mCursor.getInt(colLengthIndex);
+        long version = mCursor.getLong(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_VERSION));
+        try {
+            if (noteLength > LARGE_NOTE_LENGTH) {
+                /*
+                 * 大文档模式：先显示第一段，其余部分在后台加载。onPause()已经把修改写入
+                 * 数据库，再次回到前台时编辑器中的内容就是最新的，不重新加载。
+                 * 原始内容不保存在内存中，也不提供恢复。
+                 */
+                if (!mLargeDocument) {
+                    mLargeDocument = true;
+                    mSavedVersion = version;
+                    String head = readNoteChunk(getContentResolver(), mUri, 0, FIRST_CHUNK_LENGTH);
+                    // 草稿中的修改要等全文加载完才能应用，在这之前不允许编辑，避免位置错开
+                    mPendingRecovery = mJournal != null ? mJournal.recover(version) : null;
+                    if (mPendingRecovery != null && !mPendingRecovery.isEmpty()) {
+                        mText.setEnabled(false);
+                    }
+                    mUndoHistory.setRecording(false);
+                    try {
+                        mAutoSaver.beginContent(head, noteLength);
+                    } finally {
+                        mUndoHistory.setRecording(true);
+                    }
+                    mLoadTask = new LoadNoteTask(head.codePointCount(0, head.length()), noteLength);
+                    mLoadTask.execute();
+                }
+            } else if (mLoadTask == null) {
+                String note = readNote(noteLength);
+                mLargeDocument = false;
+                mSavedVersion = version;
+                showContent(note);
+
+                // Stores the original note text, to allow the user to revert changes.
+                // 原始内容在进程被回收时丢失的话，数据库中已经是自动保存的内容，不能当作原始内容
+                if (mOriginalContent == null && !mOriginalContentLost) {
+                    mOriginalContent = note;
+                }
+                recoverDraft(version);
+            }
+        } catch (IllegalArgumentException e) {
+            // 笔记已经被删除
+            Log.e(TAG, "Unable to read note " + mUri, e);
             setTitle(getText(R.string.error_title));
             mText.setText(getText(R.string.error_message));
         }
+
+        selectCategory();
+    }
+
+    /**
+     * 配置变化后恢复冲突时编辑器中的内容，这些修改仍然没有保存，然后再次让用户选择
+     */
+    private void showConflictText() {
+        setTitle(String.format(getResources().getString(R.string.title_edit), mNoteTitle));
+        mUndoHistory.setRecording(false);
+        try {
+            mAutoSaver.setUnsavedContent(mConflictText);
+        } finally {
+            mUndoHistory.setRecording(true);
+        }
+        mConflictText = null;
+        // 编辑器中的内容已经包含日志中的修改，日志从冲突前的版本重新开始记录
+        if (mJournal != null) {
+            mJournal.recover(mSavedVersion);
+        }
+        selectCategory();
+        showConflictDialog();
+    }
+
+    /**
+     * 显示笔记列表预读的内容
+     */
+    private void showCachedNote(NoteCache.Entry entry) {
+        Resources res = getResources();
+        setTitle(String.format(res.getString(R.string.title_edit), entry.title));
+        mNoteTitle = entry.title;
+        mCurrentCategoryId = entry.categoryId;
+        mSavedCategoryId = entry.categoryId;
+        mLargeDocument = false;
+        mSavedVersion = entry.version;
+        showContent(entry.note);
+        if (mOriginalContent == null && !mOriginalContentLost) {
+            mOriginalContent = entry.note;
+        }
+        // 有草稿时不使用缓存，这里只是让日志从这个版本开始记录
+        recoverDraft(entry.version);
+        selectCategory();
+    }
+
+    /**
+     * 把草稿日志中在这个版本之后的修改应用到刚显示的内容上，并立即保存
+     */
+    private void recoverDraft(long version) {
+        if (mJournal != null) {
+            applyDraft(mJournal.recover(version));
+        }
+    }
+
+    private void applyDraft(List<DraftJournal.Edit> edits) {
+        if (edits == null || edits.isEmpty()) {
+            return;
+        }
+        Editable text = mText.getText();
+        int applied = 0;
+        for (DraftJournal.Edit edit : edits) {
+            if (!edit.applyTo(text)) {
+                Log.w(TAG, "Draft edit " + edit.seq + " does not fit note " + mUri + ", stopping");
+                break;
+            }
+            applied++;
+        }
+        if (applied > 0) {
+            mAutoSaver.saveNow();
+            Toast.makeText(this, R.string.draft_recovered, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * 把从数据库读出的内容放进编辑器。这不是用户的修改，不进入撤销历史，内容不变时自动保存也不会写入
+     */
+    private void showContent(String note) {
+        mUndoHistory.setRecording(false);
+        try {
+            mAutoSaver.setContent(note, mCurrentCategoryId);
+        } finally {
+            mUndoHistory.setRecording(true);
+        }
+    }
+
+    // 在分类选择器中选中当前的分类
+    private void selectCategory() {
+        // 如果分类Spinner已经初始化，设置选中项
+        if (mCategorySpinner != null && mCategoryAdapter != null && mCategoryNames != null) {
+            // 遍历分类名称列表，找到匹配的分类ID
+            for (int i = 0; i < mCategoryNames.size(); i++) {
+                String categoryName = mCategoryNames.get(i);
+                if (mCategoryIdMap.get(categoryName) == mCurrentCategoryId) {
+                    mCategorySpinner.setSelection(i);
+                    break;
+                }
+            }
+        }
     }
 
     /**
@@ -367,8 +728,13 @@ public class NoteEditor extends Activity {
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         // Save away the original text, so we still have it if the activity
-        // needs to be killed while paused.
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        // needs to be killed while paused. 很长的原始内容不写入Bundle，避免超出Binder事务的大小限制，
+        // 只记下它没有保存，恢复后隐藏撤销更改
+        if (mOriginalContent != null && mOriginalContent.length() <= MAX_SAVED_CONTENT_LENGTH) {
+            outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        } else if (mOriginalContent != null || mOriginalContentLost) {
+            outState.putBoolean(ORIGINAL_CONTENT_DROPPED, true);
+        }
     }
 
     /**
@@ -390,14 +756,14 @@ public class NoteEditor extends Activity {
         /*
          * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
          * will exist, even if no records were returned, unless the query failed because of some
-         * exception or error.
-         *
+         * exception or error. While the cached note is being checked the cursor doesn't exist yet,
+         * but the note is open.
          */
-        if (mCursor != null) {
+        if (isNoteOpen()) {
 
-            // Get the current note text.
-            String text = mText.getText().toString();
-            int length = text.length();
+            // Get the length of the current note text. The text itself is only copied when a
+            // new note is inserted; edits to an existing note are saved by mAutoSaver.
+            int length = mText.length();
 
             /*
              * If the Activity is in the midst of finishing and there is no text in the current
@@ -416,10 +782,24 @@ public class NoteEditor extends Activity {
                  * that is being edited.
                  */
             } else if (mState == STATE_EDIT) {
-                // Creates a map to contain the new values for the columns
-                updateNote(text, null);
+                // 保存尚未写入的修改并等待写入完成；没有修改或内容没变时不写数据库
+                mAutoSaver.saveNow();
+                if (mJournal != null) {
+                    mJournal.requestSync();
+                }
+                // 按区间保存时没有更新全文索引，编辑结束后让 provider 在后台补上
+                if (mLargeDocument && isFinishing()) {
+                    getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                            NotePad.Notes.METHOD_UPDATE_SEARCH_INDEX, null, null);
+                }
+                // 保存冲突还没有解决，而用户离开了编辑器时，把修改另存为一条新笔记。
+                // 配置变化时冲突交给新的Activity，见 onRetainNonConfigurationInstance()
+                if (mConflict && isFinishing()) {
+                    saveConflictCopy();
+                }
             } else if (mState == STATE_INSERT) {
                 if (length > 0) {
+                    String text = mText.getText().toString();
                     updateNote(text, text);
                     mState = STATE_EDIT;
                 } else {
@@ -461,15 +841,11 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        // Check if note has changed and enable/disable the revert option
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
-            menu.findItem(R.id.menu_revert).setVisible(false);
-        } else {
-            menu.findItem(R.id.menu_revert).setVisible(true);
-        }
+        // 打开笔记后修改过时才显示恢复选项。只比较修改计数，不读取和比较全文。
+        // 大文档模式不保留原始内容，不能恢复
+        // 原始内容没有保留下来（进程被回收过）时无法撤销
+        menu.findItem(R.id.menu_revert).setVisible(mAutoSaver.hasEdits() && !mLargeDocument
+                && mOriginalContent != null);
         return true;
     }
 
@@ -487,12 +863,21 @@ public class NoteEditor extends Activity {
         // Handle all of the possible menu actions.
         int id = item.getItemId();
         if(id== R.id.menu_save) {
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            saveNote();
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
             finish();
+        } else if (id == R.id.menu_undo) {
+            int position = mUndoHistory.undo(mText.getText());
+            if (position >= 0) {
+                mText.setSelection(position);
+            }
+        } else if (id == R.id.menu_redo) {
+            int position = mUndoHistory.redo(mText.getText());
+            if (position >= 0) {
+                mText.setSelection(position);
+            }
         } else if (id == R.id.menu_revert) {
             cancelNote();
         } else if (id == R.id.menu_theme_toggle) {
@@ -513,8 +898,10 @@ public class NoteEditor extends Activity {
      */
     private void exportCurrentNote() {
         if (mUri != null) {
-            ExportManager exportManager = new ExportManager(this);
-            exportManager.exportSingleNote(mUri);
+            if (mExportManager == null) {
+                mExportManager = new ExportManager(this);
+            }
+            mExportManager.exportSingleNote(mUri);
         } else {
             Toast.makeText(this, R.string.export_error_note_not_found, Toast.LENGTH_SHORT).show();
         }
@@ -554,7 +941,7 @@ public class NoteEditor extends Activity {
                 // The clipboard holds a reference to data with a note MIME type. This copies it.
                 Cursor orig = cr.query(
                         uri,            // URI for the content provider
-                        PROJECTION,     // Get the columns referred to in the projection
+                        PASTE_PROJECTION, // Get the columns referred to in the projection
                         null,           // No selection variables
                         null,           // No selection variables, so no criteria are needed
                         null            // Use the default sort order
@@ -635,7 +1022,11 @@ public class NoteEditor extends Activity {
                 @Override
                 public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                     String selectedCategory = categoryNames.get(position);
-                    mCurrentCategoryId = categoryIdMap.get(selectedCategory);
+                    long categoryId = categoryIdMap.get(selectedCategory);
+                    if (categoryId != mCurrentCategoryId) {
+                        mCurrentCategoryId = categoryId;
+                        mAutoSaver.markDirty();
+                    }
                     
                     // 确保文字可见
                     if (view instanceof TextView) {
@@ -658,6 +1049,17 @@ public class NoteEditor extends Activity {
         mCategoryNames = categoryNames;
     }
     
+    /**
+     * 保存按钮：已有的笔记立即保存未写入的修改，新建的笔记插入数据库
+     */
+    private void saveNote() {
+        if (mState == STATE_EDIT && mUri != null && isNoteOpen()) {
+            mAutoSaver.saveNow();
+        } else {
+            updateNote(mText.getText().toString(), null);
+        }
+    }
+
     private final void updateNote(String text, String title) {
 
         // Sets up a map to contain values to be updated in the provider.
@@ -732,14 +1134,23 @@ public class NoteEditor extends Activity {
      * newly created, or reverts to the original text of the note i
      */
     private final void cancelNote() {
-        if (mCursor != null) {
-            if (mState == STATE_EDIT) {
+        if (isNoteOpen()) {
+            if (mState == STATE_EDIT && mOriginalContent != null) {
+                // 停止自动保存，等待正在进行的写入结束，避免它覆盖恢复的内容
+                mAutoSaver.discard();
+                if (mJournal != null) {
+                    mJournal.delete();
+                }
                 // Put the original note text back into the database
-                mCursor.close();
-                mCursor = null;
+                closeNote();
+                NoteCache.getInstance().remove(parseNoteId(mUri));
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                // 与自动保存一样比较版本号，笔记在别处被修改过时不覆盖别处的修改
+                Bundle result = callUpdateNote(mUri, values);
+                if (result == null || result.getInt(NotePad.Notes.KEY_COUNT) == 0) {
+                    Toast.makeText(this, R.string.revert_conflict, Toast.LENGTH_LONG).show();
+                }
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -753,11 +1164,363 @@ public class NoteEditor extends Activity {
      * Take care of deleting a note.  Simply deletes the entry.
      */
     private final void deleteNote() {
+        if (isNoteOpen()) {
+            mAutoSaver.discard();
+            if (mJournal != null) {
+                mJournal.delete();
+            }
+            closeNote();
+            NoteCache.getInstance().remove(parseNoteId(mUri));
+            getContentResolver().delete(mUri, null, null);
+            mText.setText("");
+        }
+    }
+
+    /**
+     * 在写入线程中比较并更新笔记，数据库中的版本号与编辑器中内容的版本号一致时才写入
+     *
+     * @return 已经写入时返回 true；笔记已在别处被修改或删除时返回 false，并提示用户
+     */
+    private boolean updateIfUnchanged(Uri noteUri, ContentValues values) {
+        return onSaveResult(callUpdateNote(noteUri, values));
+    }
+
+    /**
+     * 以 mSavedVersion 为期望的版本号比较并更新笔记，返回 provider 的结果，不处理冲突
+     */
+    private Bundle callUpdateNote(Uri noteUri, ContentValues values) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.KEY_VALUES, values);
+        extras.putLong(NotePad.Notes.KEY_EXPECTED_VERSION, mSavedVersion);
+        return getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_UPDATE_NOTE, String.valueOf(ContentUris.parseId(noteUri)), extras);
+    }
+
+    /**
+     * 处理比较并更新的结果，在写入线程中调用。写入成功时记下新的版本号；
+     * 版本号不一致时在主线程中显示冲突对话框。
+     */
+    private boolean onSaveResult(Bundle result) {
+        if (result == null) {
+            return false;
+        }
+        long version = result.getLong(NotePad.Notes.KEY_VERSION, -1);
+        if (result.getInt(NotePad.Notes.KEY_COUNT) > 0) {
+            mSavedVersion = version;
+            return true;
+        }
+        if (version != mSavedVersion) {
+            Log.w(TAG, "Note " + mUri + " changed elsewhere, version " + mSavedVersion + " -> " + version);
+            mConflictVersion = version;
+            mConflict = true;
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    showConflictDialog();
+                }
+            });
+        }
+        return false;
+    }
+
+    /**
+     * 让用户选择保留自己的修改（覆盖别处的修改），还是放弃自己的修改、重新读取笔记。
+     * 笔记已被删除时，保留修改就是另存为一条新笔记。
+     */
+    private void showConflictDialog() {
+        if (mConflictDialog != null || !mConflict || isFinishing()) {
+            return;
+        }
+        mConflictDialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.save_conflict_title)
+                .setMessage(R.string.save_conflict_message)
+                .setCancelable(false)
+                .setPositiveButton(R.string.save_conflict_keep_mine, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mConflictDialog = null;
+                        mConflict = false;
+                        if (mConflictVersion < 0) {
+                            saveConflictCopy();
+                            finish();
+                        } else {
+                            // 以数据库中的版本为基础重新保存，期间又被修改时会再次提示
+                            mSavedVersion = mConflictVersion;
+                            mAutoSaver.saveNow();
+                        }
+                    }
+                })
+                .setNegativeButton(R.string.save_conflict_reload, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mConflictDialog = null;
+                        mConflict = false;
+                        reloadNote();
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * 放弃编辑器中的修改，重新读取数据库中的笔记
+     */
+    private void reloadNote() {
+        if (mCursor == null) {
+            return;
+        }
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        mLargeDocument = false;
+        mText.setEnabled(true);
+        mUndoHistory.clear();
+        NoteCache.getInstance().remove(parseNoteId(mUri));
+        if (mJournal != null) {
+            mJournal.delete();
+        }
+        mCursor.requery();
+        showNote();
+    }
+
+    /**
+     * 把编辑器中的内容另存为一条新笔记，用于无法写回原来的笔记的情况
+     */
+    private void saveConflictCopy() {
+        mConflict = false;
+        String title = getString(R.string.conflict_copy_title,
+                mNoteTitle != null ? mNoteTitle : getString(android.R.string.untitled));
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, mText.getText().toString());
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, mCurrentCategoryId);
+        if (getContentResolver().insert(NotePad.Notes.CONTENT_URI, values) != null) {
+            Toast.makeText(this, R.string.conflict_copy_saved, Toast.LENGTH_LONG).show();
+        }
+        // 修改已经另存，不再写回原来的笔记
+        mAutoSaver.discard();
+        if (mJournal != null) {
+            mJournal.delete();
+        }
+    }
+
+    /**
+     * 笔记已经查询成功，或者正在后台确认缓存的内容
+     */
+    private boolean isNoteOpen() {
+        return mCursor != null || mCheckTask != null;
+    }
+
+    // 关闭笔记的Cursor，停止确认缓存
+    private void closeNote() {
+        if (mCheckTask != null) {
+            mCheckTask.cancel(false);
+            mCheckTask = null;
+        }
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
-            getContentResolver().delete(mUri, null, null);
-            mText.setText("");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 从笔记的URI中取出ID，URI不指向单条笔记时返回 -1
+     */
+    private static long parseNoteId(Uri noteUri) {
+        try {
+            return ContentUris.parseId(noteUri);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 读取完整的正文，每次读取一段
+     *
+     * @param length 正文的码点数
+     */
+    private String readNote(int length) {
+        StringBuilder note = new StringBuilder(length);
+        int offset = 0;
+        while (offset < length) {
+            String chunk = readNoteChunk(getContentResolver(), mUri, offset, CHUNK_LENGTH);
+            if (chunk.length() == 0) {
+                break;
+            }
+            note.append(chunk);
+            offset += chunk.codePointCount(0, chunk.length());
+        }
+        return note.toString();
+    }
+
+    /**
+     * 通过provider读取正文的一段，位置和长度以码点计
+     */
+    private static String readNoteChunk(ContentResolver resolver, Uri noteUri, int offset, int length) {
+        Bundle extras = new Bundle();
+        extras.putInt(NotePad.Notes.KEY_OFFSET, offset);
+        extras.putInt(NotePad.Notes.KEY_LENGTH, length);
+        Bundle result = resolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_READ_NOTE,
+                String.valueOf(ContentUris.parseId(noteUri)), extras);
+        String text = result != null ? result.getString(NotePad.Notes.KEY_TEXT) : null;
+        return text != null ? text : "";
+    }
+
+    /**
+     * 大文档模式下在后台读取第一段之后的正文，每读取一段就追加到编辑器中
+     */
+    private class LoadNoteTask extends AsyncTask<Void, String, Boolean> {
+        private final ContentResolver mResolver = getContentResolver();
+        private final Uri mNoteUri = mUri;
+        private int mOffset;
+        private final int mLength;
+
+        LoadNoteTask(int offset, int length) {
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                while (mOffset < mLength && !isCancelled()) {
+                    String chunk = readNoteChunk(mResolver, mNoteUri, mOffset, CHUNK_LENGTH);
+                    if (chunk.length() == 0) {
+                        break;
+                    }
+                    mOffset += chunk.codePointCount(0, chunk.length());
+                    publishProgress(chunk);
+                }
+                return true;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to load note " + mNoteUri, e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(String... chunks) {
+            // 追加的是已保存的内容，不是用户的修改，不进入撤销历史
+            mUndoHistory.setRecording(false);
+            try {
+                for (String chunk : chunks) {
+                    mAutoSaver.appendContent(chunk);
+                }
+            } finally {
+                mUndoHistory.setRecording(true);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean loaded) {
+            mLoadTask = null;
+            List<DraftJournal.Edit> recovered = mPendingRecovery;
+            mPendingRecovery = null;
+            if (loaded) {
+                mAutoSaver.endContent();
+                if (recovered != null && !recovered.isEmpty()) {
+                    mText.setEnabled(true);
+                    applyDraft(recovered);
+                }
+            } else {
+                // 只加载了一部分的内容不能保存，否则会截断笔记
+                Toast.makeText(NoteEditor.this, R.string.large_note_load_failed, Toast.LENGTH_LONG).show();
+                mText.setEnabled(false);
+            }
+        }
+    }
+
+    /**
+     * 在后台查询笔记，确认编辑器中显示的缓存内容没有过期。查询到的Cursor之后由Activity管理，
+     * 缓存过期时丢弃它，按通常的方式重新显示笔记。
+     */
+    private class CheckCacheTask extends AsyncTask<Void, Void, Cursor> {
+        private final ContentResolver mResolver = getContentResolver();
+        private final Uri mNoteUri = mUri;
+        private final NoteCache.Entry mEntry;
+
+        CheckCacheTask(NoteCache.Entry entry) {
+            mEntry = entry;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            try {
+                Cursor cursor = mResolver.query(mNoteUri, PROJECTION, null, null, null);
+                if (cursor != null) {
+                    // 在后台线程中填充CursorWindow
+                    cursor.getCount();
+                }
+                return cursor;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to query note " + mNoteUri, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            mCheckTask = null;
+            if (cursor == null || !cursor.moveToFirst()) {
+                // 笔记已经被删除
+                if (cursor != null) {
+                    cursor.close();
+                }
+                NoteCache.getInstance().remove(mEntry.noteId);
+                setTitle(getText(R.string.error_title));
+                mText.setText(getText(R.string.error_message));
+                return;
+            }
+            startManagingCursor(cursor);
+            mCursor = cursor;
+
+            String title = cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE));
+            long categoryId = cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID));
+            long version = cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_VERSION));
+            int noteLength = cursor.getInt(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH));
+            if (!mEntry.matches(title, categoryId, version, noteLength)) {
+                // 缓存已过期，以数据库中的内容为准，基于旧内容的撤销历史也不再有效
+                Log.i(TAG, "Cached note " + mEntry.noteId + " is stale, reloading");
+                NoteCache.getInstance().remove(mEntry.noteId);
+                mOriginalContent = null;
+                mUndoHistory.clear();
+                showNote();
+            }
+        }
+    }
+
+    /**
+     * 停止后台加载，结束自动保存的写入线程
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        if (mCheckTask != null) {
+            mCheckTask.cancel(false);
+        }
+        if (mConflictDialog != null) {
+            // 新的Activity会重新显示
+            mConflictDialog.dismiss();
+            mConflictDialog = null;
+        }
+        if (mAutoSaver != null) {
+            mAutoSaver.destroy();
+        }
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        if (mExportManager != null) {
+            mExportManager.release();
+        }
+    }
+}
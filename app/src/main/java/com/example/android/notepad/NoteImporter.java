@@ -0,0 +1,767 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 批量导入笔记：读取本应用导出的文本文件、NDJSON/JSON 文件和二进制归档，以及普通文本文件组成的目录。
+ *
+ * 调用线程按顺序读取文件，大文件在记录边界处切成若干段；解析在线程池中进行，
+ * 结果按读取的顺序收集，每 {@value #BATCH_SIZE} 条笔记通过
+ * {@link ContentResolver#bulkInsert} 在一个事务中写入，分类按名称查找或创建。
+ * 同时在解析和等待解析的段数有上限，内存占用与文件大小无关。
+ *
+ * 目录中的文件按所在的下一级子目录归入同名分类，所以 ZIP 导出解压后的目录可以原样导入。
+ * 增量导出中的删除记录不会导入，Markdown 文件作为普通文本导入，CSV 和 HTML 文件被忽略。
+ * gzip 压缩的文件（.gz）边读边解压，按去掉 .gz 之后的文件名处理。
+ * 导入的笔记保留原来的创建时间，修改时间是导入的时间，这样它们总在下一次增量导出的范围内。
+ * {@link #importFiles} 在调用线程中同步执行，应在后台线程中调用。
+ */
+final class NoteImporter {
+    private static final String TAG = "NoteImporter";
+
+    /**
+     * 导入过程中的回调，在导入线程中调用
+     */
+    interface Listener {
+        /**
+         * 每写入一批笔记后检查，返回 true 时停止导入
+         */
+        boolean isCancelled();
+
+        /**
+         * @param notes 已经写入的笔记数
+         * @param filesDone 已经处理完的文件数
+         * @param totalFiles 文件总数
+         */
+        void onProgress(int notes, int filesDone, int totalFiles);
+    }
+
+    // 每次 bulkInsert 写入的笔记数，即一个事务的大小
+    static final int BATCH_SIZE = 2000;
+    // 不超过这个大小的文件由解析线程整个读入
+    private static final long SMALL_FILE_SIZE = 1024 * 1024;
+    // 大文件每段的字符数
+    private static final int CHUNK_CHARS = 256 * 1024;
+
+    private static final int FORMAT_PLAIN = 0;
+    private static final int FORMAT_SINGLE_NOTE = 1;
+    private static final int FORMAT_EXPORT_TEXT = 2;
+    private static final int FORMAT_JSON_LINES = 3;
+
+    private static final List<String> JSON_EXTENSIONS = Arrays.asList("json", "ndjson", "jsonl");
+    private static final List<String> TEXT_EXTENSIONS = Arrays.asList("txt", "text", "md", "markdown");
+
+    // 导出文本中笔记之间的分隔：正文之后的空行和分隔线
+    private static final String RECORD_SEPARATOR = "\n\n" + ExportFormatter.PlainText.SEPARATOR;
+    private static final String TITLE_START = "【 ";
+    private static final String TITLE_END = " 】";
+    private static final String DATE_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private final ContentResolver mResolver;
+    private final ExportFormatter.Labels mLabels;
+    private final int mThreads;
+    private final AtomicInteger mSkipped = new AtomicInteger();
+
+    private int mNotes;
+    private int mFilesDone;
+    private int mTotalFiles;
+
+    /**
+     * @param labels 导出文本中使用的文件头和时间标签，用于识别导出文件
+     * @param threads 解析线程数
+     */
+    NoteImporter(ContentResolver resolver, ExportFormatter.Labels labels, int threads) {
+        mResolver = resolver;
+        mLabels = labels;
+        mThreads = threads;
+    }
+
+    /**
+     * 无法识别而跳过的记录数
+     */
+    int getSkipped() {
+        return mSkipped.get();
+    }
+
+    /**
+     * 导入文件和目录。被取消或失败时，已经写入的批次保留。
+     *
+     * @param inputs 文件或目录；目录中的文件按所在的子目录归入分类
+     * @return 写入的笔记数；被取消时返回 -1
+     * @throws IOException 读取失败
+     */
+    int importFiles(File[] inputs, Listener listener) throws IOException {
+        ArrayList<Input> files = new ArrayList<Input>();
+        for (File input : inputs) {
+            if (input.isDirectory()) {
+                collect(input, null, files);
+            } else {
+                files.add(new Input(input, null));
+            }
+        }
+        mNotes = 0;
+        mFilesDone = 0;
+        mTotalFiles = files.size();
+        listener.onProgress(0, 0, mTotalFiles);
+
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        Collector collector = new Collector(mThreads * 2, listener);
+        try {
+            for (Input input : files) {
+                if (listener.isCancelled()) {
+                    return -1;
+                }
+                String name = input.file.getName();
+                if (isArchive(name)) {
+                    readArchive(input, executor, collector);
+                } else if (!isCompressed(name) && input.file.length() <= SMALL_FILE_SIZE) {
+                    // 压缩文件解压后的大小未知，总是按大文件分段读取
+                    collector.add(executor.submit(new FileTask(input)), true);
+                } else {
+                    readChunks(input, executor, collector);
+                }
+            }
+            collector.drainAll();
+            if (listener.isCancelled()) {
+                return -1;
+            }
+            collector.flush();
+            if (mSkipped.get() > 0) {
+                Log.w(TAG, "Skipped " + mSkipped.get() + " unrecognized records");
+            }
+            return mNotes;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 收集目录中可以导入的文件。顶层的文件不归入分类，子目录中的文件归入与下一级子目录同名的分类。
+     */
+    private static void collect(File directory, String category, List<Input> out) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String name = child.getName();
+            if (name.startsWith(".")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                collect(child, category != null ? category : name, out);
+            } else if (!name.equals(NoteArchiveExport.MANIFEST_NAME)
+                    && (JSON_EXTENSIONS.contains(extension(name)) || TEXT_EXTENSIONS.contains(extension(name))
+                            || isArchive(name))) {
+                out.add(new Input(child, category));
+            }
+        }
+    }
+
+    /**
+     * 在调用线程中读取大文件，在记录边界处切成段交给解析线程。
+     * 普通文本和单条笔记不切分，整个交给一个解析线程。
+     */
+    private void readChunks(Input input, ExecutorService executor, Collector collector) throws IOException {
+        Reader reader = openReader(input.file);
+        try {
+            char[] buffer = new char[8192];
+            StringBuilder text = new StringBuilder(CHUNK_CHARS + buffer.length);
+            int format = -1;
+            String category = input.category;
+            int target = CHUNK_CHARS;
+            boolean eof = false;
+            while (!eof) {
+                while (text.length() < target) {
+                    int n = reader.read(buffer);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    text.append(buffer, 0, n);
+                }
+                if (format < 0) {
+                    stripBom(text);
+                    format = detect(input.file.getName(), text);
+                    if (format == FORMAT_PLAIN || format == FORMAT_SINGLE_NOTE) {
+                        collector.add(executor.submit(new FileTask(input)), true);
+                        return;
+                    }
+                    if (format == FORMAT_EXPORT_TEXT) {
+                        int start = text.indexOf(ExportFormatter.PlainText.SEPARATOR);
+                        if (start < 0) {
+                            start = text.length();
+                        }
+                        String header = readCategory(text.substring(0, start));
+                        if (header != null) {
+                            category = header;
+                        }
+                        text.delete(0, Math.min(text.length(), start + ExportFormatter.PlainText.SEPARATOR.length()));
+                    }
+                }
+
+                int end;
+                if (eof) {
+                    end = text.length();
+                } else if (format == FORMAT_EXPORT_TEXT) {
+                    end = text.lastIndexOf(RECORD_SEPARATOR);
+                    end = end < 0 ? 0 : end + RECORD_SEPARATOR.length();
+                } else {
+                    end = text.lastIndexOf("\n") + 1;
+                }
+                if (end == 0 && !eof) {
+                    // 一条记录比一段还长，继续读取
+                    target = text.length() + CHUNK_CHARS;
+                    continue;
+                }
+                target = CHUNK_CHARS;
+                collector.add(executor.submit(new ChunkTask(format, text.substring(0, end), category)), eof);
+                text.delete(0, end);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 把二进制归档按记录分成每 {@value #BATCH_SIZE} 条一段交给解析线程。
+     * 这里只沿着记录的长度前缀走一遍，解码在解析线程中进行。
+     */
+    private void readArchive(Input input, ExecutorService executor, Collector collector) throws IOException {
+        BinaryNoteArchive.Reader archive = new BinaryNoteArchive.Reader(input.file);
+        try {
+            long offset = archive.getCount() > 0 ? archive.firstRecord() : -1;
+            if (offset < 0) {
+                collector.add(executor.submit(new ArchiveTask(archive, -1, 0, input.category)), true);
+                return;
+            }
+            while (offset >= 0) {
+                long start = offset;
+                int records = 0;
+                while (offset >= 0 && records < BATCH_SIZE) {
+                    offset = archive.nextRecord(offset);
+                    records++;
+                }
+                collector.add(executor.submit(new ArchiveTask(archive, start, records, input.category)),
+                        offset < 0);
+            }
+        } finally {
+            // 映射在文件关闭后仍然有效，解析线程可以继续读取
+            archive.close();
+        }
+    }
+
+    /**
+     * 只导入二进制归档中的一部分笔记：通过归档的索引按 ID 或按标题查找，不读取其他记录。
+     * 在调用线程中同步执行。
+     *
+     * @param ids 要导入的笔记在归档中的 ID；为 null 时导入标题为 title 的全部笔记
+     * @return 写入的笔记数；被取消时返回 -1
+     * @throws IOException 读取失败或归档已损坏
+     */
+    int importFromArchive(File file, long[] ids, String title, Listener listener) throws IOException {
+        mNotes = 0;
+        mFilesDone = 0;
+        mTotalFiles = 1;
+        listener.onProgress(0, 0, 1);
+        BinaryNoteArchive.Reader archive = new BinaryNoteArchive.Reader(file);
+        try {
+            List<BinaryNoteArchive.Note> notes;
+            if (ids != null) {
+                notes = new ArrayList<BinaryNoteArchive.Note>(ids.length);
+                for (long id : ids) {
+                    BinaryNoteArchive.Note note = archive.findById(id);
+                    if (note != null) {
+                        notes.add(note);
+                    }
+                }
+            } else {
+                notes = archive.findByTitle(title);
+            }
+
+            ArrayList<ContentValues> batch = new ArrayList<ContentValues>();
+            for (int i = 0; i < notes.size(); i++) {
+                if (listener.isCancelled()) {
+                    return -1;
+                }
+                batch.add(notes.get(i).toContentValues());
+                if (batch.size() == BATCH_SIZE || i == notes.size() - 1) {
+                    mNotes += mResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                            batch.toArray(new ContentValues[batch.size()]));
+                    batch.clear();
+                    listener.onProgress(mNotes, 0, 1);
+                }
+            }
+            mFilesDone = 1;
+            listener.onProgress(mNotes, 1, 1);
+            return mNotes;
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * 判断文件格式
+     *
+     * @param head 文件开头的内容，已经去掉字节顺序标记
+     */
+    private int detect(String name, CharSequence head) {
+        if (JSON_EXTENSIONS.contains(extension(name))) {
+            return FORMAT_JSON_LINES;
+        }
+        String text = head.toString();
+        int lineEnd = text.indexOf('\n');
+        String firstLine = lineEnd < 0 ? text : text.substring(0, lineEnd);
+        if (firstLine.equals(mLabels.fileHeader)) {
+            return FORMAT_EXPORT_TEXT;
+        }
+        if (firstLine.startsWith(TITLE_START) && firstLine.endsWith(TITLE_END)
+                && text.contains("\n" + ExportFormatter.PlainText.DIVIDER)) {
+            return FORMAT_SINGLE_NOTE;
+        }
+        return FORMAT_PLAIN;
+    }
+
+    /**
+     * 从导出文本的文件头中读取分类名称，没有时返回 null
+     */
+    private String readCategory(String header) {
+        String prefix = mLabels.categoryHeader + ": ";
+        for (String line : header.split("\n")) {
+            if (line.startsWith(prefix)) {
+                return line.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 文件的扩展名，gzip 压缩的文件取 .gz 之前的扩展名
+     */
+    private static String extension(String name) {
+        String base = baseName(name);
+        int dot = base.lastIndexOf('.');
+        return dot < 0 ? "" : base.substring(dot + 1).toLowerCase(Locale.US);
+    }
+
+    private static boolean isCompressed(String name) {
+        return name.toLowerCase(Locale.US).endsWith("." + ExportSink.GzipFile.EXTENSION);
+    }
+
+    /**
+     * 去掉 .gz 之后的文件名
+     */
+    private static String baseName(String name) {
+        return isCompressed(name) ? name.substring(0, name.length() - ExportSink.GzipFile.EXTENSION.length() - 1)
+                : name;
+    }
+
+    /**
+     * 二进制归档需要随机读取，压缩过的不能导入
+     */
+    private static boolean isArchive(String name) {
+        return !isCompressed(name) && extension(name).equals(BinaryNoteArchive.EXTENSION);
+    }
+
+    private static Reader openReader(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (isCompressed(file.getName())) {
+            try {
+                in = new GZIPInputStream(in, Utf8ChannelWriter.DEFAULT_BUFFER_SIZE);
+            } catch (IOException e) {
+                // 不是 gzip 文件
+                in.close();
+                throw e;
+            }
+        }
+        return new InputStreamReader(in, "UTF-8");
+    }
+
+    private static void stripBom(StringBuilder text) {
+        if (text.length() > 0 && text.charAt(0) == '\ufeff') {
+            text.deleteCharAt(0);
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader reader = openReader(file);
+        try {
+            StringBuilder text = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE));
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) >= 0) {
+                text.append(buffer, 0, n);
+            }
+            stripBom(text);
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 要导入的文件和它所在目录对应的分类
+     */
+    private static final class Input {
+        final File file;
+        final String category;
+
+        Input(File file, String category) {
+            this.file = file;
+            this.category = category;
+        }
+    }
+
+    /**
+     * 解析一段文本，在解析线程中使用，每个任务一个实例
+     */
+    private final class Parser {
+        private final SimpleDateFormat mDateFormat = new SimpleDateFormat(DATE_PATTERN, Locale.getDefault());
+        private final String mCreatedLabel = mLabels.createdDate + ": ";
+        private final String mModifiedLabel = mLabels.modifiedDate + ": ";
+        private final ArrayList<ContentValues> mRows = new ArrayList<ContentValues>();
+
+        List<ContentValues> getRows() {
+            return mRows;
+        }
+
+        void parse(int format, String text, String category) {
+            switch (format) {
+                case FORMAT_JSON_LINES:
+                    parseJsonLines(text, category);
+                    break;
+                case FORMAT_EXPORT_TEXT:
+                    parseExportText(text, category);
+                    break;
+                case FORMAT_SINGLE_NOTE:
+                    // 单条笔记的导出在正文之后多一个换行
+                    parseRecord(text.endsWith("\n") ? text.substring(0, text.length() - 1) : text, category);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown format " + format);
+            }
+        }
+
+        /**
+         * NDJSON，或者每行一个对象的 JSON 数组（本应用的 JSON 导出）
+         */
+        private void parseJsonLines(String text, String category) {
+            int start = 0;
+            int length = text.length();
+            while (start < length) {
+                int end = text.indexOf('\n', start);
+                if (end < 0) {
+                    end = length;
+                }
+                String line = text.substring(start, end).trim();
+                start = end + 1;
+                if (line.endsWith(",")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                if (line.length() == 0 || line.equals("[") || line.equals("]")) {
+                    continue;
+                }
+                try {
+                    JSONObject object = new JSONObject(line);
+                    if (object.has("deleted") && !object.has("note")) {
+                        // 增量导出中的删除记录
+                        continue;
+                    }
+                    ContentValues values = new ContentValues();
+                    if (object.has("title") && !object.isNull("title")) {
+                        values.put(NotePad.Notes.COLUMN_NAME_TITLE, object.getString("title"));
+                    }
+                    if (object.has("note") && !object.isNull("note")) {
+                        values.put(NotePad.Notes.COLUMN_NAME_NOTE, object.getString("note"));
+                    }
+                    // 修改时间不导入，由 provider 设为导入的时间
+                    if (object.has("created")) {
+                        values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, object.getLong("created"));
+                    } else if (object.has("modified")) {
+                        values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, object.getLong("modified"));
+                    }
+                    String noteCategory = object.has("category") && !object.isNull("category")
+                            ? object.getString("category") : category;
+                    add(values, noteCategory);
+                } catch (JSONException e) {
+                    mSkipped.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * 导出文本中去掉文件头以后的部分，可以是其中的一段
+         */
+        private void parseExportText(String text, String category) {
+            int start = 0;
+            int length = text.length();
+            while (start < length) {
+                int end = text.indexOf(RECORD_SEPARATOR, start);
+                if (end < 0) {
+                    end = length;
+                }
+                String record = text.substring(start, end);
+                start = end + RECORD_SEPARATOR.length();
+                if (record.trim().length() > 0) {
+                    parseRecord(record, category);
+                }
+            }
+        }
+
+        /**
+         * 一条笔记：标题行、创建和修改时间、分隔线和正文。格式不符时整段作为正文，第一行作为标题。
+         */
+        private void parseRecord(String record, String category) {
+            ContentValues values = new ContentValues();
+            int titleEnd = record.indexOf('\n');
+            int divider = record.indexOf("\n" + ExportFormatter.PlainText.DIVIDER);
+            String titleLine = titleEnd < 0 ? record : record.substring(0, titleEnd);
+            if (divider < 0 || !titleLine.startsWith(TITLE_START) || !titleLine.endsWith(TITLE_END)
+                    || titleLine.length() < TITLE_START.length() + TITLE_END.length()) {
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, titleLine.trim());
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, record);
+                add(values, category);
+                return;
+            }
+
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE,
+                    titleLine.substring(TITLE_START.length(), titleLine.length() - TITLE_END.length()));
+            if (titleEnd < divider) {
+                // 修改时间不导入，只在没有创建时间时代替它
+                String modified = null;
+                for (String line : record.substring(titleEnd + 1, divider).split("\n")) {
+                    if (line.startsWith(mCreatedLabel)) {
+                        putDate(values, NotePad.Notes.COLUMN_NAME_CREATE_DATE, line.substring(mCreatedLabel.length()));
+                    } else if (line.startsWith(mModifiedLabel)) {
+                        modified = line.substring(mModifiedLabel.length());
+                    }
+                }
+                if (modified != null && !values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE)) {
+                    putDate(values, NotePad.Notes.COLUMN_NAME_CREATE_DATE, modified);
+                }
+            }
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                    record.substring(divider + 1 + ExportFormatter.PlainText.DIVIDER.length()));
+            add(values, category);
+        }
+
+        /**
+         * 普通文本文件：文件名作为标题，内容作为正文，文件的修改时间作为创建时间
+         */
+        void parsePlain(File file, String text, String category) {
+            String name = baseName(file.getName());
+            int dot = name.lastIndexOf('.');
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, dot > 0 ? name.substring(0, dot) : name);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            long modified = file.lastModified();
+            if (modified > 0) {
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, modified);
+            }
+            add(values, category);
+        }
+
+        private void putDate(ContentValues values, String column, String date) {
+            // 无法解析时由 provider 使用当前时间
+            Date parsed = mDateFormat.parse(date.trim(), new ParsePosition(0));
+            if (parsed != null) {
+                values.put(column, parsed.getTime());
+            }
+        }
+
+        private void add(ContentValues values, String category) {
+            if (category != null) {
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_TITLE, category);
+            }
+            mRows.add(values);
+        }
+    }
+
+    /**
+     * 读取并解析一个完整的文件
+     */
+    private final class FileTask implements Callable<List<ContentValues>> {
+        private final Input mInput;
+
+        FileTask(Input input) {
+            mInput = input;
+        }
+
+        @Override
+        public List<ContentValues> call() throws IOException {
+            String text = readFile(mInput.file);
+            Parser parser = new Parser();
+            int format = detect(mInput.file.getName(), text);
+            if (format == FORMAT_PLAIN) {
+                parser.parsePlain(mInput.file, text, mInput.category);
+            } else if (format == FORMAT_EXPORT_TEXT) {
+                int start = text.indexOf(ExportFormatter.PlainText.SEPARATOR);
+                if (start < 0) {
+                    start = text.length();
+                }
+                String category = readCategory(text.substring(0, start));
+                parser.parse(format, text.substring(Math.min(text.length(),
+                        start + ExportFormatter.PlainText.SEPARATOR.length())),
+                        category != null ? category : mInput.category);
+            } else {
+                parser.parse(format, text, mInput.category);
+            }
+            return parser.getRows();
+        }
+    }
+
+    /**
+     * 解析大文件中的一段，段的边界在记录之间
+     */
+    private final class ChunkTask implements Callable<List<ContentValues>> {
+        private final int mFormat;
+        private final String mText;
+        private final String mCategory;
+
+        ChunkTask(int format, String text, String category) {
+            mFormat = format;
+            mText = text;
+            mCategory = category;
+        }
+
+        @Override
+        public List<ContentValues> call() {
+            Parser parser = new Parser();
+            parser.parse(mFormat, mText, mCategory);
+            return parser.getRows();
+        }
+    }
+
+    /**
+     * 读取二进制归档中从 start 开始的若干条记录。归档中的分类优先于所在目录对应的分类。
+     */
+    private static final class ArchiveTask implements Callable<List<ContentValues>> {
+        private final BinaryNoteArchive.Reader mArchive;
+        private final long mStart;
+        private final int mRecords;
+        private final String mCategory;
+
+        ArchiveTask(BinaryNoteArchive.Reader archive, long start, int records, String category) {
+            mArchive = archive;
+            mStart = start;
+            mRecords = records;
+            mCategory = category;
+        }
+
+        @Override
+        public List<ContentValues> call() throws IOException {
+            ArrayList<ContentValues> rows = new ArrayList<ContentValues>(mRecords);
+            long offset = mStart;
+            for (int i = 0; i < mRecords; i++) {
+                BinaryNoteArchive.Note note = mArchive.readNote(offset);
+                ContentValues values = note.toContentValues();
+                if (note.category == null && mCategory != null) {
+                    values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_TITLE, mCategory);
+                }
+                rows.add(values);
+                offset = mArchive.nextRecord(offset);
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * 按提交的顺序取回解析结果，凑满一批后写入。提交的任务数达到上限时先取回最早的一个，
+     * 让读取不会远远超过解析和写入。
+     */
+    private final class Collector {
+        private final int mWindow;
+        private final Listener mListener;
+        private final ArrayDeque<Future<List<ContentValues>>> mPending =
+                new ArrayDeque<Future<List<ContentValues>>>();
+        // 与 mPending 对应：这一段是否是一个文件的最后一段
+        private final ArrayDeque<Boolean> mEndsFile = new ArrayDeque<Boolean>();
+        private final ArrayList<ContentValues> mBatch = new ArrayList<ContentValues>(BATCH_SIZE);
+
+        Collector(int window, Listener listener) {
+            mWindow = window;
+            mListener = listener;
+        }
+
+        void add(Future<List<ContentValues>> result, boolean endsFile) throws IOException {
+            mPending.add(result);
+            mEndsFile.add(endsFile);
+            while (mPending.size() >= mWindow && !mListener.isCancelled()) {
+                drainOne();
+            }
+        }
+
+        void drainAll() throws IOException {
+            while (!mPending.isEmpty() && !mListener.isCancelled()) {
+                drainOne();
+            }
+        }
+
+        private void drainOne() throws IOException {
+            List<ContentValues> rows;
+            try {
+                rows = mPending.remove().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Import interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+            for (ContentValues values : rows) {
+                mBatch.add(values);
+                if (mBatch.size() >= BATCH_SIZE) {
+                    flush();
+                }
+            }
+            if (mEndsFile.remove()) {
+                mFilesDone++;
+                mListener.onProgress(mNotes, mFilesDone, mTotalFiles);
+            }
+        }
+
+        void flush() {
+            if (mBatch.isEmpty()) {
+                return;
+            }
+            mNotes += mResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                    mBatch.toArray(new ContentValues[mBatch.size()]));
+            mBatch.clear();
+            mListener.onProgress(mNotes, mFilesDone, mTotalFiles);
+        }
+    }
+}
@@ -78,6 +78,11 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the ranked search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
         /**
          * The content:// style URL for this table
          */
@@ -103,6 +108,179 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
             = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * The content Uri for relevance-ranked search. The search text is passed in the
+         * {@link #QUERY_PARAMETER_SEARCH} query parameter. Rows are returned best match first
+         * and carry a {@link #COLUMN_NAME_SCORE} and a {@link #COLUMN_NAME_SNIPPET} instead of
+         * the note body.
+         */
+        public static final Uri SEARCH_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * Query parameter of {@link #SEARCH_URI} holding the text the user searched for
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Optional query parameter of {@link #SEARCH_URI} and {@link #CONTENT_URI} limiting the
+         * number of rows returned
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Method name for {@link android.content.ContentResolver#call(Uri, String, String,
+         * android.os.Bundle)} returning the current data version in {@link #KEY_DATA_VERSION}.
+         * The version changes whenever a write through the provider modifies notes or
+         * categories, so clients can skip reloading when it is unchanged since their last load.
+         */
+        public static final String METHOD_GET_DATA_VERSION = "get_data_version";
+
+        /**
+         * Result key of {@link #METHOD_GET_DATA_VERSION}
+         * <P>Type: long</P>
+         */
+        public static final String KEY_DATA_VERSION = "data_version";
+
+        /**
+         * Method name for reading part of a note's text without loading the whole note into a
+         * CursorWindow. The note ID is passed as the {@code arg} string, and the range as
+         * {@link #KEY_OFFSET} and {@link #KEY_LENGTH} in the extras. The result contains the
+         * text in {@link #KEY_TEXT} and the length of the whole note in {@link #KEY_NOTE_LENGTH}.
+         *
+         * <P>Offsets and lengths count Unicode code points, as SQLite's substr() and length()
+         * do, so a range never splits a surrogate pair.</P>
+         */
+        public static final String METHOD_READ_NOTE = "read_note";
+
+        /**
+         * Method name for replacing one range of a note's text. The note ID is passed as the
+         * {@code arg} string. The extras contain {@link #KEY_OFFSET}, {@link #KEY_LENGTH} (the
+         * number of code points to remove), {@link #KEY_TEXT} (the replacement) and
+         * {@link #KEY_NOTE_LENGTH}, the length the note is expected to have before the change.
+         * The note is only changed if its length matches, and the result contains the number
+         * of changed rows in {@link #KEY_COUNT}.
+         */
+        public static final String METHOD_PATCH_NOTE = "patch_note";
+
+        /**
+         * Method name for bringing the full-text search index up to date with notes changed by
+         * {@link #METHOD_PATCH_NOTE}, which leaves indexing to a later pass so that saving a
+         * range does not re-tokenize the whole note. The index is updated on a background thread
+         * and the call returns immediately; a search also brings it up to date first.
+         */
+        public static final String METHOD_UPDATE_SEARCH_INDEX = "update_search_index";
+
+        /**
+         * Method name for a compare-and-set update of one note. The note ID is passed as the
+         * {@code arg} string. The extras contain the new values in {@link #KEY_VALUES} and the
+         * version the caller last saw in {@link #KEY_EXPECTED_VERSION}. The note is only changed
+         * if its {@link #COLUMN_NAME_VERSION} still equals the expected version. The result
+         * contains the number of changed rows in {@link #KEY_COUNT} and the note's version after
+         * the call in {@link #KEY_VERSION}: the new version on success, the current version on a
+         * conflict, or -1 if the note no longer exists.
+         */
+        public static final String METHOD_UPDATE_NOTE = "update_note";
+
+        /**
+         * Method name for writing a backup of the whole database, including categories, note IDs
+         * and deleted-note records. The {@code arg} string is the path of the directory to write
+         * the backup to; it is created if needed, and an earlier backup in it is replaced. The
+         * backup is a consistent snapshot of the database file plus a manifest with its SHA-256
+         * checksum. The result contains the number of notes in {@link #KEY_COUNT}, the size of
+         * the database file in {@link #KEY_SIZE} and its checksum in {@link #KEY_CHECKSUM}.
+         * Only the application itself may call it.
+         */
+        public static final String METHOD_BACKUP = "backup";
+
+        /**
+         * Method name for replacing the database with a backup written by
+         * {@link #METHOD_BACKUP}. The {@code arg} string is the backup directory, which must be in
+         * the application's private backup directory. The backup is verified against its
+         * manifest before the database file is swapped, so a damaged backup leaves the current
+         * notes untouched. The result contains the number of notes restored in
+         * {@link #KEY_COUNT}. Only the application itself may call it.
+         */
+        public static final String METHOD_RESTORE = "restore";
+
+        /**
+         * Optional extra of {@link #METHOD_BACKUP}: the highest rate at which the backup is
+         * written, for backups that run in the background. The snapshot is first taken at full
+         * speed next to the database, so the limit does not make writers wait longer.
+         * <P>Type: long, in bytes per second</P>
+         */
+        public static final String KEY_BYTES_PER_SECOND = "bytes_per_second";
+
+        /**
+         * Size in bytes of the database file written by {@link #METHOD_BACKUP}
+         * <P>Type: long</P>
+         */
+        public static final String KEY_SIZE = "size";
+
+        /**
+         * SHA-256 checksum of the database file written by {@link #METHOD_BACKUP}, in lowercase hex
+         * <P>Type: String</P>
+         */
+        public static final String KEY_CHECKSUM = "checksum";
+
+        /**
+         * Extra of {@link #METHOD_READ_NOTE} and {@link #METHOD_PATCH_NOTE}: start of the range
+         * <P>Type: int, in code points</P>
+         */
+        public static final String KEY_OFFSET = "offset";
+
+        /**
+         * Extra of {@link #METHOD_READ_NOTE} and {@link #METHOD_PATCH_NOTE}: length of the range
+         * <P>Type: int, in code points</P>
+         */
+        public static final String KEY_LENGTH = "length";
+
+        /**
+         * Text read by {@link #METHOD_READ_NOTE}, or the replacement for {@link #METHOD_PATCH_NOTE}
+         * <P>Type: String</P>
+         */
+        public static final String KEY_TEXT = "text";
+
+        /**
+         * Length of the whole note returned by {@link #METHOD_READ_NOTE}, or the expected length
+         * passed to {@link #METHOD_PATCH_NOTE}
+         * <P>Type: int, in code points</P>
+         */
+        public static final String KEY_NOTE_LENGTH = "note_length";
+
+        /**
+         * Number of notes changed by {@link #METHOD_PATCH_NOTE} and {@link #METHOD_UPDATE_NOTE},
+         * or backed up and restored by {@link #METHOD_BACKUP} and {@link #METHOD_RESTORE}
+         * <P>Type: int</P>
+         */
+        public static final String KEY_COUNT = "count";
+
+        /**
+         * Extra of {@link #METHOD_UPDATE_NOTE}: the columns to change
+         * <P>Type: ContentValues</P>
+         */
+        public static final String KEY_VALUES = "values";
+
+        /**
+         * Extra of {@link #METHOD_UPDATE_NOTE}, and optional extra of {@link #METHOD_PATCH_NOTE}:
+         * the version the note must still have for the change to be applied
+         * <P>Type: long</P>
+         */
+        public static final String KEY_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Version of the note after {@link #METHOD_UPDATE_NOTE} or {@link #METHOD_PATCH_NOTE}
+         * <P>Type: long</P>
+         */
+        public static final String KEY_VERSION = "version";
+
+        /**
+         * Optional query parameter of a note URI passed to
+         * {@link android.content.ContentResolver#update}: the update is only applied if the
+         * note's {@link #COLUMN_NAME_VERSION} equals this value, otherwise no rows are changed.
+         */
+        public static final String QUERY_PARAMETER_EXPECTED_VERSION = "expected_version";
+
         /*
          * MIME type definitions
          */
@@ -123,6 +301,15 @@ public final class NotePad {
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * Sorts notes by title in pinyin order, using the precomputed
+         * {@link #COLUMN_NAME_TITLE_PINYIN} key. The columns are qualified with the table name
+         * because queries on {@link #CONTENT_URI} join the categories table, which also has a
+         * title column.
+         */
+        public static final String TITLE_SORT_ORDER =
+                "notes.title_pinyin ASC, notes.title ASC";
+
         /*
          * Column definitions
          */
@@ -156,5 +343,128 @@ public final class NotePad {
          * <P>Type: INTEGER</P>
          */
         public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
+        /**
+         * Column name for the pinyin of the title, lower case without tones or spaces, for
+         * example "huiyijilu". Computed by the provider whenever the title is written; values
+         * supplied by clients are ignored.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_TITLE_PINYIN = "title_pinyin";
+
+        /**
+         * Column name for the first letter of each pinyin syllable or word of the title, for
+         * example "hyjl". Computed by the provider whenever the title is written; values
+         * supplied by clients are ignored.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_TITLE_INITIALS = "title_initials";
+
+        /**
+         * Column name of the length of the note text, in code points. Read-only; it lets a
+         * client decide how to load a note without reading its text.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_LENGTH = "note_length";
+
+        /**
+         * Column name of the note text when it is at most {@link #SHORT_NOTE_LENGTH} code points
+         * long, and null for longer notes. Read-only; a query over many notes can select it
+         * instead of {@link #COLUMN_NAME_NOTE}, so that one large note never has to fit into a
+         * CursorWindow, and read the longer ones with {@link #METHOD_READ_NOTE}.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SHORT_NOTE = "short_note";
+
+        /**
+         * The longest note, in code points, returned in {@link #COLUMN_NAME_SHORT_NOTE}
+         */
+        public static final int SHORT_NOTE_LENGTH = 256 * 1024;
+
+        /**
+         * Column name for the title of the note's category. Returned by queries on
+         * {@link #CONTENT_URI}; {@link android.content.ContentResolver#bulkInsert} also accepts it
+         * in place of {@link #COLUMN_NAME_CATEGORY_ID}, looking the category up by title and
+         * creating it if it does not exist.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_TITLE = "category_title";
+
+        /**
+         * Column name for the version of the note. It starts at 1 and is incremented by the
+         * provider on every update of the note; values supplied by clients are ignored.
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String COLUMN_NAME_VERSION = "version";
+
+        /**
+         * Column name for the relevance score of a search result, higher is better. Only
+         * returned by {@link #SEARCH_URI}.
+         * <P>Type: REAL</P>
+         */
+        public static final String COLUMN_NAME_SCORE = "score";
+
+        /**
+         * Column name for a short excerpt of the matching text of a search result. Matched
+         * terms are wrapped in {@link #SNIPPET_MATCH_START} and {@link #SNIPPET_MATCH_END}.
+         * Only returned by {@link #SEARCH_URI}.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * Marks the start of a matched term in {@link #COLUMN_NAME_SNIPPET}
+         */
+        public static final String SNIPPET_MATCH_START = "\u0002";
+
+        /**
+         * Marks the end of a matched term in {@link #COLUMN_NAME_SNIPPET}
+         */
+        public static final String SNIPPET_MATCH_END = "\u0003";
+    }
+
+    /**
+     * Deleted notes contract. The provider records a tombstone for every deleted note, so that
+     * an incremental export can tell its readers which notes to remove. A tombstone is dropped
+     * when a new note is inserted with the same ID.
+     */
+    public static final class DeletedNotes implements BaseColumns {
+
+        // This class cannot be instantiated
+        private DeletedNotes() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "deleted_notes";
+
+        /**
+         * The content:// style URL for this table. Rows can be queried and deleted, but not
+         * inserted or updated.
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/notes/deleted");
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of deleted notes.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.deleted_note";
+
+        /**
+         * The default sort order for this table: in the order the notes were deleted
+         */
+        public static final String DEFAULT_SORT_ORDER = "_id ASC";
+
+        /**
+         * Column name for the ID of the deleted note. The {@link #_ID} of a tombstone is its
+         * sequence number, which only increases.
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the time the note was deleted
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_DELETE_DATE = "deleted";
     }
 }
@@ -20,34 +20,48 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -65,7 +79,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 12;
+
+    /**
+     * 保存数据库自身设置的表，每行一个名称和整数值
+     */
+    private static final String PROPERTIES_TABLE_NAME = "properties";
+
+    /**
+     * 现有拼音检索键按哪个版本的转写规则计算，见 {@link PinyinKeys#keyVersion()}
+     */
+    private static final String PROPERTY_PINYIN_KEY_VERSION = "pinyin_key_version";
 
     /**
      * A projection map used to select columns from the database
@@ -109,13 +133,36 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // 添加对notes/categories URI的支持
     private static final int NOTES_CATEGORIES = 7;
 
+    // 按相关度排序的搜索
+    private static final int SEARCH = 8;
+
+    // 已删除笔记的记录
+    private static final int DELETED_NOTES = 9;
+
     /**
      * A UriMatcher instance
      */
     private static final UriMatcher sUriMatcher;
 
     // Handle to a new DatabaseHelper.
-    private DatabaseHelper mOpenHelper;
+    // 从备份恢复时换成打开新数据库文件的实例
+    private volatile DatabaseHelper mOpenHelper;
+
+    // 所有数据库访问都持有读锁，从备份恢复时持有写锁：关闭旧连接、换上数据库文件时没有进行中的读写，
+    // 之后的访问都用到新连接
+    private final ReentrantReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
+
+    // 标题和正文的子串索引，随笔记的增删改同步更新
+    private NgramIndex mNgramIndex;
+
+    // 批量插入的笔记数不超过这个值时逐条更新子串索引，否则之后重建
+    private static final int BULK_REINDEX_LIMIT = 256;
+
+    // 数据版本，每次实际修改了数据的写入都会加一。以启动时间为初值，进程重启后也不会与之前的值重复
+    private final AtomicLong mDataVersion = new AtomicLong(System.currentTimeMillis());
+
+    // 在后台为按区间保存过的大笔记更新全文索引，见 NotePad.Notes#METHOD_UPDATE_SEARCH_INDEX
+    private final ExecutorService mSearchIndexExecutor = Executors.newSingleThreadExecutor();
 
     /*
      * 静态初始化块，用于实例化和设置静态对象
@@ -147,6 +194,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/categories", NOTES_CATEGORIES);
         // 添加对notes/categories/#/notes URI的支持，用于从notes路径访问指定分类的笔记
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/categories/#/notes", NOTES_BY_CATEGORY);
+        // 按相关度排序的搜索
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
+        // 已删除笔记的记录，供增量导出使用
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/deleted", DELETED_NOTES);
 
         /*
          * Creates and initializes a projection map that returns all columns
@@ -177,6 +228,28 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 添加分类ID，使用表名前缀避免歧义
         sNotesProjectionMap.put("category_id", NotePad.Notes.TABLE_NAME + ".category_id");
         sNotesProjectionMap.put("category_title", Categories.TABLE_NAME + ".title AS category_title");
+
+        // 标题的拼音检索键
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN,
+                NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS,
+                NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS);
+
+        // 正文长度（码点数），编辑器据此决定是否分段读取正文
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+                "length(" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + ") AS "
+                        + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH);
+
+        // 不超过 SHORT_NOTE_LENGTH 的正文，更长的为 null，查询多条笔记时不会有一行放不进 CursorWindow
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SHORT_NOTE,
+                "CASE WHEN length(" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ") > " + NotePad.Notes.SHORT_NOTE_LENGTH + " THEN NULL ELSE "
+                        + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + " END AS "
+                        + NotePad.Notes.COLUMN_NAME_SHORT_NOTE);
+
+        // 笔记的版本号，用于比较并更新
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_VERSION,
+                NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_VERSION);
         
         // 添加带表前缀的列名映射，以支持"notes.title"这样的查询
         sNotesProjectionMap.put(NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_TITLE);
@@ -263,33 +336,221 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                   + "category_id INTEGER DEFAULT 1, " +
+                   + "category_id INTEGER DEFAULT 1, "
+                   + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " TEXT, "
+                   + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " TEXT, "
+                   + NotePad.Notes.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 1, "
+                   + SearchRanker.COLUMN_NAME_FTS_PENDING + " INTEGER NOT NULL DEFAULT 0, " +
                    "FOREIGN KEY (category_id) REFERENCES " + Categories.TABLE_NAME + "(_id)" +
                    ");");
+           createPinyinIndexes(db);
+           createSortIndexes(db);
+           createDeletedNotesTable(db);
+           createPropertiesTable(db);
+           setPinyinKeyVersion(db);
+
+           // 创建全文索引表及同步触发器
+           SearchRanker.createSearchIndex(db);
        }
 
        /**
         *
         * Demonstrates that the provider must consider what happens when the
-        * underlying datastore is changed. In this sample, the database is upgraded the database
-        * by destroying the existing data.
-        * A real application should upgrade the database in place.
+        * underlying datastore is changed. Databases older than version 5 are upgraded by
+        * destroying the existing data. From version 5 on, the database is upgraded in place,
+        * one version at a time.
         */
        @Override
        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
-           // Logs that the database is being upgraded
-           Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                   + newVersion + ", which will destroy all old data");
+           if (oldVersion < 5) {
+               // Logs that the database is being upgraded
+               Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                       + newVersion + ", which will destroy all old data");
+
+               // Kills the tables and existing data, and recreates the database
+               dropAllTables(db);
+               onCreate(db);
+               return;
+           }
+
+           Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+
+           // 版本6：添加全文索引表，并用现有笔记回填
+           // 触发器在版本12中创建
+           if (oldVersion < 6) {
+               SearchRanker.createSearchTable(db);
+               SearchRanker.rebuildSearchIndex(db);
+           }
+
+           // 版本7：添加标题的拼音检索键，为现有笔记回填并建立索引
+           if (oldVersion < 7) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " TEXT");
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " TEXT");
+               backfillPinyin(db);
+               createPinyinIndexes(db);
+           } else if (oldVersion < 8) {
+               // 版本8：拼音索引加上标题列，按标题排序时不再需要额外排序
+               db.execSQL("DROP INDEX IF EXISTS notes_title_pinyin");
+               db.execSQL("CREATE INDEX notes_title_sort ON " + NotePad.Notes.TABLE_NAME + "("
+                       + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + ", "
+                       + NotePad.Notes.COLUMN_NAME_TITLE + ");");
+           }
+
+           // 版本8：为列表的各种排序方式建立索引
+           if (oldVersion < 8) {
+               createSortIndexes(db);
+           }
+
+           // 版本9：添加版本号，现有笔记从1开始
+           if (oldVersion < 9) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 1");
+           }
+
+           // 版本10：记录删除的笔记，之前删除的笔记没有记录
+           if (oldVersion < 10) {
+               createDeletedNotesTable(db);
+           }
+
+           // 版本11：添加设置表。之前的拼音检索键不知道按什么规则计算，打开时会重新计算；
+           // 刚在版本7中回填的除外
+           if (oldVersion < 11) {
+               createPropertiesTable(db);
+               if (oldVersion < 7) {
+                   setPinyinKeyVersion(db);
+               }
+           }
+
+           // 版本12：按区间保存的大笔记延后更新全文索引，触发器跳过待索引的笔记
+           if (oldVersion < 12) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + SearchRanker.COLUMN_NAME_FTS_PENDING + " INTEGER NOT NULL DEFAULT 0");
+               SearchRanker.dropSearchTriggers(db);
+               SearchRanker.createSearchTriggers(db);
+           }
+       }
 
-           // 升级数据库时，如果存在分类表，则删除
-           db.execSQL("DROP TABLE IF EXISTS " + Categories.TABLE_NAME);
-           
-           // Kills the table and existing data
-           db.execSQL("DROP TABLE IF EXISTS notes");
+       /**
+        * 拼音检索键依赖系统的转写器，系统升级后规则可能不同，例如从 API 28 升级到 29 后汉字才能
+        * 转为拼音。打开数据库时比较计算检索键时的版本，不一致就全部重新计算。
+        * 恢复的备份可能来自其他设备，重新打开时同样会检查。
+        */
+       @Override
+       public void onOpen(SQLiteDatabase db) {
+           if (db.isReadOnly()) {
+               return;
+           }
+           long stored = DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT value FROM "
+                   + PROPERTIES_TABLE_NAME + " WHERE name = ?), -1)",
+                   new String[] { PROPERTY_PINYIN_KEY_VERSION });
+           if (stored == PinyinKeys.keyVersion()) {
+               return;
+           }
+           Log.i(TAG, "Recomputing pinyin keys, built with version " + stored
+                   + ", now " + PinyinKeys.keyVersion());
+           db.beginTransaction();
+           try {
+               backfillPinyin(db);
+               setPinyinKeyVersion(db);
+               db.setTransactionSuccessful();
+           } finally {
+               db.endTransaction();
+           }
+       }
 
-           // Recreates the database with a new version
-           onCreate(db);
+       private void createPropertiesTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + PROPERTIES_TABLE_NAME + " ("
+                   + "name TEXT PRIMARY KEY, "
+                   + "value INTEGER NOT NULL"
+                   + ");");
+       }
+
+       /**
+        * 记下当前的拼音检索键版本
+        */
+       private void setPinyinKeyVersion(SQLiteDatabase db) {
+           ContentValues values = new ContentValues();
+           values.put("name", PROPERTY_PINYIN_KEY_VERSION);
+           values.put("value", PinyinKeys.keyVersion());
+           db.insertWithOnConflict(PROPERTIES_TABLE_NAME, null, values,
+                   SQLiteDatabase.CONFLICT_REPLACE);
+       }
+
+       /**
+        * 为拼音检索键建立索引，前缀查询和按拼音排序都走这两个索引。
+        * 拼音索引带上标题列，与 {@link NotePad.Notes#TITLE_SORT_ORDER} 完全一致。
+        */
+       private void createPinyinIndexes(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX notes_title_sort ON " + NotePad.Notes.TABLE_NAME + "("
+                   + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + ", "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ");");
+           db.execSQL("CREATE INDEX notes_title_initials ON " + NotePad.Notes.TABLE_NAME
+                   + "(" + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + ");");
+       }
+
+       /**
+        * 为列表的排序方式建立索引，见 {@link SortMode}。分组列表两列都倒序扫描，
+        * 所以索引不需要声明 DESC。
+        */
+       private void createSortIndexes(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX notes_category_modified ON " + NotePad.Notes.TABLE_NAME
+                   + "(category_id, " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+           db.execSQL("CREATE INDEX notes_modified ON " + NotePad.Notes.TABLE_NAME
+                   + "(" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+           db.execSQL("CREATE INDEX notes_created ON " + NotePad.Notes.TABLE_NAME
+                   + "(" + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ");");
+       }
+
+       /**
+        * 创建已删除笔记的表和维护它的触发器：删除笔记时记下 ID 和删除时间，
+        * 之后插入相同 ID 的笔记时去掉这条记录。记录的 _id 自增且不会重复使用，
+        * 增量导出按它记住读到了哪里。
+        */
+       private void createDeletedNotesTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + NotePad.DeletedNotes.TABLE_NAME + " ("
+                   + NotePad.DeletedNotes._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                   + NotePad.DeletedNotes.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL, "
+                   + NotePad.DeletedNotes.COLUMN_NAME_DELETE_DATE + " INTEGER NOT NULL"
+                   + ");");
+           db.execSQL("CREATE INDEX deleted_notes_note_id ON " + NotePad.DeletedNotes.TABLE_NAME
+                   + "(" + NotePad.DeletedNotes.COLUMN_NAME_NOTE_ID + ");");
+           db.execSQL("CREATE TRIGGER notes_tombstone_ad AFTER DELETE ON " + NotePad.Notes.TABLE_NAME
+                   + " BEGIN "
+                   + "INSERT INTO " + NotePad.DeletedNotes.TABLE_NAME + "("
+                   + NotePad.DeletedNotes.COLUMN_NAME_NOTE_ID + ", "
+                   + NotePad.DeletedNotes.COLUMN_NAME_DELETE_DATE + ") "
+                   // 当前时间的毫秒数
+                   + "VALUES (old." + NotePad.Notes._ID + ", "
+                   + "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)); "
+                   + "END;");
+           db.execSQL("CREATE TRIGGER notes_tombstone_ai AFTER INSERT ON " + NotePad.Notes.TABLE_NAME
+                   + " BEGIN "
+                   + "DELETE FROM " + NotePad.DeletedNotes.TABLE_NAME + " WHERE "
+                   + NotePad.DeletedNotes.COLUMN_NAME_NOTE_ID + " = new." + NotePad.Notes._ID + "; "
+                   + "END;");
+       }
+
+       /**
+        * 为已有的笔记计算拼音检索键。调用方在同一个事务中执行，逐行更新不会反复提交。
+        */
+       private void backfillPinyin(SQLiteDatabase db) {
+           Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                   NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE
+           }, null, null, null, null, null);
+           try {
+               ContentValues values = new ContentValues();
+               while (c.moveToNext()) {
+                   values.clear();
+                   putPinyinKeys(values, c.getString(1));
+                   db.update(NotePad.Notes.TABLE_NAME, values,
+                           NotePad.Notes._ID + " = " + c.getLong(0), null);
+               }
+           } finally {
+               c.close();
+           }
        }
        
        @Override
@@ -298,8 +559,20 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            Log.w(TAG, "Downgrading database from version " + oldVersion + " to "
                    + newVersion + ", which will destroy all old data");
            
-           // For this simple app, we'll handle downgrade the same way as upgrade
-           onUpgrade(db, oldVersion, newVersion);
+           // For this simple app, a downgrade recreates the database from scratch
+           dropAllTables(db);
+           onCreate(db);
+       }
+
+       /**
+        * 删除所有表。notes 表上的触发器会随表一起删除。
+        */
+       private void dropAllTables(SQLiteDatabase db) {
+           db.execSQL("DROP TABLE IF EXISTS " + SearchRanker.FTS_TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + NotePad.DeletedNotes.TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + Categories.TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + PROPERTIES_TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + NotePad.Notes.TABLE_NAME);
        }
    }
 
@@ -316,6 +589,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        // something tries to access it, and it's only created if it doesn't already exist.
        mOpenHelper = new DatabaseHelper(getContext());
 
+       // 子串索引文件与数据库文件放在一起，第一次使用时才会读取
+       mNgramIndex = new NgramIndex(new File(
+               getContext().getDatabasePath(DATABASE_NAME).getPath() + NgramIndex.FILE_SUFFIX));
+
        // Assumes that any failures will be reported by a thrown exception.
        return true;
    }
@@ -332,11 +609,29 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
    @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
+        mDatabaseLock.readLock().lock();
+        try {
+            Cursor c = queryLocked(uri, projection, selection, selectionArgs, sortOrder);
+            // 在锁内执行查询并填充第一个窗口，结果不超过一个窗口时之后的读取不再用到连接
+            c.getCount();
+            return c;
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Cursor queryLocked(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
 
         // Constructs a new query builder
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         int match = sUriMatcher.match(uri);
 
+        // 搜索请求不经过查询构造器，由 querySearch() 单独处理
+        if (match == SEARCH) {
+            return querySearch(uri);
+        }
+
         /**
          * Choose the projection and adjust the "where" clause based on URI pattern-matching.
          */
@@ -403,6 +698,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 qb.setProjectionMap(sCategoriesProjectionMap);
                 break;
 
+            case DELETED_NOTES:
+                qb.setTables(NotePad.DeletedNotes.TABLE_NAME);
+                break;
+
             default:
                 // If the URI doesn't match any of the known patterns, throw an exception.
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -414,6 +713,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         if (TextUtils.isEmpty(sortOrder)) {
             if (match == CATEGORIES || match == CATEGORY_ID || match == NOTES_CATEGORIES) {
                 orderBy = Categories.DEFAULT_SORT_ORDER;
+            } else if (match == DELETED_NOTES) {
+                orderBy = NotePad.DeletedNotes.DEFAULT_SORT_ORDER;
             } else {
                 orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
             }
@@ -455,6 +756,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         * object is returned; otherwise, the cursor variable contains null. If no records were
         * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
         */
+       // 可选的行数上限，用于按页读取
+       String limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+       if (limit != null) {
+           try {
+               Integer.parseInt(limit);
+           } catch (NumberFormatException e) {
+               throw new IllegalArgumentException("Invalid limit " + limit);
+           }
+       }
+
        Cursor c = qb.query(
            db,            // The database to query
            projection,    // The columns to return from the query
@@ -462,7 +773,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            selectionArgs, // The values for the where clause
            null,          // don't group the rows
            null,          // don't filter by row groups
-           orderBy        // The sort order
+           orderBy,       // The sort order
+           limit          // 行数上限，没有时为 null
        );
 
        // Tells the Cursor what URI to watch, so it knows when its source data changes
@@ -470,6 +782,37 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        return c;
    }
 
+    /**
+     * 处理按相关度排序的搜索请求。搜索文本来自 URI 的 {@link NotePad.Notes#QUERY_PARAMETER_SEARCH}
+     * 参数，结果按得分从高到低排列，只包含摘要而不包含笔记正文。
+     *
+     * @param uri 搜索 URI
+     * @return 列为 {@link SearchRanker#RESULT_COLUMNS} 的游标
+     * @throws IllegalArgumentException if the limit parameter is not a number.
+     */
+    private Cursor querySearch(Uri uri) {
+        String query = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH);
+
+        int limit = SearchRanker.DEFAULT_LIMIT;
+        String limitParameter = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit " + limitParameter);
+            }
+        }
+
+        // 先补上按区间保存后延后的全文索引，结果才包含这些笔记的最新内容
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SearchRanker.indexPendingNotes(db);
+        Cursor c = SearchRanker.search(db, mNgramIndex, query, limit);
+
+        // 任何笔记变化都可能影响搜索结果，所以监听整个笔记集合
+        c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        return c;
+    }
+
    /**
      * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
      * Returns the MIME data type of the URI given as a parameter.
@@ -490,6 +833,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             case NOTES:
             case LIVE_FOLDER_NOTES:
             case NOTES_BY_CATEGORY:
+            case SEARCH:
                 return NotePad.Notes.CONTENT_TYPE;
 
             // If the pattern is for note IDs, returns the note ID content type.
@@ -505,6 +849,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             case CATEGORY_ID:
                 return Categories.CONTENT_ITEM_TYPE;
 
+            case DELETED_NOTES:
+                return NotePad.DeletedNotes.CONTENT_TYPE;
+
             // If the URI pattern doesn't match any permitted patterns, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -540,6 +887,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // supported for this type of URI.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
+            case DELETED_NOTES:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -656,6 +1005,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return insertLocked(uri, initialValues);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Uri insertLocked(Uri uri, ContentValues initialValues) {
 
         // Validates the incoming URI. Only the full provider URI is allowed for inserts.
         int match = sUriMatcher.match(uri);
@@ -682,34 +1040,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Performs the insert based on the incoming URI pattern
         if (match == NOTES) {
             // Gets the current system time in milliseconds
-            Long now = Long.valueOf(System.currentTimeMillis());
-
-            // If the values map doesn't contain the creation date, sets the value to the current time.
-            if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
-                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
-            }
+            putNoteDefaults(values, Long.valueOf(System.currentTimeMillis()));
 
-            // If the values map doesn't contain the modification date, sets the value to the current
-            // time.
-            if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
-                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
-            }
-
-            // If the values map doesn't contain a title, sets the value to the default title.
-            if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
-                Resources r = Resources.getSystem();
-                values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
-            }
-
-            // If the values map doesn't contain note text, sets the value to an empty string.
-            if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
-                values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
-            }
-
-            // If the values map doesn't contain category_id, sets to default category
-            if (values.containsKey("category_id") == false) {
-                values.put("category_id", Categories.DEFAULT_CATEGORY_ID);
-            }
+            // 子串索引需要在写入之前加载，加载时会与数据库当前的内容比对
+            mNgramIndex.load(db);
 
             // Performs the insert and returns the ID of the new note.
             rowId = db.insert(
@@ -722,9 +1056,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // If the insert succeeded, the row ID exists.
             if (rowId > 0) {
+                mNgramIndex.onNoteChanged(db, rowId,
+                        values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE),
+                        values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+
                 // Creates a URI with the note ID pattern and the new row ID appended to it.
                 insertUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
+                mDataVersion.incrementAndGet();
+
                 // Notifies observers registered against this provider that the data changed.
                 getContext().getContentResolver().notifyChange(insertUri, null);
                 // Also notify the entire notes data set to ensure the main screen refreshes
@@ -749,6 +1089,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 // Creates a URI with the category ID appended
                 insertUri = ContentUris.withAppendedId(Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"), rowId);
 
+                mDataVersion.incrementAndGet();
+
                 // Notifies observers registered against this provider that the data changed.
                 getContext().getContentResolver().notifyChange(insertUri, null);
                 // Also notify the entire categories data set and notes data set to ensure the main screen refreshes
@@ -777,6 +1119,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return deleteLocked(uri, where, whereArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int deleteLocked(Uri uri, String where, String[] whereArgs) {
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -784,12 +1135,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         int count;
 
+        // 被删除的笔记 ID，删除之后从子串索引中移除
+        long[] deletedIds = null;
+
         // Does the delete based on the incoming URI pattern.
         switch (sUriMatcher.match(uri)) {
 
             // If the incoming pattern matches the general pattern for notes, does a delete
             // based on the incoming "where" columns and arguments.
             case NOTES:
+                deletedIds = queryNoteIds(db, where, whereArgs);
                 count = db.delete(
                     NotePad.Notes.TABLE_NAME,  // The database table name
                     where,                     // The incoming where clause column names
@@ -819,6 +1174,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 }
 
                 // Performs the delete.
+                deletedIds = queryNoteIds(db, finalWhere, whereArgs);
                 count = db.delete(
                     NotePad.Notes.TABLE_NAME,  // The database table name.
                     finalWhere,                // The final WHERE clause
@@ -852,7 +1208,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 // Move notes from this category to default category before deleting
                 ContentValues values = new ContentValues();
                 values.put("category_id", Categories.DEFAULT_CATEGORY_ID);
-                db.update(NotePad.Notes.TABLE_NAME, values, "category_id = " + categoryId, null);
+                updateNotes(db, values, "category_id = " + categoryId, null);
                 
                 // Performs the delete.
                 count = db.delete(
@@ -875,6 +1231,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 }
                 
                 // Performs the delete.
+                deletedIds = queryNoteIds(db, finalWhere, whereArgs);
                 count = db.delete(
                     NotePad.Notes.TABLE_NAME,  // The database table name.
                     finalWhere,                // The final WHERE clause
@@ -882,11 +1239,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 );
                 break;
 
+            // 清理已经导出过的删除记录。笔记本身没有变化，不更新数据版本也不发通知
+            case DELETED_NOTES:
+                return db.delete(NotePad.DeletedNotes.TABLE_NAME, where, whereArgs);
+
                 // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        if (deletedIds != null && count > 0) {
+            for (long id : deletedIds) {
+                mNgramIndex.onNoteDeleted(db, id);
+            }
+        }
+
+        if (count > 0) {
+            mDataVersion.incrementAndGet();
+        }
+
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
@@ -929,6 +1300,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return updateLocked(uri, values, where, whereArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int updateLocked(Uri uri, ContentValues values, String where, String[] whereArgs) {
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -940,22 +1320,37 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         if (match == NOTES || match == NOTE_ID) {
             if (values != null) {
                 values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, Long.valueOf(System.currentTimeMillis()));
+
+                // 版本号在更新语句中加一，不接受调用方的值
+                values.remove(NotePad.Notes.COLUMN_NAME_VERSION);
+
+                // 拼音检索键只由 provider 计算，标题变化时重新计算
+                values.remove(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+                values.remove(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS);
+                if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+                    putPinyinKeys(values, values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE));
+                }
             }
         }
 
+        // 标题或正文变化的笔记，更新之后重新写入子串索引
+        long[] changedIds = null;
+        boolean textChanged = values != null
+                && (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                        || values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE));
+
         // Does the update based on the incoming URI pattern
         switch (match) {
 
             // If the incoming URI matches the general notes pattern, does the update based on
             // the incoming data.
             case NOTES:
+                if (textChanged) {
+                    changedIds = queryNoteIds(db, where, whereArgs);
+                }
+
                 // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    where,                    // The where clause column names.
-                    whereArgs                 // The where clause column values to select on.
-                );
+                count = updateNotes(db, values, where, whereArgs);
                 break;
 
             // If the incoming URI matches a single note ID, does the update based on the incoming
@@ -981,15 +1376,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
+                // 比较并更新：版本号与调用方看到的不一致时不做任何改动
+                String expectedVersion = uri.getQueryParameter(
+                        NotePad.Notes.QUERY_PARAMETER_EXPECTED_VERSION);
+                if (expectedVersion != null) {
+                    finalWhere = finalWhere + " AND " + NotePad.Notes.COLUMN_NAME_VERSION + " = "
+                            + parseVersion(expectedVersion);
+                }
+
+                if (textChanged) {
+                    mNgramIndex.load(db);
+                    changedIds = new long[] { Long.parseLong(noteId) };
+                }
+
                 // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    finalWhere,               // The final WHERE clause to use
-                                              // placeholders for whereArgs
-                    whereArgs                 // The where clause column values to select on, or
-                                              // null if the values are in the where argument.
-                );
+                count = updateNotes(db, values, finalWhere, whereArgs);
                 break;
                 
             // If the incoming URI matches the categories pattern
@@ -1035,6 +1436,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        if (changedIds != null && count > 0) {
+            reindexNotes(db, changedIds);
+        }
+
+        if (count > 0) {
+            mDataVersion.incrementAndGet();
+        }
+
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
@@ -1055,6 +1464,571 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         return count;
     }
 
+    /**
+     * 更新笔记，同一条语句中把版本号加一。SQLiteDatabase.update() 只能写入常量值，
+     * 所以这里自己拼出 UPDATE 语句，列名的处理与它相同。
+     */
+    private static int updateNotes(SQLiteDatabase db, ContentValues values, String where,
+            String[] whereArgs) {
+        StringBuilder sql = new StringBuilder(120);
+        sql.append("UPDATE ").append(NotePad.Notes.TABLE_NAME).append(" SET ");
+        int valueCount = values != null ? values.size() : 0;
+        Object[] bindArgs = new Object[valueCount + (whereArgs != null ? whereArgs.length : 0)];
+        int i = 0;
+        if (values != null) {
+            for (String column : values.keySet()) {
+                sql.append(column).append(" = ?, ");
+                bindArgs[i++] = values.get(column);
+            }
+        }
+        sql.append(NotePad.Notes.COLUMN_NAME_VERSION).append(" = ")
+                .append(NotePad.Notes.COLUMN_NAME_VERSION).append(" + 1");
+        if (!TextUtils.isEmpty(where)) {
+            sql.append(" WHERE ").append(where);
+        }
+        if (whereArgs != null) {
+            for (String arg : whereArgs) {
+                bindArgs[i++] = arg;
+            }
+        }
+
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            for (int j = 0; j < bindArgs.length; j++) {
+                DatabaseUtils.bindObjectToProgram(statement, j + 1, bindArgs[j]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static long parseVersion(String version) {
+        try {
+            return Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid version " + version);
+        }
+    }
+
+    /**
+     * 在一个事务中插入一批笔记，用于导入。除 {@link #insert} 接受的列以外，还可以用
+     * {@link NotePad.Notes#COLUMN_NAME_CATEGORY_TITLE} 按标题指定分类，没有这个分类时创建它。
+     * 少量笔记逐条更新子串索引，大批笔记插入之后让子串索引在下次使用时一次重建，
+     * 比逐条增量更新快得多。任何一条插入失败时全部回滚。其他 URI 按默认方式逐条插入。
+     *
+     * @return 插入的笔记数
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != NOTES) {
+            return super.bulkInsert(uri, values);
+        }
+        mDatabaseLock.readLock().lock();
+        try {
+            return bulkInsertNotes(values);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int bulkInsertNotes(ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean reindex = values.length <= BULK_REINDEX_LIMIT;
+        if (reindex) {
+            mNgramIndex.load(db);
+        }
+        Long now = Long.valueOf(System.currentTimeMillis());
+        // 本批中已经查到或创建的分类
+        HashMap<String, Long> categories = new HashMap<String, Long>();
+        SQLiteStatement findCategory = db.compileStatement("SELECT " + Categories._ID + " FROM "
+                + Categories.TABLE_NAME + " WHERE " + Categories.COLUMN_NAME_TITLE + " = ?");
+        int count = 0;
+        int createdCategories = 0;
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            for (ContentValues initialValues : values) {
+                ContentValues row = new ContentValues(initialValues);
+                String category = row.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY_TITLE);
+                row.remove(NotePad.Notes.COLUMN_NAME_CATEGORY_TITLE);
+                if (category != null) {
+                    Long categoryId = categories.get(category);
+                    if (categoryId == null) {
+                        findCategory.bindString(1, category);
+                        try {
+                            categoryId = findCategory.simpleQueryForLong();
+                        } catch (SQLiteDoneException e) {
+                            ContentValues categoryValues = new ContentValues();
+                            categoryValues.put(Categories.COLUMN_NAME_TITLE, category);
+                            categoryId = db.insertOrThrow(Categories.TABLE_NAME, null, categoryValues);
+                            createdCategories++;
+                        }
+                        categories.put(category, categoryId);
+                    }
+                    row.put("category_id", categoryId);
+                }
+                putNoteDefaults(row, now);
+
+                long rowId = db.insertOrThrow(NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_NOTE, row);
+                if (reindex) {
+                    mNgramIndex.onNoteChanged(db, rowId, row.getAsString(NotePad.Notes.COLUMN_NAME_TITLE),
+                            row.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+                }
+                count++;
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            findCategory.close();
+            // 回滚后子串索引中可能留有未生效的修改；大批插入没有更新索引，同样需要重建
+            if (!successful || !reindex) {
+                mNgramIndex.invalidate();
+            }
+        }
+
+        if (count > 0) {
+            mDataVersion.incrementAndGet();
+            getContext().getContentResolver().notifyChange(NotePad.Notes.CONTENT_URI, null);
+        }
+        if (createdCategories > 0) {
+            getContext().getContentResolver().notifyChange(
+                    Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"), null);
+        }
+        return count;
+    }
+
+    /**
+     * 在一个事务中执行一组操作，任何一个操作失败时全部回滚。
+     * 列表的批量移动和批量删除都通过这里提交，N 条笔记只需要一次提交。
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        mDatabaseLock.readLock().lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            boolean successful = false;
+            db.beginTransaction();
+            try {
+                ContentProviderResult[] results = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+                successful = true;
+                return results;
+            } finally {
+                db.endTransaction();
+                // 回滚后子串索引中可能留有未生效的修改
+                if (!successful) {
+                    mNgramIndex.invalidate();
+                }
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 处理 {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} 请求。
+     * 支持 {@link NotePad.Notes#METHOD_GET_DATA_VERSION}、{@link NotePad.Notes#METHOD_READ_NOTE}、
+     * {@link NotePad.Notes#METHOD_PATCH_NOTE}、{@link NotePad.Notes#METHOD_UPDATE_NOTE}、
+     * {@link NotePad.Notes#METHOD_UPDATE_SEARCH_INDEX}、{@link NotePad.Notes#METHOD_BACKUP} 和 {@link NotePad.Notes#METHOD_RESTORE}。
+     *
+     * @throws IllegalArgumentException if the method is not supported, or the note does not exist.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // 恢复自己取得写锁
+        if (NotePad.Notes.METHOD_RESTORE.equals(method)) {
+            return restore(parseDirectory(arg));
+        }
+        mDatabaseLock.readLock().lock();
+        try {
+            return callLocked(method, arg, extras);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Bundle callLocked(String method, String arg, Bundle extras) {
+        if (NotePad.Notes.METHOD_GET_DATA_VERSION.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(NotePad.Notes.KEY_DATA_VERSION, mDataVersion.get());
+            return result;
+        }
+        if (NotePad.Notes.METHOD_READ_NOTE.equals(method)) {
+            return readNote(parseNoteId(arg), extras.getInt(NotePad.Notes.KEY_OFFSET),
+                    extras.getInt(NotePad.Notes.KEY_LENGTH));
+        }
+        if (NotePad.Notes.METHOD_PATCH_NOTE.equals(method)) {
+            return patchNote(parseNoteId(arg), extras.getInt(NotePad.Notes.KEY_OFFSET),
+                    extras.getInt(NotePad.Notes.KEY_LENGTH), extras.getString(NotePad.Notes.KEY_TEXT),
+                    extras.getInt(NotePad.Notes.KEY_NOTE_LENGTH),
+                    extras.getLong(NotePad.Notes.KEY_EXPECTED_VERSION, -1));
+        }
+        if (NotePad.Notes.METHOD_UPDATE_NOTE.equals(method)) {
+            return updateNote(parseNoteId(arg),
+                    (ContentValues) extras.getParcelable(NotePad.Notes.KEY_VALUES),
+                    extras.getLong(NotePad.Notes.KEY_EXPECTED_VERSION));
+        }
+        if (NotePad.Notes.METHOD_UPDATE_SEARCH_INDEX.equals(method)) {
+            mSearchIndexExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updateSearchIndex();
+                }
+            });
+            return new Bundle();
+        }
+        if (NotePad.Notes.METHOD_BACKUP.equals(method)) {
+            return backup(parseDirectory(arg),
+                    extras != null ? extras.getLong(NotePad.Notes.KEY_BYTES_PER_SECOND) : 0);
+        }
+        throw new IllegalArgumentException("Unknown method " + method);
+    }
+
+    private static long parseNoteId(String arg) {
+        try {
+            return Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid note ID " + arg);
+        }
+    }
+
+    /**
+     * 备份和恢复的目录。这两个方法读写调用方指定的文件，只允许应用自己调用。
+     */
+    private static File parseDirectory(String arg) {
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException("Backup and restore are only available to the application");
+        }
+        if (TextUtils.isEmpty(arg)) {
+            throw new IllegalArgumentException("No backup directory");
+        }
+        return new File(arg);
+    }
+
+    /**
+     * 只从应用私有存储中的备份目录恢复，其他应用可以写入的目录中的备份不可信
+     *
+     * @throws IllegalArgumentException 备份不在 {@link BackupManager#getBackupDirectory} 中
+     */
+    private void checkBackupDirectory(File directory) {
+        File root = BackupManager.getBackupDirectory(getContext());
+        try {
+            File parent = directory.getCanonicalFile().getParentFile();
+            if (parent == null || !parent.equals(root.getCanonicalFile())) {
+                throw new IllegalArgumentException(directory + " is not in " + root);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid backup directory " + directory);
+        }
+    }
+
+    /**
+     * 把数据库的一致快照写入备份目录，见 {@link DatabaseBackup#backup}
+     */
+    private Bundle backup(File directory, long bytesPerSecond) {
+        DatabaseBackup.Manifest manifest;
+        try {
+            manifest = DatabaseBackup.backup(mOpenHelper.getWritableDatabase(), directory, bytesPerSecond);
+        } catch (IOException e) {
+            throw new IllegalStateException("Backup failed: " + e.getMessage());
+        }
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.KEY_COUNT, manifest.notes);
+        result.putLong(NotePad.Notes.KEY_SIZE, manifest.size);
+        result.putString(NotePad.Notes.KEY_CHECKSUM, manifest.checksum);
+        return result;
+    }
+
+    /**
+     * 用备份替换数据库。先把备份复制到数据库旁边并校验，这期间照常读写。然后取得写锁，
+     * 等进行中的读写结束后关闭旧连接（关闭时写回并删除预写日志），删除残留的日志文件，
+     * 再把校验过的副本改名为数据库文件，这一步是原子的：失败时仍是原来的数据库。
+     * 最后重新打开数据库，较旧的备份在打开时按 onUpgrade() 升级。子串索引随后重建，
+     * 增量导出的起点也被清除。
+     */
+    private synchronized Bundle restore(File directory) {
+        checkBackupDirectory(directory);
+        File databaseFile;
+        mDatabaseLock.readLock().lock();
+        try {
+            databaseFile = new File(mOpenHelper.getWritableDatabase().getPath());
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+        File restored;
+        try {
+            restored = DatabaseBackup.prepareRestore(directory, databaseFile, DATABASE_VERSION);
+        } catch (IOException e) {
+            throw new IllegalStateException("Restore failed: " + e.getMessage());
+        }
+
+        Bundle result = new Bundle();
+        mDatabaseLock.writeLock().lock();
+        try {
+            // 先关闭旧连接，之后不会再有写入提交到被替换的文件，关闭时也不会碰到新文件的日志
+            mOpenHelper.close();
+            DatabaseBackup.deleteJournals(databaseFile);
+            boolean replaced = restored.renameTo(databaseFile);
+            if (!replaced) {
+                restored.delete();
+            }
+            mOpenHelper = new DatabaseHelper(getContext());
+            mNgramIndex.invalidate();
+            if (!replaced) {
+                throw new IllegalStateException("Unable to replace " + databaseFile);
+            }
+            result.putInt(NotePad.Notes.KEY_COUNT, (int) DatabaseUtils.queryNumEntries(
+                    mOpenHelper.getWritableDatabase(), NotePad.Notes.TABLE_NAME));
+        } finally {
+            mDatabaseLock.writeLock().unlock();
+        }
+        ExportManager.resetIncrementalExport(getContext());
+        // 缓存的笔记和草稿日志属于被替换的数据，恢复的笔记可能有相同的 ID 和版本号
+        NoteCache.getInstance().clear();
+        DraftJournal.deleteAll(getContext());
+        mDataVersion.incrementAndGet();
+        getContext().getContentResolver().notifyChange(NotePad.Notes.CONTENT_URI, null);
+        getContext().getContentResolver().notifyChange(
+                Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"), null);
+        return result;
+    }
+
+    /**
+     * 比较并更新一条笔记。版本号在更新语句中加一，所以成功时新的版本号就是 expectedVersion + 1，
+     * 不需要再读一次；只有冲突时才查询当前的版本号。
+     */
+    private Bundle updateNote(long noteId, ContentValues values, long expectedVersion) {
+        if (values == null) {
+            throw new IllegalArgumentException("No values for note " + noteId);
+        }
+        Uri uri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId).buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_EXPECTED_VERSION,
+                        String.valueOf(expectedVersion))
+                .build();
+        int count = update(uri, values, null, null);
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.KEY_COUNT, count);
+        result.putLong(NotePad.Notes.KEY_VERSION,
+                count > 0 ? expectedVersion + 1 : queryVersion(noteId));
+        return result;
+    }
+
+    /**
+     * 查询笔记当前的版本号，笔记不存在时返回 -1
+     */
+    private long queryVersion(long noteId) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        try {
+            return DatabaseUtils.longForQuery(db, "SELECT " + NotePad.Notes.COLUMN_NAME_VERSION
+                    + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?",
+                    new String[] { String.valueOf(noteId) });
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 读取正文的一段。substr() 在 SQLite 中截取，只有这一段文本进入 CursorWindow。
+     */
+    private Bundle readNote(long noteId, int offset, int length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range " + offset + ", " + length);
+        }
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.rawQuery("SELECT substr(ifnull(" + NotePad.Notes.COLUMN_NAME_NOTE + ", ''), ?, ?), length("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " = ?", new String[] {
+                        String.valueOf(offset + 1L), String.valueOf(length), String.valueOf(noteId)
+                });
+        try {
+            if (!c.moveToFirst()) {
+                throw new IllegalArgumentException("Unknown note " + noteId);
+            }
+            Bundle result = new Bundle();
+            result.putString(NotePad.Notes.KEY_TEXT, c.getString(0));
+            result.putInt(NotePad.Notes.KEY_NOTE_LENGTH, c.getInt(1));
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 在后台线程中为待索引的笔记更新全文索引
+     */
+    private void updateSearchIndex() {
+        mDatabaseLock.readLock().lock();
+        try {
+            int count = SearchRanker.indexPendingNotes(mOpenHelper.getWritableDatabase());
+            if (count > 0) {
+                Log.i(TAG, "Updated the search index for " + count + " notes");
+            }
+        } catch (SQLException e) {
+            // 下次搜索时还会再补
+            Log.e(TAG, "Unable to update the search index", e);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 替换正文的一段，拼接在 SQLite 中完成，调用方只需要传入修改过的部分。
+     * 正文长度与 expectedLength 不一致，或者给出了 expectedVersion 而版本号不一致时，
+     * 说明笔记已被其他地方修改，不做任何改动。
+     *
+     * 按区间保存的是大文档模式下的笔记，不经触发器更新全文索引：笔记标记为待索引，
+     * 在编辑器关闭后（{@link NotePad.Notes#METHOD_UPDATE_SEARCH_INDEX}）或下次搜索前一次补上。
+     */
+    private Bundle patchNote(long noteId, int offset, int length, String text, int expectedLength,
+            long expectedVersion) {
+        if (offset < 0 || length < 0 || text == null) {
+            throw new IllegalArgumentException("Invalid patch " + offset + ", " + length);
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mNgramIndex.load(db);
+        String note = "ifnull(" + NotePad.Notes.COLUMN_NAME_NOTE + ", '')";
+        SQLiteStatement statement = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + NotePad.Notes.COLUMN_NAME_NOTE + " = substr(" + note + ", 1, ?) || ? || substr("
+                + note + ", ?), " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = ?, "
+                + SearchRanker.COLUMN_NAME_FTS_PENDING + " = 1, "
+                + NotePad.Notes.COLUMN_NAME_VERSION + " = " + NotePad.Notes.COLUMN_NAME_VERSION
+                + " + 1 WHERE " + NotePad.Notes._ID + " = ? AND length(" + note + ") = ?"
+                + (expectedVersion >= 0 ? " AND " + NotePad.Notes.COLUMN_NAME_VERSION + " = ?" : ""));
+        int count;
+        try {
+            statement.bindLong(1, offset);
+            statement.bindString(2, text);
+            statement.bindLong(3, (long) offset + length + 1);
+            statement.bindLong(4, System.currentTimeMillis());
+            statement.bindLong(5, noteId);
+            statement.bindLong(6, expectedLength);
+            if (expectedVersion >= 0) {
+                statement.bindLong(7, expectedVersion);
+            }
+            count = statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+
+        if (count > 0) {
+            reindexNotes(db, new long[] { noteId });
+            mDataVersion.incrementAndGet();
+            getContext().getContentResolver().notifyChange(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId), null);
+            getContext().getContentResolver().notifyChange(NotePad.Notes.CONTENT_URI, null);
+        }
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.KEY_COUNT, count);
+        result.putLong(NotePad.Notes.KEY_VERSION, count > 0 && expectedVersion >= 0
+                ? expectedVersion + 1 : queryVersion(noteId));
+        return result;
+    }
+
+    /**
+     * 为新笔记补齐调用方没有给出的列：创建和修改时间、标题、正文和分类，
+     * 并计算拼音检索键、去掉调用方给出的版本号。
+     */
+    private static void putNoteDefaults(ContentValues values, Long now) {
+        // If the values map doesn't contain the creation date, sets the value to the current time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+        }
+
+        // If the values map doesn't contain the modification date, sets the value to the current
+        // time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        }
+
+        // If the values map doesn't contain a title, sets the value to the default title.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
+            Resources r = Resources.getSystem();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
+        }
+
+        // If the values map doesn't contain note text, sets the value to an empty string.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        }
+
+        // 根据标题计算拼音检索键
+        putPinyinKeys(values, values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE));
+
+        // 版本号只由 provider 维护，新笔记从1开始
+        values.remove(NotePad.Notes.COLUMN_NAME_VERSION);
+
+        // If the values map doesn't contain category_id, sets to default category
+        if (values.containsKey("category_id") == false) {
+            values.put("category_id", Categories.DEFAULT_CATEGORY_ID);
+        }
+    }
+
+    /**
+     * 把标题的拼音检索键放入 values
+     */
+    static void putPinyinKeys(ContentValues values, String title) {
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN, PinyinKeys.fullPinyin(title));
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS, PinyinKeys.initials(title));
+    }
+
+    /**
+     * 查询满足条件的笔记 ID。在批量更新或删除之前调用，以便之后同步子串索引。
+     * 调用前会先加载子串索引，保证索引与写入之前的数据库一致。
+     */
+    private long[] queryNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        mNgramIndex.load(db);
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                where, whereArgs, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 读取笔记当前的标题和正文，重新写入子串索引。
+     * 用 SQLiteStatement 直接取出字符串，不经过 CursorWindow；正文超过
+     * {@link NgramIndex#LARGE_NOTE_LENGTH} 时只读取标题，按区间保存大笔记不会重新切分整篇正文。
+     */
+    private void reindexNotes(SQLiteDatabase db, long[] ids) {
+        SQLiteStatement title = db.compileStatement("SELECT " + NotePad.Notes.COLUMN_NAME_TITLE
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?");
+        SQLiteStatement note = db.compileStatement("SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?");
+        SQLiteStatement length = db.compileStatement("SELECT length(" + NotePad.Notes.COLUMN_NAME_NOTE
+                + ") FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?");
+        try {
+            for (long id : ids) {
+                title.bindLong(1, id);
+                length.bindLong(1, id);
+                try {
+                    // 大笔记的正文不进入索引，也就不必读出来
+                    if (length.simpleQueryForLong() > NgramIndex.LARGE_NOTE_LENGTH) {
+                        mNgramIndex.onLargeNoteChanged(db, id, title.simpleQueryForString());
+                    } else {
+                        note.bindLong(1, id);
+                        mNgramIndex.onNoteChanged(db, id, title.simpleQueryForString(),
+                                note.simpleQueryForString());
+                    }
+                } catch (SQLiteDoneException e) {
+                    // 笔记已经不存在
+                }
+            }
+        } finally {
+            title.close();
+            note.close();
+            length.close();
+        }
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -16,12 +16,9 @@
 
 package com.example.android.notepad;
 
-import java.util.Set;
-import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
 import android.view.LayoutInflater;
-import android.widget.CursorAdapter;
 import android.widget.BaseAdapter;
 
 import com.example.android.notepad.NotePad;
@@ -30,21 +27,25 @@ import android.app.Activity;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.ContentObserver;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.Looper;
+import android.os.RemoteException;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.SubMenu;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -61,15 +62,25 @@ import android.widget.PopupMenu;
 import android.widget.SimpleCursorAdapter;
 import android.widget.SearchView;
 import android.widget.TextView;
+import android.widget.ToggleButton;
 import android.view.ViewGroup;
 import android.widget.Toast;
+import android.graphics.Typeface;
 import android.text.InputType;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.text.TextUtils;
+import android.text.style.StyleSpan;
 import com.example.android.notepad.ExportManager;
 import com.example.android.notepad.NotePadProvider;
 import com.example.android.notepad.ThemeManager;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Locale;
 
@@ -89,6 +100,22 @@ public class NotesList extends Activity {
     // For logging and debugging
     private static final String TAG = "NotesList";
 
+    /**
+     * 启动时要筛选的分类ID（long[]）。CategoryListActivity通过它回到已有的笔记列表并筛选分类。
+     */
+    public static final String EXTRA_CATEGORY_FILTER =
+            "com.example.android.notepad.extra.CATEGORY_FILTER";
+
+    // 保存分类筛选状态的键
+    private static final String STATE_CATEGORY_FILTER = "category_filter";
+
+    // 导出格式列表中 ZIP 一项的位置，在 ExportFormatter 的各个格式之后
+    private static final int EXPORT_FORMAT_ARCHIVE = ExportFormatter.FORMAT_HTML + 1;
+    // 增量导出一项的位置，在 ZIP 之后
+    private static final int EXPORT_FORMAT_INCREMENTAL = EXPORT_FORMAT_ARCHIVE + 1;
+    // 二进制归档一项的位置，在增量导出之后
+    private static final int EXPORT_FORMAT_BINARY = EXPORT_FORMAT_INCREMENTAL + 1;
+
     /**
      * The columns needed by the cursor adapter
      */
@@ -98,7 +125,8 @@ public class NotesList extends Activity {
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
             NotePad.Notes.COLUMN_NAME_CREATE_DATE, // 3
             "category_id", // 4
-            "category_title" // 5
+            "category_title", // 5
+            NotePad.Notes.COLUMN_NAME_TITLE_PINYIN // 6，按标题排序时用于分段
     };
 
     /** The index of the title column */
@@ -109,16 +137,57 @@ public class NotesList extends Activity {
     private View mBtnSort;
     private View mBtnSearch;
     private View mBtnMore;
+    private View mBatchActionBar;
+    private Button mBtnSelectAll;
     private Button mBtnDeleteSelected;
     
     // 批量选择模式标志
     private boolean mMultiSelectMode = false;
-    // 选中的笔记ID集合
-    private Set<Long> mSelectedNoteIds = new HashSet<>();
+    // 多选状态，按列表位置记录
+    private final SelectionModel mSelection = new SelectionModel();
     
     // 笔记列表适配器
     private BaseAdapter mAdapter;
 
+    // 当前的搜索文本，为null时显示完整的分组列表。后台加载线程也会读取
+    private volatile String mSearchQuery;
+
+    // 新的搜索结果为空时提示用户
+    private boolean mNotifyEmptySearch;
+
+    // 合并数据变化通知，在后台重新加载列表
+    private CoalescingObserver<ListData> mObserver;
+
+    // 选中的分类ID（升序），为null时显示所有分类。后台加载线程也会读取
+    private volatile long[] mCategoryFilter;
+
+    // 分类筛选栏及当前显示的分类
+    private View mCategoryFilterBar;
+    private ViewGroup mCategoryChips;
+    private long[] mChipCategoryIds;
+    private String[] mChipCategoryTitles;
+
+    // 筛选条件变化后，下次加载完成时回到列表顶部
+    private boolean mScrollToTopOnLoad;
+
+    // 首屏快照文件，只在显示默认笔记列表时使用
+    private File mSnapshotFile;
+
+    // 列表的排序方式，见SortMode。后台加载线程也会读取
+    private volatile int mSortMode;
+
+    // 在后台导出笔记，同时只进行一次导出
+    private ExportManager mExportManager;
+
+    // 在后台导入笔记，同时只进行一次导入
+    private ImportManager mImportManager;
+
+    // 在后台备份和恢复数据库
+    private BackupManager mBackupManager;
+
+    // 为分类选择对话框读取分类的后台任务，同时只进行一次
+    private CategoriesTask mCategoriesTask;
+
     /**
      * onCreate is called when Android starts this Activity from scratch.
      */
@@ -130,6 +199,11 @@ public class NotesList extends Activity {
 
         // 使用自定义布局
         setContentView(R.layout.notes_list);
+        mExportManager = new ExportManager(this);
+        mImportManager = new ImportManager(this);
+        mBackupManager = new BackupManager(this);
+        // 开启了自动备份时确认任务仍在计划中
+        AutoBackupScheduler.ensureScheduled(this);
 
         // The user does not need to hold down the key to use menu shortcuts.
         setDefaultKeyMode(DEFAULT_KEYS_SHORTCUT);
@@ -165,36 +239,95 @@ public class NotesList extends Activity {
             Log.e(TAG, "ListView is null! findViewById(R.id.note_list) returned null.");
         }
 
-        /* Performs a query to get the notes. Using getContentResolver() directly instead of
-         * managedQuery (which is deprecated) to have better control over cursor lifecycle.
-         *
-         * Please see the introductory note about performing provider operations on the UI thread.
+        // 创建自定义的BaseAdapter来实现分组列表。数据在onStart()之后由后台加载
+        mAdapter = new NotesAdapter();
+        mSortMode = SortMode.getSortMode(this);
+
+        mCategoryFilterBar = findViewById(R.id.category_filter_bar);
+        mCategoryChips = findViewById(R.id.category_chips);
+        if (savedInstanceState != null) {
+            mCategoryFilter = normalizeFilter(savedInstanceState.getLongArray(STATE_CATEGORY_FILTER));
+        } else {
+            mCategoryFilter = normalizeFilter(intent.getLongArrayExtra(EXTRA_CATEGORY_FILTER));
+        }
+
+        /*
+         * 冷启动时先显示上次保存的首屏快照，不等待数据库。后台加载完成后换成实时数据。
+         * 其他应用以自定义URI启动本界面时列表内容不同，筛选了分类时快照也不对应，都不使用快照。
          */
-        Cursor cursor = getContentResolver().query(
-            getIntent().getData(),            // Use the default content URI for the provider.
-            PROJECTION,                       // Return the note ID and title for each note.
-            null,                             // No where clause, return all records.
-            null,                             // No where clause, therefore no where column values.
-            "category_title ASC, " + NotePad.Notes.DEFAULT_SORT_ORDER  // 先按分类标题排序，再按默认排序
-        );
+        if (NotePad.Notes.CONTENT_URI.equals(intent.getData())) {
+            mSnapshotFile = new File(getCacheDir(), ListSnapshot.FILE_NAME);
+            List<ItemData> snapshot = mCategoryFilter == null
+                    ? ListSnapshot.read(mSnapshotFile, mSortMode) : null;
+            if (snapshot != null) {
+                ((NotesAdapter) mAdapter).setItemDataList(snapshot);
+            }
+        }
 
         /*
-         * The following two arrays create a "map" between columns in the cursor and view IDs
-         * for items in the ListView. Each element in the dataColumns array represents
-         * a column name; each element in the viewID array represents the ID of a View.
-         * The SimpleCursorAdapter maps them in ascending order to determine where each column
-         * value will appear in the ListView.
+         * 笔记的查询和列表项的构建都在后台线程中进行。短时间内的多条变化通知只触发一次加载，
+         * 数据版本没有变化时（例如从编辑器返回但没有修改）不重新加载。
          */
+        mObserver = new CoalescingObserver<ListData>(
+                CoalescingObserver.DEFAULT_WINDOW_MILLIS,
+                new CoalescingObserver.Callbacks<ListData>() {
+                    @Override
+                    public long queryDataVersion() {
+                        Bundle result = getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                                NotePad.Notes.METHOD_GET_DATA_VERSION, null, null);
+                        return result.getLong(NotePad.Notes.KEY_DATA_VERSION);
+                    }
 
-        // 创建自定义的BaseAdapter来实现分组列表
-        mAdapter = new NotesAdapter(cursor);
+                    @Override
+                    public ListData loadInBackground() {
+                        String searchQuery = mSearchQuery;
+                        int sortMode = mSortMode;
+                        long[] categoryFilter = mCategoryFilter;
+                        ListData result = new ListData();
+                        result.items = loadItemDataList(searchQuery, sortMode, categoryFilter);
+                        loadCategories(result);
+                        // 每次加载完整列表后更新首屏快照，搜索结果和筛选后的列表不保存
+                        if (searchQuery == null && categoryFilter == null && mSnapshotFile != null) {
+                            ListSnapshot.write(mSnapshotFile, sortMode, result.items);
+                        }
+                        return result;
+                    }
+
+                    @Override
+                    public void onLoadFinished(ListData result) {
+                        ((NotesAdapter) mAdapter).setItemDataList(result.items);
+                        if (mScrollToTopOnLoad) {
+                            mScrollToTopOnLoad = false;
+                            mListView.setSelection(0);
+                        }
+                        updateCategoryChips(result);
+                        if (mMultiSelectMode) {
+                            updateDeleteButtonTitle();
+                        }
+                        if (mNotifyEmptySearch && mSearchQuery != null && result.items.isEmpty()) {
+                            Toast.makeText(NotesList.this, R.string.search_no_results, Toast.LENGTH_SHORT).show();
+                        }
+                        mNotifyEmptySearch = false;
+                    }
+                });
         
         // 设置点击事件监听器
         mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                // 分组标题没有ID（返回-1），所以跳过点击事件
+                // 分组标题没有ID（返回-1）。批量选择模式下点击分组标题选中整个分类
                 if (id == -1) {
+                    if (mMultiSelectMode) {
+                        mSelection.toggleSection(position);
+                        onSelectionChanged();
+                    }
+                    return;
+                }
+
+                // 批量选择模式下点击笔记切换选中状态
+                if (mMultiSelectMode) {
+                    mSelection.toggle(position);
+                    onSelectionChanged();
                     return;
                 }
                 
@@ -212,6 +345,36 @@ public class NotesList extends Activity {
                 }
             }
         });
+        // 批量选择模式下长按笔记，选中从上次点击的笔记到这里之间的所有笔记；其他情况显示上下文菜单
+        mListView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+                if (!mMultiSelectMode || id == -1) {
+                    return false;
+                }
+                mSelection.extendTo(position);
+                onSelectionChanged();
+                return true;
+            }
+        });
+
+        // 手指按下时就在后台预读这条笔记，松开手指打开编辑器时内容通常已经在缓存中
+        mListView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                if (event.getActionMasked() == MotionEvent.ACTION_DOWN && !mMultiSelectMode) {
+                    int position = mListView.pointToPosition((int) event.getX(), (int) event.getY());
+                    if (position != ListView.INVALID_POSITION) {
+                        long id = mListView.getItemIdAtPosition(position);
+                        if (id != -1) {
+                            NoteCache.getInstance().prefetch(getContentResolver(), id);
+                        }
+                    }
+                }
+                return false;
+            }
+        });
+
         // Sets the ListView's adapter to be the base adapter that was just created.
         mListView.setAdapter(mAdapter);
 
@@ -220,9 +383,38 @@ public class NotesList extends Activity {
         mBtnSort = findViewById(R.id.btn_sort);
         mBtnSearch = findViewById(R.id.btn_search);
         mBtnMore = findViewById(R.id.btn_more);
-        // 初始化底部删除按钮
+        // 初始化底部批量操作栏
+        mBatchActionBar = findViewById(R.id.batch_action_bar);
+        mBtnSelectAll = findViewById(R.id.btn_select_all);
         mBtnDeleteSelected = findViewById(R.id.btn_delete_selected);
-        
+
+        mBtnSelectAll.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // 已经全部选中时取消全选
+                if (mSelection.getSelectedCount() == mSelection.getSelectableCount()) {
+                    mSelection.clear();
+                } else {
+                    mSelection.selectAll();
+                }
+                onSelectionChanged();
+            }
+        });
+
+        findViewById(R.id.btn_move_selected).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                performBatchMove();
+            }
+        });
+
+        findViewById(R.id.btn_export_selected).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                performBatchExport();
+            }
+        });
+
         // 设置底部删除按钮点击事件
         mBtnDeleteSelected.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -243,8 +435,8 @@ public class NotesList extends Activity {
         mBtnSort.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                // 进入分类管理界面
-                startActivity(new Intent(NotesList.this, CategoryListActivity.class));
+                // 选择排序方式
+                showSortMenu(v);
             }
         });
 
@@ -265,6 +457,33 @@ public class NotesList extends Activity {
         });
     }
 
+    /**
+     * 显示排序方式菜单，当前的排序方式处于选中状态
+     */
+    private void showSortMenu(View v) {
+        PopupMenu popup = new PopupMenu(this, v);
+        Menu menu = popup.getMenu();
+        for (int mode = 0; mode < SortMode.LABELS.length; mode++) {
+            menu.add(R.id.menu_sort_group, Menu.FIRST + mode, mode, SortMode.LABELS[mode]);
+        }
+        menu.setGroupCheckable(R.id.menu_sort_group, true, true);
+        menu.findItem(Menu.FIRST + mSortMode).setChecked(true);
+
+        popup.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                int mode = item.getItemId() - Menu.FIRST;
+                if (mode != mSortMode) {
+                    mSortMode = mode;
+                    SortMode.saveSortMode(NotesList.this, mode);
+                    refreshNoteList();
+                }
+                return true;
+            }
+        });
+        popup.show();
+    }
+
     /**
      * 显示设置菜单
      */
@@ -275,10 +494,29 @@ public class NotesList extends Activity {
         // 添加切换到深色主题功能
         menu.add(Menu.NONE, R.id.menu_theme_toggle, Menu.NONE,
                 ThemeManager.isDarkTheme(this) ? R.string.menu_theme_light : R.string.menu_theme_dark);
+
+        // 分类管理
+        menu.add(Menu.NONE, R.id.menu_category_manager, Menu.NONE, R.string.category_list_title);
         
         // 添加导出文件功能
         menu.add(Menu.NONE, R.id.menu_export_all, Menu.NONE, R.string.menu_export_all);
         menu.add(Menu.NONE, R.id.menu_export_category, Menu.NONE, R.string.menu_export_category);
+        menu.add(Menu.NONE, R.id.menu_export_compress, Menu.NONE, R.string.menu_export_compress)
+                .setCheckable(true)
+                .setChecked(mExportManager.isCompressed());
+
+        // 从导出文件或文本文件目录导入
+        menu.add(Menu.NONE, R.id.menu_import, Menu.NONE, R.string.menu_import);
+
+        // 备份和恢复整个数据库
+        menu.add(Menu.NONE, R.id.menu_backup, Menu.NONE, R.string.menu_backup);
+        menu.add(Menu.NONE, R.id.menu_restore, Menu.NONE, R.string.menu_restore);
+        menu.add(Menu.NONE, R.id.menu_export_backup, Menu.NONE, R.string.menu_export_backup);
+        if (AutoBackupScheduler.isSupported()) {
+            menu.add(Menu.NONE, R.id.menu_auto_backup, Menu.NONE, R.string.menu_auto_backup)
+                    .setCheckable(true)
+                    .setChecked(AutoBackupScheduler.isEnabled(this));
+        }
         
         // 添加批量删除功能
         menu.add(Menu.NONE, R.id.menu_batch_delete, Menu.NONE, R.string.menu_batch_delete);
@@ -294,19 +532,49 @@ public class NotesList extends Activity {
                     // 重新创建Activity以应用新主题
                     recreate();
                     return true;
+                } else if (itemId == R.id.menu_category_manager) {
+                    // 进入分类管理界面
+                    startActivity(new Intent(NotesList.this, CategoryListActivity.class));
+                    return true;
                 } else if (itemId == R.id.menu_batch_delete) {
                     // 批量删除
                     toggleMultiSelectMode();
                     return true;
                 } else if (itemId == R.id.menu_export_all) {
-                    // 导出所有笔记
-                    ExportManager exportManager = new ExportManager(NotesList.this);
-                    exportManager.exportAllNotes();
+                    // 选择格式后导出所有笔记
+                    showExportFormatDialog();
                     return true;
                 } else if (itemId == R.id.menu_export_category) {
                     // 按分类导出笔记
                     showCategorySelectionDialog();
                     return true;
+                } else if (itemId == R.id.menu_export_compress) {
+                    // 之后的文本导出是否压缩
+                    mExportManager.setCompressed(!mExportManager.isCompressed());
+                    return true;
+                } else if (itemId == R.id.menu_import) {
+                    // 选择要导入的文件
+                    showImportSourceDialog();
+                    return true;
+                } else if (itemId == R.id.menu_backup) {
+                    mBackupManager.backup();
+                    return true;
+                } else if (itemId == R.id.menu_restore) {
+                    // 选择备份并确认后恢复
+                    showBackupsDialog(true);
+                    return true;
+                } else if (itemId == R.id.menu_export_backup) {
+                    // 选择备份复制到下载目录
+                    showBackupsDialog(false);
+                    return true;
+                } else if (itemId == R.id.menu_auto_backup) {
+                    // 开启或关闭自动备份
+                    boolean enabled = !AutoBackupScheduler.isEnabled(NotesList.this);
+                    AutoBackupScheduler.setEnabled(NotesList.this, enabled);
+                    Toast.makeText(NotesList.this, enabled
+                            ? getString(R.string.auto_backup_enabled, AutoBackupScheduler.GENERATIONS)
+                            : getString(R.string.auto_backup_disabled), Toast.LENGTH_SHORT).show();
+                    return true;
                 }
                 return false;
             }
@@ -320,16 +588,16 @@ public class NotesList extends Activity {
      */
     private void showSearchDialog() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        builder.setTitle("搜索笔记");
+        builder.setTitle(R.string.search_dialog_title);
 
         // 创建搜索输入框
         final EditText input = new EditText(this);
         input.setInputType(InputType.TYPE_CLASS_TEXT);
-        input.setHint("请输入搜索内容");
+        input.setHint(R.string.search_dialog_hint);
         builder.setView(input);
 
         // 设置对话框按钮
-        builder.setPositiveButton("搜索", new DialogInterface.OnClickListener() {
+        builder.setPositiveButton(R.string.menu_search, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 String query = input.getText().toString().trim();
@@ -338,7 +606,7 @@ public class NotesList extends Activity {
                 }
             }
         });
-        builder.setNegativeButton("取消", new DialogInterface.OnClickListener() {
+        builder.setNegativeButton(R.string.alert_dialog_cancel, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 dialog.cancel();
@@ -371,162 +639,494 @@ public class NotesList extends Activity {
     }
 
     private void performSearch(String query) {
-        // 优化搜索逻辑，使用更友好的搜索方式
-        String searchQuery = query.trim().toLowerCase();
-        
-        // 使用更健壮的查询语句，支持大小写不敏感搜索，匹配标题、内容和分类
-        // 确保只返回有笔记的记录，避免只显示分类而没有笔记的情况
-        String selection = "(LOWER(" + NotePad.Notes.COLUMN_NAME_TITLE + ") LIKE ? OR LOWER(" 
-                + NotePad.Notes.COLUMN_NAME_NOTE + ") LIKE ? OR LOWER(category_title) LIKE ?) AND " 
-                + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " IS NOT NULL";
-        String[] selectionArgs = { "%" + searchQuery + "%", "%" + searchQuery + "%", "%" + searchQuery + "%" };
-
-        // 使用与列表显示相同的URI，确保搜索结果与主列表的上下文一致
-        Cursor cursor = getContentResolver().query(
-                getIntent().getData(),
-                PROJECTION,
-                selection,
-                selectionArgs,
-                "category_title ASC, " + NotePad.Notes.DEFAULT_SORT_ORDER
-        );
+        // 搜索结果按相关度排序，得分和摘要都在provider中计算
+        mSearchQuery = query.trim();
 
-        // 检查适配器是否存在
-        if (mAdapter != null && mAdapter instanceof NotesAdapter) {
-            NotesAdapter notesAdapter = (NotesAdapter) mAdapter;
-            notesAdapter.changeCursor(cursor);
-            
-            // 如果搜索结果为空，可以显示一个提示
-            if (cursor.getCount() == 0) {
-                Toast.makeText(NotesList.this, "没有找到匹配的笔记", Toast.LENGTH_SHORT).show();
-            }
-        }
+        // 如果搜索结果为空，加载完成后显示一个提示
+        mNotifyEmptySearch = true;
+        refreshNoteList();
     }
     
+    /**
+     * 查询按相关度排序的搜索结果。每行包含得分和带高亮标记的摘要，笔记正文不会传到界面。
+     */
+    private Cursor querySearchResults(String query) {
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query)
+                .build();
+        return getContentResolver().query(searchUri, null, null, null, null);
+    }
+
     /**
      * 重置搜索结果，显示所有笔记
      */
     private void resetSearchResults() {
+        mSearchQuery = null;
         // 使用refreshNoteList方法重置搜索结果，确保URI和排序方式一致
         refreshNoteList();
     }
+
+    /**
+     * 处于批量选择模式或搜索结果中时，返回键先退出批量选择、回到完整列表
+     */
+    @Override
+    public void onBackPressed() {
+        if (mMultiSelectMode) {
+            toggleMultiSelectMode();
+            return;
+        }
+        if (mSearchQuery != null) {
+            resetSearchResults();
+            return;
+        }
+        super.onBackPressed();
+    }
     
     /**
-     * 刷新笔记列表，使用当前Intent的URI和统一的排序方式
+     * 请求重新加载笔记列表。查询条件（例如搜索文本）变化时调用，不比较数据版本。
+     * 数据本身的变化由mObserver监听，不需要手动刷新。
      */
     private void refreshNoteList() {
-        // 检查适配器是否存在
-        if (mAdapter == null) return;
-        
-        // 使用getContentResolver直接查询最新的笔记数据
-        Cursor newCursor = getContentResolver().query(
-                getIntent().getData(), // 完整的URI，包括附加的限制参数
-                PROJECTION,            // 返回的列
-                null,                  // 没有WHERE子句，返回所有行
-                null,                  // 没有WHERE参数
-                "category_title ASC, " + NotePad.Notes.DEFAULT_SORT_ORDER // 先按分类标题升序，再按修改日期降序排序
+        if (mObserver != null) {
+            mObserver.requestReload(true);
+        }
+    }
+
+    /**
+     * 查询笔记并构建列表项，在后台线程中调用。有搜索文本时返回按相关度排序的搜索结果，
+     * 否则返回按sortMode排序并分段的列表，categoryFilter不为null时只包含这些分类的笔记。
+     */
+    private List<ItemData> loadItemDataList(String searchQuery, int sortMode, long[] categoryFilter) {
+        Cursor cursor;
+        if (searchQuery != null) {
+            cursor = querySearchResults(searchQuery);
+        } else {
+            cursor = getContentResolver().query(
+                    getIntent().getData(),            // 完整的URI，包括附加的限制参数
+                    PROJECTION,                       // 返回的列
+                    categorySelection(categoryFilter), // 分类筛选，没有筛选时为null
+                    null,                             // 没有WHERE参数
+                    SortMode.getSortOrder(sortMode)   // 与索引一致的排序语句
+            );
+        }
+        try {
+            return buildItemDataList(cursor, sortMode);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * 生成分类筛选的WHERE子句。category_id上有(category_id, modified)索引，IN查询直接在索引上查找。
+     */
+    static String categorySelection(long[] categoryFilter) {
+        if (categoryFilter == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(NotePad.Notes.TABLE_NAME).append(".category_id IN (");
+        for (int i = 0; i < categoryFilter.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(categoryFilter[i]);
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * 读取所有分类，用于显示筛选栏和分类选择对话框。在后台线程中调用
+     */
+    private void loadCategories(ListData result) {
+        Cursor cursor = getContentResolver().query(
+                Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"),
+                new String[] { NotePadProvider.Categories._ID, NotePadProvider.Categories.COLUMN_NAME_TITLE },
+                null,
+                null,
+                NotePadProvider.Categories.DEFAULT_SORT_ORDER
         );
-        
-        // 使用新的Cursor更新适配器
-        ((NotesAdapter) mAdapter).changeCursor(newCursor);
+        if (cursor == null) {
+            result.categoryIds = new long[0];
+            result.categoryTitles = new String[0];
+            return;
+        }
+        try {
+            result.categoryIds = new long[cursor.getCount()];
+            result.categoryTitles = new String[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                result.categoryIds[i] = cursor.getLong(0);
+                result.categoryTitles[i] = cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
     }
-    
+
+    /**
+     * 去掉重复的分类ID并排序；为空时返回null，表示不筛选
+     */
+    private static long[] normalizeFilter(long[] filter) {
+        if (filter == null || filter.length == 0) {
+            return null;
+        }
+        long[] sorted = filter.clone();
+        Arrays.sort(sorted);
+        int n = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[n - 1]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    /**
+     * 修改分类筛选并重新加载列表
+     */
+    private void setCategoryFilter(long[] filter) {
+        filter = normalizeFilter(filter);
+        if (Arrays.equals(filter, mCategoryFilter)) {
+            return;
+        }
+        mCategoryFilter = filter;
+        mScrollToTopOnLoad = true;
+        updateChipStates();
+        refreshNoteList();
+    }
+
+    /**
+     * 切换一个分类是否在筛选条件中
+     */
+    private void toggleCategoryFilter(long categoryId) {
+        long[] filter = mCategoryFilter;
+        if (filter == null) {
+            setCategoryFilter(new long[] { categoryId });
+            return;
+        }
+        int index = Arrays.binarySearch(filter, categoryId);
+        if (index >= 0) {
+            long[] removed = new long[filter.length - 1];
+            System.arraycopy(filter, 0, removed, 0, index);
+            System.arraycopy(filter, index + 1, removed, index, removed.length - index);
+            setCategoryFilter(removed);
+        } else {
+            long[] added = Arrays.copyOf(filter, filter.length + 1);
+            added[filter.length] = categoryId;
+            setCategoryFilter(added);
+        }
+    }
+
+    /**
+     * 根据加载的分类更新筛选栏。分类没有变化时只更新选中状态，不重新创建按钮。
+     * 搜索结果不受分类筛选影响，搜索时隐藏筛选栏。
+     */
+    private void updateCategoryChips(ListData data) {
+        mCategoryFilterBar.setVisibility(mSearchQuery == null && data.categoryIds.length > 1
+                ? View.VISIBLE : View.GONE);
+        if (Arrays.equals(data.categoryIds, mChipCategoryIds)
+                && Arrays.equals(data.categoryTitles, mChipCategoryTitles)) {
+            updateChipStates();
+            return;
+        }
+        mChipCategoryIds = data.categoryIds;
+        mChipCategoryTitles = data.categoryTitles;
+
+        // 已经被删除的分类不再参与筛选
+        long[] filter = mCategoryFilter;
+        if (filter != null) {
+            long[] remaining = new long[filter.length];
+            int n = 0;
+            for (long id : filter) {
+                for (long existing : mChipCategoryIds) {
+                    if (existing == id) {
+                        remaining[n++] = id;
+                        break;
+                    }
+                }
+            }
+            if (n != filter.length) {
+                setCategoryFilter(Arrays.copyOf(remaining, n));
+            }
+        }
+
+        mCategoryChips.removeAllViews();
+        mCategoryChips.addView(newChip(getString(R.string.filter_all_categories),
+                new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        setCategoryFilter(null);
+                    }
+                }));
+        for (int i = 0; i < mChipCategoryIds.length; i++) {
+            final long categoryId = mChipCategoryIds[i];
+            mCategoryChips.addView(newChip(mChipCategoryTitles[i], new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    toggleCategoryFilter(categoryId);
+                }
+            }));
+        }
+        updateChipStates();
+    }
+
+    private ToggleButton newChip(String title, View.OnClickListener listener) {
+        ToggleButton chip = new ToggleButton(this);
+        chip.setText(title);
+        chip.setTextOn(title);
+        chip.setTextOff(title);
+        chip.setTextSize(14);
+        chip.setOnClickListener(listener);
+        return chip;
+    }
+
+    /**
+     * 让筛选栏中按钮的选中状态与mCategoryFilter一致。第一个按钮是“全部”。
+     */
+    private void updateChipStates() {
+        if (mChipCategoryIds == null) {
+            return;
+        }
+        long[] filter = mCategoryFilter;
+        ((ToggleButton) mCategoryChips.getChildAt(0)).setChecked(filter == null);
+        for (int i = 0; i < mChipCategoryIds.length; i++) {
+            boolean checked = filter != null && Arrays.binarySearch(filter, mChipCategoryIds[i]) >= 0;
+            ((ToggleButton) mCategoryChips.getChildAt(i + 1)).setChecked(checked);
+        }
+    }
+
+    // 一次后台加载的结果
+    private static class ListData {
+        List<ItemData> items;     // 列表项
+        long[] categoryIds;       // 所有分类，用于筛选栏
+        String[] categoryTitles;
+    }
+
+    // 列表项数据，也用于首屏快照
+    static class ItemData {
+        boolean isGroupHeader; // 是否是分组标题
+        String categoryTitle;  // 分组标题的文字；笔记项需要显示分类标签时为分类名，否则为null
+        long noteId;          // 笔记ID（如果是笔记项）
+        String title;         // 笔记标题
+        String timestamp;     // 格式化好的修改时间
+        String snippet;       // 搜索摘要（仅搜索结果）
+
+        // 两个列表项显示的内容是否相同
+        boolean sameContent(ItemData other) {
+            return isGroupHeader == other.isGroupHeader
+                    && noteId == other.noteId
+                    && TextUtils.equals(title, other.title)
+                    && TextUtils.equals(timestamp, other.timestamp)
+                    && TextUtils.equals(categoryTitle, other.categoryTitle)
+                    && TextUtils.equals(snippet, other.snippet);
+        }
+    }
+
+    // 根据Cursor构建列表项数据。时间在这里一次格式化好，绑定视图时不再解析
+    private List<ItemData> buildItemDataList(Cursor cursor, int sortMode) {
+        List<ItemData> itemDataList = new ArrayList<>();
+        if (cursor == null || cursor.getCount() == 0) {
+            return itemDataList;
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+
+        // 按相关度排序的搜索结果不分组，保持provider返回的顺序
+        int snippetIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        if (snippetIndex != -1) {
+            while (cursor.moveToNext()) {
+                ItemData noteItem = newNoteItem(cursor, dateFormat);
+                noteItem.categoryTitle = getCategoryTitle(cursor);
+                noteItem.snippet = cursor.getString(snippetIndex);
+                itemDataList.add(noteItem);
+            }
+            return itemDataList;
+        }
+
+        if (sortMode == SortMode.SORT_GROUPED) {
+            return buildGroupedList(cursor, dateFormat);
+        }
+
+        /*
+         * 其他排序方式按排序的列分段：日期排序按天，标题排序按拼音首字母。结果已经有序，
+         * 只需在相邻两行的分段不同时插入分段标题。日期分段记住当前这一天的起止时间，
+         * 时间落在范围内时不需要再计算日期。
+         */
+        int dateColumn = sortMode == SortMode.SORT_CREATED ? 3 : 2;
+        Calendar calendar = Calendar.getInstance();
+        long[] today = new long[2];
+        SortMode.dayRange(calendar, System.currentTimeMillis(), today);
+        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
+        long[] day = new long[] { Long.MAX_VALUE, Long.MIN_VALUE };
+        char letter = 0;
+
+        while (cursor.moveToNext()) {
+            String section = null;
+            if (sortMode == SortMode.SORT_TITLE) {
+                char c = SortMode.titleSection(cursor.getString(6));
+                if (c != letter) {
+                    letter = c;
+                    section = String.valueOf(c);
+                }
+            } else {
+                long time = cursor.getLong(dateColumn);
+                if (time < day[0] || time >= day[1]) {
+                    SortMode.dayRange(calendar, time, day);
+                    if (day[0] == today[0]) {
+                        section = getString(R.string.section_today);
+                    } else if (day[1] == today[0]) {
+                        section = getString(R.string.section_yesterday);
+                    } else {
+                        section = dayFormat.format(new Date(day[0]));
+                    }
+                }
+            }
+            if (section != null) {
+                ItemData header = new ItemData();
+                header.isGroupHeader = true;
+                header.categoryTitle = section;
+                itemDataList.add(header);
+            }
+
+            // 不按分类分组时，在笔记项上显示分类标签
+            ItemData noteItem = newNoteItem(cursor, dateFormat);
+            noteItem.categoryTitle = getCategoryTitle(cursor);
+            itemDataList.add(noteItem);
+        }
+        return itemDataList;
+    }
+
+    /**
+     * 构建按分类分组的列表。查询结果按分类ID聚在一起（索引顺序），这里再把各组按分类标题排序，
+     * 排序的只是分组，不是笔记。标题相同的分类合并在同一个分组标题下。
+     */
+    private List<ItemData> buildGroupedList(Cursor cursor, SimpleDateFormat dateFormat) {
+        List<List<ItemData>> groups = new ArrayList<>();
+        List<ItemData> group = null;
+        long currentCategoryId = 0;
+        while (cursor.moveToNext()) {
+            long categoryId = cursor.isNull(4) ? -1 : cursor.getLong(4);
+            if (group == null || categoryId != currentCategoryId) {
+                group = new ArrayList<>();
+                ItemData header = new ItemData();
+                header.isGroupHeader = true;
+                header.categoryTitle = getCategoryTitle(cursor);
+                group.add(header);
+                groups.add(group);
+                currentCategoryId = categoryId;
+            }
+            group.add(newNoteItem(cursor, dateFormat));
+        }
+
+        // 分组数等于分类数，排序的开销可以忽略
+        Collections.sort(groups, new Comparator<List<ItemData>>() {
+            @Override
+            public int compare(List<ItemData> a, List<ItemData> b) {
+                return a.get(0).categoryTitle.compareTo(b.get(0).categoryTitle);
+            }
+        });
+
+        List<ItemData> itemDataList = new ArrayList<>(cursor.getCount() + groups.size());
+        String previousTitle = null;
+        for (List<ItemData> g : groups) {
+            String title = g.get(0).categoryTitle;
+            itemDataList.addAll(title.equals(previousTitle) ? g.subList(1, g.size()) : g);
+            previousTitle = title;
+        }
+        return itemDataList;
+    }
+
+    // 根据当前行创建笔记项
+    private ItemData newNoteItem(Cursor cursor, SimpleDateFormat dateFormat) {
+        ItemData noteItem = new ItemData();
+        noteItem.isGroupHeader = false;
+        noteItem.noteId = cursor.getLong(0);
+        noteItem.title = cursor.getString(1); // 第1列是标题
+        noteItem.timestamp = formatTimestamp(dateFormat, cursor, 2); // 第2列是修改日期
+        return noteItem;
+    }
+
+    // 格式化时间戳列
+    private String formatTimestamp(SimpleDateFormat dateFormat, Cursor cursor, int column) {
+        if (cursor.isNull(column)) {
+            return getString(R.string.time_unknown);
+        }
+        return dateFormat.format(new Date(cursor.getLong(column)));
+    }
+
+    // 获取分类标题
+    private String getCategoryTitle(Cursor cursor) {
+        String categoryTitle = cursor.getString(5); // 第5列是category_title
+        return categoryTitle != null && !categoryTitle.isEmpty() ? categoryTitle : getString(R.string.category_uncategorized);
+    }
+
     // 笔记列表适配器（命名内部类）
     private class NotesAdapter extends BaseAdapter {
         // 定义两种视图类型：分组标题和笔记项
         private static final int TYPE_GROUP_HEADER = 0;
         private static final int TYPE_NOTE_ITEM = 1;
         private static final int TYPE_COUNT = 2;
-        
+
         // 存储所有列表项的数据（包括分组标题和笔记）
         private List<ItemData> mItemDataList = new ArrayList<>();
-        
-        // 内部类：列表项数据
-        private class ItemData {
-            boolean isGroupHeader; // 是否是分组标题
-            String categoryTitle;  // 分类标题（如果是分组标题）
-            long noteId;          // 笔记ID（如果是笔记项）
-            String title;         // 笔记标题
-            String timestamp;     // 笔记时间戳
-        }
-        
-        // 构造方法
-        public NotesAdapter(Cursor cursor) {
-            updateItemDataList(cursor);
-        }
-        
-        // 更新列表项数据
-        private void updateItemDataList(Cursor cursor) {
-            mItemDataList.clear();
-            if (cursor == null || cursor.getCount() == 0) {
-                return;
+
+        /**
+         * 替换列表项数据，已选中的笔记按ID保留。
+         *
+         * 新旧数据逐项比较：列表结构（项数和每项的类型）不变时只重新绑定内容变化了的可见项，
+         * 不触发整个列表的重新布局；结构变化时刷新整个列表，并让原来位于顶部的笔记保持在原处。
+         */
+        public void setItemDataList(List<ItemData> itemDataList) {
+            List<ItemData> old = mItemDataList;
+            mItemDataList = itemDataList;
+            long[] ids = new long[itemDataList.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ItemData itemData = itemDataList.get(i);
+                ids[i] = itemData.isGroupHeader ? SelectionModel.NO_ID : itemData.noteId;
             }
-            
-            // 保存原始位置
-            int originalPosition = cursor.getPosition();
-            
-            try {
-                // 使用HashSet来存储已经处理过的笔记ID，避免重复添加
-                Set<Long> processedNoteIds = new HashSet<>();
-                
-                // 移动到第一个位置
-                cursor.moveToFirst();
-                String currentCategory = getCategoryTitle(cursor);
-                
-                // 添加第一个分组标题
-                ItemData groupHeader = new ItemData();
-                groupHeader.isGroupHeader = true;
-                groupHeader.categoryTitle = currentCategory;
-                mItemDataList.add(groupHeader);
-                
-                // 添加第一个笔记项
-                long noteId = cursor.getLong(0);
-                if (!processedNoteIds.contains(noteId)) {
-                    ItemData noteItem = new ItemData();
-                    noteItem.isGroupHeader = false;
-                    noteItem.noteId = noteId;
-                    noteItem.title = cursor.getString(1); // 第1列是标题
-                    noteItem.timestamp = cursor.getString(2); // 第2列是修改日期
-                    mItemDataList.add(noteItem);
-                    processedNoteIds.add(noteId);
+            mSelection.setItems(ids);
+
+            if (old.size() == itemDataList.size() && mListView.getChildCount() > 0) {
+                boolean sameStructure = true;
+                for (int i = 0; i < old.size() && sameStructure; i++) {
+                    sameStructure = old.get(i).isGroupHeader == itemDataList.get(i).isGroupHeader;
                 }
-                
-                // 遍历所有笔记，添加分组标题和笔记项
-                while (cursor.moveToNext()) {
-                    String category = getCategoryTitle(cursor);
-                    if (!TextUtils.equals(category, currentCategory)) {
-                        // 添加新的分组标题
-                        groupHeader = new ItemData();
-                        groupHeader.isGroupHeader = true;
-                        groupHeader.categoryTitle = category;
-                        mItemDataList.add(groupHeader);
-                        
-                        currentCategory = category;
+                if (sameStructure) {
+                    int first = mListView.getFirstVisiblePosition();
+                    for (int i = 0; i < mListView.getChildCount(); i++) {
+                        int position = first + i;
+                        if (!old.get(position).sameContent(itemDataList.get(position))) {
+                            getView(position, mListView.getChildAt(i), mListView);
+                        }
                     }
-                    
-                    // 添加笔记项
-                    noteId = cursor.getLong(0);
-                    if (!processedNoteIds.contains(noteId)) {
-                        ItemData noteItem = new ItemData();
-                        noteItem.isGroupHeader = false;
-                        noteItem.noteId = noteId;
-                        noteItem.title = cursor.getString(1); // 第1列是标题
-                        noteItem.timestamp = cursor.getString(2); // 第2列是修改日期
-                        mItemDataList.add(noteItem);
-                        processedNoteIds.add(noteId);
+                    return;
+                }
+            }
+
+            // 记住顶部的笔记及其偏移，刷新后恢复
+            long anchorId = SelectionModel.NO_ID;
+            int anchorTop = 0;
+            if (mListView.getChildCount() > 0) {
+                int first = mListView.getFirstVisiblePosition();
+                for (int i = 0; i < mListView.getChildCount() && first + i < old.size(); i++) {
+                    ItemData itemData = old.get(first + i);
+                    if (!itemData.isGroupHeader) {
+                        anchorId = itemData.noteId;
+                        anchorTop = mListView.getChildAt(i).getTop();
+                        break;
+                    }
+                }
+            }
+            notifyDataSetChanged();
+            if (anchorId != SelectionModel.NO_ID) {
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] == anchorId) {
+                        mListView.setSelectionFromTop(i, anchorTop);
+                        break;
                     }
                 }
-            } finally {
-                // 恢复原始位置
-                cursor.moveToPosition(originalPosition);
             }
         }
-        
-        // 获取分类标题
-        private String getCategoryTitle(Cursor cursor) {
-            String categoryTitle = cursor.getString(5); // 第5列是category_title
-            return categoryTitle != null && !categoryTitle.isEmpty() ? categoryTitle : "未分类";
-        }
-        
+
         public int getViewTypeCount() {
             return TYPE_COUNT;
         }
@@ -587,20 +1187,28 @@ public class NotesList extends Activity {
                 
                 // 时间戳
                 TextView timestampView = view.findViewById(R.id.timestamp);
-                String timestamp = itemData.timestamp; // 直接从ItemData获取时间戳
-                try {
-                    long time = Long.parseLong(timestamp);
-                    timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault())
-                            .format(new Date(time));
-                } catch (NumberFormatException e) {
-                    timestamp = "未知时间";
-                }
-                timestampView.setText(timestamp);
+                timestampView.setText(itemData.timestamp); // 加载时已经格式化
                 
-                // 分类标签（隐藏，因为分组标题已经显示了分类）
+                // 搜索摘要，匹配的词加粗显示
+                TextView snippetView = view.findViewById(R.id.note_snippet);
+                if (snippetView != null) {
+                    if (itemData.snippet != null) {
+                        snippetView.setText(highlightSnippet(itemData.snippet));
+                        snippetView.setVisibility(View.VISIBLE);
+                    } else {
+                        snippetView.setVisibility(View.GONE);
+                    }
+                }
+
+                // 分类标签（按分类分组时隐藏，因为分组标题已经显示了分类；搜索结果和其他排序方式需要显示）
                 TextView categoryLabel = view.findViewById(R.id.category_label);
                 if (categoryLabel != null) {
-                    categoryLabel.setVisibility(View.GONE);
+                    if (itemData.categoryTitle != null) {
+                        categoryLabel.setText(itemData.categoryTitle);
+                        categoryLabel.setVisibility(View.VISIBLE);
+                    } else {
+                        categoryLabel.setVisibility(View.GONE);
+                    }
                 }
                 
                 // 分类间隔（隐藏，因为分组标题已经起到了间隔作用）
@@ -619,79 +1227,62 @@ public class NotesList extends Activity {
                         public void onClick(View v) {
                             // 显示删除确认对话框
                             new AlertDialog.Builder(NotesList.this)
-                                    .setTitle("删除笔记")
-                                    .setMessage("确定要删除这条笔记吗？")
-                                    .setPositiveButton("删除", new DialogInterface.OnClickListener() {
+                                    .setTitle(R.string.delete_note_title)
+                                    .setMessage(R.string.delete_note_message)
+                                    .setPositiveButton(R.string.menu_delete, new DialogInterface.OnClickListener() {
                                         public void onClick(DialogInterface dialog, int which) {
                                             // 执行删除操作
+                                            // 列表由mObserver在收到变化通知后重新加载
                                             getContentResolver().delete(
                                                     ContentUris.withAppendedId(getIntent().getData(), noteId),
                                                     null,
                                                     null
                                             );
-                                            
-                                            // 更新列表
-                                            refreshNoteList();
                                         }
                                     })
-                                    .setNegativeButton("取消", null)
+                                    .setNegativeButton(R.string.alert_dialog_cancel, null)
                                     .show();
                         }
                     });
                 }
                 
-                // 处理多选框
-                final CheckBox checkBox = view.findViewById(R.id.note_checkbox);
+                // 处理多选框。多选框只用于显示，点击由列表的onItemClick统一处理，
+                // 这样列表项的长按仍然可以触发区间选择和上下文菜单
+                CheckBox checkBox = view.findViewById(R.id.note_checkbox);
                 if (checkBox != null) {
                     // 根据当前模式显示或隐藏多选框
                     checkBox.setVisibility(mMultiSelectMode ? View.VISIBLE : View.GONE);
                     
                     // 设置多选框的选中状态
-                    checkBox.setChecked(mSelectedNoteIds.contains(noteId));
-                    
-                    // 添加点击事件监听器
-                    checkBox.setOnClickListener(new View.OnClickListener() {
-                        public void onClick(View v) {
-                            if (checkBox.isChecked()) {
-                                mSelectedNoteIds.add(noteId);
-                            } else {
-                                mSelectedNoteIds.remove(noteId);
-                            }
-                            // 更新底部删除按钮的标题
-                            updateDeleteButtonTitle();
-                        }
-                    });
-                    
-                    // 为整个列表项添加点击事件，用于在批量选择模式下切换选中状态
-                    view.setOnClickListener(new View.OnClickListener() {
-                        public void onClick(View v) {
-                            if (mMultiSelectMode) {
-                                checkBox.setChecked(!checkBox.isChecked());
-                                if (checkBox.isChecked()) {
-                                    mSelectedNoteIds.add(noteId);
-                                } else {
-                                    mSelectedNoteIds.remove(noteId);
-                                }
-                                // 更新底部删除按钮的标题
-                                updateDeleteButtonTitle();
-                            } else {
-                                // 非批量选择模式下，默认点击行为（打开笔记）
-                                Intent intent = new Intent(Intent.ACTION_EDIT, ContentUris.withAppendedId(getIntent().getData(), noteId));
-                                startActivity(intent);
-                            }
-                        }
-                    });
+                    checkBox.setChecked(mMultiSelectMode && mSelection.isSelected(position));
                 }
                 
                 return view;
             }
         }
-        
-        // 更新Cursor并刷新数据
-        public void changeCursor(Cursor newCursor) {
-            updateItemDataList(newCursor);
-            notifyDataSetChanged();
+    }
+
+    /**
+     * 把搜索摘要中的匹配标记转换为加粗样式
+     */
+    private static CharSequence highlightSnippet(String snippet) {
+        SpannableStringBuilder builder = new SpannableStringBuilder();
+        int matchStart = -1;
+        for (int i = 0; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (c == NotePad.Notes.SNIPPET_MATCH_START.charAt(0)) {
+                matchStart = builder.length();
+            } else if (c == NotePad.Notes.SNIPPET_MATCH_END.charAt(0)) {
+                if (matchStart != -1) {
+                    builder.setSpan(new StyleSpan(Typeface.BOLD), matchStart, builder.length(),
+                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    matchStart = -1;
+                }
+            } else {
+                builder.append(c);
+            }
         }
+        return builder;
     }
 
     @Override
@@ -718,7 +1309,7 @@ public class NotesList extends Activity {
                     Menu.NONE, 
                     R.id.menu_batch_delete_button, 
                     Menu.NONE, 
-                    "删除选中项 (" + mSelectedNoteIds.size() + ")"
+                    getString(R.string.batch_delete_selected, mSelection.getSelectedCount())
             );
             deleteButtonItem.setIcon(R.drawable.ic_menu_delete);
             deleteButtonItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
@@ -801,45 +1392,161 @@ public class NotesList extends Activity {
      */
 
 
+    /**
+     * 显示导出格式选择对话框，选择后导出所有笔记
+     */
+    private void showExportFormatDialog() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.export_select_format)
+                .setItems(R.array.export_formats, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        // 列表的顺序与 ExportFormatter 的格式常量一致，之后是 ZIP、增量导出和二进制归档
+                        if (which == EXPORT_FORMAT_ARCHIVE) {
+                            mExportManager.exportAllNotesArchive();
+                        } else if (which == EXPORT_FORMAT_INCREMENTAL) {
+                            mExportManager.exportChangedNotes();
+                        } else if (which == EXPORT_FORMAT_BINARY) {
+                            mExportManager.exportAllNotesBinary();
+                        } else {
+                            mExportManager.exportAllNotes(which);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * 显示导入来源对话框：导出目录中的全部文件，或者其中的一个文件或子目录
+     */
+    private void showImportSourceDialog() {
+        final File directory = ImportManager.getImportDirectory();
+        File[] children = directory.listFiles();
+        if (children == null || children.length == 0) {
+            Toast.makeText(this, getString(R.string.import_no_files, directory.getAbsolutePath()),
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Arrays.sort(children);
+        final File[] sources = children;
+        String[] names = new String[sources.length + 1];
+        names[0] = getString(R.string.import_all_files);
+        for (int i = 0; i < sources.length; i++) {
+            names[i + 1] = sources[i].isDirectory() ? sources[i].getName() + "/" : sources[i].getName();
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.import_select_source)
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        // 第一项是整个目录，其余各项与目录中的文件一一对应
+                        File source = which == 0 ? directory : sources[which - 1];
+                        if (source.isFile() && source.getName().endsWith("." + BinaryNoteArchive.EXTENSION)) {
+                            // 二进制归档可以只恢复其中的一部分
+                            mImportManager.showArchiveDialog(source);
+                        } else {
+                            mImportManager.importFiles(source);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * 显示备份列表。恢复时选择一个并确认后用它替换全部笔记，否则把选择的备份导出到下载目录
+     */
+    private void showBackupsDialog(final boolean restore) {
+        final File[] backups = BackupManager.listBackups(this);
+        if (backups.length == 0) {
+            Toast.makeText(this, R.string.no_backups, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] names = new String[backups.length];
+        for (int i = 0; i < backups.length; i++) {
+            names[i] = backups[i].getName();
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(restore ? R.string.restore_select_backup : R.string.export_backup_select)
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, final int which) {
+                        if (!restore) {
+                            mBackupManager.export(backups[which]);
+                            return;
+                        }
+                        new AlertDialog.Builder(NotesList.this)
+                                .setMessage(getString(R.string.restore_confirm, backups[which].getName()))
+                                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int button) {
+                                        mBackupManager.restore(backups[which]);
+                                    }
+                                })
+                                .setNegativeButton(R.string.alert_dialog_cancel, null)
+                                .show();
+                    }
+                })
+                .show();
+    }
+
     /**
      * 显示分类选择对话框，用于选择要导出的分类
      */
     private void showCategorySelectionDialog() {
-        // 查询所有分类
-        final Cursor cursor = managedQuery(
-                Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "categories"),
-                new String[] { NotePadProvider.Categories._ID, NotePadProvider.Categories.COLUMN_NAME_TITLE },
-                null,
-                null,
-                NotePadProvider.Categories.DEFAULT_SORT_ORDER
-        );
-
-        if (cursor != null && cursor.getCount() > 0) {
-            // 创建分类名称数组
-            final String[] categoryNames = new String[cursor.getCount()];
-            final long[] categoryIds = new long[cursor.getCount()];
-            int i = 0;
-            while (cursor.moveToNext()) {
-                categoryIds[i] = cursor.getLong(0);
-                categoryNames[i] = cursor.getString(1);
-                i++;
+        // 在后台读取所有分类，读完后再显示对话框
+        loadCategoriesAsync(new CategoriesTask() {
+            @Override
+            protected void onCategoriesLoaded(final long[] categoryIds, String[] categoryNames) {
+                if (categoryIds.length == 0) {
+                    Toast.makeText(NotesList.this, R.string.export_error_no_notes, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                new AlertDialog.Builder(NotesList.this)
+                        .setTitle(R.string.export_select_category)
+                        .setItems(categoryNames, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                // 导出所选分类的笔记
+                                mExportManager.exportNotesByCategory(categoryIds[which]);
+                            }
+                        })
+                        .show();
             }
+        });
+    }
 
-            // 创建AlertDialog
-            AlertDialog.Builder builder = new AlertDialog.Builder(this);
-            builder.setTitle(R.string.export_select_category)
-                    .setItems(categoryNames, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialog, int which) {
-                            // 导出所选分类的笔记
-                            ExportManager exportManager = new ExportManager(NotesList.this);
-                            exportManager.exportNotesByCategory(categoryIds[which]);
-                        }
-                    });
-            builder.create().show();
-        } else {
-            Toast.makeText(this, R.string.export_error_no_notes, Toast.LENGTH_SHORT).show();
+    /**
+     * 启动读取分类的后台任务。上一个任务还没有完成时取消它，只显示最后一次请求的对话框。
+     */
+    private void loadCategoriesAsync(CategoriesTask task) {
+        if (mCategoriesTask != null) {
+            mCategoriesTask.cancel(false);
         }
+        mCategoriesTask = task;
+        task.execute();
+    }
+
+    /**
+     * 在后台线程中读取所有分类，完成后在主线程中调用{@link #onCategoriesLoaded}。
+     * Activity销毁时任务被取消，不再回调。
+     */
+    private abstract class CategoriesTask extends AsyncTask<Void, Void, ListData> {
+        @Override
+        protected ListData doInBackground(Void... params) {
+            ListData result = new ListData();
+            loadCategories(result);
+            return result;
+        }
+
+        @Override
+        protected void onPostExecute(ListData result) {
+            mCategoriesTask = null;
+            onCategoriesLoaded(result.categoryIds, result.categoryTitles);
+        }
+
+        protected abstract void onCategoriesLoaded(long[] categoryIds, String[] categoryTitles);
     }
 
     @Override
@@ -861,15 +1568,12 @@ public class NotesList extends Activity {
         /*
          * Gets the data associated with the item at the selected position. getItem() returns
          * whatever the backing adapter of the ListView has associated with the item. In NotesList,
-         * the adapter associated all of the data for a note with its list item. As a result,
-         * getItem() returns that data as a Cursor.
+         * the adapter holds an ItemData copied out of the provider's cursor for every row.
          */
-        Cursor cursor = (Cursor) mListView.getAdapter().getItem(info.position);
+        ItemData itemData = (ItemData) mListView.getAdapter().getItem(info.position);
 
-        // If the cursor is empty, then for some reason the adapter can't get the data from the
-        // provider, so returns null to the caller.
-        if (cursor == null) {
-            // For some reason the requested item isn't available, do nothing
+        // 分组标题没有上下文菜单
+        if (itemData == null || itemData.isGroupHeader) {
             return;
         }
 
@@ -878,7 +1582,7 @@ public class NotesList extends Activity {
         inflater.inflate(R.menu.list_context_menu, menu);
 
         // Sets the menu header to be the title of the selected note.
-        menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
+        menu.setHeaderTitle(itemData.title);
     }
 
     /**
@@ -955,24 +1659,7 @@ public class NotesList extends Activity {
                     null      // No where clause is used, so no where arguments are needed.
             );
 
-            // 删除成功后立即更新列表，避免使用已关闭的Cursor
-            // 获取当前的适配器
-            CursorAdapter adapter = (CursorAdapter) mListView.getAdapter();
-            // 获取当前的Cursor并关闭它
-            Cursor currentCursor = adapter.getCursor();
-            if (currentCursor != null && !currentCursor.isClosed()) {
-                currentCursor.close();
-            }
-            // 使用getContentResolver直接查询新的Cursor，而不是managedQuery
-            Cursor newCursor = getContentResolver().query(
-                    getIntent().getData(), // 完整的URI，包括附加的限制参数
-                    PROJECTION,            // 返回的列
-                    null,                  // 没有WHERE子句，返回所有行
-                    null,                  // 没有WHERE参数
-                    "category_title ASC, " + NotePad.Notes.DEFAULT_SORT_ORDER // 先按分类标题升序，再按修改日期降序排序
-            );
-            // 使用新的Cursor更新适配器
-            adapter.changeCursor(newCursor);
+            // 列表由mObserver在收到变化通知后重新加载
 
             // Returns to the caller and skips further processing.
             return true;
@@ -987,15 +1674,13 @@ public class NotesList extends Activity {
      */
     private void toggleMultiSelectMode() {
         mMultiSelectMode = !mMultiSelectMode;
-        
+
+        // 进入和退出批量选择模式时都清空选择
+        mSelection.clear();
         if (mMultiSelectMode) {
-            // 进入批量选择模式
-            mSelectedNoteIds.clear();
             // 显示批量操作按钮
             showBatchActionButtons();
         } else {
-            // 退出批量选择模式
-            mSelectedNoteIds.clear();
             // 隐藏批量操作按钮
             hideBatchActionButtons();
         }
@@ -1006,14 +1691,22 @@ public class NotesList extends Activity {
         // 刷新列表，更新多选框的显示状态
         mListView.invalidateViews();
     }
+
+    /**
+     * 选择发生变化后刷新多选框和按钮
+     */
+    private void onSelectionChanged() {
+        mListView.invalidateViews();
+        updateDeleteButtonTitle();
+        invalidateOptionsMenu();
+    }
     
     /**
      * 显示批量操作按钮
      */
     private void showBatchActionButtons() {
-        // 显示底部删除按钮
-        if (mBtnDeleteSelected != null) {
-            mBtnDeleteSelected.setVisibility(View.VISIBLE);
+        if (mBatchActionBar != null) {
+            mBatchActionBar.setVisibility(View.VISIBLE);
             updateDeleteButtonTitle();
         }
     }
@@ -1022,9 +1715,8 @@ public class NotesList extends Activity {
      * 隐藏批量操作按钮
      */
     private void hideBatchActionButtons() {
-        // 隐藏底部删除按钮
-        if (mBtnDeleteSelected != null) {
-            mBtnDeleteSelected.setVisibility(View.GONE);
+        if (mBatchActionBar != null) {
+            mBatchActionBar.setVisibility(View.GONE);
         }
     }
     
@@ -1032,85 +1724,178 @@ public class NotesList extends Activity {
      * 更新底部删除按钮的标题，显示当前选中的笔记数量
      */
     private void updateDeleteButtonTitle() {
+        int count = mSelection.getSelectedCount();
         if (mBtnDeleteSelected != null) {
-            mBtnDeleteSelected.setText("删除选中项 (" + mSelectedNoteIds.size() + ")");
+            mBtnDeleteSelected.setText(getString(R.string.batch_delete_selected, count));
+        }
+        if (mBtnSelectAll != null) {
+            mBtnSelectAll.setText(count > 0 && count == mSelection.getSelectableCount()
+                    ? R.string.batch_select_none : R.string.batch_select_all);
+        }
+    }
+
+    /**
+     * 返回选中的笔记ID；没有选中任何笔记时提示用户并返回null
+     */
+    private long[] getSelectedIdsOrNotify() {
+        long[] ids = mSelection.getSelectedIds();
+        if (ids.length == 0) {
+            Toast.makeText(this, R.string.batch_no_selection, Toast.LENGTH_SHORT).show();
+            return null;
         }
+        return ids;
     }
     
     /**
      * 执行批量删除操作
      */
     private void performBatchDelete() {
-        if (mSelectedNoteIds.isEmpty()) {
-            // 如果没有选中任何笔记，显示提示
-            Toast.makeText(this, "请先选择要删除的笔记", Toast.LENGTH_SHORT).show();
+        final long[] ids = getSelectedIdsOrNotify();
+        if (ids == null) {
             return;
         }
         
         // 显示删除确认对话框
         new AlertDialog.Builder(this)
-                .setTitle("批量删除")
-                .setMessage("确定要删除选中的 " + mSelectedNoteIds.size() + " 条笔记吗？")
-                .setPositiveButton("删除", new DialogInterface.OnClickListener() {
+                .setTitle(R.string.menu_batch_delete)
+                .setMessage(getString(R.string.batch_delete_confirm, ids.length))
+                .setPositiveButton(R.string.menu_delete, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        // 执行批量删除操作
-                        for (long noteId : mSelectedNoteIds) {
-                            getContentResolver().delete(
-                                    ContentUris.withAppendedId(getIntent().getData(), noteId),
-                                    null,
-                                    null
-                            );
+                        // 所有笔记在一个事务中删除，列表由mObserver在收到变化通知后重新加载
+                        if (applyBatch(ids, null)) {
+                            // 退出批量选择模式
+                            toggleMultiSelectMode();
                         }
-                        
-                        // 更新列表
-                        refreshNoteList();
-                        
-                        // 退出批量选择模式
-                        toggleMultiSelectMode();
                     }
                 })
-                .setNegativeButton("取消", null)
+                .setNegativeButton(android.R.string.cancel, null)
                 .show();
     }
 
+    /**
+     * 把选中的笔记移动到用户选择的分类
+     */
+    private void performBatchMove() {
+        final long[] ids = getSelectedIdsOrNotify();
+        if (ids == null) {
+            return;
+        }
 
+        loadCategoriesAsync(new CategoriesTask() {
+            @Override
+            protected void onCategoriesLoaded(final long[] categoryIds, String[] categoryNames) {
+                new AlertDialog.Builder(NotesList.this)
+                        .setTitle(R.string.batch_move_title)
+                        .setItems(categoryNames, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                ContentValues values = new ContentValues();
+                                values.put("category_id", categoryIds[which]);
+                                if (applyBatch(ids, values)) {
+                                    Toast.makeText(NotesList.this,
+                                            getString(R.string.batch_move_done, ids.length),
+                                            Toast.LENGTH_SHORT).show();
+                                    toggleMultiSelectMode();
+                                }
+                            }
+                        })
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .show();
+            }
+        });
+    }
 
-    // ContentObserver用于监听数据变化
-    private ContentObserver mContentObserver = new ContentObserver(new Handler()) {
-        @Override
-        public void onChange(boolean selfChange) {
-            super.onChange(selfChange);
-            // 数据发生变化时刷新列表
-            refreshNoteList();
+    /**
+     * 把选中的笔记导出到一个文件
+     */
+    private void performBatchExport() {
+        long[] ids = getSelectedIdsOrNotify();
+        if (ids == null) {
+            return;
         }
-    };
+        if (mExportManager.exportNotes(ids)) {
+            toggleMultiSelectMode();
+        }
+    }
 
     /**
-     * 当Activity从后台回到前台时调用
-     * 重新查询数据并更新适配器，确保ListView显示最新的数据
+     * 在一个provider事务中修改或删除ids中的笔记。笔记按{@link SelectionModel#BATCH_SIZE}分段，
+     * 每段一条UPDATE或DELETE语句。
+     *
+     * @param values 要更新的列；为null时删除这些笔记
+     * @return 是否成功，失败时所有修改都会回滚
+     */
+    private boolean applyBatch(long[] ids, ContentValues values) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int from = 0; from < ids.length; from += SelectionModel.BATCH_SIZE) {
+            String selection = SelectionModel.idSelection(ids, from,
+                    Math.min(from + SelectionModel.BATCH_SIZE, ids.length));
+            ContentProviderOperation.Builder builder = values == null
+                    ? ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                    : ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI).withValues(values);
+            operations.add(builder.withSelection(selection, null).build());
+        }
+        try {
+            getContentResolver().applyBatch(NotePad.AUTHORITY, operations);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Batch operation failed", e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Batch operation failed", e);
+        }
+        Toast.makeText(this, R.string.batch_error, Toast.LENGTH_SHORT).show();
+        return false;
+    }
+
+
+
+    /**
+     * Activity可见时开始监听数据变化。如果停止期间数据发生了变化（例如在编辑器中保存了笔记），
+     * 会重新加载一次；没有变化时不加载。
      */
     @Override
-    protected void onResume() {
-        super.onResume();
-        
-        // 注册ContentObserver监听数据变化
-        getContentResolver().registerContentObserver(
-                NotePad.Notes.CONTENT_URI, 
-                true, // 监听所有子URI
-                mContentObserver);
+    protected void onStart() {
+        super.onStart();
+        mObserver.start(getContentResolver(), NotePad.Notes.CONTENT_URI);
+    }
 
-        // 刷新笔记列表
-        refreshNoteList();
+    /**
+     * 从分类列表回到本界面时（FLAG_ACTIVITY_SINGLE_TOP），在当前列表上应用新的分类筛选，
+     * 复用已有的适配器，不重新创建Activity
+     */
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        if (intent.hasExtra(EXTRA_CATEGORY_FILTER)) {
+            if (mMultiSelectMode) {
+                toggleMultiSelectMode();
+            }
+            mSearchQuery = null;
+            long[] filter = normalizeFilter(intent.getLongArrayExtra(EXTRA_CATEGORY_FILTER));
+            if (Arrays.equals(filter, mCategoryFilter)) {
+                refreshNoteList();
+            } else {
+                setCategoryFilter(filter);
+            }
+        }
     }
 
     @Override
-    protected void onPause() {
-        super.onPause();
-        // 取消注册ContentObserver
-        getContentResolver().unregisterContentObserver(mContentObserver);
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putLongArray(STATE_CATEGORY_FILTER, mCategoryFilter);
     }
-    
+
+    /**
+     * Activity不可见时停止监听，不再排队任何加载
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mObserver.stop();
+    }
+
     /**
      * 当Activity销毁时调用
      * 关闭Cursor以避免资源泄漏
@@ -1118,8 +1903,18 @@ public class NotesList extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // 结束后台加载线程
+        mObserver.destroy();
+        // 取消还没有完成的分类读取，不再显示对话框
+        if (mCategoriesTask != null) {
+            mCategoriesTask.cancel(false);
+        }
+        // 关闭导出、导入和备份的进度对话框，它们在后台继续
+        mExportManager.release();
+        mImportManager.release();
+        mBackupManager.release();
         // NotesAdapter继承自BaseAdapter，不是CursorAdapter，不需要处理Cursor
-        // 由于NotesAdapter内部已经将数据转换为ItemData列表，不需要关闭Cursor
+        // 列表项数据在后台加载时已经从Cursor中复制出来，Cursor随即关闭
         // 清理适配器引用
         mListView.setAdapter(null);
     }
@@ -0,0 +1,514 @@
+package com.example.android.notepad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 在多个线程中压缩、按添加顺序写出的 ZIP 写入器。
+ *
+ * {@link java.util.zip.ZipOutputStream} 只能在写入线程中压缩，不能接受已经压缩好的数据，
+ * 所以这里自己写出 ZIP 格式：每一项的数据交给线程池压缩（并计算 CRC），
+ * 调用线程按添加的顺序取回结果，写出本地文件头和数据，最后写出中央目录。
+ * 压缩后的大小事先已知，不需要数据描述符。条目数或偏移超出 32 位范围时写出 ZIP64 记录。
+ *
+ * 同时在压缩的条目数和未写出的字节数都有上限，添加条目时超出上限就先写出最早的条目。
+ * 大的条目不应整个放进内存，改用 {@link #beginEntry} 在调用线程中边写边压缩，
+ * CRC 和大小写在数据之后的数据描述符中。这样内存占用与条目的数量和大小无关；
+ * 只有中央目录（每项几十个字节）随条目数增长。
+ * 这个类不是线程安全的，只应在一个线程中调用。
+ */
+final class ParallelZipWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // 文件名使用 UTF-8
+    private static final int FLAG_UTF8 = 0x0800;
+    // 本地文件头中的 CRC 和大小为 0，实际的值在数据之后的数据描述符中
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final long MAX_32 = 0xffffffffL;
+    private static final int MAX_16 = 0xffff;
+
+    // 未写出的数据超过这个大小时等待最早的条目
+    private static final long MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    // 边写边压缩时输出缓冲区的大小
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream mOut;
+    private final ExecutorService mExecutor;
+    private final int mMaxPending;
+    private final int mLevel;
+    private final ArrayDeque<Future<Entry>> mPending = new ArrayDeque<Future<Entry>>();
+    private final LinkedBlockingQueue<Deflater> mDeflaters = new LinkedBlockingQueue<Deflater>();
+    private final ByteArrayOutputStream mCentral = new ByteArrayOutputStream();
+    private final byte[] mHeader = new byte[64];
+    private final Calendar mCalendar = Calendar.getInstance();
+    private long mPendingBytes;
+    private long mOffset;
+    private long mEntries;
+    private boolean mClosed;
+    // 已经释放，之后还回来的 Deflater 直接结束；压缩线程也会读取
+    private volatile boolean mReleased;
+    // 正在写入的流式条目
+    private EntryStream mStream;
+
+    /**
+     * 已经压缩、等待写出的一项
+     */
+    private static final class Entry {
+        byte[] name;
+        int time;
+        int method;
+        long crc;
+        long size;
+        long compressedSize;
+        byte[] data;
+        int dataLength;
+    }
+
+    /**
+     * @param out 输出，在 {@link #close} 中关闭，应当自带缓冲
+     * @param threads 压缩线程数
+     * @param level 压缩级别，见 {@link Deflater}
+     */
+    ParallelZipWriter(OutputStream out, int threads, int level) {
+        mOut = out;
+        mExecutor = Executors.newFixedThreadPool(threads);
+        // 每个线程手上一项，另有一项排队，写入线程不必等待
+        mMaxPending = threads * 2;
+        mLevel = level;
+    }
+
+    /**
+     * 压缩线程数的默认值：每个处理器核心一个
+     */
+    static int defaultThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 已经写出的字节数
+     */
+    long getBytesWritten() {
+        return mOffset;
+    }
+
+    /**
+     * 添加一项。数据交给压缩线程后不应再修改。
+     *
+     * @param name 条目路径，用 / 分隔目录
+     * @param modified 修改时间，毫秒
+     */
+    void addEntry(String name, final byte[] data, long modified) throws IOException {
+        checkWritable();
+        while (mPending.size() >= mMaxPending || mPendingBytes >= MAX_PENDING_BYTES) {
+            writeNext();
+        }
+        final Entry entry = new Entry();
+        entry.name = name.getBytes(UTF_8);
+        entry.time = dosTime(modified);
+        entry.size = data.length;
+        mPending.add(mExecutor.submit(new Callable<Entry>() {
+            @Override
+            public Entry call() {
+                compress(entry, data);
+                return entry;
+            }
+        }));
+        mPendingBytes += data.length;
+    }
+
+    /**
+     * 开始一个边写边压缩的条目，用于不宜整个放进内存的大条目。之前添加的条目先全部写出，
+     * 压缩在调用线程中进行。数据写完后关闭返回的流，在这之前不能添加其他条目。
+     *
+     * @param name 条目路径，用 / 分隔目录
+     * @param modified 修改时间，毫秒
+     */
+    EntryStream beginEntry(String name, long modified) throws IOException {
+        checkWritable();
+        while (!mPending.isEmpty()) {
+            writeNext();
+        }
+        Entry entry = new Entry();
+        entry.name = name.getBytes(UTF_8);
+        entry.time = dosTime(modified);
+        entry.method = METHOD_DEFLATED;
+        long offset = mOffset;
+        writeLocalHeader(entry, FLAG_DATA_DESCRIPTOR);
+        mStream = new EntryStream(entry, offset);
+        return mStream;
+    }
+
+    /**
+     * 写出所有条目和中央目录，关闭输出
+     */
+    void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            if (mStream != null) {
+                throw new IOException("Entry is not closed");
+            }
+            while (!mPending.isEmpty()) {
+                writeNext();
+            }
+            writeCentralDirectory();
+            mClosed = true;
+            mOut.close();
+        } finally {
+            if (!mClosed) {
+                abort();
+            } else {
+                release();
+            }
+        }
+    }
+
+    /**
+     * 放弃写入：停止压缩线程，关闭输出。输出中的内容不完整，调用方应删除它。
+     */
+    void abort() {
+        mClosed = true;
+        for (Future<Entry> future : mPending) {
+            future.cancel(true);
+        }
+        mPending.clear();
+        if (mStream != null) {
+            mStream.mDeflater.end();
+            mStream = null;
+        }
+        release();
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            // 输出随后会被删除
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (mClosed) {
+            throw new IOException("ZIP writer is closed");
+        }
+        if (mStream != null) {
+            throw new IOException("Entry is not closed");
+        }
+    }
+
+    private void release() {
+        mReleased = true;
+        mExecutor.shutdownNow();
+        endDeflaters();
+    }
+
+    // 结束池中所有的 Deflater
+    private void endDeflaters() {
+        Deflater deflater;
+        while ((deflater = mDeflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 把用完的 Deflater 还回池中。abort() 之后压缩线程可能还在运行，它们还回来的
+     * Deflater 不会再被使用，必须结束掉释放本地内存。先放回池中再检查 mReleased：
+     * release() 先设置 mReleased 再清空池，这样两边总有一方会看到并结束它。
+     */
+    private void recycle(Deflater deflater) {
+        deflater.reset();
+        mDeflaters.offer(deflater);
+        if (mReleased) {
+            endDeflaters();
+        }
+    }
+
+    // 在压缩线程中调用
+    private void compress(Entry entry, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        entry.crc = crc.getValue();
+
+        Deflater deflater = mDeflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(mLevel, true);
+        }
+        try {
+            // 压缩后不比原来小就直接存储
+            byte[] out = new byte[data.length];
+            deflater.setInput(data);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (deflater.finished() && length < data.length) {
+                entry.method = METHOD_DEFLATED;
+                entry.data = out;
+                entry.dataLength = length;
+            } else {
+                entry.method = METHOD_STORED;
+                entry.data = data;
+                entry.dataLength = data.length;
+            }
+            entry.compressedSize = entry.dataLength;
+        } finally {
+            recycle(deflater);
+        }
+    }
+
+    // 取回最早的一项并写出，必要时等待它压缩完成
+    private void writeNext() throws IOException {
+        Future<Entry> future = mPending.poll();
+        Entry entry;
+        try {
+            entry = future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            IOException error = new IOException("Compression failed");
+            error.initCause(e.getCause());
+            throw error;
+        }
+        mPendingBytes -= entry.size;
+
+        long offset = mOffset;
+        writeLocalHeader(entry, 0);
+        write(entry.data, entry.dataLength);
+        addCentralEntry(entry, offset, 0);
+    }
+
+    // 写出本地文件头和文件名；使用数据描述符时 CRC 和大小写 0
+    private void writeLocalHeader(Entry entry, int flags) throws IOException {
+        int p = 0;
+        p = putInt(mHeader, p, LOCAL_HEADER_SIGNATURE);
+        p = putShort(mHeader, p, VERSION);
+        p = putShort(mHeader, p, FLAG_UTF8 | flags);
+        p = putShort(mHeader, p, entry.method);
+        p = putInt(mHeader, p, entry.time);
+        p = putInt(mHeader, p, (int) entry.crc);
+        p = putInt(mHeader, p, (int) entry.compressedSize);
+        p = putInt(mHeader, p, (int) entry.size);
+        p = putShort(mHeader, p, entry.name.length);
+        p = putShort(mHeader, p, 0);
+        write(mHeader, p);
+        write(entry.name, entry.name.length);
+    }
+
+    // 把一项加入中央目录
+    private void addCentralEntry(Entry entry, long offset, int flags) {
+        // 偏移超出 32 位时放在 ZIP64 扩展字段中
+        boolean zip64 = offset >= MAX_32;
+        int p = 0;
+        p = putInt(mHeader, p, CENTRAL_HEADER_SIGNATURE);
+        p = putShort(mHeader, p, zip64 ? VERSION_ZIP64 : VERSION);
+        p = putShort(mHeader, p, zip64 ? VERSION_ZIP64 : VERSION);
+        p = putShort(mHeader, p, FLAG_UTF8 | flags);
+        p = putShort(mHeader, p, entry.method);
+        p = putInt(mHeader, p, entry.time);
+        p = putInt(mHeader, p, (int) entry.crc);
+        p = putInt(mHeader, p, (int) entry.compressedSize);
+        p = putInt(mHeader, p, (int) entry.size);
+        p = putShort(mHeader, p, entry.name.length);
+        p = putShort(mHeader, p, zip64 ? 12 : 0);
+        p = putShort(mHeader, p, 0);
+        p = putShort(mHeader, p, 0);
+        p = putShort(mHeader, p, 0);
+        p = putInt(mHeader, p, 0);
+        p = putInt(mHeader, p, zip64 ? (int) MAX_32 : (int) offset);
+        mCentral.write(mHeader, 0, p);
+        mCentral.write(entry.name, 0, entry.name.length);
+        if (zip64) {
+            p = 0;
+            p = putShort(mHeader, p, 0x0001);
+            p = putShort(mHeader, p, 8);
+            p = putLong(mHeader, p, offset);
+            mCentral.write(mHeader, 0, p);
+        }
+        mEntries++;
+    }
+
+    /**
+     * 边写边压缩的条目。写入的数据在调用线程中压缩后直接写出，关闭时写出数据描述符。
+     * 单个条目压缩前后都不能超过 4GB。
+     */
+    final class EntryStream extends OutputStream {
+        private final Entry mEntry;
+        private final long mHeaderOffset;
+        private final CRC32 mCrc = new CRC32();
+        private final Deflater mDeflater;
+        private final byte[] mBuffer = new byte[STREAM_BUFFER_SIZE];
+        private boolean mEntryClosed;
+
+        EntryStream(Entry entry, long offset) {
+            mEntry = entry;
+            mHeaderOffset = offset;
+            Deflater deflater = mDeflaters.poll();
+            mDeflater = deflater != null ? deflater : new Deflater(mLevel, true);
+        }
+
+        /**
+         * 已经写入的字节数，即压缩前的大小
+         */
+        long getSize() {
+            return mEntry.size;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mEntryClosed) {
+                throw new IOException("Entry is closed");
+            }
+            mCrc.update(b, off, len);
+            mEntry.size += len;
+            mDeflater.setInput(b, off, len);
+            while (!mDeflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mEntryClosed) {
+                return;
+            }
+            mEntryClosed = true;
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                deflate();
+            }
+            recycle(mDeflater);
+            mStream = null;
+            if (mEntry.size >= MAX_32 || mEntry.compressedSize >= MAX_32) {
+                throw new IOException("Entry is too large");
+            }
+            mEntry.crc = mCrc.getValue();
+
+            int p = 0;
+            p = putInt(mHeader, p, DATA_DESCRIPTOR_SIGNATURE);
+            p = putInt(mHeader, p, (int) mEntry.crc);
+            p = putInt(mHeader, p, (int) mEntry.compressedSize);
+            p = putInt(mHeader, p, (int) mEntry.size);
+            ParallelZipWriter.this.write(mHeader, p);
+            addCentralEntry(mEntry, mHeaderOffset, FLAG_DATA_DESCRIPTOR);
+        }
+
+        private void deflate() throws IOException {
+            int length = mDeflater.deflate(mBuffer);
+            if (length > 0) {
+                ParallelZipWriter.this.write(mBuffer, length);
+                mEntry.compressedSize += length;
+            }
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = mOffset;
+        long size = mCentral.size();
+        mCentral.writeTo(mOut);
+        mOffset += size;
+
+        boolean zip64 = mEntries >= MAX_16 || start >= MAX_32 || size >= MAX_32;
+        int p;
+        if (zip64) {
+            long end64 = mOffset;
+            p = 0;
+            p = putInt(mHeader, p, ZIP64_END_SIGNATURE);
+            p = putLong(mHeader, p, 44);
+            p = putShort(mHeader, p, VERSION_ZIP64);
+            p = putShort(mHeader, p, VERSION_ZIP64);
+            p = putInt(mHeader, p, 0);
+            p = putInt(mHeader, p, 0);
+            p = putLong(mHeader, p, mEntries);
+            p = putLong(mHeader, p, mEntries);
+            p = putLong(mHeader, p, size);
+            p = putLong(mHeader, p, start);
+            write(mHeader, p);
+
+            p = 0;
+            p = putInt(mHeader, p, ZIP64_LOCATOR_SIGNATURE);
+            p = putInt(mHeader, p, 0);
+            p = putLong(mHeader, p, end64);
+            p = putInt(mHeader, p, 1);
+            write(mHeader, p);
+        }
+
+        p = 0;
+        p = putInt(mHeader, p, END_SIGNATURE);
+        p = putShort(mHeader, p, 0);
+        p = putShort(mHeader, p, 0);
+        p = putShort(mHeader, p, zip64 ? MAX_16 : (int) mEntries);
+        p = putShort(mHeader, p, zip64 ? MAX_16 : (int) mEntries);
+        p = putInt(mHeader, p, zip64 ? (int) MAX_32 : (int) size);
+        p = putInt(mHeader, p, zip64 ? (int) MAX_32 : (int) start);
+        p = putShort(mHeader, p, 0);
+        write(mHeader, p);
+    }
+
+    private void write(byte[] data, int length) throws IOException {
+        mOut.write(data, 0, length);
+        mOffset += length;
+    }
+
+    // MS-DOS 格式的日期和时间，早于 1980 年的时间记为 1980-01-01
+    private int dosTime(long millis) {
+        mCalendar.setTimeInMillis(millis);
+        int year = mCalendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25)
+                | ((mCalendar.get(Calendar.MONTH) + 1) << 21)
+                | (mCalendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (mCalendar.get(Calendar.HOUR_OF_DAY) << 11)
+                | (mCalendar.get(Calendar.MINUTE) << 5)
+                | (mCalendar.get(Calendar.SECOND) >> 1);
+    }
+
+    private static int putShort(byte[] b, int p, int v) {
+        b[p] = (byte) v;
+        b[p + 1] = (byte) (v >> 8);
+        return p + 2;
+    }
+
+    private static int putInt(byte[] b, int p, int v) {
+        b[p] = (byte) v;
+        b[p + 1] = (byte) (v >> 8);
+        b[p + 2] = (byte) (v >> 16);
+        b[p + 3] = (byte) (v >> 24);
+        return p + 4;
+    }
+
+    private static int putLong(byte[] b, int p, long v) {
+        p = putInt(b, p, (int) v);
+        return putInt(b, p, (int) (v >>> 32));
+    }
+}
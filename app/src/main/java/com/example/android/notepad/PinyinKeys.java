@@ -0,0 +1,116 @@
+package com.example.android.notepad;
+
+import android.os.Build;
+
+/**
+ * 计算标题的拼音检索键。
+ *
+ * 拼音在写入笔记时计算一次并存入 title_pinyin 和 title_initials 两列，检索和排序都直接使用
+ * 这两列上的索引，不需要在查询时逐行转换。汉字通过 ICU 的 Han-Latin 转写为拼音，该转写器从
+ * API 29 开始提供；更早的系统上两列退化为小写的标题文本，排序和英文检索仍然可用。
+ * 系统升级后转写结果可能改变，数据库记下计算检索键时的 {@link #keyVersion()}，不一致时重新计算。
+ */
+final class PinyinKeys {
+
+    // This class cannot be instantiated
+    private PinyinKeys() {
+    }
+
+    /**
+     * 检索键的版本：转写依赖系统自带的 ICU，所以直接使用系统的 API 级别
+     */
+    static int keyVersion() {
+        return Build.VERSION.SDK_INT;
+    }
+
+    /**
+     * 完整拼音：去掉声调、空白和标点后的小写拼音，例如“会议记录”为 huiyijilu
+     */
+    static String fullPinyin(String title) {
+        StringBuilder sb = new StringBuilder();
+        for (String syllable : syllables(title)) {
+            sb.append(syllable);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 拼音首字母：每个汉字或单词取第一个字母，例如“会议记录”为 hyjl
+     */
+    static String initials(String title) {
+        StringBuilder sb = new StringBuilder();
+        for (String syllable : syllables(title)) {
+            sb.append(syllable.charAt(0));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 把用户输入转换为与检索键比较的形式：小写，去掉空白和标点。
+     *
+     * @return 规范化后的输入；输入中含有字母和数字以外的字符（例如汉字）时返回 null，
+     * 这样的输入不是拼音，不走拼音检索
+     */
+    static String normalizeQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < query.length(); i++) {
+            char ch = Character.toLowerCase(query.charAt(i));
+            if ((ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9')) {
+                sb.append(ch);
+            } else if (Character.isLetterOrDigit(ch)) {
+                return null;
+            }
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * 返回字符串作为前缀时的上界：所有以 prefix 开头的字符串都满足 prefix <= s < 上界。
+     * 与 “>= prefix AND < 上界” 组合即可在索引上做前缀范围查询。
+     */
+    static String prefixUpperBound(String prefix) {
+        char last = prefix.charAt(prefix.length() - 1);
+        return prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+    }
+
+    /**
+     * 把标题拆分为小写的拼音音节和单词，丢弃空白和标点
+     */
+    private static String[] syllables(String title) {
+        if (title == null) {
+            return new String[0];
+        }
+        String latin = title;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            latin = IcuTransliterator.toLatin(title);
+        }
+        String[] parts = latin.toLowerCase().split("[^\\p{L}\\p{N}]+");
+        int n = 0;
+        for (String part : parts) {
+            if (part.length() > 0) {
+                parts[n++] = part;
+            }
+        }
+        String[] result = new String[n];
+        System.arraycopy(parts, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * 单独放在内部类中，只有在支持的系统上才会加载 ICU 转写器
+     */
+    private static final class IcuTransliterator {
+        // Han-Latin 会在相邻的汉字之间插入空格，Latin-ASCII 去掉声调符号
+        private static final android.icu.text.Transliterator TRANSLITERATOR =
+                android.icu.text.Transliterator.getInstance("Han-Latin; Latin-ASCII");
+
+        static String toLatin(String text) {
+            synchronized (TRANSLITERATOR) {
+                return TRANSLITERATOR.transliterate(text);
+            }
+        }
+    }
+}
@@ -0,0 +1,720 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 按相关度排序的全文检索。
+ *
+ * 检索在 provider 内部完成：通过 FTS4 表做 MATCH，读取 matchinfo() 的词频统计按 BM25 计算得分，
+ * 标题列的权重高于正文列。snippet() 要重新切分整篇正文，只对排序截取后留下的结果生成带高亮标记的摘要。
+ * 返回的游标只包含得分和摘要，不包含笔记正文。
+ *
+ * 全文索引按词切分，对没有空格的中文只能做前缀匹配，所以还会用 {@link NgramIndex}
+ * 查找包含查询串的笔记，读取原文校验后并入结果。输入是拼音时，再按标题的拼音和拼音首字母
+ * 做前缀匹配，这两列在写入时预先计算并建有索引。
+ */
+final class SearchRanker {
+
+    /**
+     * 全文索引表名，以 notes 表为外部内容表
+     */
+    static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * 未指定 limit 参数时最多返回的结果数
+     */
+    static final int DEFAULT_LIMIT = 100;
+
+    /**
+     * 搜索结果游标的列
+     */
+    static final String[] RESULT_COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            "category_title",
+            NotePad.Notes.COLUMN_NAME_SCORE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
+    };
+
+    // BM25 参数
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // 出现在几乎所有笔记里的词，其 idf 会变为负数，这里给一个下限，保证命中总是加分
+    private static final double MIN_IDF = 0.01;
+
+    // 各列的权重，顺序与 FTS 表的列顺序一致：标题、正文
+    private static final double[] COLUMN_WEIGHTS = new double[] { 4.0, 1.0 };
+
+    // 摘要最多包含的词数
+    private static final int SNIPPET_TOKENS = 16;
+
+    // 校验子串命中时每批读取的笔记数，受 SQLite 绑定参数个数的限制
+    private static final int VERIFY_BATCH_SIZE = 200;
+
+    // 分段扫描大笔记时每段读取的字符数
+    private static final int SCAN_CHUNK_LENGTH = 64 * 1024;
+
+    // 子串命中的摘要在命中位置前后保留的字符数
+    private static final int SUBSTRING_SNIPPET_CONTEXT = 20;
+
+    private static final String VERIFY_SQL =
+            "SELECT n." + NotePad.Notes._ID
+            + ", n." + NotePad.Notes.COLUMN_NAME_TITLE
+            + ", n." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            + ", n." + NotePad.Notes.COLUMN_NAME_CREATE_DATE
+            + ", n." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+            + ", c." + NotePadProvider.Categories.COLUMN_NAME_TITLE
+            + ", CASE WHEN length(n." + NotePad.Notes.COLUMN_NAME_NOTE + ") > "
+            + NgramIndex.LARGE_NOTE_LENGTH + " THEN NULL ELSE n." + NotePad.Notes.COLUMN_NAME_NOTE + " END"
+            + ", length(n." + NotePad.Notes.COLUMN_NAME_NOTE + ") > " + NgramIndex.LARGE_NOTE_LENGTH
+            + " FROM " + NotePad.Notes.TABLE_NAME + " n"
+            + " LEFT JOIN " + NotePadProvider.Categories.TABLE_NAME + " c ON n."
+            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = c." + NotePadProvider.Categories._ID
+            + " WHERE n." + NotePad.Notes._ID + " IN (";
+
+    private static final String SCAN_SQL =
+            "SELECT substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, ?) FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?";
+
+    private static final String PINYIN_SQL =
+            "SELECT n." + NotePad.Notes._ID
+            + ", n." + NotePad.Notes.COLUMN_NAME_TITLE
+            + ", n." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            + ", n." + NotePad.Notes.COLUMN_NAME_CREATE_DATE
+            + ", n." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+            + ", c." + NotePadProvider.Categories.COLUMN_NAME_TITLE
+            + ", n." + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS
+            + " FROM " + NotePad.Notes.TABLE_NAME + " n"
+            + " LEFT JOIN " + NotePadProvider.Categories.TABLE_NAME + " c ON n."
+            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = c." + NotePadProvider.Categories._ID
+            + " WHERE (n." + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " >= ? AND n."
+            + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " < ?)"
+            + " OR (n." + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " >= ? AND n."
+            + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " < ?)"
+            + " LIMIT ?";
+
+    private static final String MATCH_SQL =
+            "SELECT docid, matchinfo(" + FTS_TABLE_NAME + ", 'pcnalx')"
+            + " FROM " + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ?";
+
+    private static final String SNIPPET_SQL =
+            "SELECT n." + NotePad.Notes._ID
+            + ", n." + NotePad.Notes.COLUMN_NAME_TITLE
+            + ", n." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            + ", n." + NotePad.Notes.COLUMN_NAME_CREATE_DATE
+            + ", n." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+            + ", c." + NotePadProvider.Categories.COLUMN_NAME_TITLE
+            + ", snippet(" + FTS_TABLE_NAME + ", ?, ?, ?, -1, " + SNIPPET_TOKENS + ")"
+            + " FROM " + FTS_TABLE_NAME
+            + " JOIN " + NotePad.Notes.TABLE_NAME + " n ON n." + NotePad.Notes._ID
+            + " = " + FTS_TABLE_NAME + ".docid"
+            + " LEFT JOIN " + NotePadProvider.Categories.TABLE_NAME + " c ON n."
+            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = c." + NotePadProvider.Categories._ID
+            + " WHERE " + FTS_TABLE_NAME + " MATCH ? AND " + FTS_TABLE_NAME + ".docid IN (";
+
+    // This class cannot be instantiated
+    private SearchRanker() {
+    }
+
+    /**
+     * notes 表中的列：为1时该笔记的全文索引还没有更新，见 {@link #indexPendingNotes}
+     */
+    static final String COLUMN_NAME_FTS_PENDING = "fts_pending";
+
+    /**
+     * 创建全文索引表，以及让索引与 notes 表保持同步的触发器
+     */
+    static void createSearchIndex(SQLiteDatabase db) {
+        createSearchTable(db);
+        createSearchTriggers(db);
+    }
+
+    /**
+     * 创建全文索引表，以 notes 表为外部内容表
+     */
+    static void createSearchTable(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                + "content=\"" + NotePad.Notes.TABLE_NAME + "\", "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                + NotePad.Notes.COLUMN_NAME_NOTE + ");");
+    }
+
+    /**
+     * 创建让全文索引与 notes 表保持同步的触发器，notes 表需要已有 {@link #COLUMN_NAME_FTS_PENDING} 列。
+     * 外部内容表的删除必须在原记录变化之前执行，所以更新拆成 BEFORE 删除和 AFTER 插入两步。
+     * 触发器只关心标题和正文的变化，修改其他列不会触碰索引。
+     *
+     * 按区间保存大笔记时把笔记标记为待索引：第一次标记时用原内容删除索引，之后的修改和
+     * 删除都跳过触发器，不再对整篇正文反复分词，由 {@link #indexPendingNotes} 一次补上。
+     */
+    static void createSearchTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX notes_fts_pending ON " + NotePad.Notes.TABLE_NAME
+                + "(" + COLUMN_NAME_FTS_PENDING + ");");
+        db.execSQL("CREATE TRIGGER notes_fts_bu BEFORE UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " ON " + NotePad.Notes.TABLE_NAME
+                + " WHEN old." + COLUMN_NAME_FTS_PENDING + " = 0 BEGIN "
+                + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + NotePad.Notes._ID + "; "
+                + "END;");
+        db.execSQL("CREATE TRIGGER notes_fts_au AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " ON " + NotePad.Notes.TABLE_NAME
+                + " WHEN new." + COLUMN_NAME_FTS_PENDING + " = 0 BEGIN "
+                + "INSERT INTO " + FTS_TABLE_NAME + "(docid, "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ") "
+                + "VALUES (new." + NotePad.Notes._ID + ", new." + NotePad.Notes.COLUMN_NAME_TITLE
+                + ", new." + NotePad.Notes.COLUMN_NAME_NOTE + "); "
+                + "END;");
+        db.execSQL("CREATE TRIGGER notes_fts_bd BEFORE DELETE ON " + NotePad.Notes.TABLE_NAME
+                + " WHEN old." + COLUMN_NAME_FTS_PENDING + " = 0 BEGIN "
+                + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + NotePad.Notes._ID + "; "
+                + "END;");
+        db.execSQL("CREATE TRIGGER notes_fts_ai AFTER INSERT ON " + NotePad.Notes.TABLE_NAME
+                + " WHEN new." + COLUMN_NAME_FTS_PENDING + " = 0 BEGIN "
+                + "INSERT INTO " + FTS_TABLE_NAME + "(docid, "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ") "
+                + "VALUES (new." + NotePad.Notes._ID + ", new." + NotePad.Notes.COLUMN_NAME_TITLE
+                + ", new." + NotePad.Notes.COLUMN_NAME_NOTE + "); "
+                + "END;");
+    }
+
+    /**
+     * 删除 {@link #createSearchTriggers} 创建的触发器和索引
+     */
+    static void dropSearchTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_bu");
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_au");
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_bd");
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_ai");
+        db.execSQL("DROP INDEX IF EXISTS notes_fts_pending");
+    }
+
+    /**
+     * 为待索引的笔记写入全文索引并清除标记。没有待索引的笔记时只查一次索引。
+     * 在一个事务中执行，与按区间保存不会交错。
+     *
+     * @return 重新索引的笔记数
+     */
+    static int indexPendingNotes(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + COLUMN_NAME_FTS_PENDING + " = 1)", null) == 0) {
+            return 0;
+        }
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO " + FTS_TABLE_NAME + "(docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ") "
+                    + "SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME
+                    + " WHERE " + COLUMN_NAME_FTS_PENDING + " = 1");
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_NAME_FTS_PENDING, 0);
+            int count = db.update(NotePad.Notes.TABLE_NAME, values,
+                    COLUMN_NAME_FTS_PENDING + " = 1", null);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 根据 notes 表的现有内容重建全文索引，用于升级时回填数据
+     */
+    static void rebuildSearchIndex(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO " + FTS_TABLE_NAME + "(" + FTS_TABLE_NAME + ") VALUES('rebuild');");
+    }
+
+    /**
+     * 把用户输入转换成 FTS 的 MATCH 表达式。每个词都加上引号作为短语，并允许前缀匹配，
+     * 词之间是 AND 关系。用户输入中的引号和运算符不会被解释为查询语法。
+     *
+     * @param query 用户输入的搜索文本
+     * @return MATCH 表达式；如果输入里没有可检索的词则返回 null
+     */
+    static String buildMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder expression = new StringBuilder();
+        for (String term : query.trim().split("\\s+")) {
+            String cleaned = term.replace("\"", "");
+            if (!containsLetterOrDigit(cleaned)) {
+                continue;
+            }
+            if (expression.length() > 0) {
+                expression.append(' ');
+            }
+            expression.append('"').append(cleaned).append("\"*");
+        }
+        return expression.length() > 0 ? expression.toString() : null;
+    }
+
+    private static boolean containsLetterOrDigit(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isLetterOrDigit(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 执行检索，按得分从高到低返回前 limit 条结果
+     *
+     * @param db 数据库
+     * @param index 子串索引，为 null 时只使用全文索引
+     * @param query 用户输入的搜索文本
+     * @param limit 最多返回的结果数
+     * @return 列为 {@link #RESULT_COLUMNS} 的游标，没有结果时为空游标
+     */
+    static Cursor search(SQLiteDatabase db, NgramIndex index, String query, int limit) {
+        List<Hit> hits = findHits(db, query, limit);
+        if (index != null && limit > 0) {
+            hits.addAll(findSubstringHits(db, index, query, hits, limit));
+        }
+        hits.addAll(findPinyinHits(db, query, hits, limit));
+        hits = top(hits, limit);
+        loadFullTextHits(db, query, hits);
+        return toCursor(hits, limit);
+    }
+
+    /**
+     * 执行检索，返回得分最高的 limit 条命中记录（未排序）。记录只有 ID 和得分，
+     * 其余的列和摘要由 {@link #loadFullTextHits} 读取。
+     */
+    static List<Hit> findHits(SQLiteDatabase db, String query, int limit) {
+        List<Hit> hits = new ArrayList<Hit>();
+        String match = buildMatchExpression(query);
+        if (match == null || limit <= 0) {
+            return hits;
+        }
+
+        // 用容量为 limit 的小顶堆保留得分最高的结果，避免对全部命中排序
+        PriorityQueue<Hit> top = new PriorityQueue<Hit>(limit, BY_SCORE_ASCENDING);
+        Cursor c = db.rawQuery(MATCH_SQL, new String[] { match });
+        try {
+            while (c.moveToNext()) {
+                double score = score(c.getBlob(1));
+                if (top.size() == limit && top.peek().score >= score) {
+                    continue;
+                }
+                Hit hit = new Hit();
+                hit.id = c.getLong(0);
+                hit.score = score;
+                hit.fullText = true;
+                if (top.size() == limit) {
+                    top.poll();
+                }
+                top.add(hit);
+            }
+        } finally {
+            c.close();
+        }
+        hits.addAll(top);
+        return hits;
+    }
+
+    /**
+     * 为全文检索的命中读取标题、日期、分类和 snippet() 摘要。只对最终返回的结果执行，
+     * 其余命中不需要重新切分正文。期间已经不存在的笔记从 hits 中移除。
+     */
+    static void loadFullTextHits(SQLiteDatabase db, String query, List<Hit> hits) {
+        HashMap<Long, Hit> byId = new HashMap<Long, Hit>();
+        StringBuilder sql = new StringBuilder(SNIPPET_SQL);
+        for (Hit hit : hits) {
+            if (hit.fullText) {
+                sql.append(byId.isEmpty() ? "" : ",").append(hit.id);
+                byId.put(hit.id, hit);
+            }
+        }
+        if (byId.isEmpty()) {
+            return;
+        }
+        sql.append(')');
+
+        Cursor c = db.rawQuery(sql.toString(), new String[] {
+                NotePad.Notes.SNIPPET_MATCH_START,
+                NotePad.Notes.SNIPPET_MATCH_END,
+                "…",
+                buildMatchExpression(query)
+        });
+        try {
+            while (c.moveToNext()) {
+                Hit hit = byId.get(c.getLong(0));
+                if (hit == null) {
+                    continue;
+                }
+                hit.title = c.getString(1);
+                hit.modified = c.getLong(2);
+                hit.created = c.getLong(3);
+                hit.categoryId = c.getLong(4);
+                hit.categoryTitle = c.getString(5);
+                hit.snippet = c.getString(6);
+                hit.fullText = false;
+            }
+        } finally {
+            c.close();
+        }
+        for (Iterator<Hit> it = hits.iterator(); it.hasNext(); ) {
+            if (it.next().fullText) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 用子串索引查找全文检索没有命中的笔记，读取标题和正文校验后返回得分最高的 limit 条。
+     * 每个词都必须出现在标题或正文中；得分是各词所在列的权重之和，与 BM25 得分大致同量级。
+     *
+     * @param found 全文检索已经命中的记录，这些笔记不会重复返回
+     */
+    static List<Hit> findSubstringHits(SQLiteDatabase db, NgramIndex index, String query,
+            List<Hit> found, int limit) {
+        List<Hit> hits = new ArrayList<Hit>();
+        long[] candidates = index.candidates(db, query);
+        if (candidates == null || candidates.length == 0) {
+            return hits;
+        }
+        List<String> terms = NgramIndex.splitTerms(query);
+
+        HashSet<Long> seen = new HashSet<Long>();
+        for (Hit hit : found) {
+            seen.add(hit.id);
+        }
+
+        PriorityQueue<Hit> top = new PriorityQueue<Hit>(limit, BY_SCORE_ASCENDING);
+        List<String> batch = new ArrayList<String>(VERIFY_BATCH_SIZE);
+        for (int i = 0; i < candidates.length; i++) {
+            if (!seen.contains(candidates[i])) {
+                batch.add(Long.toString(candidates[i]));
+            }
+            if (batch.size() == VERIFY_BATCH_SIZE
+                    || (i == candidates.length - 1 && batch.size() > 0)) {
+                verifyBatch(db, batch, terms, top, limit);
+                batch.clear();
+            }
+        }
+        hits.addAll(top);
+        return hits;
+    }
+
+    /**
+     * 把输入当作拼音，按标题的完整拼音或拼音首字母做前缀匹配。两个条件都是索引列上的范围查询，
+     * 不需要逐行转换拼音。首字母命中与拼音命中的得分都等于标题列的权重，首字母完全相同时略高。
+     *
+     * @param found 之前已经命中的记录，这些笔记不会重复返回
+     */
+    static List<Hit> findPinyinHits(SQLiteDatabase db, String query, List<Hit> found, int limit) {
+        List<Hit> hits = new ArrayList<Hit>();
+        String key = PinyinKeys.normalizeQuery(query);
+        if (key == null || limit <= 0) {
+            return hits;
+        }
+        String upper = PinyinKeys.prefixUpperBound(key);
+
+        HashSet<Long> seen = new HashSet<Long>();
+        for (Hit hit : found) {
+            seen.add(hit.id);
+        }
+
+        Cursor c = db.rawQuery(PINYIN_SQL, new String[] {
+                key, upper, key, upper, Integer.toString(limit + found.size())
+        });
+        try {
+            while (c.moveToNext() && hits.size() < limit) {
+                if (seen.contains(c.getLong(0))) {
+                    continue;
+                }
+                Hit hit = new Hit();
+                hit.id = c.getLong(0);
+                hit.title = c.getString(1);
+                hit.modified = c.getLong(2);
+                hit.created = c.getLong(3);
+                hit.categoryId = c.getLong(4);
+                hit.categoryTitle = c.getString(5);
+                hit.score = COLUMN_WEIGHTS[0] * (key.equals(c.getString(6)) ? 1.5 : 1.0);
+                hit.snippet = hit.title;
+                hits.add(hit);
+            }
+        } finally {
+            c.close();
+        }
+        return hits;
+    }
+
+    private static void verifyBatch(SQLiteDatabase db, List<String> ids, List<String> terms,
+            PriorityQueue<Hit> top, int limit) {
+        StringBuilder sql = new StringBuilder(VERIFY_SQL);
+        for (int i = 0; i < ids.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(')');
+
+        Cursor c = db.rawQuery(sql.toString(), ids.toArray(new String[ids.size()]));
+        try {
+            while (c.moveToNext()) {
+                String title = c.getString(1);
+                String normalizedTitle = NgramIndex.normalize(title);
+
+                // 正文命中的情况：大笔记分段扫描，其余的整篇读出
+                boolean[] inNote = new boolean[terms.size()];
+                String noteSnippet = null;
+                if (c.getInt(7) != 0) {
+                    noteSnippet = scanLargeNote(db, c.getLong(0), terms, inNote);
+                } else {
+                    String note = c.getString(6);
+                    String normalizedNote = NgramIndex.normalize(note);
+                    for (int i = 0; i < inNote.length; i++) {
+                        inNote[i] = normalizedNote.contains(terms.get(i));
+                    }
+                    if (inNote[0]) {
+                        noteSnippet = substringSnippet(note, normalizedNote, terms);
+                    }
+                }
+
+                // 校验：候选结果可能是 gram 恰好都出现、但并不连续的误报
+                double score = 0;
+                for (int i = 0; i < inNote.length; i++) {
+                    double termScore = 0;
+                    if (normalizedTitle.contains(terms.get(i))) {
+                        termScore += COLUMN_WEIGHTS[0];
+                    }
+                    if (inNote[i]) {
+                        termScore += COLUMN_WEIGHTS[1];
+                    }
+                    if (termScore == 0) {
+                        score = 0;
+                        break;
+                    }
+                    score += termScore;
+                }
+                if (score == 0 || (top.size() == limit && top.peek().score >= score)) {
+                    continue;
+                }
+
+                Hit hit = new Hit();
+                hit.id = c.getLong(0);
+                hit.title = title;
+                hit.modified = c.getLong(2);
+                hit.created = c.getLong(3);
+                hit.categoryId = c.getLong(4);
+                hit.categoryTitle = c.getString(5);
+                hit.score = score;
+                // 摘要优先取正文，正文没有命中时取标题
+                hit.snippet = noteSnippet != null
+                        ? noteSnippet : substringSnippet(title, normalizedTitle, terms);
+                if (top.size() == limit) {
+                    top.poll();
+                }
+                top.add(hit);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 分段读取大笔记的正文，检查每个词是否出现。相邻两段重叠最长的词的长度减一，
+     * 跨越分段边界的命中也能找到；所有词都找到后提前结束。
+     *
+     * @param found 输出，每个词是否出现在正文中
+     * @return 第一个词第一次出现位置附近的摘要，第一个词没有出现时为 null
+     */
+    static String scanLargeNote(SQLiteDatabase db, long id, List<String> terms, boolean[] found) {
+        int overlap = 0;
+        for (String term : terms) {
+            overlap = Math.max(overlap, term.codePointCount(0, term.length()) - 1);
+        }
+        String snippet = null;
+        int remaining = terms.size();
+        // substr() 按字符计数，与码点一致，分段不会切开代理对
+        SQLiteStatement chunk = db.compileStatement(SCAN_SQL);
+        try {
+            chunk.bindLong(2, SCAN_CHUNK_LENGTH + overlap);
+            chunk.bindLong(3, id);
+            for (long start = 1; remaining > 0; start += SCAN_CHUNK_LENGTH) {
+                chunk.bindLong(1, start);
+                String text = chunk.simpleQueryForString();
+                if (text == null || text.length() == 0) {
+                    break;
+                }
+                String normalized = NgramIndex.normalize(text);
+                for (int i = 0; i < found.length; i++) {
+                    if (!found[i] && normalized.contains(terms.get(i))) {
+                        found[i] = true;
+                        remaining--;
+                        if (i == 0) {
+                            snippet = substringSnippet(text, normalized, terms);
+                        }
+                    }
+                }
+                if (text.codePointCount(0, text.length()) < SCAN_CHUNK_LENGTH + overlap) {
+                    break;
+                }
+            }
+        } catch (SQLiteDoneException e) {
+            // 笔记已经不存在
+        } finally {
+            chunk.close();
+        }
+        return snippet;
+    }
+
+    /**
+     * 截取第一个词第一次出现位置附近的文本作为摘要，并用与 snippet() 相同的标记包围其中的命中词
+     */
+    static String substringSnippet(String text, String normalized, List<String> terms) {
+        if (text == null) {
+            return "";
+        }
+        // 个别字符转小写后长度会变化，此时直接使用规范化后的文本，保证下标一致
+        if (text.length() != normalized.length()) {
+            text = normalized;
+        }
+        int match = Math.max(0, normalized.indexOf(terms.get(0)));
+        int start = Math.max(0, match - SUBSTRING_SNIPPET_CONTEXT);
+        int end = Math.min(text.length(),
+                match + terms.get(0).length() + SUBSTRING_SNIPPET_CONTEXT);
+
+        StringBuilder snippet = new StringBuilder();
+        if (start > 0) {
+            snippet.append("…");
+        }
+        int pos = start;
+        while (pos < end) {
+            String matched = null;
+            for (String term : terms) {
+                if (normalized.startsWith(term, pos)) {
+                    matched = term;
+                    break;
+                }
+            }
+            if (matched == null) {
+                snippet.append(text.charAt(pos++));
+            } else {
+                int matchEnd = Math.min(text.length(), pos + matched.length());
+                snippet.append(NotePad.Notes.SNIPPET_MATCH_START)
+                        .append(text, pos, matchEnd)
+                        .append(NotePad.Notes.SNIPPET_MATCH_END);
+                pos = matchEnd;
+            }
+        }
+        if (pos < text.length()) {
+            snippet.append("…");
+        }
+        return snippet.toString();
+    }
+
+    /**
+     * 把命中记录按得分从高到低排列，返回前 limit 条
+     */
+    static List<Hit> top(List<Hit> hits, int limit) {
+        Collections.sort(hits, Collections.reverseOrder(BY_SCORE_ASCENDING));
+        if (hits.size() > limit) {
+            hits = new ArrayList<Hit>(hits.subList(0, Math.max(0, limit)));
+        }
+        return hits;
+    }
+
+    /**
+     * 把命中记录按得分从高到低排列，保留前 limit 条，转换为结果游标
+     */
+    static Cursor toCursor(List<Hit> hits, int limit) {
+        hits = top(hits, limit);
+        MatrixCursor cursor = new MatrixCursor(RESULT_COLUMNS, hits.size());
+        for (Hit hit : hits) {
+            cursor.addRow(new Object[] {
+                    hit.id,
+                    hit.title,
+                    hit.modified,
+                    hit.created,
+                    hit.categoryId,
+                    hit.categoryTitle,
+                    hit.score,
+                    hit.snippet
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * 根据 matchinfo(..., 'pcnalx') 的结果计算 BM25 得分，按列加权后求和。
+     * 数组布局依次为：短语数 p、列数 c、总行数 n、每列平均词数 a[c]、本行每列词数 l[c]，
+     * 以及每个短语在每列上的 (本行命中数, 全表命中数, 命中行数) 三元组。
+     */
+    static double score(byte[] matchinfo) {
+        IntBuffer mi = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = mi.get(0);
+        int columns = mi.get(1);
+        int rows = mi.get(2);
+
+        double score = 0;
+        for (int col = 0; col < columns; col++) {
+            double avgLength = Math.max(1, mi.get(3 + col));
+            double length = mi.get(3 + columns + col);
+            double weight = col < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[col] : 1.0;
+            double norm = K1 * (1 - B + B * length / avgLength);
+
+            for (int phrase = 0; phrase < phrases; phrase++) {
+                int base = 3 + 2 * columns + 3 * (phrase * columns + col);
+                int tf = mi.get(base);
+                if (tf == 0) {
+                    continue;
+                }
+                int docs = mi.get(base + 2);
+                double idf = Math.log((rows - docs + 0.5) / (docs + 0.5));
+                if (idf < MIN_IDF) {
+                    idf = MIN_IDF;
+                }
+                score += weight * idf * (tf * (K1 + 1)) / (tf + norm);
+            }
+        }
+        return score;
+    }
+
+    private static final Comparator<Hit> BY_SCORE_ASCENDING = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit lhs, Hit rhs) {
+            return Double.compare(lhs.score, rhs.score);
+        }
+    };
+
+    /**
+     * 一条命中记录
+     */
+    static final class Hit {
+        long id;
+        String title;
+        long modified;
+        long created;
+        long categoryId;
+        String categoryTitle;
+        String snippet;
+        double score;
+        // 全文检索的命中，其余的列和摘要还没有读取
+        boolean fullText;
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.android.notepad;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 笔记列表多选状态。
+ *
+ * 选中状态按列表位置保存在位图中，不为每条笔记创建对象。全选只是把位图清空并标记为反选，
+ * 此时位图中记录的是取消选中的位置，因此全选和清空都是 O(1)，区间选择和选择整个分类是
+ * O(区间长度 / 64)。分组标题所在的位置不可选，任何操作之后位图中都不会留下标题位置。
+ *
+ * 列表重新加载后调用 {@link #setItems}，已选中的笔记按 ID 映射到新的位置上。
+ * 只在主线程中使用，不是线程安全的。
+ */
+final class SelectionModel {
+
+    /**
+     * 表示分组标题等不可选择位置的 ID
+     */
+    static final long NO_ID = -1;
+
+    /**
+     * 批量操作时每条 SQL 语句最多包含的笔记 ID 数
+     */
+    static final int BATCH_SIZE = 500;
+
+    // 每个位置对应的笔记 ID，标题位置为 NO_ID
+    private long[] mIds = new long[0];
+
+    // 标题位置
+    private BitSet mHeaders = new BitSet();
+    private int mSelectableCount;
+
+    // mInverted 为 false 时记录选中的位置，为 true 时记录取消选中的位置
+    private BitSet mBits = new BitSet();
+    private boolean mInverted;
+
+    // 区间选择的起点，最近一次单独切换的位置
+    private int mAnchor = -1;
+
+    /**
+     * 设置列表内容，已选中的笔记按 ID 保留在新的位置上，已经不在列表中的笔记被丢弃
+     *
+     * @param ids 每个位置对应的笔记 ID，不可选的位置为 {@link #NO_ID}
+     */
+    void setItems(long[] ids) {
+        long[] selected = getSelectedIds();
+        Arrays.sort(selected);
+        boolean hadSelection = selected.length > 0;
+
+        mIds = ids;
+        mHeaders = new BitSet(ids.length);
+        mBits = new BitSet(ids.length);
+        mInverted = false;
+        mAnchor = -1;
+        mSelectableCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == NO_ID) {
+                mHeaders.set(i);
+            } else {
+                mSelectableCount++;
+                if (hadSelection && Arrays.binarySearch(selected, ids[i]) >= 0) {
+                    mBits.set(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * 列表中可选择的位置数
+     */
+    int getSelectableCount() {
+        return mSelectableCount;
+    }
+
+    /**
+     * 选中的笔记数
+     */
+    int getSelectedCount() {
+        return mInverted ? mSelectableCount - mBits.cardinality() : mBits.cardinality();
+    }
+
+    boolean isSelected(int position) {
+        if (position < 0 || position >= mIds.length || mHeaders.get(position)) {
+            return false;
+        }
+        return mBits.get(position) != mInverted;
+    }
+
+    /**
+     * 切换一个位置的选中状态，并把它作为之后区间选择的起点
+     */
+    void toggle(int position) {
+        setSelected(position, !isSelected(position));
+        mAnchor = position;
+    }
+
+    void setSelected(int position, boolean selected) {
+        if (position < 0 || position >= mIds.length || mHeaders.get(position)) {
+            return;
+        }
+        mBits.set(position, selected != mInverted);
+    }
+
+    /**
+     * 选中从上次切换的位置到 position 之间的所有笔记（包含两端）。
+     * 没有起点时只切换 position。
+     */
+    void extendTo(int position) {
+        if (mAnchor < 0 || mAnchor >= mIds.length) {
+            toggle(position);
+            return;
+        }
+        selectRange(Math.min(mAnchor, position), Math.max(mAnchor, position));
+        mAnchor = position;
+    }
+
+    /**
+     * 选中 [from, to] 区间内的所有笔记
+     */
+    void selectRange(int from, int to) {
+        from = Math.max(from, 0);
+        to = Math.min(to, mIds.length - 1);
+        if (from > to) {
+            return;
+        }
+        if (mInverted) {
+            mBits.clear(from, to + 1);
+        } else {
+            mBits.set(from, to + 1);
+            // 标题位置不能留在位图中，否则计数会出错
+            for (int h = mHeaders.nextSetBit(from); h >= 0 && h <= to; h = mHeaders.nextSetBit(h + 1)) {
+                mBits.clear(h);
+            }
+        }
+    }
+
+    /**
+     * 选中标题位置之后、下一个标题之前的所有笔记；如果这些笔记都已选中，则全部取消选中
+     *
+     * @param headerPosition 分组标题的位置
+     */
+    void toggleSection(int headerPosition) {
+        int from = headerPosition + 1;
+        int next = mHeaders.nextSetBit(from);
+        int to = (next < 0 ? mIds.length : next) - 1;
+        if (from > to) {
+            return;
+        }
+        if (isRangeSelected(from, to)) {
+            if (mInverted) {
+                mBits.set(from, to + 1);
+            } else {
+                mBits.clear(from, to + 1);
+            }
+        } else {
+            selectRange(from, to);
+        }
+    }
+
+    private boolean isRangeSelected(int from, int to) {
+        if (mInverted) {
+            int deselected = mBits.nextSetBit(from);
+            return deselected < 0 || deselected > to;
+        }
+        int unselected = mBits.nextClearBit(from);
+        return unselected > to;
+    }
+
+    void selectAll() {
+        mBits = new BitSet();
+        mInverted = true;
+    }
+
+    void clear() {
+        mBits = new BitSet();
+        mInverted = false;
+        mAnchor = -1;
+    }
+
+    /**
+     * 选中的笔记 ID，按列表顺序排列
+     */
+    long[] getSelectedIds() {
+        long[] result = new long[getSelectedCount()];
+        int n = 0;
+        if (mInverted) {
+            for (int i = 0; i < mIds.length; i++) {
+                if (!mHeaders.get(i) && !mBits.get(i)) {
+                    result[n++] = mIds[i];
+                }
+            }
+        } else {
+            for (int i = mBits.nextSetBit(0); i >= 0; i = mBits.nextSetBit(i + 1)) {
+                result[n++] = mIds[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 生成选择 ids[from, to) 这些笔记的 WHERE 子句。ID 直接写入语句，不占用参数个数的限制，
+     * 调用方应按 {@link #BATCH_SIZE} 分段。
+     */
+    static String idSelection(long[] ids, int from, int to) {
+        // 带表名前缀，查询笔记时与分类表连接也不会产生歧义
+        StringBuilder sb = new StringBuilder(NotePad.Notes.TABLE_NAME).append('.')
+                .append(NotePad.Notes._ID).append(" IN (");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Calendar;
+
+/**
+ * 笔记列表的排序方式，负责保存用户的选择，并给出每种方式的排序语句和分段规则。
+ *
+ * 每种排序语句都只引用 notes 表上的列，并且与 provider 建立的某个索引完全一致，
+ * 查询时 SQLite 直接按索引顺序扫描，不需要临时 B 树排序。分段标题在读取结果时顺带计算，
+ * 只在相邻两行分属不同分段时才做一次比较以外的工作。
+ */
+public class SortMode {
+    private static final String PREFERENCE_NAME = "list_preferences";
+    private static final String KEY_SORT_MODE = "sort_mode";
+
+    // 排序方式常量
+    public static final int SORT_GROUPED = 0;   // 按分类分组，组内最近修改的在前
+    public static final int SORT_NEWEST = 1;    // 最近修改的在前
+    public static final int SORT_OLDEST = 2;    // 最早修改的在前
+    public static final int SORT_TITLE = 3;     // 按标题拼音
+    public static final int SORT_CREATED = 4;   // 最近创建的在前
+
+    /*
+     * 各排序方式使用的索引：
+     * SORT_GROUPED  notes_category_modified (category_id, modified)，两列都倒序扫描
+     * SORT_NEWEST   notes_modified
+     * SORT_OLDEST   notes_modified
+     * SORT_TITLE    notes_title_sort (title_pinyin, title)
+     * SORT_CREATED  notes_created
+     *
+     * 分组模式下 SQL 只保证同一分类的笔记相邻，分组之间按分类标题的顺序在内存中调整，
+     * 这样不需要把 categories 表放在连接的外层，也不会丢掉分类已不存在的笔记。
+     */
+    private static final String[] SORT_ORDERS = new String[] {
+            NotePad.Notes.TABLE_NAME + ".category_id DESC, "
+                    + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC",
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC",
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " ASC",
+            NotePad.Notes.TITLE_SORT_ORDER,
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " DESC",
+    };
+
+    /**
+     * 菜单中显示的名称，顺序与排序方式常量一致
+     */
+    static final int[] LABELS = new int[] {
+            R.string.sort_grouped,
+            R.string.sort_newest,
+            R.string.sort_oldest,
+            R.string.sort_title,
+            R.string.sort_created,
+    };
+
+    /**
+     * 保存用户选择的排序方式
+     * @param context 上下文
+     * @param sortMode 排序方式
+     */
+    public static void saveSortMode(Context context, int sortMode) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+        preferences.edit().putInt(KEY_SORT_MODE, sortMode).apply();
+    }
+
+    /**
+     * 获取保存的排序方式
+     * @param context 上下文
+     * @return 排序方式，默认按分类分组
+     */
+    public static int getSortMode(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+        int sortMode = preferences.getInt(KEY_SORT_MODE, SORT_GROUPED);
+        return isValid(sortMode) ? sortMode : SORT_GROUPED;
+    }
+
+    static boolean isValid(int sortMode) {
+        return sortMode >= 0 && sortMode < SORT_ORDERS.length;
+    }
+
+    /**
+     * 获取排序方式对应的ORDER BY语句
+     */
+    static String getSortOrder(int sortMode) {
+        return SORT_ORDERS[sortMode];
+    }
+
+    /**
+     * 按日期分段时，计算时间所在的那一天的起止时间
+     *
+     * @param calendar 复用的日历对象
+     * @param time 时间戳
+     * @param range 输出：[当天零点, 次日零点)
+     */
+    static void dayRange(Calendar calendar, long time, long[] range) {
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        range[0] = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        range[1] = calendar.getTimeInMillis();
+    }
+
+    /**
+     * 按标题分段时的分段字母：拼音的首字母，不是字母时归入“#”
+     */
+    static char titleSection(String titlePinyin) {
+        if (titlePinyin != null && titlePinyin.length() > 0) {
+            char first = titlePinyin.charAt(0);
+            if (first >= 'a' && first <= 'z') {
+                return (char) (first - 'a' + 'A');
+            }
+        }
+        return '#';
+    }
+}
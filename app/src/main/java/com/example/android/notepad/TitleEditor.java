@@ -17,12 +17,15 @@
 package com.example.android.notepad;
 
 import android.app.Activity;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.Toast;
 import com.example.android.notepad.ThemeManager;
 
 /**
@@ -41,15 +44,19 @@ public class TitleEditor extends Activity {
      */
     public static final String EDIT_TITLE_ACTION = "com.android.notepad.action.EDIT_TITLE";
 
-    // Creates a projection that returns the note ID and the note contents.
+    // Creates a projection that returns the note ID, the title and the version of the note.
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_VERSION, // 2
     };
 
     // The position of the title column in a Cursor returned by the provider.
     private static final int COLUMN_INDEX_TITLE = 1;
 
+    // The position of the version column in a Cursor returned by the provider.
+    private static final int COLUMN_INDEX_VERSION = 2;
+
     // A Cursor object that will contain the results of querying the provider for a note.
     private Cursor mCursor;
 
@@ -59,6 +66,10 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // 打开时的标题和版本号，保存时据此判断标题是否已在别处被修改
+    private String mOriginalTitle;
+    private long mVersion = -1;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -109,14 +120,18 @@ public class TitleEditor extends Activity {
 
         // Verifies that the query made in onCreate() actually worked. If it worked, then the
         // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-        if (mCursor != null) {
+        // 只在第一次显示时读取，之后EditText自己保存正在编辑的标题
+        if (mCursor != null && mVersion < 0) {
 
             // The Cursor was just retrieved, so its index is set to one record *before* the first
             // record retrieved. This moves it to the first record.
-            mCursor.moveToFirst();
+            if (mCursor.moveToFirst()) {
+                mOriginalTitle = mCursor.getString(COLUMN_INDEX_TITLE);
+                mVersion = mCursor.getLong(COLUMN_INDEX_VERSION);
 
-            // Displays the current title text in the EditText object.
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+                // Displays the current title text in the EditText object.
+                mText.setText(mOriginalTitle);
+            }
         }
     }
 
@@ -138,29 +153,66 @@ public class TitleEditor extends Activity {
         // Verifies that the query made in onCreate() actually worked. If it worked, then the
         // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
 
-        if (mCursor != null) {
+        // 标题没有改动时不写数据库
+        String title = mText.getText().toString();
+        if (mCursor != null && mVersion >= 0 && !title.equals(mOriginalTitle)) {
 
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
 
             // In the values map, sets the title to the current contents of the edit box.
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
 
             /*
-             * Updates the provider with the note's new title.
+             * Updates the provider with the note's new title, if the note hasn't been changed
+             * since it was read.
              *
              * Note: This is being done on the UI thread. It will block the thread until the
              * update completes. In a sample app, going against a simple provider based on a
              * local database, the block will be momentary, but in a real app you should use
              * android.content.AsyncQueryHandler or android.os.AsyncTask.
              */
-            getContentResolver().update(
-                mUri,    // The URI for the note to update.
-                values,  // The values map containing the columns to update and the values to use.
-                null,    // No selection criteria is used, so no "where" columns are needed.
-                null     // No "where" columns are used, so no "where" values are needed.
-            );
+            Bundle result = updateTitle(values);
+            if (result != null && result.getInt(NotePad.Notes.KEY_COUNT) == 0
+                    && result.getLong(NotePad.Notes.KEY_VERSION, -1) >= 0) {
+                /*
+                 * 版本号变了。如果只是正文被修改，标题仍是打开时的标题，就以新的版本号再试一次；
+                 * 标题也被修改了时保留别处的修改。
+                 */
+                mVersion = result.getLong(NotePad.Notes.KEY_VERSION);
+                if (TextUtils.equals(queryTitle(), mOriginalTitle)) {
+                    result = updateTitle(values);
+                }
+            }
+            if (result != null && result.getInt(NotePad.Notes.KEY_COUNT) > 0) {
+                mOriginalTitle = title;
+                mVersion = result.getLong(NotePad.Notes.KEY_VERSION);
+            } else {
+                Toast.makeText(this, R.string.title_conflict, Toast.LENGTH_LONG).show();
+            }
+        }
+    }
 
+    // 版本号与mVersion一致时更新标题
+    private Bundle updateTitle(ContentValues values) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.KEY_VALUES, values);
+        extras.putLong(NotePad.Notes.KEY_EXPECTED_VERSION, mVersion);
+        return getContentResolver().call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_UPDATE_NOTE,
+                String.valueOf(ContentUris.parseId(mUri)), extras);
+    }
+
+    // 读取数据库中当前的标题
+    private String queryTitle() {
+        Cursor c = getContentResolver().query(mUri, new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+                null, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
         }
     }
 
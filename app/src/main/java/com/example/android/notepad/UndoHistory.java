@@ -0,0 +1,248 @@
+package com.example.android.notepad;
+
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+
+import java.util.ArrayDeque;
+
+/**
+ * 编辑器的撤销和重做历史。
+ *
+ * 每次修改只记录位置、被删除的文本和插入的文本，不保存全文副本。连续的输入（包括输入法在
+ * 组字过程中对同一段文本的反复替换、在刚输入的文字中退格）合并为一次操作，撤销时整段撤销。
+ * 历史按字节预算保存在环形队列中，超出预算时丢弃最早的操作；单次修改本身超过预算时（例如
+ * 粘贴了几 MB 的文本）清空历史，不记录这次修改。
+ *
+ * 对象本身不引用编辑器，Activity 因配置变化重建时可以通过
+ * {@link android.app.Activity#onRetainNonConfigurationInstance()} 直接交给新的 Activity，
+ * 不需要写入 Bundle。撤销前会检查文本是否与记录一致，不一致时（例如笔记在别处被修改后重新
+ * 加载）清空历史，不会改错位置。只在主线程中使用。
+ */
+final class UndoHistory implements TextWatcher {
+
+    /**
+     * 历史占用内存的上限
+     */
+    static final int BYTE_BUDGET = 512 * 1024;
+
+    /**
+     * 间隔小于这个时间的连续输入合并为一次操作
+     */
+    static final long COALESCE_MILLIS = 1000;
+
+    /**
+     * 合并后一次操作最多插入的字符数
+     */
+    static final int MAX_COALESCED_LENGTH = 100;
+
+    // 每个操作对象本身的大约开销
+    private static final int EDIT_OVERHEAD = 48;
+
+    // 一次修改：在 offset 处用 inserted 替换了 removed
+    private static final class Edit {
+        int offset;
+        String removed;
+        String inserted;
+        long time;
+
+        Edit(int offset, String removed, String inserted, long time) {
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+            this.time = time;
+        }
+
+        int bytes() {
+            return EDIT_OVERHEAD + 2 * (removed.length() + inserted.length());
+        }
+    }
+
+    private final ArrayDeque<Edit> mUndo = new ArrayDeque<Edit>();
+    private final ArrayDeque<Edit> mRedo = new ArrayDeque<Edit>();
+    private int mBytes;
+
+    // 为 false 时不记录修改，用于加载内容和执行撤销、重做
+    private boolean mRecording = true;
+    // 为 true 时下一次修改不与上一次合并
+    private boolean mSealed = true;
+
+    // beforeTextChanged 中取出的被删除的文本
+    private String mPendingRemoved;
+
+    /**
+     * 开始或停止记录修改。程序设置文本（例如从数据库加载笔记）时停止记录。
+     */
+    void setRecording(boolean recording) {
+        mRecording = recording;
+        mSealed = true;
+    }
+
+    boolean canUndo() {
+        return !mUndo.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !mRedo.isEmpty();
+    }
+
+    /**
+     * 结束当前的合并，下一次修改单独成为一次操作
+     */
+    void seal() {
+        mSealed = true;
+    }
+
+    void clear() {
+        mUndo.clear();
+        mRedo.clear();
+        mBytes = 0;
+        mSealed = true;
+    }
+
+    /**
+     * 撤销最近一次操作
+     *
+     * @return 撤销后光标应在的位置；没有可撤销的操作或文本与记录不一致时返回 -1
+     */
+    int undo(Editable text) {
+        Edit edit = mUndo.pollLast();
+        if (edit == null) {
+            return -1;
+        }
+        if (!regionMatches(text, edit.offset, edit.inserted)) {
+            clear();
+            return -1;
+        }
+        apply(text, edit.offset, edit.inserted.length(), edit.removed);
+        mRedo.addLast(edit);
+        return edit.offset + edit.removed.length();
+    }
+
+    /**
+     * 重做最近一次撤销的操作
+     *
+     * @return 重做后光标应在的位置；没有可重做的操作或文本与记录不一致时返回 -1
+     */
+    int redo(Editable text) {
+        Edit edit = mRedo.pollLast();
+        if (edit == null) {
+            return -1;
+        }
+        if (!regionMatches(text, edit.offset, edit.removed)) {
+            clear();
+            return -1;
+        }
+        apply(text, edit.offset, edit.removed.length(), edit.inserted);
+        mUndo.addLast(edit);
+        return edit.offset + edit.inserted.length();
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        mPendingRemoved = mRecording ? s.subSequence(start, start + count).toString() : null;
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (!mRecording || mPendingRemoved == null) {
+            return;
+        }
+        record(start, mPendingRemoved, s.subSequence(start, start + count).toString(),
+                SystemClock.uptimeMillis());
+        mPendingRemoved = null;
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+
+    /**
+     * 记录一次修改，能合并时合并到上一次操作中
+     */
+    void record(int offset, String removed, String inserted, long time) {
+        if (removed.length() == 0 && inserted.length() == 0) {
+            return;
+        }
+        // 新的修改使重做历史失效
+        for (Edit edit : mRedo) {
+            mBytes -= edit.bytes();
+        }
+        mRedo.clear();
+
+        Edit last = mUndo.peekLast();
+        if (!mSealed && last != null && time - last.time < COALESCE_MILLIS
+                && coalesce(last, offset, removed, inserted)) {
+            last.time = time;
+            trim();
+            return;
+        }
+        mSealed = false;
+
+        Edit edit = new Edit(offset, removed, inserted, time);
+        if (edit.bytes() > BYTE_BUDGET) {
+            clear();
+            return;
+        }
+        mUndo.addLast(edit);
+        mBytes += edit.bytes();
+        trim();
+    }
+
+    /**
+     * 尝试把一次修改合并到上一次操作中：修改完全落在上一次插入的文本内（继续输入、组字、
+     * 在刚输入的文字中退格），或者紧接在上一次删除之前继续退格
+     */
+    private boolean coalesce(Edit last, int offset, String removed, String inserted) {
+        int insertedEnd = last.offset + last.inserted.length();
+        if (offset >= last.offset && offset + removed.length() <= insertedEnd) {
+            // 换行之后的输入单独撤销
+            if (offset == insertedEnd && last.inserted.endsWith("\n")) {
+                return false;
+            }
+            int from = offset - last.offset;
+            String merged = last.inserted.substring(0, from) + inserted
+                    + last.inserted.substring(from + removed.length());
+            if (merged.length() > MAX_COALESCED_LENGTH) {
+                return false;
+            }
+            mBytes += 2 * (merged.length() - last.inserted.length());
+            last.inserted = merged;
+            return true;
+        }
+        if (inserted.length() == 0 && last.inserted.length() == 0
+                && offset + removed.length() == last.offset
+                && last.removed.length() + removed.length() <= MAX_COALESCED_LENGTH) {
+            mBytes += 2 * removed.length();
+            last.removed = removed + last.removed;
+            last.offset = offset;
+            return true;
+        }
+        return false;
+    }
+
+    // 丢弃最早的操作，直到不超出预算
+    private void trim() {
+        while (mBytes > BYTE_BUDGET && !mUndo.isEmpty()) {
+            mBytes -= mUndo.pollFirst().bytes();
+        }
+    }
+
+    private void apply(Editable text, int offset, int length, String replacement) {
+        boolean recording = mRecording;
+        mRecording = false;
+        try {
+            text.replace(offset, offset + length, replacement);
+        } finally {
+            mRecording = recording;
+            mSealed = true;
+        }
+    }
+
+    private static boolean regionMatches(CharSequence text, int offset, String expected) {
+        int end = offset + expected.length();
+        return offset >= 0 && end <= text.length()
+                && TextUtils.equals(text.subSequence(offset, end), expected);
+    }
+}
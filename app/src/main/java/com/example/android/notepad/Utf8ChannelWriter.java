@@ -0,0 +1,234 @@
+package com.example.android.notepad;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 把字符直接编码为 UTF-8 写入一个可重复使用的大缓冲区，缓冲区满时整块写入 {@link WritableByteChannel}。
+ *
+ * 与 OutputStreamWriter 相比不经过 CharsetEncoder 和中间的字符缓冲，ASCII 字符只需一次数组写入。
+ * 缓冲区直接用 ByteBuffer 包装的数组，编码时写数组，写入通道时不需要再复制。
+ * 代理对可以跨两次 write 调用；不成对的代理字符编码为 U+FFFD。不是线程安全的。
+ */
+final class Utf8ChannelWriter extends Writer {
+    /**
+     * 默认的缓冲区大小
+     */
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * 编码一个字符前缓冲区至少要留出的空间：不成对的高代理字符替换为 U+FFFD（3 个字节）
+     * 之后紧接着的字符最多再占 4 个字节
+     */
+    private static final int HEADROOM = 8;
+
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final byte[] mBytes;
+    // 缓冲区中已经写入的字节数
+    private int mPosition;
+    // 上一次写入末尾的高代理字符，等待与下一个字符组成码点；没有时为 0
+    private char mPendingHighSurrogate;
+    // 已经写入通道的字节数
+    private long mFlushedBytes;
+    // 从 cursor 读取列时重复使用
+    private final CharArrayBuffer mColumnBuffer = new CharArrayBuffer(256);
+    private boolean mClosed;
+
+    Utf8ChannelWriter(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    Utf8ChannelWriter(WritableByteChannel channel, int bufferSize) {
+        if (bufferSize < 2 * HEADROOM) {
+            throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+        }
+        mChannel = channel;
+        mBytes = new byte[bufferSize];
+        mBuffer = ByteBuffer.wrap(mBytes);
+    }
+
+    /**
+     * 已经编码的字节数，包括还在缓冲区中的部分
+     */
+    long getBytesWritten() {
+        return mFlushedBytes + mPosition;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureOpen();
+        if (mBytes.length - mPosition <= HEADROOM) {
+            drain();
+        }
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int count) throws IOException {
+        ensureOpen();
+        int end = offset + count;
+        int i = offset;
+        while (i < end) {
+            if (mBytes.length - mPosition <= HEADROOM) {
+                drain();
+            }
+            // ASCII 的快速路径：缓冲区剩余空间内连续的单字节字符，之后仍留出 HEADROOM
+            int limit = Math.min(end, i + mBytes.length - mPosition - HEADROOM);
+            if (mPendingHighSurrogate == 0) {
+                byte[] bytes = mBytes;
+                int position = mPosition;
+                char c;
+                while (i < limit && (c = chars[i]) < 0x80) {
+                    bytes[position++] = (byte) c;
+                    i++;
+                }
+                mPosition = position;
+                if (i >= limit) {
+                    continue;
+                }
+            }
+            encode(chars[i++]);
+        }
+    }
+
+    @Override
+    public void write(String s, int offset, int count) throws IOException {
+        ensureOpen();
+        int end = offset + count;
+        int i = offset;
+        while (i < end) {
+            if (mBytes.length - mPosition <= HEADROOM) {
+                drain();
+            }
+            int limit = Math.min(end, i + mBytes.length - mPosition - HEADROOM);
+            if (mPendingHighSurrogate == 0) {
+                byte[] bytes = mBytes;
+                int position = mPosition;
+                char c;
+                while (i < limit && (c = s.charAt(i)) < 0x80) {
+                    bytes[position++] = (byte) c;
+                    i++;
+                }
+                mPosition = position;
+                if (i >= limit) {
+                    continue;
+                }
+            }
+            encode(s.charAt(i++));
+        }
+    }
+
+    @Override
+    public void write(String s) throws IOException {
+        write(s, 0, s.length());
+    }
+
+    /**
+     * 写入 cursor 当前行的一列。内容复制到重复使用的字符缓冲区中，不创建中间的字符串。
+     * 值为 null 时写入 "null"，与字符串拼接的结果一致。
+     */
+    void writeColumn(Cursor cursor, int column) throws IOException {
+        if (cursor.isNull(column)) {
+            write("null");
+            return;
+        }
+        cursor.copyStringToBuffer(column, mColumnBuffer);
+        write(mColumnBuffer.data, 0, mColumnBuffer.sizeCopied);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+    /**
+     * 写出缓冲区中的内容并关闭通道。末尾不成对的高代理字符编码为 U+FFFD。
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            if (mPendingHighSurrogate != 0) {
+                if (mBytes.length - mPosition <= HEADROOM) {
+                    drain();
+                }
+                mPendingHighSurrogate = 0;
+                encodeCodePoint(0xfffd);
+            }
+            drain();
+        } finally {
+            mClosed = true;
+            mChannel.close();
+        }
+    }
+
+    // 编码一个字符，调用前缓冲区至少有 HEADROOM 个字节的空间
+    private void encode(char c) {
+        if (mPendingHighSurrogate != 0) {
+            char high = mPendingHighSurrogate;
+            mPendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                encodeCodePoint(Character.toCodePoint(high, c));
+                return;
+            }
+            encodeCodePoint(0xfffd);
+        }
+        if (Character.isHighSurrogate(c)) {
+            mPendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            encodeCodePoint(0xfffd);
+        } else {
+            encodeCodePoint(c);
+        }
+    }
+
+    private void encodeCodePoint(int cp) {
+        byte[] bytes = mBytes;
+        int p = mPosition;
+        if (cp < 0x80) {
+            bytes[p++] = (byte) cp;
+        } else if (cp < 0x800) {
+            bytes[p++] = (byte) (0xc0 | (cp >> 6));
+            bytes[p++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (cp < 0x10000) {
+            bytes[p++] = (byte) (0xe0 | (cp >> 12));
+            bytes[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            bytes[p++] = (byte) (0x80 | (cp & 0x3f));
+        } else {
+            bytes[p++] = (byte) (0xf0 | (cp >> 18));
+            bytes[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            bytes[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            bytes[p++] = (byte) (0x80 | (cp & 0x3f));
+        }
+        mPosition = p;
+    }
+
+    // 把缓冲区中的字节全部写入通道
+    private void drain() throws IOException {
+        if (mPosition == 0) {
+            return;
+        }
+        mBuffer.clear();
+        mBuffer.limit(mPosition);
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mFlushedBytes += mPosition;
+        mPosition = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Writer is closed");
+        }
+    }
+}